@@ -190,6 +190,13 @@ public class AggregationIterator implements SeekableView, DataPoint,
    */
   protected final long[] values;
 
+  /**
+   * The current and next value counts for the data points being used when
+   * aggregating with {@link Aggregators#WAVG}, null otherwise. Works like
+   * {@link #values}.
+   */
+  private final long[] counts;
+
   /** The index in {@link #iterators} of the current Span being used. */
   private int current;
 
@@ -408,6 +415,8 @@ public class AggregationIterator implements SeekableView, DataPoint,
     final int size = iterators.length;
     timestamps = new long[size * 2];
     values = new long[size * 2];
+    counts = aggregator == Aggregators.WAVG && !rate ? 
+        new long[size * 2] : null;
     // Initialize every Iterator, fetch their first values that fall
     // within our time range.
     int num_empty_spans = 0;
@@ -481,6 +490,9 @@ public class AggregationIterator implements SeekableView, DataPoint,
    */
   private void putDataPoint(final int i, final DataPoint dp) {
     timestamps[i] = dp.timestamp();
+    if (counts != null) {
+      counts[i] = dp.valueCount();
+    }
     if (dp.isInteger()) {
       //LOG.debug("Putting #" + i + " (long) " + dp.longValue()
       //          + " @ time " + dp.timestamp());
@@ -574,6 +586,9 @@ public class AggregationIterator implements SeekableView, DataPoint,
     final int next = iterators.length + i;
     timestamps[i] = timestamps[next];
     values[i] = values[next];
+    if (counts != null) {
+      counts[i] = counts[next];
+    }
     //LOG.debug("Moving #" + next + " -> #" + i
     //          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
     //             ? " float " + Double.longBitsToDouble(values[i])
@@ -610,8 +625,9 @@ public class AggregationIterator implements SeekableView, DataPoint,
   }
 
   public boolean isInteger() {
-    if (rate) {
-      // An rate can never be precisely represented without floating point.
+    if (rate || counts != null) {
+      // An rate can never be precisely represented without floating point,
+      // neither can a weighted average.
       return false;
     }
     // If at least one of the values we're going to aggregate or interpolate
@@ -635,7 +651,8 @@ public class AggregationIterator implements SeekableView, DataPoint,
   public double doubleValue() {
     if (!isInteger()) {
       pos = -1;
-      final double value = aggregator.runDouble(this);
+      final double value = counts != null ? 
+          weightedAverage() : aggregator.runDouble(this);
       //LOG.debug("aggregator returned " + value);
       if (Double.isInfinite(value)) {
         throw new IllegalStateException("Got Infinity: "
@@ -650,6 +667,34 @@ public class AggregationIterator implements SeekableView, DataPoint,
     return isInteger() ? longValue() : doubleValue();
   }
 
+  /**
+   * Averages the values of the series that have a data point at the current
+   * timestamp, weighted by how many values each data point stands for.
+   * Series without a data point at this timestamp are skipped rather than
+   * interpolated as a line between two averages says nothing about the
+   * values in between.
+   * @return The weighted average or NaN if no series had a value.
+   */
+  private double weightedAverage() {
+    final long x = timestamps[current] & TIME_MASK;
+    double sum = 0;
+    long count = 0;
+    for (int i = 0; i < iterators.length; i++) {
+      if (timestamps[i] == 0 || (timestamps[i] & TIME_MASK) != x || 
+          counts[i] < 1) {
+        continue;
+      }
+      final double value = (timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
+          ? Double.longBitsToDouble(values[i]) : values[i];
+      if (Double.isNaN(value)) {
+        continue;
+      }
+      sum += value * counts[i];
+      count += counts[i];
+    }
+    return count == 0 ? Double.NaN : sum / count;
+  }
+
   // -------------------------- //
   // Aggregator.Longs interface //
   // -------------------------- //
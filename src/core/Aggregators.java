@@ -16,8 +16,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.commons.math3.stat.descriptive.rank.Percentile;
@@ -118,6 +116,14 @@ public final class Aggregators {
   /** Aggregator that returns the last data point. */
   public static final Aggregator LAST = new Last(Interpolation.ZIM, "last");
   
+  /** Aggregator that averages series weighted by the number of values behind
+   * each data point, e.g. the counts of rolled up averages, instead of
+   * interpolating. When downsampling it averages each interval from its sums
+   * and counts in one pass. Without counts it behaves like {@link #AVG} 
+   * without interpolation.
+   * @since 2.4 */
+  public static final Aggregator WAVG = new Avg(Interpolation.ZIM, "wavg");
+  
   /** Maps an aggregator name to its instance. */
   private static final HashMap<String, Aggregator> aggregators;
 
@@ -191,6 +197,7 @@ public final class Aggregators {
     aggregators.put("last", LAST);
     aggregators.put("pfsum", PFSUM);
     aggregators.put("squareSum", SQUARESUM);
+    aggregators.put("wavg", WAVG);
 
     PercentileAgg[] percentiles = {
        p999, p99, p95, p90, p75, p50, 
@@ -706,8 +713,20 @@ public final class Aggregators {
     }
 
   }
+
+  /**
+   * Averages the sums of the points preceding the current one, either the
+   * given number of points or every point up to and including the first one
+   * that is more than the given number of milliseconds older. Returns 0 until
+   * the window is full. The sums are kept in a {@link MovingWindow} so that
+   * each point is averaged in constant time.
+   */
   public static final class MovingAverage extends Aggregator {
-    private LinkedList<SumPoint> list = new LinkedList<SumPoint>();
+    /** The largest number of points to allocate room for up front */
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+    
+    /** The sums of the preceding points */
+    private final MovingWindow window;
     private final long numPoints;
     private final boolean isTimeUnit;
 
@@ -715,6 +734,8 @@ public final class Aggregators {
       super(method, name);
       this.numPoints = numPoints;
       this.isTimeUnit = isTimeUnit;
+      window = new MovingWindow(isTimeUnit ? 16 : 
+        (int) Math.max(1, Math.min(numPoints, MAX_INITIAL_CAPACITY)), false);
     }
 
     public long runLong(final Longs values) {
@@ -722,38 +743,7 @@ public final class Aggregators {
       while (values.hasNextValue()) {
         sum += values.nextLongValue();
       }
-
-      if (values instanceof DataPoint) {
-        long ts = ((DataPoint) values).timestamp();
-        list.addFirst(new SumPoint(ts, sum));
-      }
-
-      long result = 0;
-      int count = 0;
-
-      Iterator<SumPoint> iter = list.iterator();
-      SumPoint first = iter.next();
-      boolean conditionMet = false;
-
-      // now sum up the preceeding points
-      while (iter.hasNext()) {
-        SumPoint next = iter.next();
-        result += (Long) next.val;
-        count++;
-        if (!isTimeUnit && count >= numPoints) {
-          conditionMet = true;
-          break;
-        } else if (isTimeUnit && ((first.ts - next.ts) > numPoints)) {
-          conditionMet = true;
-          break;
-        }
-      }
-
-      if (!conditionMet || count == 0) {
-        return 0;
-      }
-
-      return result / count;
+      return (long) average(values, sum);
     }
 
     @Override
@@ -762,48 +752,42 @@ public final class Aggregators {
       while (values.hasNextValue()) {
         sum += values.nextDoubleValue();
       }
-
-      if (values instanceof DataPoint) {
-        long ts = ((DataPoint) values).timestamp();
-        list.addFirst(new SumPoint(ts, sum));
-      }
-
-      double result = 0;
-      int count = 0;
-
-      Iterator<SumPoint> iter = list.iterator();
-      SumPoint first = iter.next();
-      boolean conditionMet = false;
-
-      // now sum up the preceeding points
-      while (iter.hasNext()) {
-        SumPoint next = iter.next();
-        result += (Double) next.val;
-        count++;
-        if (!isTimeUnit && count >= numPoints) {
-          conditionMet = true;
-          break;
-        } else if (isTimeUnit && ((first.ts - next.ts) > numPoints)) {
-          conditionMet = true;
-          break;
-        }
-      }
-
-      if (!conditionMet || count == 0) {
-        return 0;
-      }
-
-      return result / count;
+      return average(values, sum);
     }
-  
-    class SumPoint {
-      long ts;
-      Object val;
-
-      public SumPoint(long ts, Object val) {
-        this.ts = ts;
-        this.val = val;
+    
+    /**
+     * Computes the average of the window preceding the current point, then
+     * appends the current sum and evicts points no longer needed.
+     * @param values The values, a {@link DataPoint} if the sum should be
+     * added to the window.
+     * @param sum The sum of the current values.
+     * @return The average or 0 if the window isn't full yet.
+     */
+    private double average(final Object values, final double sum) {
+      final long ts = values instanceof DataPoint ? 
+          ((DataPoint) values).timestamp() : -1;
+      final boolean conditionMet;
+      if (isTimeUnit) {
+        if (ts >= 0) {
+          // the first point beyond the window is still part of the average
+          while (window.size() > 1 && ts - window.timestamp(1) > numPoints) {
+            window.removeFirst();
+          }
+        }
+        conditionMet = window.size() > 0 && ts - window.timestamp(0) > numPoints;
+      } else {
+        conditionMet = window.size() >= numPoints;
+      }
+      final double result = conditionMet && window.count() > 0 ? 
+          window.sum() / window.count() : 0;
+      
+      if (ts >= 0) {
+        window.add(ts, sum);
+        if (!isTimeUnit && window.size() > numPoints) {
+          window.removeFirst();
+        }
       }
+      return result;
     }
   }
   
@@ -0,0 +1,538 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import net.opentsdb.core.HistogramDataPoint.HistogramBucket;
+import net.opentsdb.core.HistogramDataPoint.HistogramBucket.BucketType;
+
+/**
+ * A bucketed histogram like {@link SimpleHistogram} that keeps the counts in
+ * a primitive array. The bucket bounds live in a {@link BucketLayout} that is
+ * interned so that all histograms written with the same buckets share a
+ * single instance. Summing histograms with the same layout is then a plain
+ * array addition without any lookups or boxing. Histograms with different
+ * layouts are merged into the union of both layouts.
+ * <p>
+ * The serialized form is identical to that of {@link SimpleHistogram}.
+ * <p>
+ * This class is not thread safe.
+ * @since 2.4
+ */
+public class ArrayHistogram implements Histogram {
+
+  /** Shared bucket layouts, weakly held so unused layouts are collected. */
+  private static final Interner<BucketLayout> LAYOUTS =
+      Interners.newWeakInterner();
+
+  /** Swapped into the merge input once a merge is done. */
+  private static final byte[] EMPTY_BUFFER = new byte[0];
+
+  /** The empty layout. */
+  private static final BucketLayout EMPTY_LAYOUT = LAYOUTS.intern(
+      new BucketLayout(new float[0], new float[0]));
+
+  private final int id;
+
+  /** The interned bucket bounds. */
+  private BucketLayout layout;
+
+  /** The counts for each bucket in the layout. */
+  private long[] counts;
+
+  private long underflow;
+
+  private long overflow;
+
+  /** Running totals of the counts, computed on demand. Null when stale. */
+  private long[] prefix_sums;
+
+  /** Reused to parse encoded histograms merged into this one. */
+  private Input merge_input;
+
+  /**
+   * Ctor for an empty histogram.
+   * @param id The codec ID.
+   */
+  public ArrayHistogram(final int id) {
+    this.id = id;
+    layout = EMPTY_LAYOUT;
+    counts = new long[0];
+  }
+
+  /**
+   * Ctor for a histogram with the given buckets and zero counts.
+   * @param id The codec ID.
+   * @param lower_bounds The lower bounds of the buckets.
+   * @param upper_bounds The upper bounds of the buckets.
+   * @throws IllegalArgumentException if the arrays were null, of different
+   * lengths or if the buckets were not sorted.
+   */
+  public ArrayHistogram(final int id, final float[] lower_bounds,
+      final float[] upper_bounds) {
+    if (lower_bounds == null || upper_bounds == null) {
+      throw new IllegalArgumentException("Bounds cannot be null.");
+    }
+    if (lower_bounds.length != upper_bounds.length) {
+      throw new IllegalArgumentException("Must have the same number of "
+          + "lower and upper bounds.");
+    }
+    for (int i = 1; i < lower_bounds.length; i++) {
+      if (compare(lower_bounds[i - 1], upper_bounds[i - 1],
+          lower_bounds[i], upper_bounds[i]) >= 0) {
+        throw new IllegalArgumentException("Buckets must be sorted and "
+            + "unique.");
+      }
+    }
+    this.id = id;
+    layout = LAYOUTS.intern(new BucketLayout(lower_bounds.clone(),
+        upper_bounds.clone()));
+    counts = new long[lower_bounds.length];
+  }
+
+  /** Copy ctor sharing the layout. */
+  private ArrayHistogram(final ArrayHistogram rhs) {
+    id = rhs.id;
+    layout = rhs.layout;
+    counts = rhs.counts.clone();
+    underflow = rhs.underflow;
+    overflow = rhs.overflow;
+  }
+
+  /**
+   * Sets the count of a bucket, adding the bucket to the layout if it isn't
+   * already present.
+   * @param min The lower bound of the bucket.
+   * @param max The upper bound of the bucket.
+   * @param count The count, null is treated as zero.
+   */
+  public void addBucket(final Float min, final Float max, final Long count) {
+    if (min == null || max == null) {
+      return;
+    }
+    int index = layout.indexOf(min, max);
+    if (index < 0) {
+      final BucketLayout union = union(layout, new BucketLayout(
+          new float[] { min }, new float[] { max }));
+      counts = remap(layout, counts, union);
+      layout = union;
+      index = layout.indexOf(min, max);
+    }
+    counts[index] = count == null ? 0 : count;
+    prefix_sums = null;
+  }
+
+  /**
+   * @param min The lower bound of the bucket.
+   * @param max The upper bound of the bucket.
+   * @return The count of the bucket or 0 if the bucket wasn't present.
+   */
+  public long getBucketCount(final float min, final float max) {
+    final int index = layout.indexOf(min, max);
+    return index < 0 ? 0 : counts[index];
+  }
+
+  @Override
+  public byte[] histogram(final boolean include_id) {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    final Output output = new Output(buffer);
+    try {
+      if (include_id) {
+        output.writeByte(id);
+      }
+      output.writeShort(counts.length);
+      for (int i = 0; i < counts.length; i++) {
+        output.writeFloat(layout.lower_bounds[i]);
+        output.writeFloat(layout.upper_bounds[i]);
+        output.writeLong(counts[i], true);
+      }
+      output.writeLong(underflow, true);
+      output.writeLong(overflow, true);
+    } finally {
+      output.close();
+    }
+    return buffer.toByteArray();
+  }
+
+  @Override
+  public void fromHistogram(final byte[] raw, final boolean include_id) {
+    if (raw.length < 6) {
+      throw new IllegalArgumentException("Byte array shorter than 6 bytes "
+          + "detected: " + Bytes.pretty(raw));
+    }
+    Input input = null;
+    try {
+      input = new Input(new ByteArrayInputStream(raw));
+      if (include_id) {
+        input.readByte(); // pull out the id.
+      }
+      final int bucket_count = input.readShort();
+      final float[] lower_bounds = new float[bucket_count];
+      final float[] upper_bounds = new float[bucket_count];
+      final long[] values = new long[bucket_count];
+      boolean sorted = true;
+      for (int i = 0; i < bucket_count; i++) {
+        lower_bounds[i] = input.readFloat();
+        upper_bounds[i] = input.readFloat();
+        values[i] = input.readLong(true);
+        if (i > 0 && compare(lower_bounds[i - 1], upper_bounds[i - 1],
+            lower_bounds[i], upper_bounds[i]) >= 0) {
+          sorted = false;
+        }
+      }
+      underflow = input.readLong(true);
+      overflow = input.readLong(true);
+
+      final BucketLayout decoded = new BucketLayout(lower_bounds,
+          upper_bounds);
+      if (sorted) {
+        layout = LAYOUTS.intern(decoded);
+        counts = values;
+      } else {
+        // written by something other than us, sort and sum duplicates
+        layout = union(decoded, EMPTY_LAYOUT);
+        counts = new long[layout.size()];
+        for (int i = 0; i < bucket_count; i++) {
+          counts[layout.indexOf(lower_bounds[i], upper_bounds[i])] +=
+              values[i];
+        }
+      }
+      prefix_sums = null;
+    } finally {
+      if (input != null) {
+        input.close();
+      }
+    }
+  }
+
+  /**
+   * Adds the counts of an encoded histogram to this one without decoding it
+   * into a new histogram first. Buckets that line up with ours are summed in
+   * place so merging histograms written with the same buckets allocates
+   * nothing. Unknown buckets are added to the layout.
+   * <p>
+   * If the data is corrupt this histogram may be left partially merged.
+   * @param raw The encoded histogram, as from {@link #histogram(boolean)}.
+   * @param includes_id Whether or not the data starts with the codec ID.
+   * @throws IllegalArgumentException if the data was too short or corrupt.
+   */
+  public void mergeEncoded(final byte[] raw, final boolean includes_id) {
+    if (raw.length < 6) {
+      throw new IllegalArgumentException("Byte array shorter than 6 bytes "
+          + "detected: " + Bytes.pretty(raw));
+    }
+    if (merge_input == null) {
+      merge_input = new Input(raw);
+    } else {
+      merge_input.setBuffer(raw);
+    }
+    final Input input = merge_input;
+    try {
+      if (includes_id) {
+        input.readByte(); // pull out the id.
+      }
+      final int bucket_count = input.readShort();
+      for (int i = 0; i < bucket_count; i++) {
+        final float lower_bound = input.readFloat();
+        final float upper_bound = input.readFloat();
+        final long count = input.readLong(true);
+        int index = i;
+        if (i >= counts.length || compare(layout.lower_bounds[i], 
+            layout.upper_bounds[i], lower_bound, upper_bound) != 0) {
+          index = layout.indexOf(lower_bound, upper_bound);
+          if (index < 0) {
+            final BucketLayout union = union(layout, new BucketLayout(
+                new float[] { lower_bound }, new float[] { upper_bound }));
+            counts = remap(layout, counts, union);
+            layout = union;
+            index = layout.indexOf(lower_bound, upper_bound);
+          }
+        }
+        counts[index] += count;
+      }
+      underflow += input.readLong(true);
+      overflow += input.readLong(true);
+    } catch (KryoException e) {
+      throw new IllegalArgumentException("Unable to parse the histogram: "
+          + Bytes.pretty(raw), e);
+    } finally {
+      // don't pin the last cell
+      input.setBuffer(EMPTY_BUFFER);
+      prefix_sums = null;
+    }
+  }
+
+  @Override
+  public double percentile(final double p) {
+    return percentile(p, prefixSums());
+  }
+
+  @Override
+  public List<Double> percentiles(final List<Double> p) {
+    final long[] sums = prefixSums();
+    final List<Double> values = new ArrayList<Double>(p.size());
+    for (final Double perc : p) {
+      values.add(percentile(perc, sums));
+    }
+    return values;
+  }
+
+  /**
+   * Finds the first bucket whose running total covers the percentile and
+   * returns its midpoint.
+   * @param perc The percentile from 1 to 100.
+   * @param sums The running totals of the counts.
+   * @return The midpoint of the bucket, 0 if the histogram was empty or -1 if
+   * the percentile was out of range.
+   */
+  private double percentile(final double perc, final long[] sums) {
+    if (perc < 1.0 || perc > 100.0) {
+      return -1.0;
+    }
+    if (sums.length < 1 || sums[sums.length - 1] < 1) {
+      return 0.0;
+    }
+    final long total = sums[sums.length - 1];
+    int low = 0;
+    int high = sums.length - 1;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (sums[mid] * 100.0 / total >= perc) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return (layout.lower_bounds[low] + layout.upper_bounds[low]) / 2;
+  }
+
+  /** @return The running totals of the counts, computing them if needed */
+  private long[] prefixSums() {
+    if (prefix_sums == null) {
+      final long[] sums = new long[counts.length];
+      long sum = 0;
+      for (int i = 0; i < counts.length; i++) {
+        sum += counts[i];
+        sums[i] = sum;
+      }
+      prefix_sums = sums;
+    }
+    return prefix_sums;
+  }
+
+  @Override
+  public Map<HistogramBucket, Long> getHistogram() {
+    final TreeMap<HistogramBucket, Long> buckets =
+        new TreeMap<HistogramBucket, Long>();
+    for (int i = 0; i < counts.length; i++) {
+      buckets.put(new HistogramBucket(BucketType.REGULAR,
+          layout.lower_bounds[i], layout.upper_bounds[i]), counts[i]);
+    }
+    return Collections.unmodifiableMap(buckets);
+  }
+
+  @Override
+  public ArrayHistogram clone() {
+    return new ArrayHistogram(this);
+  }
+
+  @Override
+  public int getId() {
+    return id;
+  }
+
+  @Override
+  public void aggregate(final Histogram histo,
+      final HistogramAggregation func) {
+    if (func != HistogramAggregation.SUM) {
+      throw new UnsupportedOperationException("Unsupported histogram "
+          + "aggregation: " + func);
+    }
+    if (!(histo instanceof ArrayHistogram)) {
+      throw new IllegalArgumentException("The histogram must be an "
+          + "ArrayHistogram: " + (histo == null ? "null" : histo.getClass()));
+    }
+    final ArrayHistogram other = (ArrayHistogram) histo;
+    if (other.layout != layout) {
+      final BucketLayout union = union(layout, other.layout);
+      if (union != layout) {
+        counts = remap(layout, counts, union);
+        layout = union;
+      }
+    }
+    if (other.layout == layout) {
+      final long[] other_counts = other.counts;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other_counts[i];
+      }
+    } else {
+      // the other layout is a subset of ours
+      for (int i = 0; i < other.counts.length; i++) {
+        counts[layout.indexOf(other.layout.lower_bounds[i],
+            other.layout.upper_bounds[i])] += other.counts[i];
+      }
+    }
+    underflow += other.underflow;
+    overflow += other.overflow;
+    prefix_sums = null;
+  }
+
+  @Override
+  public void aggregate(final List<Histogram> histos,
+      final HistogramAggregation func) {
+    for (final Histogram histo : histos) {
+      aggregate(histo, func);
+    }
+  }
+
+  public long getUnderflow() {
+    return underflow;
+  }
+
+  public void setUnderflow(final long underflow) {
+    this.underflow = underflow;
+  }
+
+  public long getOverflow() {
+    return overflow;
+  }
+
+  public void setOverflow(final long overflow) {
+    this.overflow = overflow;
+  }
+
+  /** @return The number of regular buckets */
+  public int getBucketCount() {
+    return counts.length;
+  }
+
+  /**
+   * Returns the interned union of the two layouts. If one layout contains
+   * the other, that layout is returned.
+   */
+  private static BucketLayout union(final BucketLayout a,
+      final BucketLayout b) {
+    final TreeMap<HistogramBucket, Boolean> buckets =
+        new TreeMap<HistogramBucket, Boolean>();
+    for (int i = 0; i < a.size(); i++) {
+      buckets.put(new HistogramBucket(BucketType.REGULAR,
+          a.lower_bounds[i], a.upper_bounds[i]), true);
+    }
+    for (int i = 0; i < b.size(); i++) {
+      buckets.put(new HistogramBucket(BucketType.REGULAR,
+          b.lower_bounds[i], b.upper_bounds[i]), true);
+    }
+    final float[] lower_bounds = new float[buckets.size()];
+    final float[] upper_bounds = new float[buckets.size()];
+    int i = 0;
+    for (final HistogramBucket bucket : buckets.keySet()) {
+      lower_bounds[i] = bucket.getLowerBound();
+      upper_bounds[i++] = bucket.getUpperBound();
+    }
+    return LAYOUTS.intern(new BucketLayout(lower_bounds, upper_bounds));
+  }
+
+  /** @return The counts moved from the old layout to the new superset */
+  private static long[] remap(final BucketLayout from, final long[] counts,
+      final BucketLayout to) {
+    final long[] remapped = new long[to.size()];
+    for (int i = 0; i < counts.length; i++) {
+      remapped[to.indexOf(from.lower_bounds[i], from.upper_bounds[i])] =
+          counts[i];
+    }
+    return remapped;
+  }
+
+  /** Orders buckets the same way {@link HistogramBucket} does. */
+  private static int compare(final float lower_a, final float upper_a,
+      final float lower_b, final float upper_b) {
+    final int cmp = Float.compare(lower_a, lower_b);
+    return cmp != 0 ? cmp : Float.compare(upper_a, upper_b);
+  }
+
+  /**
+   * The sorted bounds of the buckets of a histogram. Immutable so it can be
+   * shared between histograms.
+   */
+  static final class BucketLayout {
+    private final float[] lower_bounds;
+    private final float[] upper_bounds;
+    private final int hash;
+
+    BucketLayout(final float[] lower_bounds, final float[] upper_bounds) {
+      this.lower_bounds = lower_bounds;
+      this.upper_bounds = upper_bounds;
+      hash = (31 * Arrays.hashCode(lower_bounds)) +
+          Arrays.hashCode(upper_bounds);
+    }
+
+    /** @return The number of buckets */
+    int size() {
+      return lower_bounds.length;
+    }
+
+    /** @return The index of the bucket or a negative value if not found */
+    int indexOf(final float lower_bound, final float upper_bound) {
+      int low = 0;
+      int high = lower_bounds.length - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final int cmp = compare(lower_bounds[mid], upper_bounds[mid],
+            lower_bound, upper_bound);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(low + 1);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof BucketLayout)) {
+        return false;
+      }
+      final BucketLayout other = (BucketLayout) obj;
+      return hash == other.hash &&
+          Arrays.equals(lower_bounds, other.lower_bounds) &&
+          Arrays.equals(upper_bounds, other.upper_bounds);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
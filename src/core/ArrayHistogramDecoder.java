@@ -0,0 +1,77 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * <p>
+ * Histogram codec for {@link ArrayHistogram}s. The encoding is the same as
+ * that of the {@link SimpleHistogramDecoder} so existing simple histograms
+ * can be read as array histograms by mapping this codec to their ID.
+ * </p>
+ * <p>
+ * This class is thread safe as it has no state.
+ * </p>
+ * @since 2.4
+ */
+public class ArrayHistogramDecoder extends HistogramDataPointCodec {
+  @Override
+  public Histogram decode(final byte[] raw_data,
+                          final boolean includes_id) {
+    validate(raw_data, includes_id);
+    final Histogram histogram = new ArrayHistogram(id);
+    histogram.fromHistogram(raw_data, includes_id);
+    return histogram;
+  }
+
+  @Override
+  public byte[] encode(final Histogram data_point,
+                       final boolean include_id) {
+    if (!(data_point instanceof ArrayHistogram)) {
+      throw new IllegalArgumentException("The given histogram is not an "
+          + "ArrayHistogram: " + data_point.getClass());
+    }
+    return data_point.histogram(include_id);
+  }
+
+  @Override
+  public boolean supportsEncodedMerge() {
+    return true;
+  }
+
+  @Override
+  public void mergeEncoded(final Histogram accumulator, 
+                           final byte[] raw_data, 
+                           final boolean includes_id) {
+    if (!(accumulator instanceof ArrayHistogram)) {
+      throw new IllegalArgumentException("The accumulator is not an "
+          + "ArrayHistogram: " + (accumulator == null ? "null" : 
+            accumulator.getClass()));
+    }
+    validate(raw_data, includes_id);
+    ((ArrayHistogram) accumulator).mergeEncoded(raw_data, includes_id);
+  }
+
+  /** Checks the data isn't empty and was written by this codec. */
+  private void validate(final byte[] raw_data, final boolean includes_id) {
+    if (raw_data == null) {
+      throw new IllegalArgumentException("The data array cannot be null.");
+    }
+    if (includes_id && raw_data.length < 1) {
+      throw new IllegalArgumentException("The data array cannot be empty.");
+    }
+    if (includes_id && (int) raw_data[0] != id) {
+      throw new IllegalArgumentException("Data ID " + (int) raw_data[0] 
+          + " did not match the codec ID " + id);
+    }
+  }
+}
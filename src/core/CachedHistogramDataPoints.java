@@ -0,0 +1,333 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * An immutable copy of a merged and downsampled group of histograms, e.g. a
+ * {@link HistogramSpanGroup} that has been iterated once. The points are
+ * stored already aggregated so any number of percentile or bucket adaptors
+ * can read them without going back through the
+ * {@link HistogramAggregationIterator}.
+ * <p>
+ * Only UIDs are kept, names are resolved through the UID caches when asked
+ * for. Instances are shared between queries through the
+ * {@link HistogramCache} and use {@link #forQuery(int)} to get a view with
+ * the right query index.
+ * @since 2.4
+ */
+final class CachedHistogramDataPoints implements HistogramDataPoints {
+  /** Rough bytes of object overhead per data point for the cache weigher */
+  static final int POINT_OVERHEAD = 64;
+
+  private final TSDB tsdb;
+  private final byte[] metric_uid;
+  private final ByteMap<byte[]> tag_uids;
+  private final List<byte[]> aggregated_tag_uids;
+  private final List<String> tsuids;
+  private final List<Annotation> annotations;
+  private final String warning;
+  private final int aggregated_size;
+  private final HistogramDataPoint[] points;
+  private final int query_index;
+
+  /** Estimated heap used by the points, computed once. */
+  private final long estimated_bytes;
+
+  /**
+   * Copies the group by iterating it once. Lazily decoded points are
+   * decoded here so readers never modify a shared point.
+   * @param tsdb The TSDB to resolve UIDs with.
+   * @param group The non-null group to copy.
+   */
+  CachedHistogramDataPoints(final TSDB tsdb, final HistogramDataPoints group) {
+    this.tsdb = tsdb;
+    metric_uid = group.metricUID();
+    tag_uids = group.getTagUids();
+    aggregated_tag_uids = group.getAggregatedTagUids();
+    tsuids = group.getTSUIDs();
+    annotations = group.getAnnotations();
+    warning = group.getWarning();
+    aggregated_size = group.aggregatedSize();
+    query_index = group.getQueryIndex();
+
+    final List<HistogramDataPoint> copies = new ArrayList<HistogramDataPoint>();
+    long bytes = 0;
+    final HistogramSeekableView it = group.iterator();
+    while (it.hasNext()) {
+      final HistogramDataPoint copy = it.next().clone();
+      if (copy instanceof EncodedHistogramDataPoint) {
+        ((EncodedHistogramDataPoint) copy).decoded();
+      }
+      bytes += POINT_OVERHEAD + copy.getRawData(false).length;
+      copies.add(copy);
+    }
+    points = copies.toArray(new HistogramDataPoint[copies.size()]);
+    estimated_bytes = bytes;
+  }
+
+  /** Copy ctor sharing everything but the query index. */
+  private CachedHistogramDataPoints(final CachedHistogramDataPoints rhs,
+                                    final int query_index) {
+    tsdb = rhs.tsdb;
+    metric_uid = rhs.metric_uid;
+    tag_uids = rhs.tag_uids;
+    aggregated_tag_uids = rhs.aggregated_tag_uids;
+    tsuids = rhs.tsuids;
+    annotations = rhs.annotations;
+    warning = rhs.warning;
+    aggregated_size = rhs.aggregated_size;
+    points = rhs.points;
+    estimated_bytes = rhs.estimated_bytes;
+    this.query_index = query_index;
+  }
+
+  /**
+   * @param query_index The index of the sub query reading this group.
+   * @return A view on the same points for the given sub query.
+   */
+  CachedHistogramDataPoints forQuery(final int query_index) {
+    if (query_index == this.query_index) {
+      return this;
+    }
+    return new CachedHistogramDataPoints(this, query_index);
+  }
+
+  /** @return The estimated heap used by the data points in bytes. */
+  long estimatedBytes() {
+    return estimated_bytes;
+  }
+
+  @Override
+  public String metricName() {
+    try {
+      return metricNameAsync().join();
+    } catch (InterruptedException iex) {
+      throw new RuntimeException("Interrupted the metric name call", iex);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
+  @Override
+  public Deferred<String> metricNameAsync() {
+    if (metric_uid == null || metric_uid.length < 1) {
+      return Deferred.fromResult("");
+    }
+    return tsdb.metrics.getNameAsync(metric_uid);
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return metric_uid;
+  }
+
+  @Override
+  public Map<String, String> getTags() {
+    try {
+      return getTagsAsync().join();
+    } catch (InterruptedException iex) {
+      throw new RuntimeException("Interrupted the tags call", iex);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
+  @Override
+  public Deferred<Map<String, String>> getTagsAsync() {
+    if (tag_uids == null || tag_uids.isEmpty()) {
+      return Deferred.fromResult(
+          (Map<String, String>) new HashMap<String, String>(0));
+    }
+    final List<byte[]> pairs = new ArrayList<byte[]>(tag_uids.size());
+    for (final Map.Entry<byte[], byte[]> pair : tag_uids.entrySet()) {
+      final byte[] tag = new byte[pair.getKey().length +
+                                  pair.getValue().length];
+      System.arraycopy(pair.getKey(), 0, tag, 0, pair.getKey().length);
+      System.arraycopy(pair.getValue(), 0, tag, pair.getKey().length,
+          pair.getValue().length);
+      pairs.add(tag);
+    }
+
+    /** Upcasts the resolved map */
+    final class TagsCB implements
+        Callback<Map<String, String>, HashMap<String, String>> {
+      @Override
+      public Map<String, String> call(final HashMap<String, String> tags) {
+        return tags;
+      }
+    }
+    return Tags.resolveIdsAsync(tsdb, pairs).addCallback(new TagsCB());
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return tag_uids;
+  }
+
+  @Override
+  public List<String> getAggregatedTags() {
+    try {
+      return getAggregatedTagsAsync().join();
+    } catch (InterruptedException iex) {
+      throw new RuntimeException("Interrupted the aggregated tags call", iex);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
+  @Override
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    if (aggregated_tag_uids == null || aggregated_tag_uids.isEmpty()) {
+      return Deferred.fromResult(
+          (List<String>) new ArrayList<String>(0));
+    }
+    final List<Deferred<String>> names =
+        new ArrayList<Deferred<String>>(aggregated_tag_uids.size());
+    for (final byte[] tagk : aggregated_tag_uids) {
+      names.add(tsdb.tag_names.getNameAsync(tagk));
+    }
+
+    /** Upcasts the resolved list */
+    final class ResolveCB implements Callback<List<String>, ArrayList<String>> {
+      @Override
+      public List<String> call(final ArrayList<String> names) {
+        return names;
+      }
+    }
+    return Deferred.groupInOrder(names).addCallback(new ResolveCB());
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    if (aggregated_tag_uids == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<byte[]>(aggregated_tag_uids);
+  }
+
+  @Override
+  public List<String> getTSUIDs() {
+    return tsuids;
+  }
+
+  @Override
+  public List<Annotation> getAnnotations() {
+    return annotations;
+  }
+
+  @Override
+  public String getWarning() {
+    return warning;
+  }
+
+  @Override
+  public int size() {
+    return points.length;
+  }
+
+  @Override
+  public int aggregatedSize() {
+    return aggregated_size;
+  }
+
+  @Override
+  public HistogramSeekableView iterator() {
+    return new Iter();
+  }
+
+  @Override
+  public long timestamp(final int i) {
+    if (i < 0 || i >= points.length) {
+      throw new IndexOutOfBoundsException("index " + i + " is out of range "
+          + "for " + points.length + " points in " + this);
+    }
+    return points[i].timestamp();
+  }
+
+  @Override
+  public int getQueryIndex() {
+    return query_index;
+  }
+
+  @Override
+  public String toString() {
+    return "CachedHistogramDataPoints(metric_uid=" +
+        (metric_uid == null ? null : Arrays.toString(metric_uid))
+        + ", points=" + points.length
+        + ", estimated_bytes=" + estimated_bytes
+        + ", query_index=" + query_index
+        + ')';
+  }
+
+  /** Iterates over the shared array of merged points. */
+  private final class Iter implements HistogramSeekableView {
+    private int index;
+
+    @Override
+    public boolean hasNext() {
+      return index < points.length;
+    }
+
+    @Override
+    public HistogramDataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements");
+      }
+      return points[index++];
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      if ((timestamp & Const.MILLISECOND_MASK) != 0) {
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      final long ts = (timestamp & Const.SECOND_MASK) == 0 ?
+          timestamp * 1000 : timestamp;
+      index = 0;
+      while (index < points.length && toMillis(points[index].timestamp()) < ts) {
+        index++;
+      }
+    }
+  }
+
+  /** @return The timestamp in milliseconds */
+  private static long toMillis(final long timestamp) {
+    return (timestamp & Const.SECOND_MASK) == 0 ? timestamp * 1000 : timestamp;
+  }
+}
@@ -0,0 +1,191 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * A cooperative cancellation flag shared by every stage of a query. The RPC
+ * layer cancels the token when the query times out, the client goes away or
+ * an operator kills the query and the storage layer checks it between
+ * batches, closing scanners and dropping buffered data as soon as it notices.
+ * <p>
+ * A token can only be cancelled once and only until the query is marked
+ * complete, so late events such as a keep-alive connection closing after the
+ * response was sent are ignored.
+ * @since 2.4
+ */
+public final class CancellationToken {
+
+  /** Why a query was cancelled. */
+  public enum Reason {
+    /** The query ran longer than {@code tsd.query.timeout}. */
+    TIMEOUT (HttpResponseStatus.REQUEST_TIMEOUT,
+        "Query exceeded the configured timeout"),
+    /** The client closed the connection before the response was sent. */
+    CLIENT_DISCONNECT (HttpResponseStatus.SERVICE_UNAVAILABLE,
+        "Client disconnected before the query completed"),
+    /** The query was killed through the stats API. */
+    KILLED (HttpResponseStatus.SERVICE_UNAVAILABLE,
+        "Query was killed by an administrator");
+
+    /** The status to return to the caller. */
+    private final HttpResponseStatus status;
+    /** A description for the exception. */
+    private final String message;
+
+    private Reason(final HttpResponseStatus status, final String message) {
+      this.status = status;
+      this.message = message;
+    }
+
+    /** @return The HTTP status to return to the caller. */
+    public HttpResponseStatus getStatus() {
+      return status;
+    }
+  }
+
+  /** The reason the token was cancelled, null while the query is live. */
+  private volatile Reason reason;
+
+  /** Set once the query has finished, cancellations are ignored after. */
+  private boolean completed;
+
+  /** Hooks to run when the query completes, e.g. to release timers and
+   * listeners that would otherwise keep the query alive. */
+  private List<Runnable> completion_hooks;
+
+  /** Hooks to run when the query is cancelled, e.g. to drop it from a 
+   * queue. Cleared once the query is cancelled or completes. */
+  private List<Runnable> cancel_hooks;
+
+  /**
+   * Cancels the token if the query is still running and runs the cancel 
+   * hooks.
+   * @param reason The non-null reason for the cancellation.
+   * @return True if this call cancelled the token, false if it was already
+   * cancelled or the query has completed.
+   */
+  public boolean cancel(final Reason reason) {
+    if (reason == null) {
+      throw new IllegalArgumentException("Reason cannot be null");
+    }
+    final List<Runnable> hooks;
+    synchronized (this) {
+      if (completed || this.reason != null) {
+        return false;
+      }
+      this.reason = reason;
+      hooks = cancel_hooks;
+      cancel_hooks = null;
+    }
+    if (hooks != null) {
+      for (final Runnable hook : hooks) {
+        hook.run();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Marks the query as complete so that later cancellations are ignored and
+   * runs the completion hooks. Subsequent calls are no-ops.
+   */
+  public void complete() {
+    final List<Runnable> hooks;
+    synchronized (this) {
+      if (completed) {
+        return;
+      }
+      completed = true;
+      hooks = completion_hooks;
+      completion_hooks = null;
+      cancel_hooks = null;
+    }
+    if (hooks != null) {
+      for (final Runnable hook : hooks) {
+        hook.run();
+      }
+    }
+  }
+
+  /**
+   * Registers a hook to run when the query completes. If the query has
+   * already completed the hook is run immediately.
+   * @param hook The non-null hook to run.
+   */
+  public void onComplete(final Runnable hook) {
+    synchronized (this) {
+      if (!completed) {
+        if (completion_hooks == null) {
+          completion_hooks = new ArrayList<Runnable>(2);
+        }
+        completion_hooks.add(hook);
+        return;
+      }
+    }
+    hook.run();
+  }
+
+  /**
+   * Registers a hook to run when the query is cancelled. If the query was
+   * already cancelled the hook is run immediately, if it has completed the 
+   * hook is dropped.
+   * @param hook The non-null hook to run.
+   */
+  public void onCancel(final Runnable hook) {
+    synchronized (this) {
+      if (completed) {
+        return;
+      }
+      if (reason == null) {
+        if (cancel_hooks == null) {
+          cancel_hooks = new ArrayList<Runnable>(2);
+        }
+        cancel_hooks.add(hook);
+        return;
+      }
+    }
+    hook.run();
+  }
+
+  /** @return Whether or not the query has been cancelled. */
+  public boolean isCancelled() {
+    return reason != null;
+  }
+
+  /** @return The reason the query was cancelled, null if it wasn't. */
+  public Reason getReason() {
+    return reason;
+  }
+
+  /**
+   * @return An exception to hand back to the caller of a cancelled query.
+   * @throws IllegalStateException if the token was not cancelled.
+   */
+  public QueryException newException() {
+    final Reason reason = this.reason;
+    if (reason == null) {
+      throw new IllegalStateException("The query was not cancelled");
+    }
+    return new QueryException(reason.status, reason.message);
+  }
+
+  @Override
+  public String toString() {
+    return "CancellationToken(reason=" + reason + ")";
+  }
+}
@@ -0,0 +1,147 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Pushes downsampling from the TSD down to the storage layer so that long
+ * queries over fine grained data don't have to ship every raw value to the
+ * TSD only to reduce them to a handful of buckets.
+ * <p>
+ * The {@link SaltScanner} hands each scanner to {@link #prepareScanner} before
+ * it's started, e.g. to attach a server side filter or coprocessor, and passes
+ * each compacted row through {@link #reduceRow} before storing it in a span.
+ * Implementations that reduce the rows in storage can return the row as is
+ * from {@link #reduceRow}, others can reduce it in the TSD.
+ * <p>
+ * Either way the reduced row must be a regular data row with one double
+ * precision value per downsampling interval touched by the row. The value is
+ * the downsampling function applied to the values of the row that fall in the
+ * interval and it is stored at the later of the interval start and the row
+ * base time. An interval wider than a row therefore shows up as one partial
+ * bucket per row and the TSD combines them using {@link #mergeFunction}.
+ * <p>
+ * <b>Note:</b> Implementations must have a parameterless constructor. The
+ * {@link #initialize(TSDB)} method will be called immediately after the plugin
+ * is instantiated and before any other methods are called.
+ * @since 2.4
+ */
+public abstract class DownsamplePushdown {
+
+  /**
+   * Called by TSDB to initialize the plugin
+   * Implementations are responsible for setting up any IO they need as well
+   * as starting any required background threads.
+   * <b>Note:</b> Implementations should throw exceptions if they can't start
+   * up properly. The TSD will then shutdown so the operator can fix the
+   * problem. Please use IllegalArgumentException for configuration issues.
+   * @param tsdb The parent TSDB object
+   * @throws IllegalArgumentException if required configuration parameters are
+   * missing
+   * @throws RuntimeException if something else goes wrong
+   */
+  public abstract void initialize(final TSDB tsdb);
+
+  /**
+   * Called to gracefully shutdown the plugin. Implementations should close
+   * any IO they have open
+   * @return A deferred object that indicates the completion of the request.
+   * The {@link Object} has not special meaning and can be {@code null}
+   * (think of it as {@code Deferred<Void>}).
+   */
+  public abstract Deferred<Object> shutdown();
+
+  /**
+   * Should return the version of this plugin in the format:
+   * MAJOR.MINOR.MAINT, e.g. "2.4.0". The MAJOR version should match the major
+   * version of OpenTSDB the plugin is meant to work with.
+   * @return A version string used to log the loaded version
+   */
+  public abstract String version();
+
+  /**
+   * Called by the TSD when a request for statistics collection has come in. The
+   * implementation may provide one or more statistics. If no statistics are
+   * available for the implementation, simply stub the method.
+   * @param collector The collector used for emitting statistics
+   */
+  public abstract void collectStats(final StatsCollector collector);
+
+  /**
+   * Called with each scanner of a query that will be downsampled in storage
+   * before the scanner is started. Note that the scanner may already have a
+   * row key filter set.
+   * @param scanner The non-null scanner to prepare.
+   * @param specification The downsampling specification to push down.
+   */
+  public abstract void prepareScanner(final Scanner scanner,
+      final DownsamplingSpecification specification);
+
+  /**
+   * Converts a compacted row returned by a prepared scanner into a row of
+   * partial buckets as described above.
+   * @param column The compacted row.
+   * @param specification The downsampling specification pushed down.
+   * @return The reduced row or null if the row didn't have any data points.
+   */
+  public abstract KeyValue reduceRow(final KeyValue column,
+      final DownsamplingSpecification specification);
+
+  /**
+   * Determines whether or not a downsampler can be computed in storage. By
+   * default only fixed intervals are supported with functions that can be
+   * computed on a part of an interval and combined later. Averages are only
+   * supported if every interval lies within a single row.
+   * @param specification The downsampling specification.
+   * @return True if the downsampler can be pushed down.
+   */
+  public boolean canPushDown(final DownsamplingSpecification specification) {
+    if (specification == null ||
+        specification == DownsamplingSpecification.NO_DOWNSAMPLER ||
+        specification.getInterval() <= 0 ||
+        specification.useCalendar() ||
+        mergeFunction(specification.getFunction()) == null) {
+      return false;
+    }
+    if (specification.getFunction() == Aggregators.AVG) {
+      return (Const.MAX_TIMESPAN * 1000L) % specification.getInterval() == 0;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the function used to combine the partial buckets of an interval.
+   * @param function The downsampling function.
+   * @return The function to combine partial buckets with or null if the
+   * function can't be pushed down.
+   */
+  public static Aggregator mergeFunction(final Aggregator function) {
+    if (function == Aggregators.SUM || function == Aggregators.ZIMSUM ||
+        function == Aggregators.MIN || function == Aggregators.MIMMIN ||
+        function == Aggregators.MAX || function == Aggregators.MIMMAX ||
+        function == Aggregators.AVG) {
+      // averages only ever have one bucket per interval
+      return function;
+    }
+    if (function == Aggregators.COUNT) {
+      return Aggregators.SUM;
+    }
+    return null;
+  }
+}
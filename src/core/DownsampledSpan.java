@@ -0,0 +1,84 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import net.opentsdb.rollup.RollupQuery;
+
+/**
+ * A span of rows that were downsampled in storage by a
+ * {@link DownsamplePushdown}. Each row holds partial buckets so when the span
+ * is downsampled the partial buckets of an interval are combined with the
+ * merge function of the downsampler, e.g. counts are summed, instead of the
+ * downsampler itself.
+ * @since 2.4
+ */
+final class DownsampledSpan extends Span {
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to which we belong
+   */
+  DownsampledSpan(final TSDB tsdb) {
+    super(tsdb);
+  }
+
+  @Override
+  Downsampler downsampler(final long start_time,
+                          final long end_time,
+                          final long interval_ms,
+                          final Aggregator downsampler,
+                          final FillPolicy fill_policy) {
+    return super.downsampler(start_time, end_time, interval_ms,
+        DownsamplePushdown.mergeFunction(downsampler), fill_policy);
+  }
+
+  @Override
+  Downsampler downsampler(final long start_time,
+      final long end_time,
+      final DownsamplingSpecification downsampler,
+      final long query_start,
+      final long query_end) {
+    return super.downsampler(start_time, end_time, merge(downsampler),
+        query_start, query_end);
+  }
+
+  @Override
+  Downsampler downsampler(final long start_time,
+      final long end_time,
+      final DownsamplingSpecification downsampler,
+      final long query_start,
+      final long query_end,
+      final RollupQuery rollup_query) {
+    return super.downsampler(start_time, end_time, merge(downsampler),
+        query_start, query_end, rollup_query);
+  }
+
+  /** @return A specification that combines the partial buckets */
+  private static DownsamplingSpecification merge(
+      final DownsamplingSpecification downsampler) {
+    if (downsampler == null) {
+      return null;
+    }
+    final Aggregator merge =
+        DownsamplePushdown.mergeFunction(downsampler.getFunction());
+    if (merge == null) {
+      throw new IllegalStateException("Unable to merge the partial buckets "
+          + "of " + downsampler);
+    }
+    if (merge == downsampler.getFunction()) {
+      return downsampler;
+    }
+    return new DownsamplingSpecification(downsampler.getInterval(), merge,
+        downsampler.getFillPolicy());
+  }
+}
@@ -53,6 +53,11 @@ public class Downsampler implements SeekableView, DataPoint {
   /** Last value as a double */
   protected double value;
   
+  /** How many values the last value was computed from when known, e.g. the
+   * sum of the rolled up counts, 1 otherwise. Used by {@link Aggregators#WAVG}
+   * to weigh series against each other. */
+  protected long value_count;
+  
   /** An optional rollup query. */
   protected RollupQuery rollup_query;
   
@@ -162,7 +167,10 @@ public class Downsampler implements SeekableView, DataPoint {
   @Override
   public DataPoint next() {
     if (hasNext()) {
-      if (rollup_query != null && 
+      value_count = 1;
+      if (isWeighted()) {
+        weightedAverage();
+      } else if (rollup_query != null && 
           (rollup_query.getRollupAgg() == Aggregators.AVG || 
            rollup_query.getRollupAgg() == Aggregators.DEV)) {
         if (rollup_query.getRollupAgg() == Aggregators.AVG) {
@@ -230,6 +238,34 @@ public class Downsampler implements SeekableView, DataPoint {
     throw new NoSuchElementException("no more data points in " + this);
   }
 
+  /**
+   * @return Whether or not intervals are averaged from their sums and counts
+   * in one pass, keeping the count to weigh the series with.
+   */
+  protected boolean isWeighted() {
+    return specification.getFunction() == Aggregators.WAVG || 
+        (rollup_query != null && rollup_query.isWeighted());
+  }
+  
+  /**
+   * Averages the current interval by merging the sums and counts of its
+   * values in a single pass. Raw values count as one each.
+   */
+  protected void weightedAverage() {
+    double sum = 0;
+    long count = 0;
+    while (values_in_interval.hasNextValue()) {
+      count += values_in_interval.nextValueCount();
+      sum += values_in_interval.nextDoubleValue();
+    }
+    if (count == 0) { // avoid # / 0
+      value = 0;
+    } else {
+      value = sum / (double) count;
+    }
+    value_count = count;
+  }
+  
   @Override
   public void remove() {
     throw new UnsupportedOperationException();
@@ -513,6 +549,6 @@ public class Downsampler implements SeekableView, DataPoint {
   
   @Override
   public long valueCount() {
-    throw new UnsupportedOperationException();
+    return value_count;
   }
 }
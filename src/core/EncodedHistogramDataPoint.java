@@ -0,0 +1,222 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hbase.async.KeyValue;
+
+/**
+ * A histogram data point that holds on to the encoded bytes from storage and
+ * only decodes them when the histogram is actually needed. When one of these
+ * is used as the target of an aggregation it decodes itself once and the
+ * other encoded points are summed into it through
+ * {@link HistogramDataPointCodec#mergeEncoded} so a group of cells costs a
+ * single decode instead of one per cell.
+ * <p>
+ * Clones share the encoded bytes, which must not be modified.
+ * <p>
+ * This class is not thread safe.
+ * @since 2.4
+ */
+final class EncodedHistogramDataPoint implements HistogramDataPoint {
+
+  /** The codec that wrote the bytes. */
+  private final HistogramDataPointCodec codec;
+
+  /** The encoded histogram including the codec ID prefix. */
+  private final byte[] raw_data;
+
+  private final long timestamp;
+
+  /** Optional stats to record decodes and merges in, may be null. */
+  private final HistogramDecodeStats stats;
+
+  /** The decoded histogram, null until needed. */
+  private Histogram histogram;
+
+  /**
+   * Default ctor.
+   * @param codec The non-null codec that encoded the histogram.
+   * @param raw_data The non-null encoded histogram including the ID prefix.
+   * @param timestamp The timestamp of the data point.
+   * @param stats Optional stats to record decodes and merges in.
+   */
+  EncodedHistogramDataPoint(final HistogramDataPointCodec codec,
+                            final byte[] raw_data,
+                            final long timestamp,
+                            final HistogramDecodeStats stats) {
+    if (codec == null) {
+      throw new IllegalArgumentException("The codec cannot be null.");
+    }
+    if (raw_data == null || raw_data.length < 1) {
+      throw new IllegalArgumentException("The data cannot be null or empty.");
+    }
+    this.codec = codec;
+    this.raw_data = raw_data;
+    this.timestamp = timestamp;
+    this.stats = stats;
+  }
+
+  /** Copy ctor sharing the encoded bytes. */
+  private EncodedHistogramDataPoint(final EncodedHistogramDataPoint rhs,
+                                    final long timestamp) {
+    codec = rhs.codec;
+    raw_data = rhs.raw_data;
+    this.timestamp = timestamp;
+    stats = rhs.stats;
+    histogram = rhs.histogram == null ? null : rhs.histogram.clone();
+  }
+
+  /**
+   * Wraps a histogram cell from storage without decoding it.
+   * @param tsdb The TSDB to use when fetching the codec.
+   * @param kv The histogram cell.
+   * @param stats Optional stats to record decodes and merges in.
+   * @return The encoded data point.
+   * @throws IllegalArgumentException if no codec was mapped to the ID in the
+   * cell.
+   */
+  static EncodedHistogramDataPoint fromKeyValue(final TSDB tsdb,
+                                                final KeyValue kv,
+                                                final HistogramDecodeStats stats) {
+    final byte[] value = kv.value();
+    if (value == null || value.length < 1) {
+      throw new IllegalArgumentException("Empty histogram value in " + kv);
+    }
+    return new EncodedHistogramDataPoint(
+        tsdb.histogramManager().getCodec((int) value[0]), value,
+        Internal.getTimeStampFromNonDP(Internal.baseTime(kv.key()),
+            kv.qualifier()), stats);
+  }
+
+  @Override
+  public long timestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public byte[] getRawData(final boolean include_id) {
+    if (histogram != null) {
+      return codec.encode(histogram, include_id);
+    }
+    return Arrays.copyOfRange(raw_data, include_id ? 0 : 1, raw_data.length);
+  }
+
+  @Override
+  public void resetFromRawData(final byte[] raw_data,
+                               final boolean includes_id) {
+    histogram = codec.decode(raw_data, includes_id);
+    if (stats != null) {
+      stats.decoded();
+    }
+  }
+
+  @Override
+  public int getId() {
+    return codec.getId();
+  }
+
+  @Override
+  public double percentile(final double p) {
+    return decoded().percentile(p);
+  }
+
+  @Override
+  public List<Double> percentile(final List<Double> p) {
+    return decoded().percentiles(p);
+  }
+
+  /**
+   * Sums the other data point into this one. Encoded points from the same
+   * codec that haven't been decoded yet are merged from their bytes, points
+   * from other codecs are aggregated in their decoded form.
+   * @throws UnsupportedOperationException if the function wasn't a sum.
+   * @throws IllegalArgumentException if the other point was from another 
+   * codec and couldn't be decoded.
+   */
+  @Override
+  public void aggregate(final HistogramDataPoint histo,
+                        final HistogramAggregation func) {
+    if (func != HistogramAggregation.SUM) {
+      throw new UnsupportedOperationException("Failed to map the aggregator.");
+    }
+    final Histogram accumulator = decoded();
+    if (histo instanceof EncodedHistogramDataPoint) {
+      final EncodedHistogramDataPoint other = (EncodedHistogramDataPoint) histo;
+      if (other.histogram != null) {
+        accumulator.aggregate(other.histogram, func);
+      } else if (other.codec == codec) {
+        mergeEncoded(accumulator, other.raw_data);
+      } else {
+        accumulator.aggregate(other.decoded(), func);
+      }
+    } else if (histo.getId() == codec.getId()) {
+      mergeEncoded(accumulator, histo.getRawData(true));
+    } else if (histo instanceof SimpleHistogramDataPointAdapter) {
+      // bytes from another codec can't be read by ours
+      accumulator.aggregate(
+          ((SimpleHistogramDataPointAdapter) histo).getHistogram(), func);
+    } else {
+      throw new IllegalArgumentException("Unable to aggregate a histogram "
+          + "with codec ID " + histo.getId() + " into one with codec ID " 
+          + codec.getId());
+    }
+  }
+
+  @Override
+  public HistogramDataPoint clone() {
+    return new EncodedHistogramDataPoint(this, timestamp);
+  }
+
+  @Override
+  public HistogramDataPoint cloneAndSetTimestamp(final long timestamp) {
+    return new EncodedHistogramDataPoint(this, timestamp);
+  }
+
+  @Override
+  public Map<HistogramBucket, Long> getHistogramBucketsIfHas() {
+    return new SimpleHistogramDataPointAdapter(decoded(), timestamp)
+        .getHistogramBucketsIfHas();
+  }
+
+  /** @return Whether or not the bytes have been decoded */
+  boolean isDecoded() {
+    return histogram != null;
+  }
+
+  /** @return The histogram, decoding it on the first call */
+  Histogram decoded() {
+    if (histogram == null) {
+      histogram = codec.decode(raw_data, true);
+      if (stats != null) {
+        stats.decoded();
+      }
+    }
+    return histogram;
+  }
+
+  /** Merges the encoded bytes, recording how they were merged. */
+  private void mergeEncoded(final Histogram accumulator, final byte[] data) {
+    codec.mergeEncoded(accumulator, data, true);
+    if (stats != null) {
+      if (codec.supportsEncodedMerge()) {
+        stats.mergedEncoded(data.length);
+      } else {
+        stats.decoded();
+      }
+    }
+  }
+}
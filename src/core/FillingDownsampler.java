@@ -193,7 +193,10 @@ public class FillingDownsampler extends Downsampler {
       if (run_all || actual == timestamp) {
         // The calculated interval timestamp matches what we expect, so we can
         // do normal processing.
-        if (rollup_query != null && 
+        value_count = 1;
+        if (isWeighted()) {
+          weightedAverage();
+        } else if (rollup_query != null && 
             (rollup_query.getRollupAgg() == Aggregators.AVG || 
             rollup_query.getRollupAgg() == Aggregators.DEV)) {
           if (rollup_query.getRollupAgg() == Aggregators.AVG) {
@@ -257,7 +260,8 @@ public class FillingDownsampler extends Downsampler {
       } else {
         // Our expected timestamp precedes the actual, so the interval is
         // missing. We will use a special value, based on the fill policy, to
-        // represent this case.
+        // represent this case. Filled intervals carry no weight.
+        value_count = 0;
         switch (specification.getFillPolicy()) {
         case NOT_A_NUMBER:
         case NULL:
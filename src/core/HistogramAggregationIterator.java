@@ -75,6 +75,9 @@ public class HistogramAggregationIterator implements
    */
   private HistogramDataPoint value;
   
+  /** Optional stats to flush once the iterator is exhausted */
+  private HistogramDecodeStats decode_stats;
+  
   /**
    * Cotr.
    * 
@@ -233,9 +236,20 @@ public class HistogramAggregationIterator implements
       }
     }
 
+    if (decode_stats != null) {
+      decode_stats.flush();
+    }
     return false;
   }
 
+  /**
+   * Sets the stats to flush to the query once the iterator is exhausted.
+   * @param decode_stats The stats for lazily decoded histograms, may be null.
+   */
+  void setDecodeStats(final HistogramDecodeStats decode_stats) {
+    this.decode_stats = decode_stats;
+  }
+
   @Override
   public HistogramDataPoint next() {
     if (!hasNext()) {
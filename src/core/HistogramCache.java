@@ -0,0 +1,172 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * An LRU cache of merged, downsampled histogram groups keyed on everything
+ * that determines the merge: the metric, filters, time range, downsampler and
+ * rollup table. Percentiles and buckets are not part of the key so a query
+ * for p50 and a later one for p99.9 over the same series share one entry and
+ * only the percentile math runs again.
+ * <p>
+ * Entries are weighed by the estimated size of their points and evicted least
+ * recently used once {@code tsd.query.histogram_cache.max_bytes} is reached.
+ * Entries also expire {@code tsd.query.histogram_cache.ttl} seconds after they
+ * were written so late data eventually shows up. {@link TsdbQuery} only
+ * caches queries with an explicit end time in the past.
+ * @since 2.4
+ */
+public final class HistogramCache {
+
+  /** The TSDB to resolve cached UIDs with. */
+  private final TSDB tsdb;
+
+  /** The cache of groups per query. */
+  private final Cache<String, Entry> cache;
+
+  /** The estimated bytes held by the cache. */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The non-null TSDB to pull config from.
+   * @throws IllegalArgumentException if the config was invalid.
+   */
+  public HistogramCache(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    final long max_bytes = config.getLong("tsd.query.histogram_cache.max_bytes");
+    final long ttl = config.getLong("tsd.query.histogram_cache.ttl");
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException(
+          "The histogram cache size must be at least one byte: " + max_bytes);
+    }
+    if (ttl < 1) {
+      throw new IllegalArgumentException(
+          "The histogram cache TTL must be at least one second: " + ttl);
+    }
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(max_bytes)
+        .weigher(new Weigher<String, Entry>() {
+          @Override
+          public int weigh(final String key, final Entry entry) {
+            return entry.weight();
+          }
+        })
+        .expireAfterWrite(ttl, TimeUnit.SECONDS)
+        .removalListener(new RemovalListener<String, Entry>() {
+          @Override
+          public void onRemoval(
+              final RemovalNotification<String, Entry> notification) {
+            bytes.addAndGet(-notification.getValue().bytes);
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Fetches the groups for a query.
+   * @param key The non-null key from the query.
+   * @return The cached groups or null if the query wasn't cached.
+   */
+  List<CachedHistogramDataPoints> get(final String key) {
+    final Entry entry = cache.getIfPresent(key);
+    return entry == null ? null : entry.groups;
+  }
+
+  /**
+   * Merges each group once and stores the results.
+   * @param key The non-null key from the query.
+   * @param groups The groups to copy, iterating each one.
+   * @return The copies that were stored, in the same order as the groups.
+   */
+  List<CachedHistogramDataPoints> put(final String key,
+      final List<? extends HistogramDataPoints> groups) {
+    final List<CachedHistogramDataPoints> copies =
+        new ArrayList<CachedHistogramDataPoints>(groups.size());
+    long size = key.length() * 2;
+    for (final HistogramDataPoints group : groups) {
+      final CachedHistogramDataPoints copy = group instanceof
+          CachedHistogramDataPoints ? (CachedHistogramDataPoints) group :
+            new CachedHistogramDataPoints(tsdb, group);
+      size += copy.estimatedBytes();
+      copies.add(copy);
+    }
+    final Entry entry = new Entry(Collections.unmodifiableList(copies), size);
+    bytes.addAndGet(size);
+    cache.put(key, entry);
+    return entry.groups;
+  }
+
+  /** @return The number of cached queries. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** @return The estimated bytes held by the cache. */
+  public long estimatedBytes() {
+    return bytes.get();
+  }
+
+  /** Drops all entries. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Collects the stats for the cache.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    final CacheStats stats = cache.stats();
+    collector.record("query.histogram_cache.hits", stats.hitCount());
+    collector.record("query.histogram_cache.misses", stats.missCount());
+    collector.record("query.histogram_cache.evictions", stats.evictionCount());
+    collector.record("query.histogram_cache.entries", cache.size());
+    collector.record("query.histogram_cache.bytes", bytes.get());
+  }
+
+  /** The groups for a query with their estimated size. */
+  private static final class Entry {
+    private final List<CachedHistogramDataPoints> groups;
+    private final long bytes;
+
+    private Entry(final List<CachedHistogramDataPoints> groups,
+                  final long bytes) {
+      this.groups = groups;
+      this.bytes = bytes;
+    }
+
+    /** @return The size clamped to an int for the weigher */
+    private int weight() {
+      return bytes > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) bytes;
+    }
+  }
+}
@@ -55,4 +55,31 @@ public abstract class HistogramDataPointCodec {
   
   public abstract byte[] encode(final Histogram data_point,
                                 final boolean include_id);
+
+  /**
+   * Whether or not this codec can fold encoded histograms into an accumulator
+   * without decoding each one into a new histogram first.
+   * @return True if {@link #mergeEncoded} is implemented natively, false if
+   * it falls back to decoding.
+   */
+  public boolean supportsEncodedMerge() {
+    return false;
+  }
+
+  /**
+   * Sums the encoded histogram into the accumulator. The default decodes the
+   * histogram and aggregates it. Codecs that can parse their encoding straight
+   * into an accumulator should override this and {@link #supportsEncodedMerge}.
+   * @param accumulator A histogram decoded by this codec to add the data to.
+   * @param raw_data The encoded byte array of the histogram data.
+   * @param includes_id Whether or not the data includes the id prefix.
+   * @throws IllegalArgumentException if the data could not be parsed or
+   * merged with the accumulator.
+   */
+  public void mergeEncoded(final Histogram accumulator, 
+                           final byte[] raw_data, 
+                           final boolean includes_id) {
+    accumulator.aggregate(decode(raw_data, includes_id), 
+        HistogramAggregation.SUM);
+  }
 }
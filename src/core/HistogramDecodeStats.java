@@ -0,0 +1,94 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+
+/**
+ * Counts how many histograms of a sub query were decoded and how many were
+ * merged straight from their encoded bytes. The counts are added to the query
+ * stats on {@link #flush()}.
+ * <p>
+ * This class is thread safe.
+ * @since 2.4
+ */
+final class HistogramDecodeStats {
+  /** The stats to report to, may be null. */
+  private final QueryStats query_stats;
+  
+  /** The index of the sub query. */
+  private final int query_index;
+  
+  private final AtomicLong decodes = new AtomicLong();
+  
+  private final AtomicLong encoded_merges = new AtomicLong();
+  
+  private final AtomicLong bytes_merged = new AtomicLong();
+  
+  /**
+   * Default ctor.
+   * @param query_stats The stats to report to, may be null.
+   * @param query_index The index of the sub query.
+   */
+  HistogramDecodeStats(final QueryStats query_stats, final int query_index) {
+    this.query_stats = query_stats;
+    this.query_index = query_index;
+  }
+  
+  /** Records a histogram decoded into an object. */
+  void decoded() {
+    decodes.incrementAndGet();
+  }
+  
+  /**
+   * Records a histogram merged without decoding.
+   * @param bytes The length of the encoded histogram.
+   */
+  void mergedEncoded(final int bytes) {
+    encoded_merges.incrementAndGet();
+    bytes_merged.addAndGet(bytes);
+  }
+  
+  /**
+   * Adds the counts since the last flush to the query stats and resets them.
+   */
+  void flush() {
+    update(QueryStat.HISTOGRAM_DECODES, decodes.getAndSet(0));
+    update(QueryStat.HISTOGRAM_ENCODED_MERGES, encoded_merges.getAndSet(0));
+    update(QueryStat.HISTOGRAM_BYTES_MERGED, bytes_merged.getAndSet(0));
+  }
+  
+  /** @return The number of decodes since the last flush */
+  long getDecodes() {
+    return decodes.get();
+  }
+  
+  /** @return The number of encoded merges since the last flush */
+  long getEncodedMerges() {
+    return encoded_merges.get();
+  }
+  
+  /** @return The number of bytes merged since the last flush */
+  long getBytesMerged() {
+    return bytes_merged.get();
+  }
+  
+  private void update(final QueryStat stat, final long delta) {
+    if (query_stats != null && delta != 0) {
+      query_stats.updateStat(query_index, stat, delta);
+    }
+  }
+}
@@ -94,6 +94,9 @@ final class HistogramSpanGroup implements HistogramDataPoints {
   /** whether we are handling rollup data points*/
   private final boolean is_rollup;
   
+  /** Optional stats flushed by the iterators for lazily decoded histograms */
+  private HistogramDecodeStats decode_stats;
+  
   /**
    * Ctor.
    * @param tsdb The TSDB we belong to.
@@ -345,8 +348,21 @@ final class HistogramSpanGroup implements HistogramDataPoints {
   }
 
   public HistogramSeekableView iterator() {
-    return HistogramAggregationIterator.create(spans, start_time, 
-        end_time, aggregation, downsampler, query_start, query_end, is_rollup);
+    final HistogramAggregationIterator it = 
+        HistogramAggregationIterator.create(spans, start_time, end_time, 
+            aggregation, downsampler, query_start, query_end, is_rollup);
+    if (decode_stats != null) {
+      it.setDecodeStats(decode_stats);
+    }
+    return it;
+  }
+
+  /**
+   * Sets the stats that the iterators flush once they're exhausted.
+   * @param decode_stats The stats for lazily decoded histograms, may be null.
+   */
+  void setDecodeStats(final HistogramDecodeStats decode_stats) {
+    this.decode_stats = decode_stats;
   }
 
   /**
@@ -0,0 +1,170 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * The reference {@link DownsamplePushdown} that reduces each row in the TSD as
+ * it comes off the scanner, before it's stored in a span. Storage still ships
+ * the raw data but the spans only hold one value per interval and row. It
+ * works with any storage backend and defines the output a server side
+ * implementation has to produce.
+ * @since 2.4
+ */
+public class InProcessDownsamplePushdown extends DownsamplePushdown {
+
+  /** Flags for the 8 byte floating point values we write */
+  private static final short FLAGS = (short) (Const.FLAG_FLOAT | 0x7);
+
+  @Override
+  public void initialize(final TSDB tsdb) {
+    // nothing to set up
+  }
+
+  @Override
+  public Deferred<Object> shutdown() {
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public String version() {
+    return "2.4.0";
+  }
+
+  @Override
+  public void collectStats(final StatsCollector collector) {
+    // no stats
+  }
+
+  @Override
+  public void prepareScanner(final Scanner scanner,
+      final DownsamplingSpecification specification) {
+    // we reduce the rows once they're here
+  }
+
+  @Override
+  public KeyValue reduceRow(final KeyValue column,
+      final DownsamplingSpecification specification) {
+    return downsampleRow(column, specification);
+  }
+
+  /**
+   * Applies the downsampling function to the values of each interval in the
+   * row and writes the results as a compacted column.
+   * @param column The compacted row to downsample.
+   * @param specification The downsampling specification.
+   * @return The downsampled row or null if the row didn't have any data points.
+   * @throws IllegalDataException if the row could not be parsed.
+   */
+  public static KeyValue downsampleRow(final KeyValue column,
+      final DownsamplingSpecification specification) {
+    final ArrayList<Cell> cells = Internal.extractDataPoints(column);
+    if (cells.isEmpty()) {
+      return null;
+    }
+    final long base_time = Internal.baseTime(column.key());
+    final long interval = specification.getInterval();
+    final Aggregator function = specification.getFunction();
+
+    final double[] values = new double[cells.size()];
+    final long[] timestamps = new long[cells.size()];
+    final double[] results = new double[cells.size()];
+    int buckets = 0;
+    int first = 0;
+    long bucket = 0;
+    for (int i = 0; i < cells.size(); i++) {
+      final long timestamp = cells.get(i).timestamp(base_time);
+      final long aligned = timestamp - (timestamp % interval);
+      if (i > 0 && aligned != bucket) {
+        // the first bucket may have started before the row did
+        timestamps[buckets] = Math.max(bucket, base_time * 1000);
+        results[buckets++] = function.runDouble(
+            new BucketValues(values, first, i));
+        first = i;
+      }
+      bucket = aligned;
+      values[i] = cells.get(i).parseValue().doubleValue();
+    }
+    timestamps[buckets] = Math.max(bucket, base_time * 1000);
+    results[buckets++] = function.runDouble(
+        new BucketValues(values, first, cells.size()));
+
+    final byte[][] qualifiers = new byte[buckets][];
+    int qualifier_length = 0;
+    boolean ms_in_row = false;
+    boolean s_in_row = false;
+    for (int i = 0; i < buckets; i++) {
+      if (timestamps[i] % 1000 == 0) {
+        qualifiers[i] = Internal.buildQualifier(timestamps[i] / 1000, FLAGS);
+        s_in_row = true;
+      } else {
+        qualifiers[i] = Internal.buildQualifier(timestamps[i], FLAGS);
+        ms_in_row = true;
+      }
+      qualifier_length += qualifiers[i].length;
+    }
+
+    // metadata is a single byte for a multi-value column, otherwise nothing
+    final byte[] qualifier = new byte[qualifier_length];
+    final byte[] value = new byte[(buckets * 8) + (buckets > 1 ? 1 : 0)];
+    int q_idx = 0;
+    for (int i = 0; i < buckets; i++) {
+      System.arraycopy(qualifiers[i], 0, qualifier, q_idx,
+          qualifiers[i].length);
+      q_idx += qualifiers[i].length;
+      Bytes.setLong(value, Double.doubleToRawLongBits(results[i]), i * 8);
+    }
+    if (buckets > 1 && ms_in_row && s_in_row) {
+      value[value.length - 1] = Const.MS_MIXED_COMPACT;
+    }
+    return new KeyValue(column.key(), column.family(), qualifier,
+        column.timestamp(), value);
+  }
+
+  /** Iterates over the values of a single bucket */
+  private static final class BucketValues implements Aggregator.Doubles {
+    private final double[] values;
+    private final int end;
+    private int index;
+
+    BucketValues(final double[] values, final int start, final int end) {
+      this.values = values;
+      this.end = end;
+      index = start;
+    }
+
+    @Override
+    public boolean hasNextValue() {
+      return index < end;
+    }
+
+    @Override
+    public double nextDoubleValue() {
+      if (index >= end) {
+        throw new NoSuchElementException("No more values in the bucket");
+      }
+      return values[index++];
+    }
+  }
+}
@@ -0,0 +1,325 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A sliding window of timestamped values backed by primitive ring buffers.
+ * Values are appended at the end and evicted from the front by the caller,
+ * who decides when a point falls out of the window, e.g. after a number of
+ * points or a span of time.
+ * <p>
+ * The sum, mean and population standard deviation of the values in the window
+ * are updated incrementally, the latter with Welford's algorithm run forwards
+ * on additions and backwards on evictions. If enabled, the minimum and maximum
+ * are tracked with monotonic deques so that every statistic is available in
+ * constant time and each point costs amortized O(1) to add and evict.
+ * <p>
+ * NaNs occupy a slot, so that their timestamps count towards the window, but
+ * are skipped by all of the statistics.
+ * <p>
+ * The buffers double when they fill up and are never shrunk so that once a
+ * window reaches its steady state size no more memory is allocated. Call
+ * {@link #clear()} to reuse the window for another series.
+ * <p>
+ * This class is not thread safe.
+ * @since 2.4
+ */
+public final class MovingWindow {
+  /** The largest number of points a window can hold */
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  /** Whether or not to track the minimum and maximum */
+  private final boolean track_extremes;
+
+  /** The timestamps of the points, indexed by sequence number & mask */
+  private long[] timestamps;
+
+  /** The values of the points, indexed by sequence number & mask */
+  private double[] values;
+
+  /** The buffer length minus one, buffers are always a power of two */
+  private int mask;
+
+  /** The sequence number of the oldest point in the window */
+  private long head;
+
+  /** The sequence number the next point will be stored with */
+  private long tail;
+
+  /** Sequence numbers of points with increasing values, oldest first */
+  private long[] min_deque;
+  private long min_head;
+  private long min_tail;
+
+  /** Sequence numbers of points with decreasing values, oldest first */
+  private long[] max_deque;
+  private long max_head;
+  private long max_tail;
+
+  /** The number of non-NaN values in the window */
+  private int count;
+
+  /** The running sum of the non-NaN values */
+  private double sum;
+
+  /** The running mean and sum of squared deviations for Welford */
+  private double mean;
+  private double m2;
+
+  /** Evictions since the statistics were last computed from scratch */
+  private int evictions;
+
+  /**
+   * Default ctor.
+   * @param capacity The number of points to allocate room for. The window
+   * grows past this if needed.
+   * @param track_extremes Whether or not to track the minimum and maximum
+   * values.
+   * @throws IllegalArgumentException if the capacity is less than 1 or too
+   * large.
+   */
+  public MovingWindow(final int capacity, final boolean track_extremes) {
+    if (capacity < 1 || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException("Capacity must be from 1 to "
+          + MAX_CAPACITY + ": " + capacity);
+    }
+    int length = 1;
+    while (length < capacity) {
+      length <<= 1;
+    }
+    this.track_extremes = track_extremes;
+    timestamps = new long[length];
+    values = new double[length];
+    mask = length - 1;
+    if (track_extremes) {
+      min_deque = new long[length];
+      max_deque = new long[length];
+    }
+  }
+
+  /**
+   * Appends a point to the end of the window.
+   * @param timestamp The timestamp of the point. Timestamps should be added
+   * in order.
+   * @param value The value, may be NaN.
+   */
+  public void add(final long timestamp, final double value) {
+    if (tail - head > mask) {
+      grow();
+    }
+    final int slot = (int) (tail & mask);
+    timestamps[slot] = timestamp;
+    values[slot] = value;
+    if (!Double.isNaN(value)) {
+      count++;
+      sum += value;
+      final double delta = value - mean;
+      mean += delta / count;
+      m2 += delta * (value - mean);
+
+      if (track_extremes) {
+        // drop any points that can no longer be the extreme as this one
+        // will outlive them
+        while (min_tail > min_head &&
+            values[(int) (min_deque[(int) ((min_tail - 1) & mask)] & mask)]
+              >= value) {
+          min_tail--;
+        }
+        min_deque[(int) (min_tail++ & mask)] = tail;
+        while (max_tail > max_head &&
+            values[(int) (max_deque[(int) ((max_tail - 1) & mask)] & mask)]
+              <= value) {
+          max_tail--;
+        }
+        max_deque[(int) (max_tail++ & mask)] = tail;
+      }
+    }
+    tail++;
+  }
+
+  /**
+   * Evicts the oldest point from the window.
+   * @throws NoSuchElementException if the window is empty.
+   */
+  public void removeFirst() {
+    if (head == tail) {
+      throw new NoSuchElementException("The window is empty");
+    }
+    final double value = values[(int) (head & mask)];
+    if (!Double.isNaN(value)) {
+      if (count == 1) {
+        count = 0;
+        sum = 0;
+        mean = 0;
+        m2 = 0;
+      } else {
+        count--;
+        sum -= value;
+        final double delta = value - mean;
+        mean -= delta / count;
+        m2 -= delta * (value - mean);
+      }
+
+      if (track_extremes) {
+        if (min_tail > min_head && min_deque[(int) (min_head & mask)] == head) {
+          min_head++;
+        }
+        if (max_tail > max_head && max_deque[(int) (max_head & mask)] == head) {
+          max_head++;
+        }
+      }
+    }
+    head++;
+
+    // subtracting values accumulates rounding errors so every time the
+    // buffer has turned over we start from scratch. Amortized it's still O(1).
+    if (++evictions > mask) {
+      recompute();
+    }
+  }
+
+  /** Empties the window, keeping the buffers for reuse. */
+  public void clear() {
+    head = 0;
+    tail = 0;
+    min_head = 0;
+    min_tail = 0;
+    max_head = 0;
+    max_tail = 0;
+    count = 0;
+    sum = 0;
+    mean = 0;
+    m2 = 0;
+    evictions = 0;
+  }
+
+  /** @return The number of points in the window, including NaNs */
+  public int size() {
+    return (int) (tail - head);
+  }
+
+  /** @return The number of non-NaN values in the window */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * Returns the timestamp of a point in the window.
+   * @param index The index of the point, 0 being the oldest.
+   * @return The timestamp.
+   * @throws IndexOutOfBoundsException if the index is not in the window.
+   */
+  public long timestamp(final int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index " + index
+          + " is out of bounds for a window of " + size());
+    }
+    return timestamps[(int) ((head + index) & mask)];
+  }
+
+  /** @return The sum of the non-NaN values, 0 if there aren't any */
+  public double sum() {
+    return sum;
+  }
+
+  /** @return The mean of the non-NaN values, NaN if there aren't any */
+  public double mean() {
+    return count == 0 ? Double.NaN : sum / count;
+  }
+
+  /** @return The population standard deviation of the non-NaN values, NaN
+   * if there aren't any */
+  public double stdDev() {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    return m2 <= 0 ? 0 : Math.sqrt(m2 / count);
+  }
+
+  /** @return The smallest non-NaN value, NaN if there aren't any
+   * @throws IllegalStateException if extremes are not tracked. */
+  public double min() {
+    if (!track_extremes) {
+      throw new IllegalStateException("Extremes are not tracked");
+    }
+    return min_tail == min_head ? Double.NaN :
+      values[(int) (min_deque[(int) (min_head & mask)] & mask)];
+  }
+
+  /** @return The largest non-NaN value, NaN if there aren't any
+   * @throws IllegalStateException if extremes are not tracked. */
+  public double max() {
+    if (!track_extremes) {
+      throw new IllegalStateException("Extremes are not tracked");
+    }
+    return max_tail == max_head ? Double.NaN :
+      values[(int) (max_deque[(int) (max_head & mask)] & mask)];
+  }
+
+  /** Recomputes the sum, mean and squared deviations from the buffer */
+  private void recompute() {
+    evictions = 0;
+    count = 0;
+    sum = 0;
+    for (long seq = head; seq < tail; seq++) {
+      final double value = values[(int) (seq & mask)];
+      if (!Double.isNaN(value)) {
+        count++;
+        sum += value;
+      }
+    }
+    mean = count == 0 ? 0 : sum / count;
+    m2 = 0;
+    for (long seq = head; seq < tail; seq++) {
+      final double value = values[(int) (seq & mask)];
+      if (!Double.isNaN(value)) {
+        m2 += (value - mean) * (value - mean);
+      }
+    }
+  }
+
+  /** Doubles the buffers, keeping every point at its sequence number */
+  private void grow() {
+    if (mask + 1 >= MAX_CAPACITY) {
+      throw new IllegalStateException("The window cannot hold more than "
+          + MAX_CAPACITY + " points");
+    }
+    final int length = (mask + 1) << 1;
+    final int new_mask = length - 1;
+    final long[] new_timestamps = new long[length];
+    final double[] new_values = new double[length];
+    for (long seq = head; seq < tail; seq++) {
+      new_timestamps[(int) (seq & new_mask)] = timestamps[(int) (seq & mask)];
+      new_values[(int) (seq & new_mask)] = values[(int) (seq & mask)];
+    }
+    if (track_extremes) {
+      min_deque = growDeque(min_deque, min_head, min_tail, new_mask);
+      max_deque = growDeque(max_deque, max_head, max_tail, new_mask);
+    }
+    timestamps = new_timestamps;
+    values = new_values;
+    mask = new_mask;
+  }
+
+  /** @return A copy of the deque in a buffer for the new mask */
+  private long[] growDeque(final long[] deque, final long start,
+      final long end, final int new_mask) {
+    final long[] grown = new long[new_mask + 1];
+    for (long i = start; i < end; i++) {
+      grown[(int) (i & new_mask)] = deque[(int) (i & mask)];
+    }
+    return grown;
+  }
+}
@@ -131,11 +131,17 @@ public class MultiGetQuery {
    * for null or assigning from a scanner's callback. */
   private volatile Exception exception;
   
+  /** The query's cancellation token, checked before each batch. May be null. */
+  private final CancellationToken cancellation;
+  
   private long max_bytes;
   
   private boolean multiget_no_meta;
   
   private AtomicLong number_byte_fetched;
+  
+  /** An optional data point counter shared with a scanner. May be null. */
+  private AtomicLong shared_data_points;
 
   private final boolean is_rollup;
   private final int rollup_agg_id;
@@ -169,6 +175,8 @@ public class MultiGetQuery {
     this.query_stats = query_stats;
     this.query_index = query_index;
     this.multiget_no_meta = multiget_no_meta;
+    cancellation = query_stats != null ? 
+        query_stats.getCancellationToken() : null;
 
     if (tags == null) {
       throw new IllegalArgumentException("Tags list cannot be null or empty");
@@ -215,6 +223,25 @@ public class MultiGetQuery {
     }
   }
 
+  /**
+   * Counts the bytes and data points fetched against counters shared with 
+   * another fetch for the same sub query, e.g. the scanners of a hybrid plan,
+   * so that the byte limit applies to their combined reads. Must be called 
+   * before {@link #fetch()}.
+   * @param bytes_fetched The non-null shared byte counter.
+   * @param num_data_points The non-null shared data point counter.
+   * @throws IllegalArgumentException if a counter was null.
+   * @since 2.4
+   */
+  void shareLimits(final AtomicLong bytes_fetched, 
+      final AtomicLong num_data_points) {
+    if (bytes_fetched == null || num_data_points == null) {
+      throw new IllegalArgumentException("The shared counters were null.");
+    }
+    number_byte_fetched = bytes_fetched;
+    shared_data_points = num_data_points;
+  }
+
   /**
    * Helper container class to store a set of TSUIDs and GetRequests in the same
    * object.
@@ -349,6 +376,11 @@ public class MultiGetQuery {
     @Override
     public Object call(final List<GetResultOrException> results) throws Exception {
       mul_get_time = (DateTime.nanoTime() - mul_get_start_time);
+      if (cancellation != null && cancellation.isCancelled()) {
+        // drop the batch on the floor, close() will fail the query
+        close(false);
+        return null;
+      }
 
       try {
         for (final GetResultOrException result : results) {
@@ -365,6 +397,9 @@ public class MultiGetQuery {
             }
             
             number_pre_filter_data_point.addAndGet(row.size());
+            if (shared_data_points != null) {
+              shared_data_points.addAndGet(row.size());
+            }
             ++mul_get_number_row_fetched;
             mul_get_number_column_fetched += row.size();
 
@@ -446,7 +481,7 @@ public class MultiGetQuery {
           mul_get_number_byte_fetched = mul_get_number_byte_fetched + 
               compacted.value().length + compacted.key().length;
           number_byte_fetched.addAndGet(compacted.value().length + compacted.key().length);
-          if (number_byte_fetched.get() > max_bytes) {
+          if (max_bytes > 0 && number_byte_fetched.get() > max_bytes) {
             handleException(
                 new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
                 "Sorry, you have attempted to fetch more than our maximum "
@@ -493,7 +528,7 @@ public class MultiGetQuery {
         mul_get_number_byte_fetched = mul_get_number_byte_fetched + 
             kv.value().length + kv.key().length;
         number_byte_fetched.addAndGet(kv.value().length + kv.key().length);
-        if (number_byte_fetched.get() > max_bytes) {
+        if (max_bytes > 0 && number_byte_fetched.get() > max_bytes) {
           handleException(
               new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
               "Sorry, you have attempted to fetch more than our maximum "
@@ -520,6 +555,9 @@ public class MultiGetQuery {
             } catch (Throwable t) {
               LOG.error("Failed to decode histogram data point", t);
             }
+          } else if (RollupUtils.isPackedRollupQualifier(qual)) {
+            // the sequence pulls the aggregates it needs
+            keyValues.add(kv);
           } else {
             if (qual[0] == (byte) rollup_agg_id ||
                 qual[0] == (byte) rollup_count_id ||
@@ -583,6 +621,18 @@ public class MultiGetQuery {
             mul_get_compaction_time);
       }
 
+      if (cancellation != null && cancellation.isCancelled()) {
+        keyValues.clear();
+        annotations.clear();
+        histograms.clear();
+        if (query_stats != null) {
+          query_stats.updateStat(query_index, QueryStat.CANCELLED_SCANNERS, 1);
+        }
+        // don't fire the remaining batches for this concurrency slot
+        handleCancellation();
+        return;
+      }
+      
       if (ok) {
         validateMultigetData(keyValues, annotations, histograms);
       } 
@@ -961,6 +1011,33 @@ public class MultiGetQuery {
     annotMap.clear();
   }
   boolean exception1;
+  
+  /**
+   * Fails the query with the cancellation exception the first time a batch
+   * notices the token was cancelled and releases the data buffered by the
+   * batches that already completed.
+   */
+  private void handleCancellation() {
+    synchronized (this) {
+      if (exception != null) {
+        return;
+      }
+      exception = cancellation.newException();
+    }
+    LOG.warn("Multi-get for metric " + Bytes.pretty(metric) 
+        + " was cancelled: " + cancellation.getReason());
+    kvsmap.clear();
+    histMap.clear();
+    if (annotMap != null) {
+      annotMap.clear();
+    }
+    if (!isHistogramScan()) {
+      results.callback(exception);
+    } else {
+      histogramResults.callback(exception);
+    }
+  }
+  
   /**
    * If one or more of the scanners throws an exception then we should close it
    * and pass the exception here so that we can catch and return it to the
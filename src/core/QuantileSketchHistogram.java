@@ -0,0 +1,561 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.opentsdb.core.HistogramDataPoint.HistogramBucket;
+import net.opentsdb.core.HistogramDataPoint.HistogramBucket.BucketType;
+
+/**
+ * A mergeable quantile sketch with relative error guarantees in the style of
+ * DDSketch. Values are counted in logarithmically sized bins so that any
+ * percentile is returned within the relative accuracy of the true value, no
+ * matter how widely the values are spread. E.g. with an accuracy of 0.01 the
+ * 99th percentile of latencies from microseconds to minutes is off by at most
+ * 1%.
+ * <p>
+ * Bin {@code i} covers the values in {@code (gamma^(i-1), gamma^i]} where
+ * {@code gamma = (1 + accuracy) / (1 - accuracy)}. Negative values are counted
+ * in a second set of bins by magnitude and values too small to index are
+ * counted as zero. Merging two sketches with the same accuracy just adds the
+ * bin counts so the error doesn't grow with the number of merges.
+ * <p>
+ * Memory is bounded by the maximum number of bins per sign. When the values
+ * span more bins, the bins closest to zero are collapsed into one so only the
+ * accuracy of the smallest values suffers.
+ * <p>
+ * This class is not thread safe.
+ * @since 2.4
+ */
+public class QuantileSketchHistogram implements Histogram {
+
+  /** The default relative accuracy. */
+  public static final double DEFAULT_ACCURACY = 0.01;
+
+  /** The default maximum number of bins per sign. */
+  public static final int DEFAULT_MAX_BINS = 2048;
+
+  /** Flag set on the first byte of the encoding when negatives are present */
+  private static final byte HAS_NEGATIVES = 0x01;
+
+  /** Swapped into the merge input once a merge is done. */
+  private static final byte[] EMPTY_BUFFER = new byte[0];
+
+  private final int id;
+
+  private double accuracy;
+
+  private int max_bins;
+
+  /** The growth factor between bins. */
+  private double gamma;
+
+  /** Natural log of the growth factor. */
+  private double log_gamma;
+
+  /** Values with a magnitude smaller than this are counted as zero. */
+  private double min_indexable;
+
+  private BinStore positive;
+
+  private BinStore negative;
+
+  private long zero_count;
+
+  /** Reused to parse encoded sketches merged into this one. */
+  private Input merge_input;
+
+  /**
+   * Ctor for an empty sketch with the default accuracy and size.
+   * @param id The codec ID.
+   */
+  public QuantileSketchHistogram(final int id) {
+    this(id, DEFAULT_ACCURACY, DEFAULT_MAX_BINS);
+  }
+
+  /**
+   * Ctor for an empty sketch.
+   * @param id The codec ID.
+   * @param accuracy The relative accuracy, between 0 and 1 exclusive.
+   * @param max_bins The maximum number of bins per sign, at least 1.
+   * @throws IllegalArgumentException if the accuracy or bins were invalid.
+   */
+  public QuantileSketchHistogram(final int id, final double accuracy,
+      final int max_bins) {
+    this.id = id;
+    setParameters(accuracy, max_bins);
+  }
+
+  /** Copy ctor. */
+  private QuantileSketchHistogram(final QuantileSketchHistogram rhs) {
+    id = rhs.id;
+    setParameters(rhs.accuracy, rhs.max_bins);
+    positive = rhs.positive.copy();
+    negative = rhs.negative.copy();
+    zero_count = rhs.zero_count;
+  }
+
+  /**
+   * Resets the sketch with the given parameters.
+   */
+  private void setParameters(final double accuracy, final int max_bins) {
+    if (!(accuracy > 0 && accuracy < 1)) {
+      throw new IllegalArgumentException("Accuracy must be between 0 and 1: "
+          + accuracy);
+    }
+    if (max_bins < 1) {
+      throw new IllegalArgumentException("Must have at least one bin: "
+          + max_bins);
+    }
+    this.accuracy = accuracy;
+    this.max_bins = max_bins;
+    gamma = (1 + accuracy) / (1 - accuracy);
+    log_gamma = Math.log(gamma);
+    min_indexable = Double.MIN_NORMAL * gamma;
+    positive = new BinStore(max_bins);
+    negative = new BinStore(max_bins);
+    zero_count = 0;
+  }
+
+  /**
+   * Adds a value to the sketch.
+   * @param value The value to add.
+   * @throws IllegalArgumentException if the value was NaN or infinite.
+   */
+  public void add(final double value) {
+    add(value, 1);
+  }
+
+  /**
+   * Adds a value to the sketch a number of times.
+   * @param value The value to add.
+   * @param count How many times to add it, must be zero or greater.
+   * @throws IllegalArgumentException if the value was NaN or infinite or the
+   * count was negative.
+   */
+  public void add(final double value, final long count) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("Value must be finite: " + value);
+    }
+    if (count < 0) {
+      throw new IllegalArgumentException("Count cannot be negative: " + count);
+    }
+    if (value >= min_indexable) {
+      positive.add(index(value), count);
+    } else if (value <= -min_indexable) {
+      negative.add(index(-value), count);
+    } else {
+      zero_count += count;
+    }
+  }
+
+  /** @return The total number of values in the sketch */
+  public long getCount() {
+    return positive.total() + negative.total() + zero_count;
+  }
+
+  /** @return The relative accuracy of the sketch */
+  public double getAccuracy() {
+    return accuracy;
+  }
+
+  /** @return The maximum number of bins per sign */
+  public int getMaxBins() {
+    return max_bins;
+  }
+
+  @Override
+  public byte[] histogram(final boolean include_id) {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    final Output output = new Output(buffer);
+    try {
+      if (include_id) {
+        output.writeByte(id);
+      }
+      final boolean has_negatives = negative.counts.length > 0;
+      output.writeByte(has_negatives ? HAS_NEGATIVES : 0);
+      output.writeDouble(accuracy);
+      output.writeInt(max_bins, true);
+      output.writeLong(zero_count, true);
+      positive.write(output);
+      if (has_negatives) {
+        negative.write(output);
+      }
+    } finally {
+      output.close();
+    }
+    return buffer.toByteArray();
+  }
+
+  @Override
+  public void fromHistogram(final byte[] raw, final boolean includes_id) {
+    if (raw == null || raw.length < (includes_id ? 14 : 13)) {
+      throw new IllegalArgumentException("Byte array too short for a sketch: "
+          + (raw == null ? "null" : Bytes.pretty(raw)));
+    }
+    Input input = null;
+    try {
+      input = new Input(new ByteArrayInputStream(raw));
+      if (includes_id) {
+        input.readByte(); // pull out the id.
+      }
+      final byte flags = input.readByte();
+      setParameters(input.readDouble(), input.readInt(true));
+      zero_count = input.readLong(true);
+      positive.read(input);
+      if ((flags & HAS_NEGATIVES) != 0) {
+        negative.read(input);
+      }
+    } catch (KryoException e) {
+      throw new IllegalArgumentException("Unable to parse the sketch: "
+          + Bytes.pretty(raw), e);
+    } finally {
+      if (input != null) {
+        input.close();
+      }
+    }
+  }
+
+  /**
+   * Adds the counts of an encoded sketch to this one without decoding it into
+   * a new sketch first. The bins are summed straight from the encoding.
+   * <p>
+   * If the data is corrupt this sketch may be left partially merged.
+   * @param raw The encoded sketch, as from {@link #histogram(boolean)}.
+   * @param includes_id Whether or not the data starts with the codec ID.
+   * @throws IllegalArgumentException if the data was too short or corrupt or
+   * the sketch had a different accuracy.
+   */
+  public void mergeEncoded(final byte[] raw, final boolean includes_id) {
+    if (raw == null || raw.length < (includes_id ? 14 : 13)) {
+      throw new IllegalArgumentException("Byte array too short for a sketch: "
+          + (raw == null ? "null" : Bytes.pretty(raw)));
+    }
+    if (merge_input == null) {
+      merge_input = new Input(raw);
+    } else {
+      merge_input.setBuffer(raw);
+    }
+    final Input input = merge_input;
+    try {
+      if (includes_id) {
+        input.readByte(); // pull out the id.
+      }
+      final byte flags = input.readByte();
+      final double other_accuracy = input.readDouble();
+      if (Double.compare(accuracy, other_accuracy) != 0) {
+        throw new IllegalArgumentException("Unable to merge sketches with "
+            + "different accuracies: " + accuracy + " and " + other_accuracy);
+      }
+      final int other_max_bins = input.readInt(true);
+      zero_count += input.readLong(true);
+      positive.mergeEncoded(input, other_max_bins);
+      if ((flags & HAS_NEGATIVES) != 0) {
+        negative.mergeEncoded(input, other_max_bins);
+      }
+    } catch (KryoException e) {
+      throw new IllegalArgumentException("Unable to parse the sketch: "
+          + Bytes.pretty(raw), e);
+    } finally {
+      // don't pin the last cell
+      input.setBuffer(EMPTY_BUFFER);
+    }
+  }
+
+  /**
+   * Returns the value at the given percentile.
+   * @param p The percentile from 0 to 100.
+   * @return The value within the relative accuracy of the exact percentile,
+   * 0 if the sketch was empty or -1 if the percentile was out of range.
+   */
+  @Override
+  public double percentile(final double p) {
+    if (p < 0 || p > 100) {
+      return -1.0;
+    }
+    final long count = getCount();
+    if (count < 1) {
+      return 0.0;
+    }
+    final double rank = (p / 100.0) * (count - 1);
+
+    // walk from the most negative value up to the largest value
+    long seen = 0;
+    for (int i = negative.counts.length - 1; i >= 0; i--) {
+      seen += negative.counts[i];
+      if (seen > rank) {
+        return -value(negative.offset + i);
+      }
+    }
+    seen += zero_count;
+    if (seen > rank) {
+      return 0.0;
+    }
+    for (int i = 0; i < positive.counts.length; i++) {
+      seen += positive.counts[i];
+      if (seen > rank) {
+        return value(positive.offset + i);
+      }
+    }
+    // rounding, return the largest value
+    return positive.counts.length > 0 ?
+        value(positive.offset + positive.counts.length - 1) : 0.0;
+  }
+
+  @Override
+  public List<Double> percentiles(final List<Double> p) {
+    final List<Double> values = new ArrayList<Double>(p.size());
+    for (final Double perc : p) {
+      values.add(percentile(perc));
+    }
+    return values;
+  }
+
+  /**
+   * Returns the non-empty bins as buckets. Values counted as zero are in a
+   * bucket from 0 to 0.
+   */
+  @Override
+  public Map<HistogramBucket, Long> getHistogram() {
+    final TreeMap<HistogramBucket, Long> buckets =
+        new TreeMap<HistogramBucket, Long>();
+    for (int i = 0; i < negative.counts.length; i++) {
+      if (negative.counts[i] > 0) {
+        final int index = negative.offset + i;
+        buckets.put(new HistogramBucket(BucketType.REGULAR,
+            (float) -Math.pow(gamma, index),
+            (float) -Math.pow(gamma, index - 1)), negative.counts[i]);
+      }
+    }
+    if (zero_count > 0) {
+      buckets.put(new HistogramBucket(BucketType.REGULAR, 0, 0), zero_count);
+    }
+    for (int i = 0; i < positive.counts.length; i++) {
+      if (positive.counts[i] > 0) {
+        final int index = positive.offset + i;
+        buckets.put(new HistogramBucket(BucketType.REGULAR,
+            (float) Math.pow(gamma, index - 1),
+            (float) Math.pow(gamma, index)), positive.counts[i]);
+      }
+    }
+    return Collections.unmodifiableMap(buckets);
+  }
+
+  @Override
+  public QuantileSketchHistogram clone() {
+    return new QuantileSketchHistogram(this);
+  }
+
+  @Override
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Adds the counts of the other sketch to this one.
+   * @throws IllegalArgumentException if the histogram wasn't a sketch or had
+   * a different accuracy.
+   * @throws UnsupportedOperationException if the function wasn't a sum.
+   */
+  @Override
+  public void aggregate(final Histogram histo,
+      final HistogramAggregation func) {
+    if (func != HistogramAggregation.SUM) {
+      throw new UnsupportedOperationException("Unsupported histogram "
+          + "aggregation: " + func);
+    }
+    if (!(histo instanceof QuantileSketchHistogram)) {
+      throw new IllegalArgumentException("The histogram must be a "
+          + "QuantileSketchHistogram: "
+          + (histo == null ? "null" : histo.getClass()));
+    }
+    final QuantileSketchHistogram other = (QuantileSketchHistogram) histo;
+    if (Double.compare(accuracy, other.accuracy) != 0) {
+      throw new IllegalArgumentException("Unable to merge sketches with "
+          + "different accuracies: " + accuracy + " and " + other.accuracy);
+    }
+    positive.merge(other.positive);
+    negative.merge(other.negative);
+    zero_count += other.zero_count;
+  }
+
+  @Override
+  public void aggregate(final List<Histogram> histos,
+      final HistogramAggregation func) {
+    for (final Histogram histo : histos) {
+      aggregate(histo, func);
+    }
+  }
+
+  /** @return The index of the bin for the positive value */
+  private int index(final double value) {
+    return (int) Math.ceil(Math.log(value) / log_gamma);
+  }
+
+  /** @return The value in the bin with the lowest relative error */
+  private double value(final int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  /**
+   * A contiguous range of bin counts. When the range would grow past the
+   * maximum number of bins the lowest bins are collapsed into the lowest
+   * remaining bin.
+   */
+  private static final class BinStore {
+    private static final long[] EMPTY = new long[0];
+
+    private final int max_bins;
+
+    /** The bin index of the first count. */
+    private int offset;
+
+    private long[] counts = EMPTY;
+
+    BinStore(final int max_bins) {
+      this.max_bins = max_bins;
+    }
+
+    /** @return A deep copy of the store */
+    BinStore copy() {
+      final BinStore copy = new BinStore(max_bins);
+      copy.offset = offset;
+      copy.counts = counts.length > 0 ? counts.clone() : EMPTY;
+      return copy;
+    }
+
+    void add(final int index, final long count) {
+      if (count == 0) {
+        return;
+      }
+      if (counts.length == 0) {
+        offset = index;
+        counts = new long[] { count };
+        return;
+      }
+      final int min = resize(Math.min(index, offset),
+          Math.max(index, offset + counts.length - 1));
+      counts[Math.max(index, min) - offset] += count;
+    }
+
+    void merge(final BinStore other) {
+      if (other.counts.length == 0) {
+        return;
+      }
+      final int min = cover(other.offset, other.counts.length);
+      for (int i = 0; i < other.counts.length; i++) {
+        counts[Math.max(other.offset + i, min) - offset] += other.counts[i];
+      }
+    }
+
+    /**
+     * Sums an encoded store into this one, sizing the counts once up front.
+     * @param input The input positioned at the encoded store.
+     * @param other_max_bins The maximum bins of the encoded sketch.
+     */
+    void mergeEncoded(final Input input, final int other_max_bins) {
+      final int other_offset = input.readInt(false);
+      final int length = input.readInt(true);
+      if (length < 0 || length > other_max_bins) {
+        throw new IllegalArgumentException("Invalid number of bins: "
+            + length);
+      }
+      if (length == 0) {
+        return;
+      }
+      final int min = cover(other_offset, length);
+      for (int i = 0; i < length; i++) {
+        counts[Math.max(other_offset + i, min) - offset] += 
+            input.readLong(true);
+      }
+    }
+
+    /**
+     * Grows the store to also cover the given range of bins.
+     * @return The new lowest index.
+     */
+    private int cover(final int other_offset, final int length) {
+      final int other_max = other_offset + length - 1;
+      if (counts.length == 0) {
+        offset = other_offset;
+        counts = new long[length];
+        return resize(other_offset, other_max);
+      }
+      return resize(Math.min(other_offset, offset),
+          Math.max(other_max, offset + counts.length - 1));
+    }
+
+    /**
+     * Grows the store to cover the range, collapsing the lowest bins if the
+     * range is too wide.
+     * @return The new lowest index.
+     */
+    private int resize(int min, final int max) {
+      if (max - min + 1 > max_bins) {
+        min = max - max_bins + 1;
+      }
+      if (min == offset && max == offset + counts.length - 1) {
+        return min;
+      }
+      final long[] resized = new long[max - min + 1];
+      for (int i = 0; i < counts.length; i++) {
+        resized[Math.max(offset + i, min) - min] += counts[i];
+      }
+      counts = resized;
+      offset = min;
+      return min;
+    }
+
+    long total() {
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        total += counts[i];
+      }
+      return total;
+    }
+
+    void write(final Output output) {
+      output.writeInt(offset, false);
+      output.writeInt(counts.length, true);
+      for (int i = 0; i < counts.length; i++) {
+        output.writeLong(counts[i], true);
+      }
+    }
+
+    void read(final Input input) {
+      offset = input.readInt(false);
+      final int length = input.readInt(true);
+      if (length < 0 || length > max_bins) {
+        throw new IllegalArgumentException("Invalid number of bins: "
+            + length);
+      }
+      counts = length > 0 ? new long[length] : EMPTY;
+      for (int i = 0; i < length; i++) {
+        counts[i] = input.readLong(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,368 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+/**
+ * Chooses how a sub query should fetch its rows from storage. Instead of
+ * relying solely on {@code tsd.query.multi_get.enable}, the planner estimates
+ * the number of candidate row keys from the literal filter expansion, the
+ * number of row base times and the salt buckets and compares that to the
+ * number of rows a scan would have to read, based on the metric's observed
+ * row density.
+ * <p>
+ * Each salt bucket is planned separately so that a query may scan some buckets
+ * and issue gets for others (or skip buckets without any candidate series
+ * entirely). The row density is learned from previous unfiltered scans of a
+ * metric and falls back to {@code tsd.query.planner.default_rows_per_span}
+ * until we have seen one.
+ * @since 2.4
+ */
+final class QueryPlanner {
+  private static final Logger LOG = LoggerFactory.getLogger(QueryPlanner.class);
+
+  /** How many metric densities to remember. */
+  private static final int DENSITY_CACHE_SIZE = 65536;
+
+  /** Weight of a new observation when updating the learned density. */
+  private static final double DENSITY_ALPHA = 0.25;
+
+  /** Learned rows per row base time (i.e. per hour for raw data) for each
+   * metric, across all salt buckets. Keyed on the hex metric UID. */
+  private static final Cache<String, Double> densities =
+      CacheBuilder.newBuilder().maximumSize(DENSITY_CACHE_SIZE).build();
+
+  /**
+   * The fetch strategy chosen for a query. The ordinal is recorded in the
+   * query stats so do not re-order these.
+   */
+  enum Strategy {
+    SCAN,      // scan every salt bucket
+    MULTI_GET, // fetch every candidate row with gets, no scanning
+    HYBRID     // scan some buckets, get or skip the rest
+  }
+
+  /** The relative cost of a get compared to reading a row during a scan. */
+  private final double get_cost;
+
+  /** Density used for metrics we haven't scanned yet. */
+  private final long default_rows_per_span;
+
+  /** The max number of gets we'll issue for a query. */
+  private final int multi_get_limit;
+
+  /**
+   * Default ctor.
+   * @param config The config to load settings from.
+   */
+  QueryPlanner(final Config config) {
+    get_cost = config.getDouble("tsd.query.planner.get_cost");
+    default_rows_per_span =
+        config.getLong("tsd.query.planner.default_rows_per_span");
+    multi_get_limit = config.getInt("tsd.query.multi_get.limit");
+  }
+
+  /**
+   * Computes a plan for the given metric and literal row key filters.
+   * @param metric The non-null metric UID.
+   * @param row_key_literals The sorted tag keys and literal values to fetch.
+   * Every tag key must have at least one literal value.
+   * @param row_spans The number of row base times covered by the query.
+   * @return A non-null plan.
+   * @throws IllegalArgumentException if a tag key didn't have literals.
+   */
+  Plan plan(final byte[] metric, final ByteMap<byte[][]> row_key_literals,
+      final long row_spans) {
+    final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+
+    long candidates = 1;
+    for (final Map.Entry<byte[], byte[][]> entry : row_key_literals) {
+      if (entry.getValue() == null || entry.getValue().length < 1) {
+        throw new IllegalArgumentException("Tag key "
+            + UniqueId.uidToString(entry.getKey()) + " is missing literals");
+      }
+      // stop multiplying once we're past the limit so we can't overflow. 
+      // Both factors fit in an int until then.
+      if (candidates <= multi_get_limit) {
+        candidates *= entry.getValue().length;
+      }
+    }
+
+    final double density = getRowsPerSpan(metric);
+    final long scan_rows = (long) Math.ceil(density * row_spans);
+    final long get_rows = saturatedMultiply(candidates, row_spans);
+
+    if (candidates > multi_get_limit) {
+      // too many to even enumerate
+      return new Plan(Strategy.SCAN, null, null, scan_rows, get_rows);
+    }
+
+    // walk the permutations, figuring out which bucket each TSUID lands in.
+    final List<ByteMap<byte[][]>> row_keys =
+        new ArrayList<ByteMap<byte[][]>>((int) candidates);
+    final int[] bucket_ids = new int[(int) candidates];
+    final long[] per_bucket = new long[buckets];
+    final byte[][] tagks = new byte[row_key_literals.size()][];
+    final byte[][][] tagvs = new byte[row_key_literals.size()][][];
+    int idx = 0;
+    for (final Map.Entry<byte[], byte[][]> entry : row_key_literals) {
+      tagks[idx] = entry.getKey();
+      tagvs[idx++] = entry.getValue();
+    }
+    final int[] positions = new int[tagks.length];
+    for (int i = 0; i < candidates; i++) {
+      final ByteMap<byte[][]> row_key = new ByteMap<byte[][]>();
+      for (int x = 0; x < tagks.length; x++) {
+        row_key.put(tagks[x], new byte[][] { tagvs[x][positions[x]] });
+      }
+      bucket_ids[i] = saltBucket(metric, tagks, tagvs, positions);
+      per_bucket[bucket_ids[i]]++;
+      row_keys.add(row_key);
+
+      // odometer increment
+      for (int x = tagks.length - 1; x >= 0; x--) {
+        if (++positions[x] < tagvs[x].length) {
+          break;
+        }
+        positions[x] = 0;
+      }
+    }
+
+    // decide per bucket. Empty buckets are "fetched" with zero gets, i.e. we
+    // skip them entirely.
+    final double scan_rows_per_bucket = (density * row_spans) / buckets;
+    final boolean[] multi_get_buckets = new boolean[buckets];
+    int get_buckets = 0;
+    for (int i = 0; i < buckets; i++) {
+      final double cost = per_bucket[i] * row_spans * get_cost;
+      if (cost <= scan_rows_per_bucket) {
+        multi_get_buckets[i] = true;
+        get_buckets++;
+      }
+    }
+
+    final Strategy strategy;
+    if (get_buckets == 0) {
+      return new Plan(Strategy.SCAN, null, null, scan_rows, get_rows);
+    } else if (get_buckets == buckets) {
+      strategy = Strategy.MULTI_GET;
+    } else {
+      strategy = Strategy.HYBRID;
+    }
+
+    final List<ByteMap<byte[][]>> gets =
+        new ArrayList<ByteMap<byte[][]>>(row_keys.size());
+    long planned_get_rows = 0;
+    for (int i = 0; i < row_keys.size(); i++) {
+      if (multi_get_buckets[bucket_ids[i]]) {
+        gets.add(row_keys.get(i));
+        planned_get_rows += row_spans;
+      }
+    }
+    final long planned_scan_rows =
+        (long) Math.ceil(scan_rows_per_bucket * (buckets - get_buckets));
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Planned " + strategy + " for metric "
+          + UniqueId.uidToString(metric) + " with " + candidates
+          + " candidate series, density " + density + " and " + get_buckets
+          + " of " + buckets + " buckets fetched via gets");
+    }
+    return new Plan(strategy, multi_get_buckets, gets, planned_scan_rows,
+        planned_get_rows);
+  }
+
+  /**
+   * Multiplies two non-negative values, returning {@link Long#MAX_VALUE} 
+   * instead of overflowing.
+   * @param a A non-negative value.
+   * @param b A non-negative value.
+   * @return The product or {@link Long#MAX_VALUE}.
+   */
+  @VisibleForTesting
+  static long saturatedMultiply(final long a, final long b) {
+    if (a == 0 || b == 0) {
+      return 0;
+    }
+    if (a > Long.MAX_VALUE / b) {
+      return Long.MAX_VALUE;
+    }
+    return a * b;
+  }
+
+  /**
+   * Computes the salt bucket for the series at the given permutation.
+   * @return The bucket ID, always 0 if salting is disabled.
+   */
+  private static int saltBucket(final byte[] metric, final byte[][] tagks,
+      final byte[][][] tagvs, final int[] positions) {
+    if (Const.SALT_WIDTH() < 1) {
+      return 0;
+    }
+    final byte[] row_key = new byte[Const.SALT_WIDTH() + metric.length
+        + Const.TIMESTAMP_BYTES + (tagks.length *
+            (TSDB.tagk_width() + TSDB.tagv_width()))];
+    System.arraycopy(metric, 0, row_key, Const.SALT_WIDTH(), metric.length);
+    int offset = Const.SALT_WIDTH() + metric.length + Const.TIMESTAMP_BYTES;
+    for (int i = 0; i < tagks.length; i++) {
+      System.arraycopy(tagks[i], 0, row_key, offset, TSDB.tagk_width());
+      offset += TSDB.tagk_width();
+      System.arraycopy(tagvs[i][positions[i]], 0, row_key, offset,
+          TSDB.tagv_width());
+      offset += TSDB.tagv_width();
+    }
+    RowKey.prefixKeyWithSalt(row_key);
+    int bucket = 0;
+    for (int i = 0; i < Const.SALT_WIDTH(); i++) {
+      bucket = (bucket << 8) | (row_key[i] & 0xFF);
+    }
+    return bucket;
+  }
+
+  /**
+   * Returns the learned number of rows per row base time for a metric or the
+   * configured default if we haven't learned it yet.
+   * @param metric The metric UID.
+   * @return A positive density.
+   */
+  double getRowsPerSpan(final byte[] metric) {
+    final Double density = getLearnedRowsPerSpan(metric);
+    return density == null ? default_rows_per_span : density;
+  }
+
+  /**
+   * Returns the learned number of rows per row base time for a metric.
+   * @param metric The metric UID.
+   * @return The density or null if we haven't scanned the metric yet.
+   */
+  static Double getLearnedRowsPerSpan(final byte[] metric) {
+    return densities.getIfPresent(UniqueId.uidToString(metric));
+  }
+
+  /**
+   * Updates the learned density for a metric after a scan that did not
+   * filter rows on the row key, i.e. the rows returned are all of the rows
+   * in the time range.
+   * @param metric The metric UID.
+   * @param rows The number of rows scanned.
+   * @param row_spans The number of row base times covered by the scan.
+   */
+  static void recordRowsPerSpan(final byte[] metric, final long rows,
+      final long row_spans) {
+    if (row_spans < 1) {
+      return;
+    }
+    final String key = UniqueId.uidToString(metric);
+    final double observed = (double) rows / (double) row_spans;
+    final Double existing = densities.getIfPresent(key);
+    if (existing == null) {
+      densities.put(key, observed);
+    } else {
+      densities.put(key,
+          (DENSITY_ALPHA * observed) + ((1 - DENSITY_ALPHA) * existing));
+    }
+  }
+
+  /** Clears the learned densities. */
+  @VisibleForTesting
+  static void clearDensities() {
+    densities.invalidateAll();
+  }
+
+  /**
+   * The result of planning a query.
+   */
+  static final class Plan {
+    private final Strategy strategy;
+    private final boolean[] multi_get_buckets;
+    private final List<ByteMap<byte[][]>> row_keys;
+    private final long estimated_scan_rows;
+    private final long estimated_get_rows;
+
+    Plan(final Strategy strategy, final boolean[] multi_get_buckets,
+        final List<ByteMap<byte[][]>> row_keys, final long estimated_scan_rows,
+        final long estimated_get_rows) {
+      this.strategy = strategy;
+      this.multi_get_buckets = multi_get_buckets;
+      this.row_keys = row_keys;
+      this.estimated_scan_rows = estimated_scan_rows;
+      this.estimated_get_rows = estimated_get_rows;
+    }
+
+    /** @return The strategy to execute. */
+    Strategy getStrategy() {
+      return strategy;
+    }
+
+    /** @return Whether or not the bucket is fetched with gets (or skipped). */
+    boolean isMultiGetBucket(final int bucket) {
+      return multi_get_buckets != null && multi_get_buckets[bucket];
+    }
+
+    /** @return The number of buckets fetched with gets (or skipped). */
+    int getMultiGetBucketCount() {
+      if (multi_get_buckets == null) {
+        return 0;
+      }
+      int count = 0;
+      for (final boolean bucket : multi_get_buckets) {
+        if (bucket) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /** @return The single-valued tag maps to fetch with gets. May be null or
+     * empty. */
+    List<ByteMap<byte[][]>> getRowKeys() {
+      return row_keys;
+    }
+
+    /** @return The estimated number of rows read by scanners. */
+    long getEstimatedScanRows() {
+      return strategy == Strategy.MULTI_GET ? 0 : estimated_scan_rows;
+    }
+
+    /** @return The estimated number of rows fetched with gets. */
+    long getEstimatedGetRows() {
+      return strategy == Strategy.SCAN ? 0 : estimated_get_rows;
+    }
+
+    @Override
+    public String toString() {
+      return new StringBuilder()
+        .append("strategy=").append(strategy)
+        .append(", multiGetBuckets=").append(Arrays.toString(multi_get_buckets))
+        .append(", gets=").append(row_keys == null ? 0 : row_keys.size())
+        .append(", estimatedScanRows=").append(estimated_scan_rows)
+        .append(", estimatedGetRows=").append(estimated_get_rows)
+        .toString();
+    }
+  }
+}
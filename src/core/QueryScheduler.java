@@ -0,0 +1,482 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.QueryLimitOverride;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Admission control in front of {@link TsdbQuery#runAsync()}. At most
+ * {@code tsd.query.scheduler.slots} sub queries fetch from storage at once,
+ * the rest wait in queues.
+ * <p>
+ * Each waiting query is costed as the hours it spans multiplied by how much
+ * larger its {@link QueryLimitOverride} byte or data point limits are than the
+ * defaults, so a metric that was granted a bigger budget counts as a heavier
+ * query. Queries costing at most {@code tsd.query.scheduler.priority_cost}
+ * go to the priority lane, everything else, including queries that bypassed
+ * their limits, to the normal lane. The priority lane is served first but the
+ * normal lane is guaranteed one slot after every
+ * {@code tsd.query.scheduler.priority_ratio} priority dispatches.
+ * <p>
+ * Within a lane there is a FIFO queue per tenant, keyed on the value of the
+ * {@code tsd.http.header_tag} header if configured or on the authenticated
+ * user otherwise, and tenants are served round robin so one user's batch of
+ * large queries can't starve everyone else.
+ * @since 2.4
+ */
+public final class QueryScheduler {
+  private static final Logger LOG = LoggerFactory.getLogger(QueryScheduler.class);
+
+  /** The queue key used when no tenant could be determined. */
+  static final String DEFAULT_KEY = "";
+
+  /** The scheduling lanes. */
+  enum Lane {
+    PRIORITY,
+    NORMAL
+  }
+
+  /** How many queries may run at once. */
+  private final int slots;
+
+  /** The maximum number of queries waiting across all queues. */
+  private final int max_queued;
+
+  /** The maximum cost of a query in the priority lane. */
+  private final long priority_cost;
+
+  /** Priority dispatches in a row before the normal lane gets a turn. */
+  private final int priority_ratio;
+
+  /** The header carrying the tenant, null to queue per user. */
+  private final String header_tag;
+
+  /** Default limits used to weigh a query's own limits. */
+  private final long default_bytes;
+  private final long default_data_points;
+
+  /** Per tenant queues for each lane, iterated round robin. */
+  private final LinkedHashMap<String, ArrayDeque<Ticket>> priority_queues;
+  private final LinkedHashMap<String, ArrayDeque<Ticket>> normal_queues;
+
+  /** Guarded by this. */
+  private int running;
+  private int queued_priority;
+  private int queued_normal;
+  private int priority_streak;
+  /** Whether or not a thread is handing freed slots to queued queries. */
+  private boolean draining;
+
+  /** Stats */
+  private final AtomicLong admitted = new AtomicLong();
+  private final AtomicLong delayed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final Histogram wait_latency = new Histogram(16000, (short) 2, 100);
+  private final Histogram queue_depth = new Histogram(16000, (short) 1, 100);
+
+  /**
+   * Default ctor.
+   * @param tsdb The non-null TSDB to pull config and limits from.
+   * @throws IllegalArgumentException if the config was invalid.
+   */
+  public QueryScheduler(final TSDB tsdb) {
+    final Config config = tsdb.getConfig();
+    slots = config.getInt("tsd.query.scheduler.slots");
+    max_queued = config.getInt("tsd.query.scheduler.max_queued");
+    priority_cost = config.getLong("tsd.query.scheduler.priority_cost");
+    priority_ratio = config.getInt("tsd.query.scheduler.priority_ratio");
+    if (slots < 1) {
+      throw new IllegalArgumentException(
+          "The scheduler must have at least one slot: " + slots);
+    }
+    if (max_queued < 0) {
+      throw new IllegalArgumentException(
+          "The scheduler queue limit cannot be negative: " + max_queued);
+    }
+    if (priority_ratio < 1) {
+      throw new IllegalArgumentException(
+          "The priority ratio must be at least one: " + priority_ratio);
+    }
+    header_tag = config.enable_header_tag() ? config.get_name_header_tag() : null;
+    final QueryLimitOverride limits = tsdb.getQueryByteLimits();
+    default_bytes = limits.getDefaultByteLimit();
+    default_data_points = limits.getDefaultDataPointsLimit();
+    priority_queues = new LinkedHashMap<String, ArrayDeque<Ticket>>();
+    normal_queues = new LinkedHashMap<String, ArrayDeque<Ticket>>();
+  }
+
+  /**
+   * Runs the query right away if a slot is free, otherwise queues it.
+   * @param query The configured query to run.
+   * @return A deferred resolving to the query results or an exception. If
+   * the queues are full the deferred resolves to a {@link QueryException}
+   * with a 503 status.
+   */
+  public Deferred<DataPoints[]> schedule(final TsdbQuery query) {
+    final Ticket ticket = new Ticket(query, queueKey(query.getQueryStats()),
+        cost(query));
+    final QueryStats stats = query.getQueryStats();
+    if (stats != null) {
+      stats.addStat(query.getQueryIndex(), QueryStat.QUERY_COST, ticket.cost);
+    }
+
+    final boolean queued;
+    synchronized (this) {
+      if (running < slots && queued_priority + queued_normal == 0) {
+        running++;
+        admitted.incrementAndGet();
+        queued = false;
+      } else if (queued_priority + queued_normal >= max_queued) {
+        rejected.incrementAndGet();
+        return Deferred.fromError(new QueryException(
+            HttpResponseStatus.SERVICE_UNAVAILABLE,
+            "Too many queries are waiting to execute, please try again later"));
+      } else {
+        enqueue(ticket);
+        delayed.incrementAndGet();
+        queue_depth.add(queued_priority + queued_normal);
+        queued = true;
+      }
+    }
+    if (queued) {
+      if (stats != null) {
+        stats.getCancellationToken().onCancel(new DequeueCB(ticket));
+      }
+      return ticket.deferred;
+    }
+    return start(ticket);
+  }
+
+  /** @return The number of queries currently holding a slot. */
+  public synchronized int running() {
+    return running;
+  }
+
+  /** @return The number of queries waiting for a slot. */
+  public synchronized int queued() {
+    return queued_priority + queued_normal;
+  }
+
+  /**
+   * Records the scheduler stats.
+   * @param collector The collector to write to.
+   */
+  public void collectStats(final StatsCollector collector) {
+    final int run;
+    final int priority;
+    final int normal;
+    synchronized (this) {
+      run = running;
+      priority = queued_priority;
+      normal = queued_normal;
+    }
+    collector.record("query.scheduler.running", run);
+    collector.record("query.scheduler.queued", priority, "lane=priority");
+    collector.record("query.scheduler.queued", normal, "lane=normal");
+    collector.record("query.scheduler.admitted", admitted.get(),
+        "type=immediate");
+    collector.record("query.scheduler.admitted", delayed.get(),
+        "type=queued");
+    collector.record("query.scheduler.rejected", rejected.get());
+    collector.record("query.scheduler.wait_ms", wait_latency, null);
+    collector.record("query.scheduler.queue_depth", queue_depth, null);
+  }
+
+  /**
+   * Computes the cost of a query from its time range and limits.
+   * @param query The query to cost.
+   * @return The cost, at least 1, or {@link Long#MAX_VALUE} if the query
+   * bypassed a limit that is enforced by default.
+   */
+  @VisibleForTesting
+  long cost(final TsdbQuery query) {
+    final long bytes = query.getMaxBytes();
+    final long data_points = query.getMaxDataPoints();
+    if ((bytes == 0 && default_bytes > 0) ||
+        (data_points == 0 && default_data_points > 0)) {
+      return Long.MAX_VALUE;
+    }
+    double weight = 1;
+    if (default_bytes > 0) {
+      weight = Math.max(weight, (double) bytes / default_bytes);
+    }
+    if (default_data_points > 0) {
+      weight = Math.max(weight, (double) data_points / default_data_points);
+    }
+    final long hours = Math.max(1, (toMillis(query.getEndTime()) -
+        toMillis(query.getStartTime())) / 3600000L);
+    return (long) Math.ceil(hours * weight);
+  }
+
+  /** @return The timestamp in milliseconds, query times may be in seconds. */
+  private static long toMillis(final long timestamp) {
+    return (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000;
+  }
+
+  /**
+   * Determines the tenant queue for a query.
+   * @param stats The query stats carrying the user and headers, may be null.
+   * @return A non-null queue key.
+   */
+  @VisibleForTesting
+  String queueKey(final QueryStats stats) {
+    if (stats == null) {
+      return DEFAULT_KEY;
+    }
+    if (header_tag != null && stats.getRequestHeaders() != null) {
+      for (final Map.Entry<String, String> header :
+          stats.getRequestHeaders().entrySet()) {
+        if (header_tag.equalsIgnoreCase(header.getKey()) &&
+            header.getValue() != null) {
+          return header.getValue();
+        }
+      }
+    }
+    return stats.getUser() != null ? stats.getUser() : DEFAULT_KEY;
+  }
+
+  /** Adds the ticket to its lane and tenant queue. Must hold the lock. */
+  private void enqueue(final Ticket ticket) {
+    final Map<String, ArrayDeque<Ticket>> lane;
+    if (ticket.lane == Lane.PRIORITY) {
+      lane = priority_queues;
+      queued_priority++;
+    } else {
+      lane = normal_queues;
+      queued_normal++;
+    }
+    ArrayDeque<Ticket> queue = lane.get(ticket.key);
+    if (queue == null) {
+      queue = new ArrayDeque<Ticket>();
+      lane.put(ticket.key, queue);
+    }
+    queue.add(ticket);
+  }
+
+  /**
+   * Removes a ticket that is still waiting from its queue. Must hold the 
+   * lock.
+   * @return True if the ticket was removed, false if it had already left 
+   * the queue.
+   */
+  private boolean dequeue(final Ticket ticket) {
+    final Map<String, ArrayDeque<Ticket>> lane = 
+        ticket.lane == Lane.PRIORITY ? priority_queues : normal_queues;
+    final ArrayDeque<Ticket> queue = lane.get(ticket.key);
+    if (queue == null || !queue.remove(ticket)) {
+      return false;
+    }
+    if (queue.isEmpty()) {
+      lane.remove(ticket.key);
+    }
+    if (ticket.lane == Lane.PRIORITY) {
+      queued_priority--;
+    } else {
+      queued_normal--;
+    }
+    return true;
+  }
+
+  /**
+   * Picks the next ticket to run, honoring the priority ratio. Must hold the
+   * lock.
+   * @return The next ticket or null if nothing is waiting.
+   */
+  private Ticket next() {
+    final boolean normal_turn = queued_normal > 0 &&
+        (queued_priority == 0 || priority_streak >= priority_ratio);
+    if (normal_turn) {
+      priority_streak = 0;
+      queued_normal--;
+      return poll(normal_queues);
+    }
+    if (queued_priority > 0) {
+      if (queued_normal > 0) {
+        priority_streak++;
+      }
+      queued_priority--;
+      return poll(priority_queues);
+    }
+    return null;
+  }
+
+  /**
+   * Takes the head of the first tenant queue and moves that tenant to the
+   * back of the lane so tenants take turns.
+   */
+  private static Ticket poll(final LinkedHashMap<String, ArrayDeque<Ticket>> lane) {
+    final Iterator<Map.Entry<String, ArrayDeque<Ticket>>> iterator =
+        lane.entrySet().iterator();
+    final Map.Entry<String, ArrayDeque<Ticket>> entry = iterator.next();
+    final ArrayDeque<Ticket> queue = entry.getValue();
+    final Ticket ticket = queue.poll();
+    iterator.remove();
+    if (!queue.isEmpty()) {
+      lane.put(entry.getKey(), queue);
+    }
+    return ticket;
+  }
+
+  /**
+   * Called when a query finishes to free its slot. If no other thread is
+   * already handing out slots, this one drains the queues.
+   */
+  private void release() {
+    synchronized (this) {
+      running--;
+      if (draining) {
+        // the draining thread will hand the slot out
+        return;
+      }
+      draining = true;
+    }
+    drain();
+  }
+
+  /**
+   * Starts queued queries while slots are free. Queries that complete 
+   * synchronously free their slot through {@link #release()} which leaves it
+   * to this loop instead of recursing. Cancelled queries are failed without
+   * taking the slot.
+   */
+  private void drain() {
+    while (true) {
+      final Ticket ticket;
+      synchronized (this) {
+        ticket = running < slots ? next() : null;
+        if (ticket == null) {
+          draining = false;
+          return;
+        }
+        running++;
+      }
+      final long waited = DateTime.nanoTime() - ticket.enqueued;
+      wait_latency.add((int) (waited / 1000000));
+      final QueryStats stats = ticket.query.getQueryStats();
+      if (stats != null) {
+        stats.addStat(ticket.query.getQueryIndex(),
+            QueryStat.SCHEDULER_WAIT_TIME, waited);
+        if (stats.getCancellationToken().isCancelled()) {
+          synchronized (this) {
+            running--;
+          }
+          ticket.deferred.callback(
+              stats.getCancellationToken().newException());
+          continue;
+        }
+      }
+      start(ticket).chain(ticket.deferred);
+    }
+  }
+
+  /**
+   * Runs the query in the slot already reserved for it.
+   * @return The query's deferred with the slot release attached.
+   */
+  private Deferred<DataPoints[]> start(final Ticket ticket) {
+    /** Frees the slot, passing the results through */
+    final class ReleaseCB implements Callback<DataPoints[], DataPoints[]> {
+      @Override
+      public DataPoints[] call(final DataPoints[] results) throws Exception {
+        release();
+        return results;
+      }
+      @Override
+      public String toString() {
+        return "Query scheduler release";
+      }
+    }
+
+    /** Frees the slot, passing the exception through */
+    final class ReleaseEB implements Callback<Exception, Exception> {
+      @Override
+      public Exception call(final Exception e) throws Exception {
+        release();
+        return e;
+      }
+      @Override
+      public String toString() {
+        return "Query scheduler release on error";
+      }
+    }
+
+    final Deferred<DataPoints[]> result;
+    try {
+      result = ticket.query.executeAsync();
+    } catch (RuntimeException e) {
+      LOG.error("Failed to start query " + ticket.query, e);
+      release();
+      return Deferred.fromError(e);
+    }
+    result.addCallbacks(new ReleaseCB(), new ReleaseEB());
+    return result;
+  }
+
+  /** Drops a cancelled ticket from its queue so it frees its place right
+   * away instead of when it's dequeued. */
+  private final class DequeueCB implements Runnable {
+    private final Ticket ticket;
+    DequeueCB(final Ticket ticket) {
+      this.ticket = ticket;
+    }
+    @Override
+    public void run() {
+      synchronized (QueryScheduler.this) {
+        if (!dequeue(ticket)) {
+          return;
+        }
+      }
+      ticket.deferred.callback(ticket.query.getQueryStats()
+          .getCancellationToken().newException());
+    }
+  }
+
+  /** A query waiting for or holding a slot. */
+  private final class Ticket {
+    final TsdbQuery query;
+    final String key;
+    final long cost;
+    final Lane lane;
+    final long enqueued;
+    final Deferred<DataPoints[]> deferred;
+
+    Ticket(final TsdbQuery query, final String key, final long cost) {
+      this.query = query;
+      this.key = key;
+      this.cost = cost;
+      lane = cost <= priority_cost ? Lane.PRIORITY : Lane.NORMAL;
+      enqueued = DateTime.nanoTime();
+      deferred = new Deferred<DataPoints[]>();
+    }
+  }
+}
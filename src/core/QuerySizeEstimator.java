@@ -0,0 +1,187 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Predicts how many bytes and data points a query will pull from storage so
+ * that queries which would blow through the byte or data point limits can be
+ * rejected before any scanner is opened.
+ * <p>
+ * Each series stores at most one row per row base time, so the number of rows
+ * is at most the number of series times the number of row base times covered
+ * by the query. Series that stopped reporting don't have rows in every span
+ * so callers can pass a lower number of rows per span, e.g. capped at the
+ * density learned by the {@link QueryPlanner}. Salting spreads those rows across buckets without changing how many there
+ * are. The size of a row varies a lot between metrics, so the bytes and data
+ * points per row are learned from previous raw scans of the metric, measured
+ * the same way the {@link SaltScanner} enforces the limits (and therefore
+ * including the salt and tag widths of the row keys). Until a metric has been
+ * scanned we don't know enough to predict anything.
+ * @since 2.4
+ */
+final class QuerySizeEstimator {
+
+  /** How many metric row sizes to remember. */
+  private static final int ROW_SIZE_CACHE_SIZE = 65536;
+
+  /** Weight of a new observation when updating the learned row size. */
+  private static final double ROW_SIZE_ALPHA = 0.25;
+
+  /** Learned row sizes keyed on the hex metric UID. */
+  private static final Cache<String, RowSize> row_sizes =
+      CacheBuilder.newBuilder().maximumSize(ROW_SIZE_CACHE_SIZE).build();
+
+  /** Utility class. */
+  private QuerySizeEstimator() { }
+
+  /**
+   * Estimates the size of a query.
+   * @param metric The metric UID.
+   * @param series The estimated number of series the query will fetch.
+   * @param row_spans The number of row base times covered by the query.
+   * @return An estimate or null if we haven't learned the row size of the
+   * metric yet or the series count was unknown (negative).
+   */
+  static Estimate estimate(final byte[] metric, final long series,
+      final long row_spans) {
+    return estimate(metric, series, series, row_spans);
+  }
+
+  /**
+   * Estimates the size of a query.
+   * @param metric The metric UID.
+   * @param series The estimated number of series the query will fetch.
+   * @param rows_per_span The estimated number of rows per row base time.
+   * @param row_spans The number of row base times covered by the query.
+   * @return An estimate or null if we haven't learned the row size of the
+   * metric yet or the series count was unknown (negative).
+   */
+  static Estimate estimate(final byte[] metric, final long series,
+      final double rows_per_span, final long row_spans) {
+    if (series < 0 || rows_per_span < 0 || row_spans < 1) {
+      return null;
+    }
+    final RowSize row_size = row_sizes.getIfPresent(
+        UniqueId.uidToString(metric));
+    if (row_size == null) {
+      return null;
+    }
+    final double rows = rows_per_span * row_spans;
+    return new Estimate(series, saturate(rows),
+        saturate(rows * row_size.bytes), saturate(rows * row_size.data_points));
+  }
+
+  /**
+   * Updates the learned row size of a metric after a successful scan.
+   * @param metric The metric UID.
+   * @param rows The number of rows scanned.
+   * @param bytes The number of bytes fetched, as counted for the byte limit.
+   * @param data_points The number of data points fetched, as counted for the
+   * data point limit.
+   */
+  static void recordRowSize(final byte[] metric, final long rows,
+      final long bytes, final long data_points) {
+    if (rows < 1) {
+      return;
+    }
+    final String key = UniqueId.uidToString(metric);
+    final double observed_bytes = (double) bytes / rows;
+    final double observed_dps = (double) data_points / rows;
+    final RowSize existing = row_sizes.getIfPresent(key);
+    if (existing == null) {
+      row_sizes.put(key, new RowSize(observed_bytes, observed_dps));
+    } else {
+      row_sizes.put(key, new RowSize(
+          (ROW_SIZE_ALPHA * observed_bytes) +
+            ((1 - ROW_SIZE_ALPHA) * existing.bytes),
+          (ROW_SIZE_ALPHA * observed_dps) +
+            ((1 - ROW_SIZE_ALPHA) * existing.data_points)));
+    }
+  }
+
+  /** Clears the learned row sizes. */
+  @VisibleForTesting
+  static void clearRowSizes() {
+    row_sizes.invalidateAll();
+  }
+
+  /** @return The value rounded up and capped at Long.MAX_VALUE */
+  private static long saturate(final double value) {
+    return value >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) Math.ceil(value);
+  }
+
+  /** The learned averages for a metric. Immutable so we can swap them. */
+  private static final class RowSize {
+    final double bytes;
+    final double data_points;
+
+    RowSize(final double bytes, final double data_points) {
+      this.bytes = bytes;
+      this.data_points = data_points;
+    }
+  }
+
+  /**
+   * The predicted size of a query.
+   */
+  static final class Estimate {
+    private final long series;
+    private final long rows;
+    private final long bytes;
+    private final long data_points;
+
+    Estimate(final long series, final long rows, final long bytes,
+        final long data_points) {
+      this.series = series;
+      this.rows = rows;
+      this.bytes = bytes;
+      this.data_points = data_points;
+    }
+
+    /** @return The number of series the estimate is based on. */
+    long getSeries() {
+      return series;
+    }
+
+    /** @return The estimated number of rows. */
+    long getRows() {
+      return rows;
+    }
+
+    /** @return The estimated number of bytes. */
+    long getBytes() {
+      return bytes;
+    }
+
+    /** @return The estimated number of data points. */
+    long getDataPoints() {
+      return data_points;
+    }
+
+    @Override
+    public String toString() {
+      return new StringBuilder()
+        .append("series=").append(series)
+        .append(", rows=").append(rows)
+        .append(", bytes=").append(bytes)
+        .append(", dataPoints=").append(data_points)
+        .toString();
+    }
+  }
+}
@@ -16,6 +16,7 @@ import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,8 +28,10 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVUidMatcher;
 import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.rollup.RollupSpan;
+import net.opentsdb.rollup.RollupUtils;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.UniqueId;
@@ -117,9 +120,12 @@ public class SaltScanner {
   private final int rollup_count_id;
   
   /** Settings and counters to determine when we need to cancel a query. */
-  private final AtomicLong num_data_points;  
+  private AtomicLong num_data_points;  
   private final AtomicBoolean max_data_points_flag;
   private AtomicLong bytes_fetched = new AtomicLong();
+  
+  /** The number of rows fetched across scanners, used to learn row sizes */
+  private final AtomicLong rows_fetched = new AtomicLong();
   private final long max_data_points;
   private final long max_bytes;
   
@@ -139,11 +145,30 @@ public class SaltScanner {
   /** A list of filters to iterate over when processing rows */
   private final List<TagVFilter> filters;
   
+  /** Evaluates the filters on tag value UIDs with cached results when all of
+   * the filters support it. Null if the filters need the full tag map. */
+  private final TagVUidMatcher uid_matcher;
+  
   /** A holder for storing the first exception thrown by a scanner if something
    * goes pear shaped. Make sure to synchronize on this object when checking
    * for null or assigning from a scanner's callback. */
   private volatile Exception exception;
   
+  /** The query's cancellation token, checked before each batch. May be null. */
+  private final CancellationToken cancellation;
+  
+  /** An optional plugin that downsamples the rows in storage. */
+  private DownsamplePushdown pushdown;
+  
+  /** The downsampler pushed down to storage, null if not pushed down. */
+  private DownsamplingSpecification pushdown_spec;
+  
+  /** When set, histogram cells are kept encoded until they're aggregated. */
+  private HistogramDecodeStats histogram_decode_stats;
+  
+  /** Rollup cells at or after this time in milliseconds are dropped. */
+  private long rollup_cutoff = Long.MAX_VALUE;
+  
   /**
    * Default ctor that performs some validation. Call {@link scan} after 
    * construction to actually start fetching data.
@@ -193,6 +218,46 @@ public class SaltScanner {
                                       final TreeMap<byte[], HistogramSpan> histogramSpans,
                                       final long max_bytes,
                                       final long max_data_points) {
+    this(tsdb, metric, scanners, spans, filters, delete, rollup_query, 
+        query_stats, query_index, histogramSpans, max_bytes, max_data_points, 
+        false);
+  }
+  
+  /**
+   * Ctor that allows for scanning a subset of the salt buckets, e.g. when the
+   * {@link QueryPlanner} decided to fetch the remaining buckets via gets.
+   * @param tsdb The TSDB to which we belong
+   * @param metric The metric we're expecting to fetch
+   * @param scanners A list of HBase scanners, one for each bucket
+   * @param spans The span map to store results in
+   * @param delete Whether or not to delete the queried data
+   * @param rollup_query An optional rollup query config. May be null.
+   * @param filters A list of filters for processing
+   * @param query_stats A stats object for tracking timing
+   * @param query_index The index of the sub query in the main query list
+   * @param histogramSpans The histo map to populate.
+   * @param max_bytes The maximum number of bytes pulled out from all scanners 
+   * combined.
+   * @param max_data_points The maximum number of data points pulled out from all
+   * scanners (estimated).
+   * @param partial_buckets Whether or not the scanner list may cover fewer 
+   * than all of the salt buckets.
+   * @throws IllegalArgumentException if any required data was missing or
+   * we had invalid parameters.
+   * @since 2.4
+   */
+  SaltScanner(final TSDB tsdb, final byte[] metric, 
+                               final List<Scanner> scanners, 
+                               final TreeMap<byte[], Span> spans,
+                               final List<TagVFilter> filters,
+                               final boolean delete,
+                               final RollupQuery rollup_query,
+                               final QueryStats query_stats,
+                               final int query_index,
+                               final TreeMap<byte[], HistogramSpan> histogramSpans,
+                               final long max_bytes,
+                               final long max_data_points,
+                               final boolean partial_buckets) {
     if (tsdb == null) {
       throw new IllegalArgumentException("The TSDB argument was null.");
     }
@@ -209,7 +274,9 @@ public class SaltScanner {
       throw new IllegalArgumentException("Missing or empty scanners list. "
           + "Please provide a list of scanners for each salt.");
     }
-    if (Const.SALT_WIDTH() > 0 && scanners.size() != Const.SALT_BUCKETS()) {
+    if (Const.SALT_WIDTH() > 0 && (partial_buckets ? 
+        scanners.size() > Const.SALT_BUCKETS() : 
+          scanners.size() != Const.SALT_BUCKETS())) {
       throw new IllegalArgumentException("Not enough or too many scanners " + 
           scanners.size() + " when the salt bucket count is " + 
           Const.SALT_BUCKETS());
@@ -231,10 +298,14 @@ public class SaltScanner {
     this.metric = metric;
     this.tsdb = tsdb;
     this.filters = filters;
+    uid_matcher = TagVUidMatcher.canMatch(filters) ? 
+        new TagVUidMatcher(tsdb, filters) : null;
     this.delete = delete;
     this.rollup_query = rollup_query;
     this.query_stats = query_stats;
     this.query_index = query_index;
+    cancellation = query_stats != null ? 
+        query_stats.getCancellationToken() : null;
     countdown = new CountDownLatch(scanners.size());
     if (rollup_query != null && RollupQuery.isValidQuery(rollup_query)) {
       is_rollup = true;
@@ -256,6 +327,82 @@ public class SaltScanner {
     bytes_fetched = new AtomicLong();
     max_data_points_flag = new AtomicBoolean();
   }
+  
+  /**
+   * Has the rows downsampled in storage so that the spans only hold partial
+   * buckets. Must be called before {@link #scan()}.
+   * @param pushdown The non-null plugin to push the downsampler down with.
+   * @param specification The downsampler to push down. The plugin must be 
+   * able to push it down.
+   * @throws IllegalArgumentException if the arguments were null or the 
+   * downsampler can't be pushed down.
+   * @since 2.4
+   */
+  void setDownsamplePushdown(final DownsamplePushdown pushdown, 
+      final DownsamplingSpecification specification) {
+    if (pushdown == null) {
+      throw new IllegalArgumentException("The pushdown plugin was null.");
+    }
+    if (!pushdown.canPushDown(specification)) {
+      throw new IllegalArgumentException("Unable to push down the "
+          + "downsampler: " + specification);
+    }
+    if (isHistogramScan() || is_rollup || delete) {
+      throw new IllegalArgumentException("Downsamplers can only be pushed "
+          + "down for raw data queries.");
+    }
+    this.pushdown = pushdown;
+    pushdown_spec = specification;
+  }
+
+  /**
+   * Counts the bytes and data points read against counters shared with 
+   * another fetch for the same sub query, e.g. the gets of a hybrid plan, so
+   * that the limits apply to their combined reads. Must be called before 
+   * {@link #scan()}.
+   * @param bytes_fetched The non-null shared byte counter.
+   * @param num_data_points The non-null shared data point counter.
+   * @throws IllegalArgumentException if a counter was null.
+   * @since 2.4
+   */
+  void shareLimits(final AtomicLong bytes_fetched, 
+      final AtomicLong num_data_points) {
+    if (bytes_fetched == null || num_data_points == null) {
+      throw new IllegalArgumentException("The shared counters were null.");
+    }
+    this.bytes_fetched = bytes_fetched;
+    this.num_data_points = num_data_points;
+  }
+  
+  /**
+   * Keeps histogram cells in their encoded form instead of decoding each one
+   * as it's scanned. They're decoded or merged when aggregated. Must be called
+   * before {@link #scanHistogram()}.
+   * @param decode_stats The non-null stats to record decodes and merges in.
+   * @throws IllegalArgumentException if the stats were null.
+   * @since 2.4
+   */
+  void setLazyHistogramDecode(final HistogramDecodeStats decode_stats) {
+    if (decode_stats == null) {
+      throw new IllegalArgumentException("The decode stats were null.");
+    }
+    histogram_decode_stats = decode_stats;
+  }
+  
+  /**
+   * Drops rollup cells at or after the given time so that a raw data scan 
+   * can take over from there. Must be called before {@link #scan()}.
+   * @param cutoff The cutoff in unix epoch seconds.
+   * @throws IllegalArgumentException if this isn't a rollup scan.
+   * @since 2.4
+   */
+  void setRollupCutoff(final long cutoff) {
+    if (!is_rollup) {
+      throw new IllegalArgumentException("A rollup cutoff can only be set "
+          + "for rollup queries.");
+    }
+    rollup_cutoff = cutoff * 1000;
+  }
 
   /**
    * Starts all of the scanners asynchronously and returns the data fetched
@@ -266,6 +413,11 @@ public class SaltScanner {
    */
   public Deferred<TreeMap<byte[], Span>> scan() {
     start_time = System.currentTimeMillis();
+    if (pushdown != null) {
+      for (final Scanner scanner : scanners) {
+        pushdown.prepareScanner(scanner, pushdown_spec);
+      }
+    }
     int i = 0;
     for (final Scanner scanner: scanners) {
       new ScannerCB(scanner, i++).scan();
@@ -297,7 +449,15 @@ public class SaltScanner {
     if (exception != null) {
       LOG.error("After all of the scanners finished, at "
           + "least one threw an exception", exception);
-      results.callback(exception);
+      // release whatever the finished scanners buffered
+      kv_map.clear();
+      histMap.clear();
+      annotation_map.clear();
+      if (!isHistogramScan()) {
+        results.callback(exception);
+      } else {
+        histogramResults.callback(exception);
+      }
       return;
     }
     
@@ -318,6 +478,14 @@ public class SaltScanner {
     if (query_stats != null) {
       query_stats.addStat(query_index, QueryStat.SCANNER_MERGE_TIME, 
           (DateTime.nanoTime() - merge_start));
+      query_stats.updateStat(query_index, QueryStat.FETCHED_BYTES, 
+          bytes_fetched.get());
+      query_stats.updateStat(query_index, QueryStat.FETCHED_DATA_POINTS, 
+          num_data_points.get());
+    }
+    if (!is_rollup && !isHistogramScan() && pushdown == null) {
+      QuerySizeEstimator.recordRowSize(metric, rows_fetched.get(), 
+          bytes_fetched.get(), num_data_points.get());
     }
 
     if (!isHistogramScan()) {
@@ -414,8 +582,13 @@ public class SaltScanner {
 
         Span datapoints = spans.get(kv.key());
         if (datapoints == null) {
-          datapoints = RollupQuery.isValidQuery(rollup_query) ?
-              new RollupSpan(tsdb, this.rollup_query) : new Span(tsdb);
+          if (RollupQuery.isValidQuery(rollup_query)) {
+            datapoints = new RollupSpan(tsdb, this.rollup_query);
+          } else if (pushdown != null) {
+            datapoints = new DownsampledSpan(tsdb);
+          } else {
+            datapoints = new Span(tsdb);
+          }
           spans.put(kv.key(), datapoints);
         }
 
@@ -521,6 +694,11 @@ public class SaltScanner {
       if (scanner_start < 0) {
         scanner_start = DateTime.nanoTime();
       }
+      if (cancellation != null && cancellation.isCancelled()) {
+        // don't bother asking storage for another batch
+        cancel();
+        return null;
+      }
       fetch_start = DateTime.nanoTime();
       return scanner.nextRows().addCallback(this).addErrback(new ErrorCb());
     }
@@ -546,6 +724,9 @@ public class SaltScanner {
             LOG.debug("Closing scanner as there was an exception: " + scanner);
           }
           return null;
+        } else if (cancellation != null && cancellation.isCancelled()) {
+          cancel();
+          return null;
         }
 
         // used for UID resolution if a filter is involved
@@ -590,6 +771,7 @@ public class SaltScanner {
         }
                 
         rows_pre_filter += rows.size();
+        rows_fetched.addAndGet(rows.size());
         for (final ArrayList<KeyValue> row : rows) {
           final byte[] key = row.get(0).key();
           num_data_points.addAndGet(row.size());
@@ -637,13 +819,40 @@ public class SaltScanner {
             }
           }
           
-          // If any filters have made it this far then we need to resolve
+          // If any filters have made it this far then we need to evaluate
+          // them. When every filter matches on its own tag value we work off
+          // the UIDs and cache the result per tag value. Otherwise we resolve
           // the row key UIDs to their names for string comparison. We'll
           // try to avoid the resolution with some sets but we may dupe
           // resolve a few times.
-          // TODO - more efficient resolution
-          // TODO - byte set instead of a string for the uid may be faster
-          if (filters != null && !filters.isEmpty()) {
+          if (uid_matcher != null) {
+            // only resolve tag values we haven't evaluated yet
+            final Boolean matched = uid_matcher.match(key);
+            if (matched == null) {
+              final long uid_start = DateTime.nanoTime();
+              final List<Deferred<Object>> resolving = 
+                  uid_matcher.resolve(key);
+              uids_resolved += resolving.size();
+              
+              /** CB called once the new tag values have been evaluated */
+              class UidMatchCB implements Callback<Object, ArrayList<Object>> {
+                @Override
+                public Object call(final ArrayList<Object> ignored) 
+                    throws Exception {
+                  uid_resolve_time += (DateTime.nanoTime() - uid_start);
+                  if (uid_matcher.match(key) == Boolean.TRUE) {
+                    processRow(key, row);
+                  }
+                  return null;
+                }
+              }
+              
+              lookups.add(Deferred.group(resolving)
+                  .addCallback(new UidMatchCB()));
+            } else if (matched) {
+              processRow(key, row);
+            }
+          } else if (filters != null && !filters.isEmpty()) {
             lookups.clear();
             final String tsuid = 
                 UniqueId.uidToString(UniqueId.getTSUIDFromKey(key, 
@@ -748,6 +957,9 @@ public class SaltScanner {
         //compacted, so don't need to worry about complex or trivial 
         //compactions. It just need to consider the cells are different key 
         //values
+        final int first_kv = kvs.size();
+        boolean packed = false;
+        boolean legacy = false;
         for (KeyValue kv:row) {
           final byte[] qual = kv.qualifier();
           
@@ -768,13 +980,29 @@ public class SaltScanner {
               }
             } else if (!is_rollup && qual[0] == HistogramDataPoint.PREFIX) {
               try {
-                HistogramDataPoint histogram = 
-                    Internal.decodeHistogramDataPoint(tsdb, kv);
+                final HistogramDataPoint histogram;
+                if (histogram_decode_stats != null) {
+                  histogram = EncodedHistogramDataPoint.fromKeyValue(tsdb, kv, 
+                      histogram_decode_stats);
+                } else {
+                  histogram = Internal.decodeHistogramDataPoint(tsdb, kv);
+                }
                 hists.add(histogram);
               } catch (Throwable t) {
                 LOG.error("Failed to decode histogram data point", t);
               }
             } else {
+              if (rollup_cutoff != Long.MAX_VALUE && 
+                  rollupTimestamp(key, qual) >= rollup_cutoff) {
+                continue;
+              }
+              if (RollupUtils.isPackedRollupQualifier(qual)) {
+                // the sequence pulls the aggregates it needs
+                kvs.add(kv);
+                packed = true;
+                continue;
+              }
+              legacy = true;
               if (rollup_query.getRollupAgg() == Aggregators.AVG || 
                   rollup_query.getRollupAgg() == Aggregators.DEV) {
                 if (qual[0] == (byte) rollup_agg_id ||
@@ -792,6 +1020,20 @@ public class SaltScanner {
           }
         } // end for
         
+        // packed and legacy columns sort differently so a row written in both
+        // layouts during a migration has to be put back in time order
+        if (packed && legacy) {
+          Collections.sort(kvs.subList(first_kv, kvs.size()), 
+              new Comparator<KeyValue>() {
+            @Override
+            public int compare(final KeyValue a, final KeyValue b) {
+              final long ts_a = rollupTimestamp(key, a.qualifier());
+              final long ts_b = rollupTimestamp(key, b.qualifier());
+              return ts_a < ts_b ? -1 : ts_a == ts_b ? 0 : 1;
+            }
+          });
+        }
+        
         // histogram row
         if (hists.size() > 0) {
           this.histograms.add(new SimpleEntry<byte[], List<HistogramDataPoint>>(key, hists));
@@ -833,7 +1075,9 @@ public class SaltScanner {
         final long compaction_start = DateTime.nanoTime();
         try {
           final List<Annotation> notes = Lists.newArrayList();
-          compacted = tsdb.compact(row, notes, hists);
+          final KeyValue raw = tsdb.compact(row, notes, hists);
+          compacted = pushdown != null && raw != null ? 
+              pushdown.reduceRow(raw, pushdown_spec) : raw;
           
           // histogram row
           if (hists.size() > 0) {
@@ -863,6 +1107,24 @@ public class SaltScanner {
       }
     }
   
+    /**
+     * Drops the data buffered by this scanner, closes it and fails the scan
+     * with the cancellation exception.
+     */
+    void cancel() {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Closing scanner as the query was cancelled: " + scanner);
+      }
+      kvs.clear();
+      annotations.clear();
+      histograms.clear();
+      if (query_stats != null) {
+        query_stats.updateStat(query_index, QueryStat.CANCELLED_SCANNERS, 1);
+      }
+      close(false);
+      handleException(cancellation.newException());
+    }
+  
     /**
      * Closes the scanner and sets the various stats after filtering
      * @param ok Whether or not the scanner closed with an exception or 
@@ -914,6 +1176,31 @@ public class SaltScanner {
     }
   }
   
+  /**
+   * Parses the timestamp of a rollup cell with either an aggregator ID, the
+   * old style string prefix, e.g. "sum:", or a packed column.
+   * @param key The row key.
+   * @param qual The qualifier of the cell.
+   * @return The timestamp in milliseconds.
+   */
+  private long rollupTimestamp(final byte[] key, final byte[] qual) {
+    int offset = 1;
+    final int id = qual[0] & RollupUtils.AGGREGATOR_MASK;
+    if (RollupUtils.isPackedRollupQualifier(qual)) {
+      offset = 0;
+    } else if (id != rollup_agg_id && id != rollup_count_id) {
+      for (int i = 0; i < qual.length; i++) {
+        if (qual[i] == ':') {
+          offset = i + 1;
+          break;
+        }
+      }
+    }
+    return RollupUtils.getTimestampFromRollupQualifier(qual,
+        Bytes.getUnsignedInt(key, Const.SALT_WIDTH() + TSDB.metrics_width()),
+        rollup_query.getRollupInterval(), offset);
+  }
+
   /**
    * Called each time a scanner completes with valid or empty data.
    * @param kvs The compacted columns fetched by the scanner
@@ -47,6 +47,11 @@ public class SimpleHistogramDataPointAdapter implements HistogramDataPoint {
     this.timestamp = timestamp;
   }
 
+  /** @return The wrapped histogram. */
+  Histogram getHistogram() {
+    return histogram;
+  }
+
   @Override
   public long timestamp() {
     return timestamp;
@@ -75,6 +80,11 @@ public class SimpleHistogramDataPointAdapter implements HistogramDataPoint {
   @Override
   public void aggregate(final HistogramDataPoint histo, 
                         final HistogramAggregation func) {
+    if (histo instanceof EncodedHistogramDataPoint) {
+      histogram.aggregate(((EncodedHistogramDataPoint) histo).decoded(), 
+          mapAggregation(func));
+      return;
+    }
     if (!(histo instanceof SimpleHistogramDataPointAdapter)) {
       throw new IllegalArgumentException("The object must be an instance of the " 
           + "YamasHistogramDataPointAdapter");
@@ -130,6 +140,18 @@ public class SimpleHistogramDataPointAdapter implements HistogramDataPoint {
         result.put(overflow_bucket, yms1_histogram.getOverflow());
         return result;
       }
+    } else if (histogram instanceof ArrayHistogram) {
+      final ArrayHistogram array_histogram = (ArrayHistogram) histogram;
+      final Map<HistogramBucket, Long> result = 
+          new TreeMap<HistogramBucket, Long>(array_histogram.getHistogram());
+      result.put(new HistogramBucket(HistogramBucket.BucketType.UNDERFLOW, 
+          0.0f, 0.0f), array_histogram.getUnderflow());
+      result.put(new HistogramBucket(HistogramBucket.BucketType.OVERFLOW, 
+          0.0f, 0.0f), array_histogram.getOverflow());
+      return result;
+    } else if (histogram instanceof QuantileSketchHistogram) {
+      return new TreeMap<HistogramBucket, Long>(
+          ((QuantileSketchHistogram) histogram).getHistogram());
     } else {
       throw new UnsupportedOperationException("The founding histogram object "
           + "is not one of class Yamas1Histogram");
@@ -219,6 +219,19 @@ public class Span implements DataPoints {
     rows.add(rowseq);
   }
 
+  /**
+   * Appends the rows of another span for the same time series, e.g. to
+   * stitch a raw data tail onto rolled up data. The rows must not overlap in
+   * time and are sorted on the next iteration.
+   * @param other The span to take the rows and annotations from.
+   * @since 2.4
+   */
+  void appendRows(final Span other) {
+    rows.addAll(other.rows);
+    annotations.addAll(other.annotations);
+    sorted = false;
+  }
+
   /**
    * Package private helper to access the last timestamp in an HBase row.
    * @param metric_width The number of bytes on which metric IDs are stored.
@@ -79,6 +79,9 @@ final class SpanGroup implements DataPoints {
    */
   private List<String> aggregated_tags;
   private Set<byte[]> aggregated_tag_uids;
+  
+  /** A tag key to leave out of the tags, null to keep them all. */
+  private byte[] excluded_tagk;
 
   /** Spans in this group.  They must all be for the same metric. */
   private final ArrayList<Span> spans = new ArrayList<Span>();
@@ -340,6 +343,16 @@ final class SpanGroup implements DataPoints {
     }
   }
 
+  /**
+   * Leaves a tag key out of the tags and aggregated tags, e.g. the aggregate
+   * tag of pre-aggregates the user didn't ask for. Has to be called before
+   * the tags are computed.
+   * @param tagk The tag key UID to leave out.
+   */
+  void excludeTagk(final byte[] tagk) {
+    excluded_tagk = tagk;
+  }
+  
   /**
    * Computes the intersection set + symmetric difference of tags in all spans.
    * This method loads the UID aggregated list and tag pair maps with byte arrays
@@ -372,6 +385,10 @@ final class SpanGroup implements DataPoints {
         if (discards.containsKey(tag_pair.getKey())) {
           continue;
         }
+        if (excluded_tagk != null && 
+            Bytes.memcmp(excluded_tagk, tag_pair.getKey()) == 0) {
+          continue;
+        }
         
         final byte[] tag_value = tag_set.get(tag_pair.getKey());
         if (tag_value == null) {
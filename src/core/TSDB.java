@@ -62,15 +62,18 @@ import net.opentsdb.utils.JSON;
 import net.opentsdb.utils.PluginLoader;
 import net.opentsdb.utils.Threads;
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.meta.CardinalityEstimator;
 import net.opentsdb.meta.MetaDataCache;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
 import net.opentsdb.query.QueryLimitOverride;
 import net.opentsdb.query.expression.ExpressionFactory;
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.rollup.GroupByWriter;
 import net.opentsdb.rollup.RollupConfig;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.rollup.RollupWriter;
 import net.opentsdb.search.SearchPlugin;
 import net.opentsdb.search.SearchQuery;
 import net.opentsdb.tools.StartupPlugin;
@@ -162,6 +165,9 @@ public final class TSDB {
 
   /** A filter plugin for allowing or blocking time series */
   private WriteableDataPointFilterPlugin ts_filter;
+  
+  /** An optional plugin that downsamples raw data in storage */
+  private DownsamplePushdown downsample_pushdown;
 
   /** A filter plugin for allowing or blocking UIDs */
   private UniqueIdFilterPlugin uid_filter;
@@ -192,6 +198,24 @@ public final class TSDB {
   /** A list of query overrides for the scanners */
   private final QueryLimitOverride query_limits;
   
+  /** The optional secondary tag index, null if disabled. */
+  private final TagIndex tag_index;
+  
+  /** The optional series cardinality estimator, null if disabled. */
+  private final CardinalityEstimator cardinality;
+  
+  /** The optional streaming rollup writer, null if disabled. */
+  private final RollupWriter rollup_writer;
+  
+  /** The optional materialized group by writer, null if disabled. */
+  private final GroupByWriter groupby_writer;
+  
+  /** The optional query admission scheduler, null if disabled. */
+  private final QueryScheduler query_scheduler;
+  
+  /** The optional cache of merged histograms, null if disabled. */
+  private final HistogramCache histogram_cache;
+  
   /** Writes rejected by the filter */
   private final AtomicLong rejected_dps = new AtomicLong();
   private final AtomicLong rejected_aggregate_dps = new AtomicLong();
@@ -323,6 +347,34 @@ public final class TSDB {
     
     QueryStats.setEnableDuplicates(
         config.getBoolean("tsd.query.allow_simultaneous_duplicates"));
+    
+    if (config.getBoolean("tsd.core.tag_index.enable") || 
+        config.getBoolean("tsd.query.tag_index.enable")) {
+      tag_index = new TagIndex(this);
+    } else {
+      tag_index = null;
+    }
+    
+    if (config.getBoolean("tsd.core.cardinality.enable") || 
+        config.getBoolean("tsd.query.cardinality.enable")) {
+      cardinality = new CardinalityEstimator(this);
+    } else {
+      cardinality = null;
+    }
+    
+    if (rollup_config != null && 
+        config.getBoolean("tsd.rollups.writer.enable")) {
+      rollup_writer = new RollupWriter(this);
+    } else {
+      rollup_writer = null;
+    }
+    
+    if (rollup_config != null && 
+        config.getBoolean("tsd.rollups.groupby.enable")) {
+      groupby_writer = new GroupByWriter(this);
+    } else {
+      groupby_writer = null;
+    }
 
     if (config.getBoolean("tsd.core.preload_uid_cache")) {
       final ByteMap<UniqueId> uid_cache_map = new ByteMap<UniqueId>();
@@ -337,6 +389,18 @@ public final class TSDB {
     }
     
     query_limits = new QueryLimitOverride(this);
+    
+    if (config.getBoolean("tsd.query.scheduler.enable")) {
+      query_scheduler = new QueryScheduler(this);
+    } else {
+      query_scheduler = null;
+    }
+    
+    if (config.getBoolean("tsd.query.histogram_cache.enable")) {
+      histogram_cache = new HistogramCache(this);
+    } else {
+      histogram_cache = null;
+    }
 
     // load up the functions that require the TSDB object
     ExpressionFactory.addTSDBFunctions(this);
@@ -529,6 +593,31 @@ public final class TSDB {
           + ts_filter.version());
     }
 
+    // Downsample pushdown, defaulting to the in process implementation
+    if (config.getBoolean("tsd.query.downsample_pushdown.enable")) {
+      final String plugin = 
+          config.getString("tsd.query.downsample_pushdown.plugin");
+      if (plugin == null || plugin.isEmpty()) {
+        downsample_pushdown = new InProcessDownsamplePushdown();
+      } else {
+        downsample_pushdown = PluginLoader.loadSpecificPlugin(plugin, 
+            DownsamplePushdown.class);
+        if (downsample_pushdown == null) {
+          throw new IllegalArgumentException(
+              "Unable to locate downsample pushdown plugin: " + plugin);
+        }
+      }
+      try {
+        downsample_pushdown.initialize(this);
+      } catch (Exception e) {
+        throw new RuntimeException(
+            "Failed to initialize downsample pushdown plugin", e);
+      }
+      LOG.info("Successfully initialized downsample pushdown plugin [" +
+          downsample_pushdown.getClass().getCanonicalName() + "] version: "
+          + downsample_pushdown.version());
+    }
+
     // UID Filter
     if (config.getBoolean("tsd.uidfilter.enable")) {
       uid_filter = PluginLoader.loadSpecificPlugin(
@@ -622,6 +711,14 @@ public final class TSDB {
     return ts_filter;
   }
 
+  /**
+   * @return The downsample pushdown plugin, may be null.
+   * @since 2.4
+   */
+  public DownsamplePushdown getDownsamplePushdown() {
+    return downsample_pushdown;
+  }
+
   /**
    * @return The UID filter object, may be null.
    * @since 2.3
@@ -725,6 +822,9 @@ public final class TSDB {
       checks.add(client.ensureTableExists(
           config.getString("tsd.storage.hbase.meta_table")));
     }
+    if (tag_index != null) {
+      checks.add(client.ensureTableExists(tag_index.table()));
+    }
     return Deferred.group(checks);
   }
 
@@ -821,6 +921,24 @@ public final class TSDB {
     } finally {
       collector.clearExtraTag("class");
     }
+    
+    if (query_scheduler != null) {
+      collector.addExtraTag("class", "QueryScheduler");
+      try {
+        query_scheduler.collectStats(collector);
+      } finally {
+        collector.clearExtraTag("class");
+      }
+    }
+    
+    if (histogram_cache != null) {
+      collector.addExtraTag("class", "HistogramCache");
+      try {
+        histogram_cache.collectStats(collector);
+      } finally {
+        collector.clearExtraTag("class");
+      }
+    }
     final ClientStats stats = client.stats();
     collector.record("hbase.root_lookups", stats.rootLookups());
     collector.record("hbase.meta_lookups",
@@ -849,6 +967,12 @@ public final class TSDB {
         stats.idleConnectionsClosed());
 
     compactionq.collectStats(collector);
+    if (rollup_writer != null) {
+      rollup_writer.collectStats(collector);
+    }
+    if (groupby_writer != null) {
+      groupby_writer.collectStats(collector);
+    }
     // Collect Stats from Plugins
     if (startup != null) {
       try {
@@ -898,6 +1022,14 @@ public final class TSDB {
         collector.clearExtraTag("plugin");
       }
     }
+    if (downsample_pushdown != null) {
+      try {
+        collector.addExtraTag("plugin", "downsamplePushdown");
+        downsample_pushdown.collectStats(collector);
+      } finally {
+        collector.clearExtraTag("plugin");
+      }
+    }
     if (uid_filter != null) {
       try {
         collector.addExtraTag("plugin", "uidFilter");
@@ -1170,6 +1302,57 @@ public final class TSDB {
       base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
     }
 
+    /** Adds the value to the rollup windows once the write succeeded so a
+     * failed write isn't rolled up. */
+    final class RollupCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) throws Exception {
+        rollup_writer.record(row, metric, timestamp, value, flags, tags);
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Rollup Callback";
+      }
+    }
+
+    /** Adds the value to the group by windows once the write succeeded. */
+    final class GroupByCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) throws Exception {
+        groupby_writer.record(row, metric, timestamp, value, flags, tags);
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Group By Callback";
+      }
+    }
+
+    /** Waits on the tag index writes once the data point was written so 
+     * that index failures reach the caller. */
+    final class IndexCB implements Callback<Deferred<Object>, Object> {
+      private final Deferred<Object> index;
+      IndexCB(final Deferred<Object> index) {
+        this.index = index;
+      }
+      @Override
+      public Deferred<Object> call(final Object result) throws Exception {
+        /** Hands back the result of the data point write. */
+        final class ResultCB implements Callback<Object, Object> {
+          @Override
+          public Object call(final Object ignored) throws Exception {
+            return result;
+          }
+        }
+        return index.addCallback(new ResultCB());
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Tag Index Callback";
+      }
+    }
+
     /** Callback executed for chaining filter calls to see if the value
      * should be written or not. */
     final class WriteCB implements Callback<Deferred<Object>, Boolean> {
@@ -1205,6 +1388,21 @@ public final class TSDB {
         // Count all added datapoints, not just those that came in through PUT rpc
         // Will there be others? Well, something could call addPoint programatically right?
         datapoints_added.incrementAndGet();
+        
+        if (tag_index != null && tag_index.isWriteEnabled()) {
+          // the index puts run alongside the data point write
+          result = result.addCallbackDeferring(
+              new IndexCB(tag_index.index(row)));
+        }
+        if (cardinality != null && cardinality.isWriteEnabled()) {
+          cardinality.record(row);
+        }
+        if (rollup_writer != null && !isHistogram(qualifier)) {
+          result = result.addCallback(new RollupCB());
+        }
+        if (groupby_writer != null && !isHistogram(qualifier)) {
+          result = result.addCallback(new GroupByCB());
+        }
 
         // TODO(tsuna): Add a callback to time the latency of HBase and store the
         // timing in a moving Histogram (once we have a class for this).
@@ -1579,6 +1777,112 @@ public final class TSDB {
     }
   }
   
+  /**
+   * Adds the values of multiple rollup aggregations for one timestamp as a 
+   * single packed column in the interval's rollup table. See 
+   * {@link RollupUtils#buildPackedRollupValue} for the format.
+   * <p>
+   * WARNING: The tags map may be modified by this method without a lock. Give 
+   * the method a copy if you plan to use it elsewhere.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the values in seconds.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @param interval The non-null interval the data reflects.
+   * @param rollup_aggregators The aggregators used to generate each value.
+   * @param values The encoded values in the same order as the aggregators.
+   * @param flags The length and type flags of each value.
+   * @return A deferred to optionally wait on to be sure the value was stored 
+   * @throws IllegalArgumentException if rollups are not configured, the
+   * interval or an aggregator isn't mapped, the timestamp is invalid or the
+   * metric or tags are invalid.
+   * @throws HBaseException (deferred) if there was a problem while persisting
+   * data.
+   * @since 2.4
+   */
+  public Deferred<Object> addPackedRollupPoint(final String metric,
+                                               final long timestamp,
+                                               final Map<String, String> tags,
+                                               final String interval,
+                                               final String[] rollup_aggregators,
+                                               final byte[][] values,
+                                               final short[] flags) {
+    if (rollup_config == null) {
+      throw new IllegalArgumentException(
+          "No rollup or aggregations were configured");
+    }
+    if (interval == null || interval.isEmpty()) {
+      throw new IllegalArgumentException("Interval cannot be null "
+          + "for a packed rollup point");
+    }
+    if (timestamp < 0 || ((timestamp & Const.SECOND_MASK) != 0)) {
+      throw new IllegalArgumentException((timestamp < 0 ? "negative " : "bad")
+        + " timestamp=" + timestamp + " when trying to add packed rollups "
+        + Arrays.toString(rollup_aggregators) + " to metric=" + metric 
+        + ", tags=" + tags);
+    }
+    
+    final int[] aggregator_ids = new int[rollup_aggregators.length];
+    for (int i = 0; i < rollup_aggregators.length; i++) {
+      final String rollup_agg = rollup_aggregators[i].toUpperCase();
+      if (rollups_block_derived && 
+          (rollup_agg.equals("AVG") || rollup_agg.equals("DEV"))) {
+        throw new IllegalArgumentException("Derived rollup aggregations "
+            + "are not allowed " + rollup_agg + " with metric " 
+            + metric + " " + tags);
+      }
+      aggregator_ids[i] = rollup_config.getIdForAggregator(
+          rollup_aggregators[i]);
+    }
+    final byte[] value = RollupUtils.buildPackedRollupValue(aggregator_ids, 
+        flags, values);
+    
+    final String agg_tag_value = tags.get(agg_tag_key);
+    if (agg_tag_value == null) {
+      if (tag_raw_data) {
+        tags.put(agg_tag_key, raw_agg_tag_value);
+      }
+    } else if (!agg_tag_value.equals(raw_agg_tag_value)) {
+      throw new IllegalArgumentException("Packed rollups cannot be written "
+          + "for pre-aggregates: " + metric + " " + tags);
+    }
+    IncomingDataPoints.checkMetricAndTags(metric, tags);
+    
+    final RollupInterval rollup_interval = 
+        rollup_config.getRollupInterval(interval);
+    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    final int base_time = RollupUtils.getRollupBasetime(timestamp, 
+        rollup_interval);
+    final byte[] qualifier = RollupUtils.buildPackedRollupQualifier(
+        timestamp, base_time, rollup_interval);
+    
+    /** Callback executed for chaining filter calls to see if the value
+    * should be written or not. */
+    final class WriteCB implements Callback<Deferred<Object>, Boolean> {
+      @Override
+      public Deferred<Object> call(final Boolean allowed) throws Exception {
+        if (!allowed) {
+          rejected_aggregate_dps.incrementAndGet();
+          return Deferred.fromResult(null);
+        }
+        Internal.setBaseTime(row, base_time);
+        // NOTE: Do not modify the row key after calculating and applying the salt
+        RowKey.prefixKeyWithSalt(row);
+        return client.put(new PutRequest(rollup_interval.getTemporalTable(), 
+            row, FAMILY, qualifier, value));
+      }
+    }
+    
+    if (ts_filter != null) {
+      return ts_filter.allowDataPoint(metric, timestamp, value, tags, (short) 0)
+          .addCallbackDeferring(new WriteCB());
+    }
+    try {
+      return new WriteCB().call(true);
+    } catch (Exception e) {
+      return Deferred.fromError(e);
+    }
+  }
+  
   /**
    * Forces a flush of any un-committed in memory data including left over
    * compactions.
@@ -1699,6 +2003,18 @@ public final class TSDB {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
     }
+    if (cardinality != null && cardinality.isWriteEnabled()) {
+      LOG.info("Flushing cardinality sketches");
+      deferreds.add(cardinality.flush());
+    }
+    if (rollup_writer != null) {
+      LOG.info("Flushing closed rollup windows");
+      deferreds.add(rollup_writer.flush());
+    }
+    if (groupby_writer != null) {
+      LOG.info("Flushing closed group by windows");
+      deferreds.add(groupby_writer.flush());
+    }
     if (startup != null) {
       LOG.info("Shutting down startup plugin: " +
               startup.getClass().getCanonicalName());
@@ -1734,6 +2050,11 @@ public final class TSDB {
           ts_filter.getClass().getCanonicalName());
       deferreds.add(ts_filter.shutdown());
     }
+    if (downsample_pushdown != null) {
+      LOG.info("Shutting down downsample pushdown plugin: " +
+          downsample_pushdown.getClass().getCanonicalName());
+      deferreds.add(downsample_pushdown.shutdown());
+    }
     if (uid_filter != null) {
       LOG.info("Shutting down UID filter plugin: " +
           uid_filter.getClass().getCanonicalName());
@@ -1804,6 +2125,19 @@ public final class TSDB {
     return tag_values.suggest(search, max_results);
   }
 
+  /**
+   * Given a prefix search, asynchronously returns matching tag values. The
+   * matches are added to the UID cache as a side effect.
+   * @param search A prefix to search.
+   * @param max_results Maximum number of results to return.
+   * @return A deferred resolving to the list of matching tag values.
+   * @since 2.4
+   */
+  public Deferred<List<String>> suggestTagValuesAsync(final String search,
+      final int max_results) {
+    return tag_values.suggestAsync(search, max_results);
+  }
+
   /**
    * Discards all in-memory caches.
    * @since 1.1
@@ -1947,6 +2281,54 @@ public final class TSDB {
   public byte[] metaTable() {
     return this.meta_table;
   }
+  
+  /** 
+   * @return The secondary tag index if enabled, null if not.
+   * @since 2.4
+   */
+  public TagIndex getTagIndex() {
+    return tag_index;
+  }
+  
+  /** 
+   * @return The series cardinality estimator if enabled, null if not.
+   * @since 2.4
+   */
+  public CardinalityEstimator getCardinalityEstimator() {
+    return cardinality;
+  }
+  
+  /** 
+   * @return The streaming rollup writer if enabled, null if not.
+   * @since 2.4
+   */
+  public RollupWriter getRollupWriter() {
+    return rollup_writer;
+  }
+  
+  /** 
+   * @return The materialized group by writer if enabled, null if not.
+   * @since 2.4
+   */
+  public GroupByWriter getGroupByWriter() {
+    return groupby_writer;
+  }
+  
+  /** 
+   * @return The query admission scheduler if enabled, null if not.
+   * @since 2.4
+   */
+  public QueryScheduler getQueryScheduler() {
+    return query_scheduler;
+  }
+  
+  /** 
+   * @return The cache of merged histograms if enabled, null if not.
+   * @since 2.4
+   */
+  public HistogramCache getHistogramCache() {
+    return histogram_cache;
+  }
 
   /**
    * Index the given timeseries meta object via the configured search plugin
@@ -0,0 +1,300 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.GetRequest;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * A secondary index mapping each metric, tag key and tag value to the
+ * time series that carried the pair during a time bucket. Rows are keyed on
+ * {@code <metric><bucket_base_time><tagk><tagv>} and each column qualifier
+ * is the tag portion of a TSUID, i.e. the data table row key without the
+ * salt, metric and timestamp.
+ * <p>
+ * The index is written on the data point path when
+ * {@code tsd.core.tag_index.enable} is set and read by {@link TsdbQuery} when
+ * {@code tsd.query.tag_index.enable} is set to turn literal tag filters into
+ * exact multi-gets. Data written before the index was enabled can be indexed
+ * with the {@code uid tagindexsync} command.
+ * <p>
+ * Only raw and histogram data points are indexed. Rollups and pre-aggregates
+ * written through {@link TSDB#addAggregatePoint} are not, so queries against
+ * rollup or pre-aggregate tables never use the index.
+ * <p>
+ * Each series is only written once per bucket per TSD (within the bounds of
+ * {@code tsd.core.tag_index.cache_size}) so the write overhead is a cache
+ * lookup per data point.
+ * @since 2.4
+ */
+public final class TagIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(TagIndex.class);
+
+  /** Charset used to build cache keys. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The column family for index entries. */
+  public static final byte[] FAMILY = "i".getBytes(CHARSET);
+
+  /** The value stored in index cells, the qualifier carries the data. */
+  private static final byte[] VALUE = new byte[] { 0 };
+
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
+  /** The index table name. */
+  private final byte[] table;
+
+  /** Width of the index time buckets in seconds. */
+  private final int bucket_seconds;
+
+  /** Whether or not to write the index on the data point path. */
+  private final boolean write_enabled;
+
+  /** The maximum number of series a lookup may return. */
+  private final int max_series;
+
+  /** Series and bucket combinations already written by this TSD. */
+  private final Cache<String, Boolean> indexed;
+
+  /**
+   * Default ctor.
+   * @param tsdb The non-null TSDB to pull config and the client from.
+   * @throws IllegalArgumentException if the bucket width is not a multiple of
+   * {@link Const#MAX_TIMESPAN}.
+   */
+  public TagIndex(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    table = tsdb.getConfig().getString("tsd.storage.hbase.tag_index_table")
+        .getBytes(CHARSET);
+    bucket_seconds = tsdb.getConfig().getInt("tsd.core.tag_index.bucket_seconds");
+    if (bucket_seconds < Const.MAX_TIMESPAN ||
+        bucket_seconds % Const.MAX_TIMESPAN != 0) {
+      throw new IllegalArgumentException("The tag index bucket width must be "
+          + "a multiple of " + Const.MAX_TIMESPAN + " seconds: " + bucket_seconds);
+    }
+    write_enabled = tsdb.getConfig().getBoolean("tsd.core.tag_index.enable");
+    max_series = tsdb.getConfig().getInt("tsd.query.multi_get.limit");
+    indexed = CacheBuilder.newBuilder()
+        .maximumSize(tsdb.getConfig().getInt("tsd.core.tag_index.cache_size"))
+        .build();
+  }
+
+  /**
+   * Writes index entries for the series in the given data table row key if
+   * it hasn't already been indexed for the row's bucket.
+   * @param row_key The data table row key, including the salt if enabled.
+   * @return A deferred to wait on for the writes, resolves to null.
+   */
+  public Deferred<Object> index(final byte[] row_key) {
+    final int metric_width = TSDB.metrics_width();
+    final int tags_offset = Const.SALT_WIDTH() + metric_width +
+        Const.TIMESTAMP_BYTES;
+    final int tag_width = TSDB.tagk_width() + TSDB.tagv_width();
+    if (row_key.length <= tags_offset ||
+        (row_key.length - tags_offset) % tag_width != 0) {
+      throw new IllegalArgumentException("Invalid row key: "
+          + Arrays.toString(row_key));
+    }
+
+    final long base_time = Bytes.getUnsignedInt(row_key,
+        Const.SALT_WIDTH() + metric_width);
+    final byte[] prefix = new byte[metric_width + Const.TIMESTAMP_BYTES];
+    System.arraycopy(row_key, Const.SALT_WIDTH(), prefix, 0, metric_width);
+    Bytes.setInt(prefix, (int) bucketBaseTime(base_time), metric_width);
+    final byte[] tags = Arrays.copyOfRange(row_key, tags_offset, row_key.length);
+
+    final String key = new String(prefix, CHARSET) + new String(tags, CHARSET);
+    if (indexed.asMap().putIfAbsent(key, Boolean.TRUE) != null) {
+      return Deferred.fromResult(null);
+    }
+
+    final List<Deferred<Object>> puts =
+        new ArrayList<Deferred<Object>>(tags.length / tag_width);
+    for (int i = 0; i < tags.length; i += tag_width) {
+      final byte[] row = new byte[prefix.length + tag_width];
+      System.arraycopy(prefix, 0, row, 0, prefix.length);
+      System.arraycopy(tags, i, row, prefix.length, tag_width);
+      puts.add(tsdb.getClient().put(
+          new PutRequest(table, row, FAMILY, tags, VALUE)));
+    }
+
+    /** Lets us retry the series on the next write if storage failed. */
+    class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        indexed.invalidate(key);
+        LOG.warn("Failed to write tag index entries for row key "
+            + Arrays.toString(row_key), e);
+        return e;
+      }
+    }
+
+    /** Group to a single null. */
+    class GroupCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> ignored) throws Exception {
+        return null;
+      }
+    }
+
+    return Deferred.group(puts).addCallbacks(new GroupCB(), new ErrCB());
+  }
+
+  /**
+   * Finds the series of the metric that carried at least one of the literal
+   * values for each tag key at some point in the time range.
+   * @param metric The metric UID.
+   * @param literals A map of tag key UIDs to the non-null, non-empty literal
+   * tag value UIDs to match.
+   * @param start_time The start of the range in unix epoch seconds.
+   * @param end_time The end of the range in unix epoch seconds.
+   * @return A deferred resolving to a sorted list of TSUID tag portions,
+   * possibly empty, or to null if more series matched than
+   * {@code tsd.query.multi_get.limit}.
+   */
+  public Deferred<List<byte[]>> lookup(final byte[] metric,
+      final ByteMap<byte[][]> literals, final long start_time,
+      final long end_time) {
+    final List<Deferred<ArrayList<KeyValue>>> gets =
+        new ArrayList<Deferred<ArrayList<KeyValue>>>();
+    final List<Integer> tagk_index = new ArrayList<Integer>();
+    int tagk_id = 0;
+    for (final Map.Entry<byte[], byte[][]> entry : literals) {
+      for (long bucket = bucketBaseTime(start_time); bucket <= end_time;
+          bucket += bucket_seconds) {
+        for (final byte[] tagv : entry.getValue()) {
+          final GetRequest get = new GetRequest(table,
+              rowKey(metric, bucket, entry.getKey(), tagv));
+          get.family(FAMILY);
+          gets.add(tsdb.getClient().get(get));
+          tagk_index.add(tagk_id);
+        }
+      }
+      tagk_id++;
+    }
+    final int tagks = tagk_id;
+
+    /** Unions the series per tag key and intersects across tag keys. */
+    class LookupCB implements Callback<List<byte[]>,
+        ArrayList<ArrayList<KeyValue>>> {
+      @Override
+      public List<byte[]> call(final ArrayList<ArrayList<KeyValue>> results)
+          throws Exception {
+        final List<TreeSet<byte[]>> per_tagk =
+            new ArrayList<TreeSet<byte[]>>(tagks);
+        for (int i = 0; i < tagks; i++) {
+          per_tagk.add(new TreeSet<byte[]>(Bytes.MEMCMP));
+        }
+        for (int i = 0; i < results.size(); i++) {
+          final ArrayList<KeyValue> row = results.get(i);
+          if (row == null) {
+            continue;
+          }
+          final TreeSet<byte[]> set = per_tagk.get(tagk_index.get(i));
+          for (final KeyValue column : row) {
+            set.add(column.qualifier());
+          }
+        }
+
+        TreeSet<byte[]> series = per_tagk.get(0);
+        for (int i = 1; i < tagks; i++) {
+          final TreeSet<byte[]> other = per_tagk.get(i);
+          final Iterator<byte[]> it = series.iterator();
+          while (it.hasNext()) {
+            if (!other.contains(it.next())) {
+              it.remove();
+            }
+          }
+        }
+        if (series.size() > max_series) {
+          return null;
+        }
+        return new ArrayList<byte[]>(series);
+      }
+      @Override
+      public String toString() {
+        return "Tag index lookup for metric " + Arrays.toString(metric);
+      }
+    }
+
+    if (gets.isEmpty()) {
+      return Deferred.fromResult((List<byte[]>) new ArrayList<byte[]>(0));
+    }
+    return Deferred.groupInOrder(gets).addCallback(new LookupCB());
+  }
+
+  /** @return Whether or not the index should be written on the write path. */
+  public boolean isWriteEnabled() {
+    return write_enabled;
+  }
+
+  /** @return The index table name. */
+  public byte[] table() {
+    return table;
+  }
+
+  /**
+   * Converts a TSUID tag portion as returned by {@link #lookup} into a tag
+   * map with single values, suitable for a {@link MultiGetQuery}.
+   * @param tags The tag portion of a TSUID.
+   * @return A map of tag key UIDs to a single tag value UID.
+   */
+  public static ByteMap<byte[][]> tagsToMap(final byte[] tags) {
+    final int tagk_width = TSDB.tagk_width();
+    final int tag_width = tagk_width + TSDB.tagv_width();
+    final ByteMap<byte[][]> map = new ByteMap<byte[][]>();
+    for (int i = 0; i < tags.length; i += tag_width) {
+      map.put(Arrays.copyOfRange(tags, i, i + tagk_width), new byte[][] {
+          Arrays.copyOfRange(tags, i + tagk_width, i + tag_width) });
+    }
+    return map;
+  }
+
+  /** @return The base time of the bucket the timestamp falls in. */
+  long bucketBaseTime(final long timestamp) {
+    return timestamp - (timestamp % bucket_seconds);
+  }
+
+  /** @return An index row key for the given components. */
+  static byte[] rowKey(final byte[] metric, final long bucket,
+      final byte[] tagk, final byte[] tagv) {
+    final byte[] row = new byte[metric.length + Const.TIMESTAMP_BYTES +
+                                tagk.length + tagv.length];
+    System.arraycopy(metric, 0, row, 0, metric.length);
+    Bytes.setInt(row, (int) bucket, metric.length);
+    System.arraycopy(tagk, 0, row, metric.length + Const.TIMESTAMP_BYTES,
+        tagk.length);
+    System.arraycopy(tagv, 0, row,
+        metric.length + Const.TIMESTAMP_BYTES + tagk.length, tagv.length);
+    return row;
+  }
+}
@@ -21,6 +21,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,10 +31,12 @@ import org.hbase.async.CompareFilter;
 import org.hbase.async.FilterList;
 import org.hbase.async.HBaseException;
 import org.hbase.async.QualifierFilter;
+import org.hbase.async.RegexStringComparator;
 import org.hbase.async.ScanFilter;
 import org.hbase.async.Scanner;
 import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.FilterList.Operator;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
@@ -41,13 +44,18 @@ import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
+import net.opentsdb.meta.CardinalityEstimator;
 import net.opentsdb.query.QueryUtil;
 import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.query.filter.TagVLiteralOrFilter;
+import net.opentsdb.query.filter.TagVNotLiteralOrFilter;
+import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.rollup.GroupByWriter;
 import net.opentsdb.rollup.NoSuchRollupForIntervalException;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.rollup.RollupWindow;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.QueryStats.QueryStat;
@@ -56,6 +64,7 @@ import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.ByteSet;
 import net.opentsdb.utils.DateTime;
+import net.opentsdb.utils.Exceptions;
 
 /**
  * Non-synchronized implementation of {@link Query}.
@@ -126,6 +135,11 @@ final class TsdbQuery implements Query {
   private ByteMap<byte[][]> row_key_literals;
   private List<ByteMap<byte[][]>> row_key_literals_list;
 
+  /**
+   * Tag keys and the values to skip in the row key filter, all pre-sorted
+   */
+  private ByteMap<byte[][]> row_key_exclusions;
+
   /** If true, use rate of change instead of actual values. */
   private boolean rate;
 
@@ -152,6 +166,10 @@ final class TsdbQuery implements Query {
    * aggregation. */
   private boolean pre_aggregate;
   
+  /** The aggregate tag filter added when the query was routed to the
+   * {@link GroupByWriter}'s pre-aggregates, null if it wasn't. */
+  private TagVFilter groupby_filter;
+  
   /** Optional list of TSUIDs to fetch and aggregate instead of a metric */
   private List<String> tsuids;
   
@@ -189,6 +207,41 @@ final class TsdbQuery implements Query {
   /** The maximum number of data points allowed per query. */
   private long max_data_points = 0;
   
+  /** Whether or not to let the {@link QueryPlanner} choose between scans and
+   * multi-gets. */
+  private final boolean enable_planner;
+  
+  /** The plan chosen by the planner for the current run, null if the query 
+   * wasn't planned. */
+  private QueryPlanner.Plan query_plan;
+  
+  /** Whether or not the series for the current run came from the tag index. */
+  private boolean used_tag_index;
+  
+  /** Whether or not histogram cells are merged without decoding each one. */
+  private final boolean lazy_histogram_decode;
+  
+  /** Decode stats for the current histogram run, null if cells are decoded
+   * eagerly. */
+  private HistogramDecodeStats histogram_decode_stats;
+  
+  /** The cache of merged histograms, null if disabled. */
+  private final HistogramCache histogram_cache;
+  
+  /** Whether or not the end time was given by the user rather than
+   * defaulting to now. */
+  private boolean explicit_end;
+  
+  /** Whether or not rollup queries read the recent tail from raw data. */
+  private final boolean stitch_rollups;
+  
+  /** How long after a window closes that its rollup is written, in seconds. */
+  private final long stitch_lag;
+  
+  /** The time in seconds from which raw data takes over from the rollups for
+   * the current run, 0 if the query isn't stitched. */
+  private long stitch_time;
+  
   /**
    * Enum for rollup fallback control.
    * @since 2.4
@@ -236,6 +289,12 @@ final class TsdbQuery implements Query {
     enable_fuzzy_filter = tsdb.getConfig()
         .getBoolean("tsd.query.enable_fuzzy_filter");
     use_multi_gets = tsdb.getConfig().getBoolean("tsd.query.multi_get.enable");
+    enable_planner = tsdb.getConfig().getBoolean("tsd.query.planner.enable");
+    lazy_histogram_decode = tsdb.getConfig()
+        .getBoolean("tsd.query.histograms.lazy_decode");
+    histogram_cache = tsdb.getHistogramCache();
+    stitch_rollups = tsdb.getConfig().getBoolean("tsd.rollups.stitch.enable");
+    stitch_lag = tsdb.getConfig().getLong("tsd.rollups.stitch.lag");
   }
 
   /** Which rollup table it scanned to get the final result.
@@ -327,6 +386,26 @@ final class TsdbQuery implements Query {
     return delete;
   }
   
+  /** @return The stats object for the query, may be null. */
+  QueryStats getQueryStats() {
+    return query_stats;
+  }
+  
+  /** @return The index of this sub query in the TSQuery. */
+  int getQueryIndex() {
+    return query_index;
+  }
+  
+  /** @return The byte limit for the query, 0 if unlimited. */
+  long getMaxBytes() {
+    return max_bytes;
+  }
+  
+  /** @return The data point limit for the query, 0 if unlimited. */
+  long getMaxDataPoints() {
+    return max_data_points;
+  }
+  
   @Override
   public void setPercentiles(List<Float> percentiles) {
     this.percentiles = percentiles;
@@ -442,6 +521,7 @@ final class TsdbQuery implements Query {
     final TSSubQuery sub_query = query.getQueries().get(index);
     setStartTime(query.startTime());
     setEndTime(query.endTime());
+    explicit_end = query.getEnd() != null && !query.getEnd().isEmpty();
     setDelete(query.getDelete());
     query_index = index;
     query_stats = query.getQueryStats();
@@ -479,6 +559,7 @@ final class TsdbQuery implements Query {
     if (rollup_usage != ROLLUP_USAGE.ROLLUP_RAW) {
       //Check whether the down sampler is set and rollup is enabled
       transformDownSamplerToRollupQuery(aggregator, sub_query.getDownsample());
+      matchGroupByPreAggregate(sub_query);
     }
     sub_query.setTsdbQuery(this);
     
@@ -582,6 +663,76 @@ final class TsdbQuery implements Query {
     }
   }
   
+  /**
+   * Switches the query over to a materialized group by if the writer has a
+   * rule for it. Only downsampled, non-rate raw queries are matched where the
+   * downsampler averages over whole windows of the pre-aggregates, as that's
+   * what the pre-aggregated values represent. The rewritten query matches
+   * explicit tags on the rule's tag keys so that other pre-aggregates with
+   * the same aggregator but different tags are not read as well.
+   * @param sub_query The sub query to match.
+   * @since 2.4
+   */
+  private void matchGroupByPreAggregate(final TSSubQuery sub_query) {
+    final GroupByWriter writer = tsdb.getGroupByWriter();
+    if (writer == null || pre_aggregate || delete || rate ||
+        explicit_tags || RollupQuery.isValidQuery(rollup_query) ||
+        (sub_query.getTsuids() != null && !sub_query.getTsuids().isEmpty()) ||
+        downsampler == null || downsampler.useCalendar() ||
+        downsampler.getFunction() != Aggregators.AVG ||
+        downsampler.getInterval() < 1 || 
+        downsampler.getInterval() % (writer.windowWidth() * 1000L) != 0) {
+      return;
+    }
+    if (filters != null) {
+      for (final TagVFilter filter : filters) {
+        if (filter.getTagk().equals(tsdb.getAggTagKey())) {
+          return;
+        }
+      }
+    }
+    // don't pin the end time if the user left it open
+    final long end = end_time == UNSET ? DateTime.currentTimeMillis() : end_time;
+    final String agg_tag_value = writer.preAggregateFor(sub_query.getMetric(), 
+        sub_query.getAggregator(), filters, 
+        (getStartTime() & Const.SECOND_MASK) != 0 ? 
+            getStartTime() / 1000 : getStartTime(),
+        (end & Const.SECOND_MASK) != 0 ? end / 1000 : end);
+    final List<String> tag_keys = writer.tagKeysFor(sub_query.getMetric(), 
+        sub_query.getAggregator());
+    if (agg_tag_value == null || tag_keys == null) {
+      return;
+    }
+    // copy so we don't modify the user's sub query
+    final List<TagVFilter> pre_agg_filters = filters == null ? 
+        new ArrayList<TagVFilter>(tag_keys.size() + 1) : 
+          new ArrayList<TagVFilter>(filters);
+    for (final String tagk : tag_keys) {
+      boolean filtered = false;
+      if (filters != null) {
+        for (final TagVFilter filter : filters) {
+          if (filter.getTagk().equals(tagk)) {
+            filtered = true;
+            break;
+          }
+        }
+      }
+      if (!filtered) {
+        pre_agg_filters.add(new TagVWildcardFilter(tagk, "*"));
+      }
+    }
+    groupby_filter = 
+        new TagVLiteralOrFilter(tsdb.getAggTagKey(), agg_tag_value);
+    pre_agg_filters.add(groupby_filter);
+    filters = pre_agg_filters;
+    explicit_tags = true;
+    pre_aggregate = true;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Answering " + sub_query + " from the " + agg_tag_value 
+          + " group by pre-aggregates");
+    }
+  }
+  
   @Override
   public void downsample(final long interval, final Aggregator downsampler,
       final FillPolicy fill_policy) {
@@ -619,6 +770,7 @@ final class TsdbQuery implements Query {
     }
     
     row_key_literals = new ByteMap<byte[][]>();
+    row_key_exclusions = new ByteMap<byte[][]>();
     final int expansion_limit = tsdb.getConfig().getInt(
         "tsd.query.filter.expansion_limit");
     
@@ -634,6 +786,7 @@ final class TsdbQuery implements Query {
       // sorted!
       final ByteMap<Void> literals = new ByteMap<Void>();
       final List<TagVFilter> literal_filters = new ArrayList<TagVFilter>();
+      final ByteMap<Void> exclusions = new ByteMap<Void>();
       TagVFilter current = null;
       do { // yeah, I'm breakin out the do!!!
         current = current_iterator.next();
@@ -650,6 +803,12 @@ final class TsdbQuery implements Query {
             literals.put(uid, null);
           }
           literal_filters.add(current);
+        } else if (current instanceof TagVNotLiteralOrFilter && 
+            ((TagVNotLiteralOrFilter) current).getExcludedTagVUids() != null) {
+          for (final byte[] uid : 
+              ((TagVNotLiteralOrFilter) current).getExcludedTagVUids()) {
+            exclusions.put(uid, null);
+          }
         }
 
         if (next != null && Bytes.memcmp(tagk, next.getTagkBytes()) != 0) {
@@ -666,6 +825,14 @@ final class TsdbQuery implements Query {
         group_bys.add(current.getTagkBytes());
       }
       
+      // excluded values are skipped by the row key filter in addition to the
+      // literals, the filters still run after the scan but without lookups
+      if (exclusions.size() > 0) {
+        final byte[][] values = new byte[exclusions.size()][];
+        exclusions.keySet().toArray(values);
+        row_key_exclusions.put(current.getTagkBytes(), values);
+      }
+      
       if (literals.size() > 0) {
         if (literals.size() + row_key_literals_count > expansion_limit) {
           LOG.debug("Skipping literals for " + current.getTagk() + 
@@ -677,8 +844,22 @@ final class TsdbQuery implements Query {
           row_key_literals.put(current.getTagkBytes(), values);
           row_key_literals_count += values.length;
           
-          for (final TagVFilter filter : literal_filters) {
-            filter.setPostScan(false);
+          // the row key matches the union of the values so an expanded 
+          // pattern sharing the tag key with other filters still has to be
+          // checked after the scan
+          boolean exact = true;
+          if (literal_filters.size() > 1) {
+            for (final TagVFilter filter : literal_filters) {
+              if (!(filter instanceof TagVLiteralOrFilter)) {
+                exact = false;
+                break;
+              }
+            }
+          }
+          if (exact) {
+            for (final TagVFilter filter : literal_filters) {
+              filter.setPostScan(false);
+            }
           }
         }
       } else {
@@ -739,8 +920,231 @@ final class TsdbQuery implements Query {
   
   @Override
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
+    return admitAsync();
+  }
+  
+  /**
+   * Runs the series and size limit checks then schedules the query. Both 
+   * regular and histogram queries go through here so that they're subject
+   * to the same limits, scheduling and cancellation.
+   * @return The results or a {@link QueryException} if the query was too big.
+   */
+  private Deferred<DataPoints[]> admitAsync() {
+    final CardinalityEstimator cardinality = tsdb.getCardinalityEstimator();
+    final long max_series = tsdb.getQueryByteLimits().getDefaultSeriesLimit();
+    final boolean estimate_size = 
+        tsdb.getConfig().getBoolean("tsd.query.limits.estimate.enable") && 
+        (max_bytes > 0 || max_data_points > 0);
+    if (cardinality != null && (max_series > 0 || estimate_size) && 
+        tsdb.getConfig().getBoolean("tsd.query.cardinality.enable")) {
+      
+      /** Rejects the query before it's scheduled if it's too big. The
+       * sketches count series over all time rather than the query's range so
+       * estimates over the limit are only logged. */
+      class SeriesLimitCB implements Callback<Deferred<DataPoints[]>, Long> {
+        /** Whether the count is exact, i.e. from the listed TSUIDs */
+        private final boolean exact;
+        
+        /** @param exact Whether the count is exact */
+        SeriesLimitCB(final boolean exact) {
+          this.exact = exact;
+        }
+        
+        @Override
+        public Deferred<DataPoints[]> call(final Long series) {
+          if (query_stats != null) {
+            query_stats.addStat(query_index, QueryStat.ESTIMATED_SERIES, 
+                series);
+          }
+          if (max_series > 0 && series > max_series) {
+            if (exact) {
+              return Deferred.fromError(new QueryException(
+                  HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+                  "Sorry, your query matches " + series + " time series, "
+                  + "more than our limit of " + max_series 
+                  + ". Please try filtering using more tags."));
+            }
+            LOG.warn("Query " + TsdbQuery.this + " is estimated to match " 
+                + series + " time series over all time, more than the limit "
+                + "of " + max_series + ". Not enforced as the estimate isn't "
+                + "limited to the query's time range.");
+          }
+          return checkSizeAndSchedule(estimate_size, series);
+        }
+        @Override
+        public String toString() {
+          return "Series limit check for " + TsdbQuery.this;
+        }
+      }
+      
+      if (tsuids != null && !tsuids.isEmpty()) {
+        // the series are known up front and the metric isn't resolved yet
+        return new SeriesLimitCB(true).call((long) tsuids.size());
+      }
+      return cardinality.estimateSeries(metric, row_key_literals)
+          .addCallbackDeferring(new SeriesLimitCB(false));
+    }
+    return checkSizeAndSchedule(estimate_size, -1);
+  }
+  
+  /**
+   * Rejects the query if it's estimated to exceed the byte or data point 
+   * limits, otherwise schedules it.
+   * @param estimate_size Whether or not to estimate the size.
+   * @param estimated_series The estimated number of series from the 
+   * {@link CardinalityEstimator} or -1 if not available.
+   * @return The results or a {@link QueryException} if the query was too big.
+   */
+  private Deferred<DataPoints[]> checkSizeAndSchedule(
+      final boolean estimate_size, final long estimated_series) {
+    if (estimate_size) {
+      final QueryException e = checkEstimatedSize(estimated_series);
+      if (e != null) {
+        return Deferred.fromError(e);
+      }
+    }
+    return schedule();
+  }
+  
+  /**
+   * Predicts the bytes and data points the query will fetch via the 
+   * {@link QuerySizeEstimator}. The series count comes from the TSUIDs, the
+   * cardinality estimate, the literal filter expansion or, for unfiltered 
+   * queries, the learned row density, in that order. Not every series has a
+   * row in every span so the rows per span are capped at the metric's 
+   * learned density. The cardinality estimate covers all time so without a
+   * density it can't be applied to the query's range and nothing is 
+   * predicted. Queries are only rejected if the estimate is over the limit
+   * by the configured margin as the estimate can be off and the scanners 
+   * enforce the limits anyway.
+   * @param estimated_series The estimated number of series from the 
+   * {@link CardinalityEstimator} or -1 if not available.
+   * @return An exception to return if the query is too big, null otherwise.
+   */
+  private QueryException checkEstimatedSize(final long estimated_series) {
+    if (delete || pre_aggregate || RollupQuery.isValidQuery(rollup_query)) {
+      // row sizes are learned from raw data only
+      return null;
+    }
+    
+    byte[] metric_uid = metric;
+    long series = -1;
+    boolean all_time = false;
+    if (tsuids != null && !tsuids.isEmpty()) {
+      series = tsuids.size();
+      // the metric isn't set from the TSUIDs until the scanner is built
+      metric_uid = UniqueId.stringToUid(
+          tsuids.get(0).substring(0, tsdb.metrics.width() * 2));
+    } else if (estimated_series >= 0) {
+      series = estimated_series;
+      all_time = true;
+    } else if (filters == null || filters.isEmpty()) {
+      final Double density = QueryPlanner.getLearnedRowsPerSpan(metric);
+      if (density != null) {
+        series = (long) Math.ceil(density);
+      }
+    } else if (explicit_tags && row_key_literals != null && 
+        !row_key_literals.isEmpty()) {
+      series = 1;
+      for (final TagVFilter filter : filters) {
+        if (filter.postScan()) {
+          return null;
+        }
+      }
+      for (final Map.Entry<byte[], byte[][]> entry : row_key_literals) {
+        if (entry.getValue() == null || entry.getValue().length < 1) {
+          return null;
+        }
+        series *= entry.getValue().length;
+      }
+    }
+    
+    if (series < 0) {
+      return null;
+    }
+    
+    final Double learned = QueryPlanner.getLearnedRowsPerSpan(metric_uid);
+    if (learned == null && all_time) {
+      return null;
+    }
+    final double rows_per_span = learned == null ? series : 
+      Math.min(series, learned);
+    final QuerySizeEstimator.Estimate estimate = QuerySizeEstimator.estimate(
+        metric_uid, series, rows_per_span, getRowSpans());
+    if (estimate == null) {
+      return null;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Estimated size of query " + this + ": " + estimate);
+    }
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.ESTIMATED_BYTES, 
+          estimate.getBytes());
+      query_stats.addStat(query_index, QueryStat.ESTIMATED_DATA_POINTS, 
+          estimate.getDataPoints());
+    }
+    
+    final double margin = 
+        tsdb.getConfig().getDouble("tsd.query.limits.estimate.margin");
+    if (max_bytes > 0 && estimate.getBytes() > max_bytes * margin) {
+      return new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          "Sorry, your query is estimated to fetch " + estimate.getBytes() 
+          + " bytes from " + estimate.getSeries() + " time series, more than "
+          + "our maximum amount of " + (max_bytes / 1024 / 1024) + "MB from "
+          + "storage. Please try filtering using more tags or decrease your "
+          + "time range.");
+    }
+    if (max_data_points > 0 && 
+        estimate.getDataPoints() > max_data_points * margin) {
+      return new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          "Sorry, your query is estimated to fetch " 
+          + estimate.getDataPoints() + " data points from " 
+          + estimate.getSeries() + " time series, more than our limit of " 
+          + max_data_points + " data points. Please try filtering using more "
+          + "tags or decrease your time range.");
+    }
+    return null;
+  }
+  
+  /** @return The results via the {@link QueryScheduler} if enabled. */
+  private Deferred<DataPoints[]> schedule() {
+    final QueryScheduler scheduler = tsdb.getQueryScheduler();
+    if (scheduler != null) {
+      return scheduler.schedule(this);
+    }
+    return executeAsync();
+  }
+  
+  /**
+   * Fetches and aggregates the data right away, bypassing the
+   * {@link QueryScheduler}. Called by the scheduler once the query holds a
+   * slot.
+   * @return A deferred resolving to the query results.
+   * @since 2.4
+   */
+  Deferred<DataPoints[]> executeAsync() throws HBaseException {
     Deferred<DataPoints[]> result = null;
-    if (use_multi_gets && override_multi_get) {
+    if (isCancelled()) {
+      return Deferred.fromError(query_stats.getCancellationToken()
+          .newException());
+    }
+    if (isHistogramQuery()) {
+      return executeHistogramAsync();
+    }
+    stitch_time = planRollupStitch();
+    final boolean use_tag_index = useTagIndex();
+    used_tag_index = false;
+    query_plan = use_tag_index || stitch_time > 0 ? null : planQuery();
+    if (use_tag_index) {
+      result = findSpansWithTagIndex()
+          .addCallback(new GroupByAndAggregateCB());
+    } else if (stitch_time > 0) {
+      result = findStitchedSpans(stitch_time)
+          .addCallback(new GroupByAndAggregateCB());
+    } else if (query_plan != null) {
+      result = findSpansWithPlan(query_plan)
+          .addCallback(new GroupByAndAggregateCB());
+    } else if (use_multi_gets && override_multi_get) {
       result = this.findSpansWithMultiGetter().addCallback(new GroupByAndAggregateCB());
     } else {
       result = findSpans().addCallback(new GroupByAndAggregateCB());
@@ -749,9 +1153,29 @@ final class TsdbQuery implements Query {
     if (rollup_usage != null && rollup_usage.fallback()) {
       result.addCallback(new FallbackRollupOnEmptyResult());
     }
+    if (groupby_filter != null) {
+      result.addCallback(new StripGroupByTagCB());
+    }
     
     return result;
   }
+  
+  /**
+   * Drops the aggregate tag from the results of a query that was routed to
+   * the group by pre-aggregates so they look the same as the raw results.
+   */
+  private class StripGroupByTagCB implements 
+    Callback<DataPoints[], DataPoints[]> {
+    @Override
+    public DataPoints[] call(final DataPoints[] results) throws Exception {
+      for (final DataPoints dps : results) {
+        if (dps instanceof SpanGroup) {
+          ((SpanGroup) dps).excludeTagk(groupby_filter.getTagkBytes());
+        }
+      }
+      return results;
+    }
+  }
 
   @Override
   public Deferred<DataPoints[]> runHistogramAsync() throws HBaseException {
@@ -759,13 +1183,36 @@ final class TsdbQuery implements Query {
       throw new RuntimeException("Should never be here");
     }
     
+    final String cache_key = histogramCacheKey();
+    if (cache_key != null) {
+      final List<CachedHistogramDataPoints> cached = 
+          histogram_cache.get(cache_key);
+      if (cached != null) {
+        final List<CachedHistogramDataPoints> groups = 
+            new ArrayList<CachedHistogramDataPoints>(cached.size());
+        for (final CachedHistogramDataPoints group : cached) {
+          groups.add(group.forQuery(query_index));
+        }
+        return Deferred.fromResult(adaptHistograms(groups));
+      }
+    }
+    return admitAsync();
+  }
+  
+  /**
+   * Fetches, merges and adapts the histograms right away. Called via 
+   * {@link #executeAsync()} once the query is admitted.
+   * @return A deferred resolving to the query results.
+   */
+  private Deferred<DataPoints[]> executeHistogramAsync() throws HBaseException {
+    final String cache_key = histogramCacheKey();
     Deferred<DataPoints[]> result = null;
     if (use_multi_gets && override_multi_get) {
       result = findHistogramSpansWithMultiGetter()
-          .addCallback(new HistogramGroupByAndAggregateCB());
+          .addCallback(new HistogramGroupByAndAggregateCB(cache_key));
     } else {
       result = findHistogramSpans()
-          .addCallback(new HistogramGroupByAndAggregateCB());
+          .addCallback(new HistogramGroupByAndAggregateCB(cache_key));
     }
         
     return result;
@@ -796,21 +1243,7 @@ final class TsdbQuery implements Query {
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(
           (short)(Const.SALT_WIDTH() + metric_width)));
-    
-    // Copy only the filters that should trigger a tag resolution. If this list
-    // is empty due to literals or a wildcard star, then we'll save a TON of
-    // UID lookups
-    final List<TagVFilter> scanner_filters;
-    if (filters != null) {   
-      scanner_filters = new ArrayList<TagVFilter>(filters.size());
-      for (final TagVFilter filter : filters) {
-        if (filter.postScan()) {
-          scanner_filters.add(filter);
-        }
-      }
-    } else {
-      scanner_filters = null;
-    }
+    final List<TagVFilter> scanner_filters = postScanFilters();
     
     if (Const.SALT_WIDTH() > 0) {
       final List<Scanner> scanners = new ArrayList<Scanner>(Const.SALT_BUCKETS());
@@ -818,19 +1251,197 @@ final class TsdbQuery implements Query {
         scanners.add(getScanner(i));
       }
       scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
-          delete, rollup_query, query_stats, query_index, null, 
-          max_bytes, max_data_points).scan();
+      return pushDownDownsampler(new SaltScanner(tsdb, metric, scanners, 
+          spans, scanner_filters, delete, rollup_query, query_stats, 
+          query_index, null, max_bytes, max_data_points)).scan();
     } else {
       final List<Scanner> scanners = new ArrayList<Scanner>(1);
       scanners.add(getScanner(0));
       scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
-          delete, rollup_query, query_stats, query_index, null, max_bytes, 
-          max_data_points).scan();
+      return pushDownDownsampler(new SaltScanner(tsdb, metric, scanners, 
+          spans, scanner_filters, delete, rollup_query, query_stats, 
+          query_index, null, max_bytes, max_data_points)).scan();
     }
   }
   
+  /**
+   * Copies only the filters that should trigger a tag resolution. If this 
+   * list is empty due to literals or a wildcard star, then we'll save a TON 
+   * of UID lookups.
+   * @return The filters to evaluate after the scan, null if there aren't any
+   * filters.
+   */
+  private List<TagVFilter> postScanFilters() {
+    if (filters == null) {
+      return null;
+    }
+    final List<TagVFilter> scanner_filters = 
+        new ArrayList<TagVFilter>(filters.size());
+    for (final TagVFilter filter : filters) {
+      if (filter.postScan()) {
+        scanner_filters.add(filter);
+      }
+    }
+    return scanner_filters;
+  }
+  
+  /**
+   * Decides whether a rollup query should read its most recent data from the
+   * raw table. Rollups for a window are assumed to be written 
+   * {@code tsd.rollups.stitch.lag} seconds after it closes, so the query is
+   * split at the end of the last window written by then. The split is moved
+   * back to a raw row boundary so that the raw scan doesn't return data that
+   * is also covered by the rollups. If the query doesn't reach the split it's
+   * left alone and if it starts after the split it's converted to a raw 
+   * query.
+   * @return The split time in seconds or 0 if the query isn't stitched.
+   */
+  private long planRollupStitch() {
+    if (!stitch_rollups || delete || !RollupQuery.isValidQuery(rollup_query)) {
+      return 0;
+    }
+    final RollupInterval interval = rollup_query.getRollupInterval();
+    long split = RollupWindow.windowStart(
+        Math.max(0, DateTime.currentTimeMillis() / 1000 - stitch_lag), 
+        interval);
+    while (split > 0 && split % Const.MAX_TIMESPAN != 0) {
+      split = RollupWindow.windowStart(split - 1, interval);
+    }
+    
+    long start = getStartTime();
+    if ((start & Const.SECOND_MASK) != 0L) {
+      start /= 1000L;
+    }
+    long end = getEndTime();
+    if ((end & Const.SECOND_MASK) != 0L) {
+      end /= 1000L;
+    }
+    if (end < split) {
+      return 0;
+    }
+    
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.ROLLUP_INTERVAL, 
+          interval.getIntervalSeconds());
+      query_stats.addStat(query_index, QueryStat.ROLLUP_SPLIT_TIME, split);
+    }
+    if (split <= start) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("No rollups written for the range of " + this 
+            + " yet, reading raw data from " + split);
+      }
+      transformRollupQueryToDownSampler();
+      return 0;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Stitching " + interval.getInterval() + " rollups with raw "
+          + "data from " + split + " for " + this);
+    }
+    return split;
+  }
+  
+  /**
+   * Scans the rollup table up to the split time and the raw table from there
+   * on, then appends the raw rows of each series to its rolled up rows so 
+   * that they're read as one timeline. Raw values count as a single value 
+   * for averages.
+   * @param split The split time in seconds from {@link #planRollupStitch}.
+   * @return A map from HBase row key to the {@link Span} for that row key.
+   * @throws HBaseException if there was a problem communicating with HBase.
+   */
+  private Deferred<TreeMap<byte[], Span>> findStitchedSpans(final long split) 
+      throws HBaseException {
+    final List<TagVFilter> scanner_filters = postScanFilters();
+    final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+    final long rollup_end = RollupUtils.getRollupBasetime(split - 1, 
+        rollup_query.getRollupInterval()) + 1;
+    final long raw_end = end_time == UNSET ? -1 : getScanEndTimeSeconds(null);
+    final List<Scanner> rollup_scanners = new ArrayList<Scanner>(buckets);
+    final List<Scanner> raw_scanners = new ArrayList<Scanner>(buckets);
+    for (int i = 0; i < buckets; i++) {
+      rollup_scanners.add(getScanner(i, rollup_query, 
+          getScanStartTimeSeconds(), rollup_end));
+      raw_scanners.add(getScanner(i, null, split, raw_end));
+    }
+    
+    scan_start_time = DateTime.nanoTime();
+    final SaltScanner rollups = new SaltScanner(tsdb, metric, rollup_scanners, 
+        newSpanMap(), scanner_filters, delete, rollup_query, query_stats, 
+        query_index, null, max_bytes, max_data_points);
+    rollups.setRollupCutoff(split);
+    final SaltScanner raw = new SaltScanner(tsdb, metric, raw_scanners, 
+        newSpanMap(), scanner_filters, delete, null, query_stats, query_index, 
+        null, max_bytes, max_data_points);
+    // both halves read against one budget
+    final AtomicLong bytes_fetched = new AtomicLong();
+    final AtomicLong data_points_fetched = new AtomicLong();
+    rollups.shareLimits(bytes_fetched, data_points_fetched);
+    raw.shareLimits(bytes_fetched, data_points_fetched);
+    
+    /** Appends the raw tail of each series to its rolled up span. */
+    class StitchCB implements Callback<TreeMap<byte[], Span>, 
+        ArrayList<TreeMap<byte[], Span>>> {
+      @Override
+      public TreeMap<byte[], Span> call(
+          final ArrayList<TreeMap<byte[], Span>> results) throws Exception {
+        final TreeMap<byte[], Span> spans = results.get(0);
+        final TreeMap<byte[], Span> tail = results.get(1);
+        for (final Map.Entry<byte[], Span> entry : tail.entrySet()) {
+          final Span span = spans.get(entry.getKey());
+          if (span == null) {
+            spans.put(entry.getKey(), entry.getValue());
+          } else {
+            span.appendRows(entry.getValue());
+          }
+        }
+        if (query_stats != null) {
+          query_stats.addStat(query_index, QueryStat.RAW_TAIL_SERIES, 
+              tail.size());
+        }
+        return spans;
+      }
+    }
+    
+    /** Unwraps the group exception so callers see the root cause. */
+    class ErrorCB implements Callback<Exception, Exception> {
+      @Override
+      public Exception call(final Exception e) throws Exception {
+        if (e instanceof DeferredGroupException) {
+          final Throwable cause = Exceptions.getCause(
+              (DeferredGroupException) e);
+          if (cause instanceof Exception) {
+            return (Exception) cause;
+          }
+        }
+        return e;
+      }
+    }
+    
+    final List<Deferred<TreeMap<byte[], Span>>> deferreds = 
+        new ArrayList<Deferred<TreeMap<byte[], Span>>>(2);
+    deferreds.add(rollups.scan());
+    deferreds.add(raw.scan());
+    return Deferred.groupInOrder(deferreds)
+        .addCallbacks(new StitchCB(), new ErrorCB());
+  }
+  
+  /**
+   * Has the scanner downsample the rows in storage if a 
+   * {@link DownsamplePushdown} plugin is enabled and can compute the 
+   * downsampler. Rollups and deletes always fetch the stored values.
+   * @param scanner The scanner to configure before scanning.
+   * @return The scanner.
+   */
+  private SaltScanner pushDownDownsampler(final SaltScanner scanner) {
+    final DownsamplePushdown pushdown = tsdb.getDownsamplePushdown();
+    if (pushdown != null && !delete && 
+        !RollupQuery.isValidQuery(rollup_query) && 
+        pushdown.canPushDown(downsampler)) {
+      scanner.setDownsamplePushdown(pushdown, downsampler);
+    }
+    return scanner;
+  }
+  
   private Deferred<TreeMap<byte[], Span>> findSpansWithMultiGetter() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
@@ -844,6 +1455,288 @@ final class TsdbQuery implements Query {
         false, search_query_failure).fetch();
   }
   
+  /**
+   * Determines if the series can be resolved via the {@link TagIndex}. That
+   * requires the index to be enabled for queries and every filter to be 
+   * satisfied by literal row key values so that no post-scan filtering is 
+   * necessary. The index only holds raw series so pre-aggregated and 
+   * rollup queries always scan.
+   * @return True if the tag index should be consulted.
+   */
+  private boolean useTagIndex() {
+    if (tsdb.getTagIndex() == null || 
+        !tsdb.getConfig().getBoolean("tsd.query.tag_index.enable") ||
+        delete || pre_aggregate || RollupQuery.isValidQuery(rollup_query) ||
+        (tsuids != null && !tsuids.isEmpty()) ||
+        filters == null || filters.isEmpty() || 
+        row_key_literals == null || row_key_literals.isEmpty()) {
+      return false;
+    }
+    for (final TagVFilter filter : filters) {
+      if (filter.postScan()) {
+        return false;
+      }
+    }
+    for (final Map.Entry<byte[], byte[][]> entry : row_key_literals) {
+      if (entry.getValue() == null || entry.getValue().length < 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Resolves the matching series from the {@link TagIndex} and fetches them
+   * with gets. If the index returned too many series we fall back to the 
+   * planner or a scan.
+   * @return A map from HBase row key to the {@link Span} for that row key.
+   */
+  private Deferred<TreeMap<byte[], Span>> findSpansWithTagIndex() {
+    final int tag_width = TSDB.tagk_width() + TSDB.tagv_width();
+    
+    /** Turns the series into gets. */
+    class IndexCB implements Callback<Deferred<TreeMap<byte[], Span>>, 
+        List<byte[]>> {
+      @Override
+      public Deferred<TreeMap<byte[], Span>> call(final List<byte[]> series)
+          throws Exception {
+        if (series == null) {
+          LOG.debug("Too many series in the tag index for " + TsdbQuery.this 
+              + ", falling back to scanning");
+          query_plan = planQuery();
+          return query_plan != null ? findSpansWithPlan(query_plan) : 
+            findSpans();
+        }
+        
+        used_tag_index = true;
+        final List<ByteMap<byte[][]>> row_keys = 
+            new ArrayList<ByteMap<byte[][]>>(series.size());
+        for (final byte[] tags : series) {
+          if (explicit_tags && 
+              tags.length / tag_width != row_key_literals.size()) {
+            continue;
+          }
+          row_keys.add(TagIndex.tagsToMap(tags));
+        }
+        if (query_stats != null) {
+          query_stats.addStat(query_index, QueryStat.TAG_INDEX_SERIES, 
+              row_keys.size());
+        }
+        scan_start_time = DateTime.nanoTime();
+        if (row_keys.isEmpty()) {
+          return Deferred.fromResult(newSpanMap());
+        }
+        return findPlannedSpansWithMultiGetter(row_keys);
+      }
+    }
+    
+    return tsdb.getTagIndex().lookup(metric, row_key_literals, 
+        getScanStartTimeSeconds(), getScanEndTimeSeconds())
+        .addCallbackDeferring(new IndexCB());
+  }
+  
+  /**
+   * Asks the {@link QueryPlanner} how to fetch the data if the planner is 
+   * enabled and the query can be served by either scans or gets. That is the
+   * case when explicit tags were requested and every tag key has literal 
+   * values that we can push into the row keys.
+   * @return A plan or null if the query is not eligible for planning.
+   */
+  private QueryPlanner.Plan planQuery() {
+    if (!enable_planner || !override_multi_get || delete || 
+        !explicit_tags || (tsuids != null && !tsuids.isEmpty()) || 
+        filters == null || filters.isEmpty() || 
+        row_key_literals == null || row_key_literals.isEmpty()) {
+      return null;
+    }
+    for (final TagVFilter filter : filters) {
+      if (filter.postScan()) {
+        return null;
+      }
+    }
+    for (final Map.Entry<byte[], byte[][]> entry : row_key_literals) {
+      if (entry.getValue() == null || entry.getValue().length < 1) {
+        return null;
+      }
+    }
+    
+    final QueryPlanner.Plan plan = new QueryPlanner(tsdb.getConfig())
+        .plan(metric, row_key_literals, getRowSpans());
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Planned query " + this + " with " + plan);
+    }
+    if (query_stats != null) {
+      final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+      query_stats.addStat(query_index, QueryStat.QUERY_PLAN, 
+          plan.getStrategy().ordinal());
+      query_stats.addStat(query_index, QueryStat.PLANNED_MULTI_GET_BUCKETS, 
+          plan.getMultiGetBucketCount());
+      query_stats.addStat(query_index, QueryStat.PLANNED_SCAN_BUCKETS, 
+          buckets - plan.getMultiGetBucketCount());
+      query_stats.addStat(query_index, QueryStat.ESTIMATED_ROWS, 
+          plan.getEstimatedScanRows() + plan.getEstimatedGetRows());
+    }
+    return plan;
+  }
+  
+  /**
+   * Executes the plan computed by the {@link QueryPlanner}, scanning, getting
+   * or combining both across the salt buckets.
+   * @param plan The non-null plan to execute.
+   * @return A map from HBase row key to the {@link Span} for that row key.
+   * @throws HBaseException if there was a problem communicating with HBase.
+   */
+  private Deferred<TreeMap<byte[], Span>> findSpansWithPlan(
+      final QueryPlanner.Plan plan) throws HBaseException {
+    switch (plan.getStrategy()) {
+    case MULTI_GET:
+      scan_start_time = DateTime.nanoTime();
+      return findPlannedSpansWithMultiGetter(plan.getRowKeys());
+    case HYBRID:
+      final List<Scanner> scanners = 
+          new ArrayList<Scanner>(Const.SALT_BUCKETS());
+      for (int i = 0; i < Const.SALT_BUCKETS(); i++) {
+        if (!plan.isMultiGetBucket(i)) {
+          scanners.add(getScanner(i));
+        }
+      }
+      scan_start_time = DateTime.nanoTime();
+      final SaltScanner scanner = pushDownDownsampler(
+          new SaltScanner(tsdb, metric, scanners, newSpanMap(), null, delete, 
+              rollup_query, query_stats, query_index, null, max_bytes, 
+              max_data_points, true));
+      if (plan.getRowKeys() == null || plan.getRowKeys().isEmpty()) {
+        // the remaining buckets didn't have any candidate series.
+        return scanner.scan();
+      }
+      
+      // the scanners and gets count against the same limits
+      final AtomicLong bytes_fetched = new AtomicLong();
+      final AtomicLong data_points_fetched = new AtomicLong();
+      scanner.shareLimits(bytes_fetched, data_points_fetched);
+      final MultiGetQuery getter = newPlannedMultiGetter(plan.getRowKeys());
+      getter.shareLimits(bytes_fetched, data_points_fetched);
+      
+      /** Merges the scanned and fetched spans. Row keys are disjoint as each
+       * series lives in exactly one salt bucket. */
+      class MergeCB implements Callback<TreeMap<byte[], Span>, 
+          ArrayList<TreeMap<byte[], Span>>> {
+        @Override
+        public TreeMap<byte[], Span> call(
+            final ArrayList<TreeMap<byte[], Span>> results) throws Exception {
+          final TreeMap<byte[], Span> spans = newSpanMap();
+          for (final TreeMap<byte[], Span> result : results) {
+            if (result != null) {
+              spans.putAll(result);
+            }
+          }
+          return spans;
+        }
+      }
+      
+      /** Unwraps the group exception so callers see the root cause. */
+      class ErrorCB implements Callback<Exception, Exception> {
+        @Override
+        public Exception call(final Exception e) throws Exception {
+          if (e instanceof DeferredGroupException) {
+            final Throwable cause = Exceptions.getCause(
+                (DeferredGroupException) e);
+            if (cause instanceof Exception) {
+              return (Exception) cause;
+            }
+          }
+          return e;
+        }
+      }
+      
+      final List<Deferred<TreeMap<byte[], Span>>> deferreds = 
+          new ArrayList<Deferred<TreeMap<byte[], Span>>>(2);
+      deferreds.add(scanner.scan());
+      deferreds.add(getter.fetch());
+      return Deferred.groupInOrder(deferreds)
+          .addCallbacks(new MergeCB(), new ErrorCB());
+    default:
+      return findSpans();
+    }
+  }
+  
+  /**
+   * Fetches the given series with gets.
+   * @param row_keys The single valued tag maps, one per series.
+   * @return A map from HBase row key to the {@link Span} for that row key.
+   */
+  private Deferred<TreeMap<byte[], Span>> findPlannedSpansWithMultiGetter(
+      final List<ByteMap<byte[][]>> row_keys) {
+    return newPlannedMultiGetter(row_keys).fetch();
+  }
+  
+  /**
+   * Creates the multi getter for the given series.
+   * @param row_keys The single valued tag maps, one per series.
+   * @return A multi getter that hasn't been started yet.
+   */
+  private MultiGetQuery newPlannedMultiGetter(
+      final List<ByteMap<byte[][]>> row_keys) {
+    return new MultiGetQuery(tsdb, this, metric, row_keys, 
+        getScanStartTimeSeconds(), getScanEndTimeSeconds(),
+        tableToBeScanned(), newSpanMap(), null, 0, rollup_query, query_stats, 
+        query_index, max_bytes, false, false);
+  }
+  
+  /** @return An empty span map keyed on the salted row key with the timestamp 
+   * ignored. */
+  private TreeMap<byte[], Span> newSpanMap() {
+    return new TreeMap<byte[], Span>(new SpanCmp(
+        (short) (Const.SALT_WIDTH() + tsdb.metrics.width())));
+  }
+  
+  /** @return Whether or not the query was cancelled by the caller. */
+  private boolean isCancelled() {
+    return query_stats != null && 
+        query_stats.getCancellationToken().isCancelled();
+  }
+
+  /**
+   * Records the actual number of rows fetched for a planned query and, for 
+   * unfiltered scans, teaches the planner the metric's row density.
+   * @param spans The spans fetched from storage, may be null.
+   */
+  private void recordRowsFetched(final TreeMap<byte[], Span> spans) {
+    final boolean learn = enable_planner && query_plan == null && 
+        stitch_time == 0 && !used_tag_index && !pre_aggregate && !(use_multi_gets && override_multi_get) && 
+        (tsuids == null || tsuids.isEmpty()) && 
+        (filters == null || filters.isEmpty());
+    if (query_plan == null && !learn) {
+      return;
+    }
+    
+    long rows = 0;
+    if (spans != null) {
+      for (final Span span : spans.values()) {
+        rows += span.rows.size();
+      }
+    }
+    if (query_plan != null && query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.ACTUAL_ROWS, rows);
+    }
+    if (learn && rows > 0) {
+      QueryPlanner.recordRowsPerSpan(metric, rows, getRowSpans());
+    }
+  }
+  
+  /** @return The number of row base times covered by the scan range. */
+  private long getRowSpans() {
+    final long row_span;
+    if (RollupQuery.isValidQuery(rollup_query)) {
+      row_span = rollup_query.getRollupInterval().getIntervalSeconds() * 
+          rollup_query.getRollupInterval().getIntervals();
+    } else {
+      row_span = Const.MAX_TIMESPAN;
+    }
+    return ((getScanEndTimeSeconds() - getScanStartTimeSeconds()) / row_span) 
+        + 1;
+  }
+  
   /**
    * Finds all the {@link HistogramSpan}s that match this query.
    * This is what actually scans the HBase table and loads the data into
@@ -883,17 +1776,21 @@ final class TsdbQuery implements Query {
       for (int i = 0; i < Const.SALT_BUCKETS(); i++) {
         scanners.add(getScanner(i));
       }
-      scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, null, scanner_filters, 
-          delete, rollup_query, query_stats, query_index, histSpans, 
-          max_bytes, max_data_points).scanHistogram();
     } else {
       scanners = Lists.newArrayList(getScanner());
-      scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, null, scanner_filters, 
-          delete, rollup_query, query_stats, query_index, histSpans, 
-          max_bytes, max_data_points).scanHistogram();
     }
+    scan_start_time = DateTime.nanoTime();
+    final SaltScanner scanner = new SaltScanner(tsdb, metric, scanners, null, 
+        scanner_filters, delete, rollup_query, query_stats, query_index, 
+        histSpans, max_bytes, max_data_points);
+    if (lazy_histogram_decode) {
+      histogram_decode_stats = new HistogramDecodeStats(query_stats, 
+          query_index);
+      scanner.setLazyHistogramDecode(histogram_decode_stats);
+    } else {
+      histogram_decode_stats = null;
+    }
+    return scanner.scanHistogram();
   }
   
   private Deferred<TreeMap<byte[], HistogramSpan>> findHistogramSpansWithMultiGetter() throws HBaseException {
@@ -901,6 +1798,8 @@ final class TsdbQuery implements Query {
     // The key is a row key from HBase
     final TreeMap<byte[], HistogramSpan> histSpans = new TreeMap<byte[], HistogramSpan>(new SpanCmp(metric_width));
 
+    // multi-gets still decode each cell as it's fetched
+    histogram_decode_stats = null;
     scan_start_time = System.nanoTime();
     return new MultiGetQuery(tsdb, this, metric, row_key_literals_list, 
         getScanStartTimeSeconds(), getScanEndTimeSeconds(),
@@ -928,6 +1827,10 @@ final class TsdbQuery implements Query {
         query_stats.addStat(query_index, QueryStat.QUERY_SCAN_TIME, 
                 (System.nanoTime() - TsdbQuery.this.scan_start_time));
       }
+      if (isCancelled()) {
+        throw query_stats.getCancellationToken().newException();
+      }
+      recordRowsFetched(spans);
       
       if (spans == null || spans.size() <= 0) {
         if (query_stats != null) {
@@ -1049,6 +1952,12 @@ final class TsdbQuery implements Query {
    */
    private class HistogramGroupByAndAggregateCB implements 
      Callback<DataPoints[], TreeMap<byte[], HistogramSpan>>{
+     /** The key to cache the groups under, null if the query isn't cached. */
+     private final String cache_key;
+     
+     HistogramGroupByAndAggregateCB(final String cache_key) {
+       this.cache_key = cache_key;
+     }
 
      /**
      * Creates the {@link HistogramSpanGroup}s to form the final results of this query.
@@ -1062,6 +1971,9 @@ final class TsdbQuery implements Query {
          query_stats.addStat(query_index, QueryStat.QUERY_SCAN_TIME, 
                  (System.nanoTime() - TsdbQuery.this.scan_start_time));
        }
+       if (isCancelled()) {
+         throw query_stats.getCancellationToken().newException();
+       }
        
        final long group_build = System.nanoTime();
        if (spans == null || spans.size() <= 0) {
@@ -1079,7 +1991,8 @@ final class TsdbQuery implements Query {
 //         query_tags = null;
 //       }
        
-       final ArrayList<DataPoints> result_dp_groups = new ArrayList<DataPoints>();
+       final List<HistogramDataPoints> result_groups = 
+           new ArrayList<HistogramDataPoints>();
        // The raw aggregator skips group bys and ignores downsampling
        if (aggregator == Aggregators.NONE) {
          for (final HistogramSpan span : spans.values()) {
@@ -1094,31 +2007,12 @@ final class TsdbQuery implements Query {
                                                  query_index,
                                                  RollupQuery.isValidQuery(rollup_query),
                                                  query_tags);
+           group.setDecodeStats(histogram_decode_stats);
            group.add(span);
            
-           // create histogram data points to data points adaptor for each percentile calculation
-           if (null != percentiles && percentiles.size() > 0) {
-             List<DataPoints> percentile_datapoints_list = generateHistogramPercentileDataPoints(group);
-             if (null != percentile_datapoints_list && percentile_datapoints_list.size() > 0)
-               result_dp_groups.addAll(percentile_datapoints_list);
-           }
-           
-           
-           // create bucket metric 
-           if (show_histogram_buckets) {
-             List<DataPoints> bucket_datapoints_list = generateHistogramBucketDataPoints(group);
-             if (null != bucket_datapoints_list && bucket_datapoints_list.size() > 0) {
-               result_dp_groups.addAll(bucket_datapoints_list);
-             }
-           }
+           result_groups.add(group);
          } // end for
-         
-         int i = 0;
-         DataPoints[] result = new DataPoints[result_dp_groups.size()];
-         for (DataPoints item : result_dp_groups) {
-           result[i++] = item;
-         }
-         return result;
+         return cacheAndAdapt(result_groups);
        }
        
        if (group_bys == null) {
@@ -1135,32 +2029,14 @@ final class TsdbQuery implements Query {
                                                query_index,
                                                RollupQuery.isValidQuery(rollup_query),
                                                query_tags);
+         group.setDecodeStats(histogram_decode_stats);
          if (query_stats != null) {
            query_stats.addStat(query_index, QueryStat.GROUP_BY_TIME, 
                (System.nanoTime() - group_build));
          }
          
-         // create histogram data points to data points adaptor for each percentile calculation
-         if (null != percentiles && percentiles.size() > 0) {
-           List<DataPoints> percentile_datapoints_list = generateHistogramPercentileDataPoints(group);
-           if (null != percentile_datapoints_list && percentile_datapoints_list.size() > 0)
-             result_dp_groups.addAll(percentile_datapoints_list);
-         }
-         
-         // create bucket metric 
-         if (show_histogram_buckets) {
-           List<DataPoints> bucket_datapoints_list = generateHistogramBucketDataPoints(group);
-           if (null != bucket_datapoints_list && bucket_datapoints_list.size() > 0) {
-             result_dp_groups.addAll(bucket_datapoints_list);
-           }
-         }
-         
-         int i = 0;
-         DataPoints[] result = new DataPoints[result_dp_groups.size()];
-         for (DataPoints item : result_dp_groups) {
-           result[i++] = item;
-         }
-         return result;
+         result_groups.add(group);
+         return cacheAndAdapt(result_groups);
        }
    
        // Maps group value IDs to the SpanGroup for those values. Say we've
@@ -1212,6 +2088,7 @@ final class TsdbQuery implements Query {
                                              query_index,
                                              RollupQuery.isValidQuery(rollup_query),
                                              query_tags);
+           thegroup.setDecodeStats(histogram_decode_stats);
            
            // Copy the array because we're going to keep `group' and overwrite
            // its contents. So we want the collection to have an immutable copy.
@@ -1227,64 +2104,133 @@ final class TsdbQuery implements Query {
              (System.nanoTime() - group_build));
        }
        
-       
-       for (final Map.Entry<byte[], HistogramSpanGroup> entry : groups.entrySet()) {
-         // create histogram data points to data points adaptor for each percentile calculation
-         if (null != percentiles && percentiles.size() > 0) {
-           List<DataPoints> percentile_datapoints_list = generateHistogramPercentileDataPoints(entry.getValue());
-           if (null != percentile_datapoints_list && percentile_datapoints_list.size() > 0)
-             result_dp_groups.addAll(percentile_datapoints_list);
-         }
-         
-         // create bucket metric 
-         if (show_histogram_buckets) {
-           List<DataPoints> bucket_datapoints_list = generateHistogramBucketDataPoints(entry.getValue());
-           if (null != bucket_datapoints_list && bucket_datapoints_list.size() > 0) {
-             result_dp_groups.addAll(bucket_datapoints_list);
-           }
-         }
-       } // end for
-      
-       int i = 0;
-       DataPoints[] result = new DataPoints[result_dp_groups.size()];
-       for (DataPoints item : result_dp_groups) {
-         result[i++] = item;
-       }
-       return result;
+       result_groups.addAll(groups.values());
+       return cacheAndAdapt(result_groups);
      }
 
-    private List<DataPoints> generateHistogramPercentileDataPoints(final HistogramSpanGroup group) {
-      ArrayList<DataPoints> result_dp_groups = new ArrayList<DataPoints>();
-      for (final Float percentil : percentiles) {
-        final HistogramDataPointsToDataPointsAdaptor dp_adaptor = new HistogramDataPointsToDataPointsAdaptor(group,
-            percentil.floatValue());
-        result_dp_groups.add(dp_adaptor);
-      } // end for
-
-      return result_dp_groups;
-    }
-
-    private List<DataPoints> generateHistogramBucketDataPoints(final HistogramSpanGroup group) {
-      ArrayList<DataPoints> result_dp_groups = new ArrayList<DataPoints>();
-      try {
-        HistogramSeekableView seek_view = group.iterator();
-        if (seek_view.hasNext()) {
-          HistogramDataPoint hdp = seek_view.next();
-          Map<HistogramDataPoint.HistogramBucket, Long> buckets = hdp.getHistogramBucketsIfHas();
-          if (null != buckets) {
-            for (Map.Entry<HistogramDataPoint.HistogramBucket, Long> bucket : buckets.entrySet()) {
-              final HistogramBucketDataPointsAdaptor dp_bucket_adaptor = new HistogramBucketDataPointsAdaptor(group, bucket.getKey());
-              result_dp_groups.add(dp_bucket_adaptor);
-            } // end for
-          } // end if
+     /**
+      * Stores the groups in the histogram cache if the query is cacheable
+      * and adapts them to the requested percentiles and buckets.
+      * @param groups The groups built for this run.
+      * @return The data points to return.
+      */
+     private DataPoints[] cacheAndAdapt(
+         final List<HistogramDataPoints> groups) {
+       if (cache_key != null && !groups.isEmpty()) {
+         return adaptHistograms(histogram_cache.put(cache_key, groups));
+       }
+       return adaptHistograms(groups);
+     }
+   }
+  
+  /**
+   * Wraps each histogram group in an adaptor per requested percentile and,
+   * if asked for, per bucket.
+   * @param groups The merged groups.
+   * @return The data points to return.
+   */
+  private DataPoints[] adaptHistograms(
+      final List<? extends HistogramDataPoints> groups) {
+    final ArrayList<DataPoints> result_dp_groups = new ArrayList<DataPoints>();
+    for (final HistogramDataPoints group : groups) {
+      // create histogram data points to data points adaptor for each percentile calculation
+      if (null != percentiles && percentiles.size() > 0) {
+        List<DataPoints> percentile_datapoints_list = generateHistogramPercentileDataPoints(group);
+        if (null != percentile_datapoints_list && percentile_datapoints_list.size() > 0)
+          result_dp_groups.addAll(percentile_datapoints_list);
+      }
+      
+      // create bucket metric 
+      if (show_histogram_buckets) {
+        List<DataPoints> bucket_datapoints_list = generateHistogramBucketDataPoints(group);
+        if (null != bucket_datapoints_list && bucket_datapoints_list.size() > 0) {
+          result_dp_groups.addAll(bucket_datapoints_list);
         }
-      } catch (UnsupportedOperationException e) {
-        // Just Ignore
       }
+    } // end for
+    
+    int i = 0;
+    DataPoints[] result = new DataPoints[result_dp_groups.size()];
+    for (DataPoints item : result_dp_groups) {
+      result[i++] = item;
+    }
+    return result;
+  }
+
+  private List<DataPoints> generateHistogramPercentileDataPoints(final HistogramDataPoints group) {
+    ArrayList<DataPoints> result_dp_groups = new ArrayList<DataPoints>();
+    for (final Float percentil : percentiles) {
+      final HistogramDataPointsToDataPointsAdaptor dp_adaptor = new HistogramDataPointsToDataPointsAdaptor(group,
+          percentil.floatValue());
+      result_dp_groups.add(dp_adaptor);
+    } // end for
 
-      return result_dp_groups;
+    return result_dp_groups;
+  }
+
+  private List<DataPoints> generateHistogramBucketDataPoints(final HistogramDataPoints group) {
+    ArrayList<DataPoints> result_dp_groups = new ArrayList<DataPoints>();
+    try {
+      HistogramSeekableView seek_view = group.iterator();
+      if (seek_view.hasNext()) {
+        HistogramDataPoint hdp = seek_view.next();
+        Map<HistogramDataPoint.HistogramBucket, Long> buckets = hdp.getHistogramBucketsIfHas();
+        if (null != buckets) {
+          for (Map.Entry<HistogramDataPoint.HistogramBucket, Long> bucket : buckets.entrySet()) {
+            final HistogramBucketDataPointsAdaptor dp_bucket_adaptor = new HistogramBucketDataPointsAdaptor(group, bucket.getKey());
+            result_dp_groups.add(dp_bucket_adaptor);
+          } // end for
+        } // end if
+      }
+    } catch (UnsupportedOperationException e) {
+      // Just Ignore
     }
-   }
+
+    return result_dp_groups;
+  }
+  
+  /**
+   * Builds the key the merged histograms of this query are cached under.
+   * Everything that changes which cells are read or how they're merged is
+   * part of the key, the percentiles and buckets are not.
+   * @return The key or null if the cache is disabled or the query isn't
+   * cacheable because it has no explicit end time, ends in the future or
+   * deletes data.
+   */
+  @VisibleForTesting
+  String histogramCacheKey() {
+    if (histogram_cache == null || !explicit_end || delete) {
+      return null;
+    }
+    final long end = getEndTime();
+    final long end_ms = (end & Const.SECOND_MASK) == 0 ? end * 1000 : end;
+    if (end_ms > DateTime.currentTimeMillis()) {
+      return null;
+    }
+    final StringBuilder buf = new StringBuilder()
+        .append(metric == null ? "" : UniqueId.uidToString(metric))
+        .append('|').append(getStartTime())
+        .append('|').append(end)
+        .append('|').append(aggregator)
+        .append('|').append(downsampler)
+        .append('|').append(downsampler.getHistogramAggregation())
+        .append('|').append(explicit_tags);
+    if (RollupQuery.isValidQuery(rollup_query)) {
+      buf.append('|').append(rollup_query);
+    }
+    if (tsuids != null) {
+      buf.append('|').append(tsuids);
+    }
+    if (filters != null) {
+      for (final TagVFilter filter : filters) {
+        buf.append('|').append(filter.getType())
+           .append(':').append(filter.getTagk())
+           .append(':').append(filter.isGroupBy())
+           .append(':').append(filter.debugInfo());
+      }
+    }
+    return buf.toString();
+  }
   
   /**
    * Scan the tables again with the next best rollup match, on empty result set
@@ -1315,7 +2261,8 @@ final class TsdbQuery implements Query {
         //next best match and attach that to the rollup query
         if (rollup_usage == ROLLUP_USAGE.ROLLUP_FALLBACK_RAW) {
           transformRollupQueryToDownSampler();
-          return runAsync();
+          // we already hold a scheduler slot
+          return executeAsync();
         }
         else if (best_match_rollups != null && best_match_rollups.size() > 0) {
           RollupInterval interval = best_match_rollups.remove(0);
@@ -1342,7 +2289,7 @@ final class TsdbQuery implements Query {
             }
           }
           
-          return runAsync();
+          return executeAsync();
         }
         return Deferred.fromResult(NO_RESULT);
       }
@@ -1374,6 +2321,25 @@ final class TsdbQuery implements Query {
    * @return A scanner to use for fetching data points
    */
   protected Scanner getScanner(final int salt_bucket) throws HBaseException {
+    return getScanner(salt_bucket, rollup_query, getScanStartTimeSeconds(), 
+        end_time == UNSET
+        ? -1  // Will scan until the end (0xFFF...).
+        : getScanEndTimeSeconds());
+  }
+  
+  /**
+   * Returns a scanner over the given time range of the raw or a rollup table.
+   * @param salt_bucket The salt bucket to scan over when salting is enabled.
+   * @param rollup An optional rollup query to scan the rollup table for, 
+   * null to scan raw data.
+   * @param scan_start The start of the scan in seconds.
+   * @param scan_end The end of the scan in seconds or -1 to scan to the end 
+   * of the table.
+   * @return A scanner to use for fetching data points
+   * @since 2.4
+   */
+  private Scanner getScanner(final int salt_bucket, final RollupQuery rollup, 
+      final long scan_start, final long scan_end) throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     
     // set the metric UID based on the TSUIDs if given, or the metric UID
@@ -1383,7 +2349,7 @@ final class TsdbQuery implements Query {
       metric = UniqueId.stringToUid(metric_uid);
     }
     
-    final boolean is_rollup = RollupQuery.isValidQuery(rollup_query);
+    final boolean is_rollup = RollupQuery.isValidQuery(rollup);
     
     // We search at least one row before and one row after the start & end
     // time we've been given as it's quite likely that the exact timestamp
@@ -1392,16 +2358,14 @@ final class TsdbQuery implements Query {
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
     final Scanner scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
-        (int) getScanStartTimeSeconds(), end_time == UNSET
-        ? -1  // Will scan until the end (0xFFF...).
-        : (int) getScanEndTimeSeconds(), 
-        tableToBeScanned(), 
+        (int) scan_start, (int) scan_end, 
+        tableToBeScanned(rollup), 
         TSDB.FAMILY());
     if(tsdb.getConfig().use_otsdb_timestamp()) {
-      long stTime = (getScanStartTimeSeconds() * 1000);
-      long endTime = end_time == UNSET ? -1 : (getScanEndTimeSeconds() * 1000);
+      long stTime = (scan_start * 1000);
+      long endTime = scan_end < 0 ? -1 : (scan_end * 1000);
       if (tsdb.getConfig().get_date_tiered_compaction_start() <= stTime &&
-          rollup_query == null) {
+          rollup == null) {
         // TODO - we could set this for rollups but we also need to write
         // the rollup columns at the proper time.
         scanner.setTimeRange(stTime, endTime);
@@ -1419,35 +2383,40 @@ final class TsdbQuery implements Query {
       // Set the Scanners column qualifier pattern with rollup aggregator
       // HBase allows only a single filter so if we have a row key filter, keep
       // it. If not, then we can do this
-      if (!rollup_query.getRollupAgg().toString().equals("avg")) {
+      // packed columns hold every aggregate behind a bare offset qualifier.
+      // They're always matched so readers see them whether or not this TSD
+      // writes packed columns, e.g. while migrating.
+      if (!rollup.getRollupAgg().toString().equals("avg")) {
         if (existing != null) {
           final List<ScanFilter> filters = new ArrayList<ScanFilter>(2);
           filters.add(existing);
-          final List<ScanFilter> rollup_filters = new ArrayList<ScanFilter>(2);
+          final List<ScanFilter> rollup_filters = new ArrayList<ScanFilter>(3);
           rollup_filters.add(new QualifierFilter(CompareFilter.CompareOp.EQUAL,
-              new BinaryPrefixComparator(rollup_query.getRollupAgg().toString()
+              new BinaryPrefixComparator(rollup.getRollupAgg().toString()
                       .getBytes(Const.ASCII_CHARSET))));
           rollup_filters.add(new QualifierFilter(CompareFilter.CompareOp.EQUAL,
               new BinaryPrefixComparator(new byte[] { 
                   (byte) tsdb.getRollupConfig().getIdForAggregator(
-                      rollup_query.getRollupAgg().toString())
+                      rollup.getRollupAgg().toString())
               })));
+          rollup_filters.add(packedRollupQualifierFilter());
           filters.add(new FilterList(rollup_filters, Operator.MUST_PASS_ONE));
           scanner.setFilter(new FilterList(filters, Operator.MUST_PASS_ALL));
         } else {
-          final List<ScanFilter> filters = new ArrayList<ScanFilter>(2);
+          final List<ScanFilter> filters = new ArrayList<ScanFilter>(3);
           filters.add(new QualifierFilter(CompareFilter.CompareOp.EQUAL,
-              new BinaryPrefixComparator(rollup_query.getRollupAgg().toString()
+              new BinaryPrefixComparator(rollup.getRollupAgg().toString()
                   .getBytes(Const.ASCII_CHARSET))));
           filters.add(new QualifierFilter(CompareFilter.CompareOp.EQUAL,
               new BinaryPrefixComparator(new byte[] { 
                   (byte) tsdb.getRollupConfig().getIdForAggregator(
-                      rollup_query.getRollupAgg().toString())
+                      rollup.getRollupAgg().toString())
               })));
+          filters.add(packedRollupQualifierFilter());
           scanner.setFilter(new FilterList(filters, Operator.MUST_PASS_ONE));
         }
       } else {
-        final List<ScanFilter> filters = new ArrayList<ScanFilter>(4);
+        final List<ScanFilter> filters = new ArrayList<ScanFilter>(5);
         filters.add(new QualifierFilter(CompareFilter.CompareOp.EQUAL,
             new BinaryPrefixComparator("sum".getBytes())));
         filters.add(new QualifierFilter(CompareFilter.CompareOp.EQUAL,
@@ -1460,6 +2429,7 @@ final class TsdbQuery implements Query {
             new BinaryPrefixComparator(new byte[] { 
                 (byte) tsdb.getRollupConfig().getIdForAggregator("count")
             })));
+        filters.add(packedRollupQualifierFilter());
         
         if (existing != null) {
           final List<ScanFilter> combined = new ArrayList<ScanFilter>(2);
@@ -1473,6 +2443,18 @@ final class TsdbQuery implements Query {
     }
     return scanner;
   }
+  
+  /**
+   * @return A filter matching the qualifiers of packed rollup columns. They
+   * are just the offset so they can't be matched on an aggregator prefix.
+   * @since 2.4
+   */
+  private static ScanFilter packedRollupQualifierFilter() {
+    return new QualifierFilter(CompareFilter.CompareOp.EQUAL, 
+        new RegexStringComparator("(?s)\\A.{" 
+            + RollupUtils.PACKED_QUALIFIER_LENGTH + "}\\z", 
+            Const.ASCII_CHARSET));
+  }
 
   /**
    * Identify the table to be scanned based on the roll up and pre-aggregate 
@@ -1481,14 +2463,25 @@ final class TsdbQuery implements Query {
    * @since 2.4
    */
   private byte[] tableToBeScanned() {
+    return tableToBeScanned(rollup_query);
+  }
+  
+  /**
+   * Identify the table to be scanned for the given rollup query and the pre-
+   * aggregate query parameter
+   * @param rollup An optional rollup query, null for raw data.
+   * @return table name as byte array
+   * @since 2.4
+   */
+  private byte[] tableToBeScanned(final RollupQuery rollup) {
     final byte[] tableName;
     
-    if (RollupQuery.isValidQuery(rollup_query)) {
+    if (RollupQuery.isValidQuery(rollup)) {
       if (pre_aggregate) {
-        tableName= rollup_query.getRollupInterval().getGroupbyTable();
+        tableName= rollup.getRollupInterval().getGroupbyTable();
       }
       else {
-        tableName= rollup_query.getRollupInterval().getTemporalTable();
+        tableName= rollup.getRollupInterval().getTemporalTable();
       }
     }
     else if (pre_aggregate) {
@@ -1545,6 +2538,16 @@ final class TsdbQuery implements Query {
 
   /** Returns the UNIX timestamp at which we must stop scanning.  */
   private long getScanEndTimeSeconds() {
+    return getScanEndTimeSeconds(rollup_query);
+  }
+  
+  /**
+   * Returns the UNIX timestamp at which we must stop scanning the raw or a 
+   * rollup table.
+   * @param rollup An optional rollup query, null for raw data.
+   * @since 2.4
+   */
+  private long getScanEndTimeSeconds(final RollupQuery rollup) {
     // Begin with the raw query end time.
     long end = getEndTime();
 
@@ -1558,11 +2561,11 @@ final class TsdbQuery implements Query {
       }
     }
     
-    if (rollup_query != null) {
+    if (rollup != null) {
       return RollupUtils.getRollupBasetime(end + 
-          (rollup_query.getRollupInterval().getIntervalSeconds() * 
-              rollup_query.getRollupInterval().getIntervals()), 
-          rollup_query.getRollupInterval());
+          (rollup.getRollupInterval().getIntervalSeconds() * 
+              rollup.getRollupInterval().getIntervals()), 
+          rollup.getRollupInterval());
     }
 
     // The calculation depends on whether we're downsampling.
@@ -1613,7 +2616,7 @@ final class TsdbQuery implements Query {
    */
   private void createAndSetFilter(final Scanner scanner) {
     QueryUtil.setDataTableScanFilter(scanner, group_bys, row_key_literals, 
-        explicit_tags, enable_fuzzy_filter, 
+        row_key_exclusions, explicit_tags, enable_fuzzy_filter, 
         (end_time == UNSET
         ? -1  // Will scan until the end (0xFFF...).
         : (int) getScanEndTimeSeconds()));
@@ -1709,7 +2712,8 @@ final class TsdbQuery implements Query {
       // TODO - clean up and handle fill
       downsampler = new DownsamplingSpecification(
           rollup_query.getRollupInterval().getIntervalSeconds() * 1000, 
-          rollup_query.getRollupAgg(),
+          rollup_query.isWeighted() ? Aggregators.WAVG : 
+            rollup_query.getRollupAgg(),
           (downsampler != null ? downsampler.getFillPolicy() : 
             FillPolicy.ZERO));
       rollup_query = null;
@@ -1863,6 +2867,10 @@ final class TsdbQuery implements Query {
     static ByteMap<byte[][]> getRowKeyLiterals(final TsdbQuery query) {
       return query.row_key_literals;
     }
+    
+    static ByteMap<byte[][]> getRowKeyExclusions(final TsdbQuery query) {
+      return query.row_key_exclusions;
+    }
   
     static long maxBytes(final TsdbQuery query) {
       return query.max_bytes;
@@ -1872,5 +2880,13 @@ final class TsdbQuery implements Query {
       return query.max_data_points;
     }
     
+    static QueryPlanner.Plan getQueryPlan(final TsdbQuery query) {
+      return query.query_plan;
+    }
+    
+    static boolean usedTagIndex(final TsdbQuery query) {
+      return query.used_tag_index;
+    }
+    
   }
 }
@@ -0,0 +1,527 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.HyperLogLog;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Maintains HyperLogLog sketches of the number of distinct series per metric
+ * and the number of distinct tag values per metric and tag key so that the
+ * size of a query can be estimated without scanning.
+ * <p>
+ * Sketches are updated in memory on the data point path when
+ * {@code tsd.core.cardinality.enable} is set and merged into the meta table
+ * every {@code tsd.core.cardinality.flush_interval} seconds. They're stored
+ * in the {@link TSMeta#FAMILY} family on a row keyed on the metric UID alone
+ * so they can't collide with the TSMeta rows that are keyed on full TSUIDs.
+ * The series sketch has the qualifier {@code hll} and each tag key sketch
+ * appends the tag key UID to it. Writes are merged with compare-and-set so
+ * multiple TSDs can flush to the same row.
+ * <p>
+ * Pending sketches stay in place across flushes and are marked dirty when an
+ * offer raises one of their registers. Since merging is idempotent a flush
+ * can write a sketch while it is still being updated, anything it missed
+ * re-marks the sketch for the next flush. Sketches that weren't updated
+ * between two flushes are evicted.
+ * <p>
+ * Only data written while tracking is enabled is counted and the sketches
+ * cover all time, not a query's time range.
+ * @since 2.4
+ */
+public final class CardinalityEstimator implements TimerTask {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CardinalityEstimator.class);
+
+  /** Charset used to build map keys. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The qualifier of the series sketch and prefix of the tag key sketches */
+  public static final byte[] QUALIFIER_PREFIX = "hll".getBytes(CHARSET);
+
+  /** How many times to retry a compare-and-set before giving up. */
+  private static final int MAX_ATTEMPTS = 3;
+
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
+  /** The precision of the sketches. */
+  private final int precision;
+
+  /** How often, in seconds, to flush sketches to storage. */
+  private final int flush_interval;
+
+  /** Whether or not to track series on the data point path. */
+  private final boolean write_enabled;
+
+  /** Sketches updated recently, keyed on the metric UID. */
+  private final ConcurrentMap<String, MetricSketches> pending;
+
+  /** Sketches read from storage, keyed on the metric UID. */
+  private final Cache<String, MetricSketches> stored;
+
+  /**
+   * Default ctor. If tracking is enabled, schedules the periodic flush.
+   * @param tsdb The non-null TSDB to pull config and the client from.
+   * @throws IllegalArgumentException if the precision or flush interval are
+   * invalid.
+   */
+  public CardinalityEstimator(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    precision = tsdb.getConfig().getInt("tsd.core.cardinality.precision");
+    if (precision < HyperLogLog.MIN_PRECISION ||
+        precision > HyperLogLog.MAX_PRECISION) {
+      throw new IllegalArgumentException("The cardinality precision must be "
+          + "from " + HyperLogLog.MIN_PRECISION + " to "
+          + HyperLogLog.MAX_PRECISION + ": " + precision);
+    }
+    flush_interval = tsdb.getConfig().getInt(
+        "tsd.core.cardinality.flush_interval");
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("The cardinality flush interval must "
+          + "be at least 1 second: " + flush_interval);
+    }
+    write_enabled = tsdb.getConfig().getBoolean("tsd.core.cardinality.enable");
+    pending = new ConcurrentHashMap<String, MetricSketches>();
+    stored = CacheBuilder.newBuilder()
+        .maximumSize(tsdb.getConfig().getInt("tsd.core.cardinality.cache_size"))
+        .expireAfterWrite(flush_interval, TimeUnit.SECONDS)
+        .build();
+    if (write_enabled) {
+      tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Adds the series in the given data table row key to the sketches of its
+   * metric. Nothing is written to storage until the next flush.
+   * @param row_key The data table row key, including the salt if enabled.
+   * @throws IllegalArgumentException if the row key is malformed.
+   */
+  public void record(final byte[] row_key) {
+    final int metric_width = TSDB.metrics_width();
+    final int tags_offset = Const.SALT_WIDTH() + metric_width +
+        Const.TIMESTAMP_BYTES;
+    final int tagk_width = TSDB.tagk_width();
+    final int tag_width = tagk_width + TSDB.tagv_width();
+    if (row_key.length <= tags_offset ||
+        (row_key.length - tags_offset) % tag_width != 0) {
+      throw new IllegalArgumentException("Invalid row key: "
+          + Arrays.toString(row_key));
+    }
+
+    final String key = 
+        new String(row_key, Const.SALT_WIDTH(), metric_width, CHARSET);
+    final MetricSketches sketches = getPending(key);
+    boolean changed = sketches.series.offer(row_key, tags_offset, 
+        row_key.length - tags_offset);
+    for (int i = tags_offset; i < row_key.length; i += tag_width) {
+      changed |= sketches.getOrCreate(
+          new String(row_key, i, tagk_width, CHARSET))
+        .offer(row_key, i + tagk_width, tag_width - tagk_width);
+    }
+    if (changed) {
+      sketches.dirty.set(true);
+      if (pending.get(key) != sketches) {
+        // evicted by a flush while we were offering, carry the update over
+        getPending(key).merge(sketches);
+      }
+    }
+  }
+
+  /**
+   * Fetches the sketches for a metric from storage, or the cache if they were
+   * read recently, merged with any that haven't been flushed yet.
+   * @param metric The metric UID.
+   * @return A deferred resolving to a copy of the sketches, empty if nothing
+   * was recorded for the metric.
+   */
+  public Deferred<MetricSketches> getSketches(final byte[] metric) {
+    final String key = new String(metric, CHARSET);
+    final MetricSketches cached = stored.getIfPresent(key);
+    if (cached != null) {
+      return Deferred.fromResult(withPending(key, cached));
+    }
+
+    /** Parses the sketches out of the row. */
+    class LoadCB implements Callback<MetricSketches, ArrayList<KeyValue>> {
+      @Override
+      public MetricSketches call(final ArrayList<KeyValue> row)
+          throws Exception {
+        final MetricSketches loaded = new MetricSketches(precision);
+        if (row != null) {
+          for (final KeyValue column : row) {
+            final byte[] qualifier = column.qualifier();
+            if (qualifier.length < QUALIFIER_PREFIX.length ||
+                !Arrays.equals(QUALIFIER_PREFIX, Arrays.copyOf(qualifier,
+                    QUALIFIER_PREFIX.length))) {
+              continue;
+            }
+            final HyperLogLog sketch;
+            try {
+              sketch = HyperLogLog.fromBytes(column.value());
+            } catch (IllegalArgumentException e) {
+              LOG.warn("Skipping invalid cardinality sketch " + column, e);
+              continue;
+            }
+            if (sketch.precision() != precision) {
+              LOG.debug("Skipping cardinality sketch with precision "
+                  + sketch.precision() + ": " + column);
+              continue;
+            }
+            if (qualifier.length == QUALIFIER_PREFIX.length) {
+              loaded.series.merge(sketch);
+            } else {
+              loaded.getOrCreate(new String(qualifier, QUALIFIER_PREFIX.length,
+                  qualifier.length - QUALIFIER_PREFIX.length, CHARSET))
+                .merge(sketch);
+            }
+          }
+        }
+        stored.put(key, loaded);
+        return withPending(key, loaded);
+      }
+      @Override
+      public String toString() {
+        return "Cardinality load for metric " + Arrays.toString(metric);
+      }
+    }
+
+    final GetRequest get = new GetRequest(tsdb.metaTable(), metric);
+    get.family(TSMeta.FAMILY);
+    return tsdb.getClient().get(get).addCallback(new LoadCB());
+  }
+
+  /**
+   * Estimates how many series of the metric carry one of the literal values
+   * for each tag key, assuming values are spread evenly across series.
+   * @param metric The metric UID.
+   * @param literals An optional map of tag key UIDs to literal tag value UIDs
+   * as used for the row key filter. Null or empty values are ignored.
+   * @return A deferred resolving to the estimated series count.
+   */
+  public Deferred<Long> estimateSeries(final byte[] metric,
+      final ByteMap<byte[][]> literals) {
+    /** Applies the filters to the sketches. */
+    class EstimateCB implements Callback<Long, MetricSketches> {
+      @Override
+      public Long call(final MetricSketches sketches) throws Exception {
+        return sketches.estimateSeries(literals);
+      }
+    }
+    return getSketches(metric).addCallback(new EstimateCB());
+  }
+
+  /**
+   * Merges all of the dirty pending sketches into storage and evicts those
+   * that weren't updated since the last flush.
+   * @return A deferred to wait on for the writes, resolves to null. Failures
+   * are logged and the sketches retried on the next flush.
+   */
+  public Deferred<Object> flush() {
+    final List<Deferred<Object>> writes = new ArrayList<Deferred<Object>>();
+    for (final Map.Entry<String, MetricSketches> pending_entry : 
+        pending.entrySet()) {
+      final String key = pending_entry.getKey();
+      final MetricSketches sketches = pending_entry.getValue();
+      if (!sketches.dirty.getAndSet(false)) {
+        pending.remove(key, sketches);
+        if (sketches.dirty.get()) {
+          // raced with an offer that didn't see the eviction
+          getPending(key).merge(sketches);
+        }
+        continue;
+      }
+      writes.add(write(key, null, sketches.series, 1));
+      for (final Map.Entry<String, HyperLogLog> entry :
+          sketches.tagks.entrySet()) {
+        writes.add(write(key, entry.getKey(), entry.getValue(), 1));
+      }
+    }
+
+    /** Group to a single null. */
+    class GroupCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> ignored) throws Exception {
+        return null;
+      }
+    }
+
+    if (writes.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    LOG.debug("Flushing " + writes.size() + " cardinality sketches");
+    return Deferred.group(writes).addCallback(new GroupCB());
+  }
+
+  /** @return Whether or not series are tracked on the write path. */
+  public boolean isWriteEnabled() {
+    return write_enabled;
+  }
+
+  /** @param timeout The timeout reference. */
+  @Override
+  public void run(final Timeout timeout) {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      LOG.error("Failed to flush cardinality sketches", e);
+    } finally {
+      try {
+        tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.SECONDS);
+      } catch (IllegalStateException e) {
+        LOG.debug("Timer stopped, no more cardinality flushes scheduled");
+      }
+    }
+  }
+
+  /**
+   * Merges a sketch into the stored cell with a compare-and-set, retrying if
+   * another TSD updated the cell first.
+   * @param key The metric UID as a string.
+   * @param tagk The tag key UID as a string or null for the series sketch.
+   * @param sketch The sketch to merge.
+   * @param attempt The attempt number, starting at 1.
+   * @return A deferred resolving to null once written or given up.
+   */
+  private Deferred<Object> write(final String key, final String tagk,
+      final HyperLogLog sketch, final int attempt) {
+    final byte[] metric = key.getBytes(CHARSET);
+    final byte[] qualifier = tagk == null ? QUALIFIER_PREFIX :
+      (new String(QUALIFIER_PREFIX, CHARSET) + tagk).getBytes(CHARSET);
+
+    /** Retries if the cell changed under us. */
+    class CasCB implements Callback<Deferred<Object>, Boolean> {
+      @Override
+      public Deferred<Object> call(final Boolean written) throws Exception {
+        if (written) {
+          stored.invalidate(key);
+          return Deferred.fromResult(null);
+        }
+        if (attempt >= MAX_ATTEMPTS) {
+          LOG.warn("Gave up merging cardinality sketch "
+              + Arrays.toString(qualifier) + " for metric "
+              + Arrays.toString(metric) + " after " + attempt + " attempts");
+          requeue(key, tagk, sketch);
+          return Deferred.fromResult(null);
+        }
+        return write(key, tagk, sketch, attempt + 1);
+      }
+    }
+
+    /** Merges the stored sketch and writes it back. */
+    class GetCB implements Callback<Deferred<Object>, ArrayList<KeyValue>> {
+      @Override
+      public Deferred<Object> call(final ArrayList<KeyValue> row)
+          throws Exception {
+        final byte[] original = row == null || row.isEmpty() ?
+            HBaseClient.EMPTY_ARRAY : row.get(0).value();
+        final HyperLogLog merged = new HyperLogLog(precision);
+        merged.merge(sketch);
+        if (original.length > 0) {
+          try {
+            merged.merge(HyperLogLog.fromBytes(original));
+          } catch (IllegalArgumentException e) {
+            LOG.warn("Overwriting incompatible cardinality sketch "
+                + Arrays.toString(qualifier) + " for metric "
+                + Arrays.toString(metric), e);
+          }
+        }
+        final PutRequest put = new PutRequest(tsdb.metaTable(), metric,
+            TSMeta.FAMILY, qualifier, merged.getBytes());
+        return tsdb.getClient().compareAndSet(put, original)
+            .addCallbackDeferring(new CasCB());
+      }
+    }
+
+    /** Puts the sketch back so the next flush tries again. */
+    class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.warn("Failed to write cardinality sketch "
+            + Arrays.toString(qualifier) + " for metric "
+            + Arrays.toString(metric), e);
+        requeue(key, tagk, sketch);
+        return null;
+      }
+    }
+
+    final GetRequest get = new GetRequest(tsdb.metaTable(), metric,
+        TSMeta.FAMILY, qualifier);
+    return tsdb.getClient().get(get).addCallbackDeferring(new GetCB())
+        .addErrback(new ErrCB());
+  }
+
+  /** @return The pending sketches for the metric, created if necessary. */
+  private MetricSketches getPending(final String key) {
+    MetricSketches sketches = pending.get(key);
+    if (sketches == null) {
+      final MetricSketches fresh = new MetricSketches(precision);
+      sketches = pending.putIfAbsent(key, fresh);
+      if (sketches == null) {
+        sketches = fresh;
+      }
+    }
+    return sketches;
+  }
+
+  /**
+   * Merges a sketch that failed to write back into the pending sketches so
+   * the next flush retries it.
+   * @param key The metric UID as a string.
+   * @param tagk The tag key UID as a string or null for the series sketch.
+   * @param sketch The sketch to retry.
+   */
+  private void requeue(final String key, final String tagk,
+      final HyperLogLog sketch) {
+    final MetricSketches sketches = getPending(key);
+    sketches.getOrCreate(tagk).merge(sketch);
+    sketches.dirty.set(true);
+  }
+
+  /** @return A copy of the stored sketches merged with pending updates. */
+  private MetricSketches withPending(final String key,
+      final MetricSketches sketches) {
+    final MetricSketches copy = new MetricSketches(precision);
+    copy.merge(sketches);
+    final MetricSketches local = pending.get(key);
+    if (local != null) {
+      copy.merge(local);
+    }
+    return copy;
+  }
+
+  /**
+   * The sketches for a single metric: the distinct series and, for each tag
+   * key, the distinct values.
+   */
+  public static final class MetricSketches {
+    /** The precision of the sketches. */
+    private final int precision;
+
+    /** The distinct series, keyed on the tags of the TSUID. */
+    private final HyperLogLog series;
+
+    /** The distinct tag values keyed on the tag key UID as a string. */
+    private final ConcurrentMap<String, HyperLogLog> tagks;
+
+    /** Whether or not a register was raised since the last flush. */
+    private final AtomicBoolean dirty;
+
+    /** @param precision The precision of the sketches. */
+    MetricSketches(final int precision) {
+      this.precision = precision;
+      series = new HyperLogLog(precision);
+      tagks = new ConcurrentHashMap<String, HyperLogLog>();
+      dirty = new AtomicBoolean();
+    }
+
+    /** @return The estimated number of series for the metric. */
+    public long series() {
+      return series.cardinality();
+    }
+
+    /** @return The estimated number of values per tag key UID. */
+    public ByteMap<Long> tagValues() {
+      final ByteMap<Long> values = new ByteMap<Long>();
+      for (final Map.Entry<String, HyperLogLog> entry : tagks.entrySet()) {
+        values.put(entry.getKey().getBytes(CHARSET),
+            entry.getValue().cardinality());
+      }
+      return values;
+    }
+
+    /**
+     * Estimates how many series carry one of the literal values for each tag
+     * key, assuming values are spread evenly across series.
+     * @param literals An optional map of tag key UIDs to literal tag value
+     * UIDs. Null or empty values are ignored.
+     * @return The estimated series count.
+     */
+    public long estimateSeries(final ByteMap<byte[][]> literals) {
+      double estimate = series.cardinality();
+      if (literals == null) {
+        return (long) estimate;
+      }
+      for (final Map.Entry<byte[], byte[][]> entry : literals) {
+        if (entry.getValue() == null || entry.getValue().length < 1) {
+          continue;
+        }
+        final HyperLogLog values =
+            tagks.get(new String(entry.getKey(), CHARSET));
+        if (values == null) {
+          // no series were recorded with the tag key
+          return 0;
+        }
+        final long distinct = Math.max(1, values.cardinality());
+        estimate *= Math.min(1.0, (double) entry.getValue().length / distinct);
+      }
+      return Math.round(estimate);
+    }
+
+    /** @return The sketch for the tag key, or the series if null. */
+    private HyperLogLog getOrCreate(final String tagk) {
+      if (tagk == null) {
+        return series;
+      }
+      HyperLogLog sketch = tagks.get(tagk);
+      if (sketch == null) {
+        final HyperLogLog fresh = new HyperLogLog(precision);
+        sketch = tagks.putIfAbsent(tagk, fresh);
+        if (sketch == null) {
+          sketch = fresh;
+        }
+      }
+      return sketch;
+    }
+
+    /** @param other Sketches to merge into these, marking them dirty if
+     * the other sketches were. */
+    private void merge(final MetricSketches other) {
+      series.merge(other.series);
+      for (final Map.Entry<String, HyperLogLog> entry :
+          other.tagks.entrySet()) {
+        getOrCreate(entry.getKey()).merge(entry.getValue());
+      }
+      if (other.dirty.get()) {
+        dirty.set(true);
+      }
+    }
+  }
+}
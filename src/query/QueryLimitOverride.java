@@ -69,6 +69,10 @@ public class QueryLimitOverride implements TimerTask {
   /** The default data points limit to use if the string didn't match. */
   private long default_data_points_limit;
   
+  /** The default series limit, checked only when cardinality estimation is
+   * enabled. */
+  private long default_series_limit;
+  
   /** The optional file location to read/write */
   private String file_location;
   
@@ -92,6 +96,8 @@ public class QueryLimitOverride implements TimerTask {
     default_byte_limit = tsdb.getConfig().getLong("tsd.query.limits.bytes.default");
     default_data_points_limit = tsdb.getConfig()
         .getLong("tsd.query.limits.data_points.default");
+    default_series_limit = tsdb.getConfig()
+        .getLong("tsd.query.limits.series.default");
     if (tsdb.getConfig().hasProperty("tsd.query.limits.overrides.interval")) {
       reload_interval = tsdb.getConfig().getInt("tsd.query.limits.overrides.interval");
     } else {
@@ -106,6 +112,10 @@ public class QueryLimitOverride implements TimerTask {
       throw new IllegalArgumentException("The default data points limit cannot"
           + " be negative");
     }
+    if (default_series_limit < 0) {
+      throw new IllegalArgumentException("The default series limit cannot"
+          + " be negative");
+    }
     
     if (!Strings.isNullOrEmpty(file_location)) {
       loadFromFile();
@@ -125,6 +135,14 @@ public class QueryLimitOverride implements TimerTask {
     return default_data_points_limit;
   }
   
+  /** @return The default limit on the number of series a query may match,
+   * 0 if unlimited. Only checked with cardinality estimation and enforced
+   * for queries listing TSUIDs, estimates from the sketches cover all time
+   * so they are only logged. */
+  public long getDefaultSeriesLimit() {
+    return default_series_limit;
+  }
+  
   /**
    * Iterates over the list of overrides and return the first that matches or
    * the default if no match is found.
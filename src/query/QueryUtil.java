@@ -80,6 +80,35 @@ public class QueryUtil {
       final boolean explicit_tags,
       final byte[] fuzzy_key, 
       final byte[] fuzzy_mask) {
+    return getRowKeyUIDRegex(group_bys, row_key_literals, null, explicit_tags, 
+        fuzzy_key, fuzzy_mask);
+  }
+  
+  /**
+   * Crafts a regular expression for scanning over data table rows and filtering
+   * time series that the user doesn't want, including series with tag values
+   * that were explicitly excluded. Also fills in an optional fuzzy mask and key
+   * as it builds the regex if configured to do so.
+   * @param group_bys An optional list of tag keys that we want to group on. May
+   * be null.
+   * @param row_key_literals An optional list of key value pairs to filter on.
+   * May be null.
+   * @param row_key_exclusions An optional map of tag keys to the values that 
+   * must NOT appear in the row key. May be null.
+   * @param explicit_tags Whether or not explicit tags are enabled so that the
+   * regex only picks out series with the specified tags
+   * @param fuzzy_key An optional fuzzy filter row key
+   * @param fuzzy_mask An optional fuzzy filter mask
+   * @return A regular expression string to pass to the storage layer.
+   * @since 2.4
+   */
+  public static String getRowKeyUIDRegex(
+      final List<byte[]> group_bys, 
+      final ByteMap<byte[][]> row_key_literals, 
+      final ByteMap<byte[][]> row_key_exclusions,
+      final boolean explicit_tags,
+      final byte[] fuzzy_key, 
+      final byte[] fuzzy_mask) {
     if (group_bys != null) {
       Collections.sort(group_bys, Bytes.MEMCMP);
     }
@@ -104,6 +133,28 @@ public class QueryUtil {
        // ... start by skipping the salt, metric ID and timestamp.
        .append(Const.SALT_WIDTH() + TSDB.metrics_width() + Const.TIMESTAMP_BYTES)
        .append("}");
+    
+    // Excluded values are negative look aheads anchored at the first tag so 
+    // that they don't depend on the order of the literals that follow, e.g.
+    // "(?!(?:.{6})*\\Q\000\000\001\\E(?:\\Q\000\000\002\\E|...))"
+    if (row_key_exclusions != null) {
+      for (final Entry<byte[], byte[][]> entry : row_key_exclusions) {
+        if (entry.getValue() == null || entry.getValue().length < 1) {
+          continue;
+        }
+        buf.append("(?!(?:.{").append(tagsize).append("})*\\Q");
+        addId(buf, entry.getKey(), true);
+        buf.append("(?:");
+        for (final byte[] value_id : entry.getValue()) {
+          buf.append("\\Q");
+          addId(buf, value_id, true);
+          buf.append('|');
+        }
+        // Replace the pipe of the last iteration and close the look ahead.
+        buf.setCharAt(buf.length() - 1, ')');
+        buf.append(')');
+      }
+    }
 
     final Iterator<Entry<byte[], byte[][]>> it = row_key_literals == null ? 
         new ByteMap<byte[][]>().iterator() : row_key_literals.iterator();
@@ -198,10 +249,42 @@ public class QueryUtil {
       final boolean explicit_tags,
       final boolean enable_fuzzy_filter,
       final int end_time) {
+    setDataTableScanFilter(scanner, group_bys, row_key_literals, null, 
+        explicit_tags, enable_fuzzy_filter, end_time);
+  }
+  
+  /**
+   * Sets a filter or filter list on the scanner based on whether or not the
+   * query had tags it needed to match or exclude.
+   * @param scanner The scanner to modify.
+   * @param group_bys An optional list of tag keys that we want to group on. May
+   * be null.
+   * @param row_key_literals An optional list of key value pairs to filter on.
+   * May be null.
+   * @param row_key_exclusions An optional map of tag keys to the values that 
+   * must NOT appear in the row key. May be null.
+   * @param explicit_tags Whether or not explicit tags are enabled so that the
+   * regex only picks out series with the specified tags
+   * @param enable_fuzzy_filter Whether or not a fuzzy filter should be used
+   * in combination with the explicit tags param. If explicit tags is disabled
+   * then this param is ignored. 
+   * @param end_time The end of the query time so the fuzzy filter knows when
+   * to stop scanning.
+   * @since 2.4
+   */
+  public static void setDataTableScanFilter(
+      final Scanner scanner, 
+      final List<byte[]> group_bys, 
+      final ByteMap<byte[][]> row_key_literals,
+      final ByteMap<byte[][]> row_key_exclusions,
+      final boolean explicit_tags,
+      final boolean enable_fuzzy_filter,
+      final int end_time) {
     
     // no-op
     if ((group_bys == null || group_bys.isEmpty()) 
-        && (row_key_literals == null || row_key_literals.isEmpty())) {
+        && (row_key_literals == null || row_key_literals.isEmpty())
+        && (row_key_exclusions == null || row_key_exclusions.isEmpty())) {
       return;
     }
     
@@ -223,7 +306,7 @@ public class QueryUtil {
     }
     
     final String regex = getRowKeyUIDRegex(group_bys, row_key_literals, 
-        explicit_tags, fuzzy_key, fuzzy_mask);
+        row_key_exclusions, explicit_tags, fuzzy_key, fuzzy_mask);
     final KeyRegexpFilter regex_filter = new KeyRegexpFilter(
         regex.toString(), Const.ASCII_CHARSET);
     if (LOG.isDebugEnabled()) {
@@ -0,0 +1,395 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A simple arithmetic expression compiled into a tree of primitive double
+ * operations so that it can be evaluated for every series at every timestamp
+ * without binding boxed values into a JEXL context.
+ * <p>
+ * Only variables, numeric literals, parentheses, unary minus and the
+ * {@code + - * / %} operators are supported. For anything else
+ * {@link #compile(String)} returns null and the caller should fall back to
+ * JEXL. Results match what JEXL returns for the same expression, e.g. a
+ * division or modulo by zero yields zero and decimal literals are parsed as
+ * floats.
+ * @since 2.4
+ */
+public final class ArithmeticExpression {
+
+  /** JEXL keywords and word operators we leave to JEXL */
+  private static final Set<String> RESERVED = ImmutableSet.of("and", "or",
+      "not", "eq", "ne", "lt", "gt", "le", "ge", "div", "mod", "empty", "size",
+      "new", "true", "false", "null", "if", "else", "for", "foreach", "while",
+      "var", "function", "return", "in");
+
+  /** The root of the compiled tree */
+  private final Node root;
+
+  /** The variable names in the order their values are expected */
+  private final List<String> variables;
+
+  /**
+   * Private ctor, use {@link #compile(String)}.
+   * @param root The root node.
+   * @param variables The variable names.
+   */
+  private ArithmeticExpression(final Node root, final List<String> variables) {
+    this.root = root;
+    this.variables = Collections.unmodifiableList(variables);
+  }
+
+  /**
+   * Attempts to compile the expression.
+   * @param expression The expression to compile.
+   * @return The compiled expression or null if the expression uses syntax we
+   * don't handle and must be evaluated by JEXL.
+   */
+  public static ArithmeticExpression compile(final String expression) {
+    if (expression == null || expression.isEmpty()) {
+      return null;
+    }
+    final Parser parser = new Parser(expression);
+    final Node root = parser.parseSum();
+    if (root == null || parser.peek() != 0 || parser.variables.isEmpty()) {
+      return null;
+    }
+    return new ArithmeticExpression(root, parser.variables);
+  }
+
+  /**
+   * Evaluates the expression.
+   * @param values The variable values in the order of {@link #variables()}.
+   * @return The result.
+   */
+  public double evaluate(final double[] values) {
+    return root.evaluate(values);
+  }
+
+  /** @return The variable names in the order their values must be given
+   * to {@link #evaluate(double[])} */
+  public List<String> variables() {
+    return variables;
+  }
+
+  /** A node in the compiled tree */
+  private static abstract class Node {
+    /** Whether or not the node only involves integer literals, in which case
+     * JEXL would use integer arithmetic */
+    boolean integral;
+
+    abstract double evaluate(final double[] values);
+  }
+
+  /** A literal or folded constant */
+  private static final class Constant extends Node {
+    final double value;
+    Constant(final double value, final boolean integral) {
+      this.value = value;
+      this.integral = integral;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      return value;
+    }
+  }
+
+  /** Reads a variable value */
+  private static final class Variable extends Node {
+    final int index;
+    Variable(final int index) {
+      this.index = index;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      return values[index];
+    }
+  }
+
+  /** Unary minus */
+  private static final class Negate extends Node {
+    final Node child;
+    Negate(final Node child) {
+      this.child = child;
+      integral = child.integral;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      return -child.evaluate(values);
+    }
+  }
+
+  private static final class Add extends Node {
+    final Node left;
+    final Node right;
+    Add(final Node left, final Node right) {
+      this.left = left;
+      this.right = right;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      return left.evaluate(values) + right.evaluate(values);
+    }
+  }
+
+  private static final class Subtract extends Node {
+    final Node left;
+    final Node right;
+    Subtract(final Node left, final Node right) {
+      this.left = left;
+      this.right = right;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      return left.evaluate(values) - right.evaluate(values);
+    }
+  }
+
+  private static final class Multiply extends Node {
+    final Node left;
+    final Node right;
+    Multiply(final Node left, final Node right) {
+      this.left = left;
+      this.right = right;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      return left.evaluate(values) * right.evaluate(values);
+    }
+  }
+
+  private static final class Divide extends Node {
+    final Node left;
+    final Node right;
+    Divide(final Node left, final Node right) {
+      this.left = left;
+      this.right = right;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      final double divisor = right.evaluate(values);
+      // JEXL returns a zero instead of infinity
+      return divisor == 0 ? 0 : left.evaluate(values) / divisor;
+    }
+  }
+
+  private static final class Modulo extends Node {
+    final Node left;
+    final Node right;
+    Modulo(final Node left, final Node right) {
+      this.left = left;
+      this.right = right;
+    }
+    @Override
+    double evaluate(final double[] values) {
+      final double divisor = right.evaluate(values);
+      return divisor == 0 ? 0 : left.evaluate(values) % divisor;
+    }
+  }
+
+  /**
+   * A recursive descent parser for the supported grammar. Each parse method
+   * returns null if it runs into something unsupported.
+   */
+  private static final class Parser {
+    final String expression;
+    final List<String> variables = new ArrayList<String>();
+    final Map<String, Integer> indices = new HashMap<String, Integer>();
+    int position;
+
+    Parser(final String expression) {
+      this.expression = expression;
+    }
+
+    /** @return The next non-whitespace character or 0 at the end. */
+    char peek() {
+      while (position < expression.length() &&
+          Character.isWhitespace(expression.charAt(position))) {
+        position++;
+      }
+      return position < expression.length() ?
+          expression.charAt(position) : 0;
+    }
+
+    /** sum := product (('+' | '-') product)* */
+    Node parseSum() {
+      Node left = parseProduct();
+      while (left != null) {
+        final char op = peek();
+        if (op != '+' && op != '-') {
+          break;
+        }
+        position++;
+        left = binary(op, left, parseProduct());
+      }
+      return left;
+    }
+
+    /** product := unary (('*' | '/' | '%') unary)* */
+    Node parseProduct() {
+      Node left = parseUnary();
+      while (left != null) {
+        final char op = peek();
+        if (op != '*' && op != '/' && op != '%') {
+          break;
+        }
+        position++;
+        left = binary(op, left, parseUnary());
+      }
+      return left;
+    }
+
+    /** unary := '-' unary | primary */
+    Node parseUnary() {
+      if (peek() == '-') {
+        position++;
+        final Node child = parseUnary();
+        if (child == null) {
+          return null;
+        }
+        if (child instanceof Constant) {
+          return new Constant(-((Constant) child).value, child.integral);
+        }
+        return new Negate(child);
+      }
+      return parsePrimary();
+    }
+
+    /** primary := number | variable | '(' sum ')' */
+    Node parsePrimary() {
+      final char c = peek();
+      if (c == '(') {
+        position++;
+        final Node node = parseSum();
+        if (node == null || peek() != ')') {
+          return null;
+        }
+        position++;
+        return node;
+      }
+      if (c >= '0' && c <= '9') {
+        return parseNumber();
+      }
+      if (Character.isJavaIdentifierStart(c)) {
+        return parseVariable();
+      }
+      return null;
+    }
+
+    /** @return A constant, null for octal, hex or suffixed literals */
+    Node parseNumber() {
+      final int start = position;
+      while (position < expression.length() &&
+          Character.isDigit(expression.charAt(position))) {
+        position++;
+      }
+      boolean real = false;
+      if (position < expression.length() &&
+          expression.charAt(position) == '.') {
+        real = true;
+        position++;
+        final int fraction = position;
+        while (position < expression.length() &&
+            Character.isDigit(expression.charAt(position))) {
+          position++;
+        }
+        if (position == fraction) {
+          return null;
+        }
+      }
+      if (position < expression.length() &&
+          Character.isJavaIdentifierPart(expression.charAt(position))) {
+        return null;
+      }
+      final String literal = expression.substring(start, position);
+      if (real) {
+        // JEXL reads unsuffixed decimals as floats
+        final float value = Float.parseFloat(literal);
+        if (Float.isInfinite(value)) {
+          return null;
+        }
+        return new Constant(value, false);
+      }
+      if ((literal.length() > 1 && literal.charAt(0) == '0') ||
+          literal.length() > 18) {
+        return null;
+      }
+      return new Constant(Long.parseLong(literal), true);
+    }
+
+    /** @return A variable, null for keywords, functions or properties */
+    Node parseVariable() {
+      final int start = position;
+      while (position < expression.length() &&
+          Character.isJavaIdentifierPart(expression.charAt(position))) {
+        position++;
+      }
+      final String name = expression.substring(start, position);
+      if (RESERVED.contains(name)) {
+        return null;
+      }
+      final char next = peek();
+      if (next == '(' || next == '.' || next == '[') {
+        return null;
+      }
+      Integer index = indices.get(name);
+      if (index == null) {
+        index = variables.size();
+        indices.put(name, index);
+        variables.add(name);
+      }
+      return new Variable(index);
+    }
+
+    /**
+     * Builds a binary node, folding constants.
+     * @return The node or null if either side is missing or both are integral
+     * as JEXL would use integer arithmetic.
+     */
+    Node binary(final char op, final Node left, final Node right) {
+      if (left == null || right == null || (left.integral && right.integral)) {
+        return null;
+      }
+      final Node node;
+      switch (op) {
+      case '+':
+        node = new Add(left, right);
+        break;
+      case '-':
+        node = new Subtract(left, right);
+        break;
+      case '*':
+        node = new Multiply(left, right);
+        break;
+      case '/':
+        node = new Divide(left, right);
+        break;
+      default:
+        node = new Modulo(left, right);
+      }
+      if (left instanceof Constant && right instanceof Constant) {
+        return new Constant(node.evaluate(null), false);
+      }
+      return node;
+    }
+  }
+}
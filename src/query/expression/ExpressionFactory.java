@@ -33,6 +33,18 @@ public final class ExpressionFactory {
     available_functions.put("scale", new Scale());
     available_functions.put("absolute", new Absolute());
     available_functions.put("movingAverage", new MovingAverage());
+    available_functions.put("movingSum", 
+        new MovingWindowFunction("movingSum", MovingWindowFunction.Function.SUM));
+    available_functions.put("movingMin", 
+        new MovingWindowFunction("movingMin", MovingWindowFunction.Function.MIN));
+    available_functions.put("movingMax", 
+        new MovingWindowFunction("movingMax", MovingWindowFunction.Function.MAX));
+    available_functions.put("movingStdDev", new MovingWindowFunction(
+        "movingStdDev", MovingWindowFunction.Function.STDDEV));
+    available_functions.put("ewma", 
+        new MovingWindowFunction("ewma", MovingWindowFunction.Function.EWMA));
+    available_functions.put("exponentialMovingAverage", new MovingWindowFunction(
+        "exponentialMovingAverage", MovingWindowFunction.Function.EWMA));
     available_functions.put("highestCurrent", new HighestCurrent());
     available_functions.put("highestMax", new HighestMax());
     available_functions.put("shift", new TimeShift());
@@ -89,6 +89,18 @@ public class ExpressionIterator implements ITimeSyncedIterator {
   /** The compiled expression */
   private final Script expression;
   
+  /** The expression compiled to primitive arithmetic, null if it needs JEXL */
+  private final ArithmeticExpression arithmetic;
+  
+  /** Results for each variable of the arithmetic expression, in order */
+  private ExpressionDataPoint[][] arithmetic_results;
+  
+  /** Fill values for each variable of the arithmetic expression, in order */
+  private double[] arithmetic_fills;
+  
+  /** Scratch array for the variable values of the arithmetic expression */
+  private double[] arithmetic_values;
+  
   /** The context where we'll dump results for processing through the expression */
   private final JexlContext context = new MapContext();
   
@@ -146,6 +158,7 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     this.include_agg_tags = include_agg_tags;
     results = new HashMap<String, ITimeSyncedIterator>();
     this.expression = JEXL_ENGINE.createScript(expression);
+    arithmetic = ArithmeticExpression.compile(expression);
     names = new HashSet<String>();
     extractVariableNames();
     if (names.size() < 1) {
@@ -165,6 +178,7 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     id = iterator.id;
     // need to recompile, don't know if we'll run into threading issues
     expression = JEXL_ENGINE.createScript(iterator.expression.toString());
+    arithmetic = iterator.arithmetic; // immutable so we can share it
     intersect_on_query_tagks = iterator.intersect_on_query_tagks;
     include_agg_tags = iterator.include_agg_tags;
     set_operator = iterator.set_operator;
@@ -189,6 +203,8 @@ public class ExpressionIterator implements ITimeSyncedIterator {
        .append(id)
        .append(", expression=\"")
        .append(expression.toString())
+       .append(", arithmetic=")
+       .append(arithmetic != null)
        .append(", setOperator=")
        .append(set_operator)
        .append(", fillPolicy=")
@@ -296,6 +312,18 @@ public class ExpressionIterator implements ITimeSyncedIterator {
       }
     }
     
+    if (arithmetic != null) {
+      final List<String> variables = arithmetic.variables();
+      arithmetic_results = new ExpressionDataPoint[variables.size()][];
+      arithmetic_fills = new double[variables.size()];
+      arithmetic_values = new double[variables.size()];
+      for (int i = 0; i < variables.size(); i++) {
+        arithmetic_results[i] = iteration_results.get(variables.get(i));
+        arithmetic_fills[i] = 
+            results.get(variables.get(i)).getFillPolicy().getValue();
+      }
+    }
+    
     if (LOG.isDebugEnabled()) {
       LOG.debug("Finished compiling " + this);
     }
@@ -326,33 +354,8 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     // final long timestamp = iterator.nextTimestamp();
     iterator.next();
     
-    // set aside a couple of addresses for the variables
-    double val;
-    double result;
     for (int i = 0; i < iterator.getSeriesSize(); i++) {
-      // this here is why life sucks. there MUST be a better way to bind variables
-      for (final String variable : names) {
-        if (iteration_results.get(variable)[i] == null) {
-          context.set(variable, results.get(variable).getFillPolicy().getValue());
-        } else {
-          val = iteration_results.get(variable)[i].toDouble();
-          if (Double.isNaN(val)) {
-            context.set(variable, results.get(variable).getFillPolicy().getValue());
-          } else {
-            context.set(variable, val);
-          }
-        }
-      }
-      final Object output = expression.execute(context);
-      if (output instanceof Double) {
-        result = (Double) output;
-      } else if (output instanceof Boolean) {
-        result = (((Boolean) output) ? 1 : 0);
-      } else {
-        throw new IllegalStateException("Expression returned a result of type: " 
-            + output.getClass().getName() + " for " + this);
-      }
-      dps[i].reset(timestamp, result);
+      dps[i].reset(timestamp, evaluate(i));
     }
     return dps;
   }
@@ -385,6 +388,32 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     return ImmutableSet.copyOf(names);
   }
   
+  /** @return The time in nanoseconds spent building join tables for this
+   * expression and any nested expressions. Set after {@link #compile()}.
+   * @since 2.4 */
+  public long getJoinBuildTime() {
+    long time = iterator == null ? 0 : iterator.getJoinBuildTime();
+    for (final ITimeSyncedIterator it : results.values()) {
+      if (it instanceof ExpressionIterator) {
+        time += ((ExpressionIterator) it).getJoinBuildTime();
+      }
+    }
+    return time;
+  }
+  
+  /** @return The time in nanoseconds spent probing join tables for this
+   * expression and any nested expressions. Set after {@link #compile()}.
+   * @since 2.4 */
+  public long getJoinProbeTime() {
+    long time = iterator == null ? 0 : iterator.getJoinProbeTime();
+    for (final ITimeSyncedIterator it : results.values()) {
+      if (it instanceof ExpressionIterator) {
+        time += ((ExpressionIterator) it).getJoinProbeTime();
+      }
+    }
+    return time;
+  }
+  
   public void setSetOperator(final SetOperator set_operator) {
     this.set_operator = set_operator;
   }
@@ -452,18 +481,41 @@ public class ExpressionIterator implements ITimeSyncedIterator {
   public void next(final int i) {
     iterator.next(i);
     
-    // set aside a couple of addresses for the variables
-    double val;
-    double result;
-    // this here is why life sucks. there MUST be a better way to bind variables
     long ts = Long.MAX_VALUE;
+    for (final String variable : names) {
+      if (iteration_results.get(variable)[i] != null && 
+          iteration_results.get(variable)[i].timestamp() < ts) {
+        ts = iteration_results.get(variable)[i].timestamp();
+      }
+    }
+    dps[i].reset(ts, evaluate(i));
+  }
+  
+  /**
+   * Computes the expression for the current values of a series, substituting
+   * the variable's fill value for missing or NaN values. Simple arithmetic
+   * runs on the compiled tree, everything else goes through JEXL.
+   * @param i The index of the series.
+   * @return The result of the expression.
+   * @throws IllegalStateException if JEXL returned something other than a
+   * number or boolean.
+   */
+  private double evaluate(final int i) {
+    if (arithmetic != null) {
+      for (int v = 0; v < arithmetic_values.length; v++) {
+        final ExpressionDataPoint dp = arithmetic_results[v][i];
+        final double val = dp == null ? Double.NaN : dp.toDouble();
+        arithmetic_values[v] = Double.isNaN(val) ? arithmetic_fills[v] : val;
+      }
+      return arithmetic.evaluate(arithmetic_values);
+    }
+    
+    // this here is why life sucks. there MUST be a better way to bind variables
+    double val;
     for (final String variable : names) {
       if (iteration_results.get(variable)[i] == null) {
         context.set(variable, results.get(variable).getFillPolicy().getValue());
       } else {
-        if (iteration_results.get(variable)[i].timestamp() < ts) {
-          ts = iteration_results.get(variable)[i].timestamp();
-        }
         val = iteration_results.get(variable)[i].toDouble();
         if (Double.isNaN(val)) {
           context.set(variable, results.get(variable).getFillPolicy().getValue());
@@ -474,14 +526,12 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     }
     final Object output = expression.execute(context);
     if (output instanceof Double) {
-      result = (Double) output;
+      return (Double) output;
     } else if (output instanceof Boolean) {
-      result = (((Boolean) output) ? 1 : 0);
-    } else {
-      throw new IllegalStateException("Expression returned a result of type: " 
-          + output.getClass().getName() + " for " + this);
+      return (((Boolean) output) ? 1 : 0);
     }
-    dps[i].reset(ts, result);
+    throw new IllegalStateException("Expression returned a result of type: " 
+        + output.getClass().getName() + " for " + this);
   }
   
 }
@@ -12,16 +12,18 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.query.expression;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import net.opentsdb.core.IllegalDataException;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.utils.ByteSet;
+import net.opentsdb.utils.DateTime;
 
-import org.hbase.async.Bytes;
 import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.HBaseClient;
 import org.slf4j.Logger;
@@ -85,6 +87,12 @@ public class IntersectionIterator implements ITimeSyncedIterator, VariableIterat
   /** The index of this iterator in a list of iterators */
   private int index;
   
+  /** Time in nanoseconds spent building the join table */
+  private long join_build_time;
+  
+  /** Time in nanoseconds spent probing the join table */
+  private long join_probe_time;
+  
   /**
    * Ctor to create the expression lock-step iterator from a set of query results.
    * If the results map is empty, then the ctor will complete but the results map
@@ -234,6 +242,16 @@ public class IntersectionIterator implements ITimeSyncedIterator, VariableIterat
     return series_size;
   }
   
+  @Override
+  public long getJoinBuildTime() {
+    return join_build_time;
+  }
+  
+  @Override
+  public long getJoinProbeTime() {
+    return join_probe_time;
+  }
+  
   /** @return the next timestamp calculated from all series in the set */
   public long nextTimestamp() {
     long ts = Long.MAX_VALUE;
@@ -249,136 +267,118 @@ public class IntersectionIterator implements ITimeSyncedIterator, VariableIterat
   }
   
   /**
-   * A super ugly messy way to compute the intersection of the various sets of 
-   * time series returned from the sub queries. 
+   * Computes the intersection of the various sets of time series returned 
+   * from the sub queries with a hash join.
    * <p>
    * The process is:
-   * - Iterate over each query set
-   * - For the first set, flatten each series' tag and (optionally) aggregated tag
-   *   set into a single byte array for use as an ID.
-   * - Populate a map with the IDs and references to the series iterator for the
-   *   first query set.
-   * - For each additional set, flatten the tags and if the tag set ID isn't in
-   *   the intersection map, kick it out.
-   * - For each key in the intersection map, if it doesn't appear in the current
-   *   query set, kick it out.
-   * - Once all sets are finished, align the resulting series iterators in the 
-   *   {@link #current_values} map which is then prepped for expression processing.
+   * - Build a hash table keyed on the {@link JoinKey} of each series in the
+   *   smallest set.
+   * - Probe the table with each series of the other sets, kicking out series
+   *   that don't have a match.
+   * - Kick out rows of the table that weren't matched by every other set.
+   * - Sort the remaining rows by key and align the resulting series iterators 
+   *   in the {@link #current_values} map which is then prepped for expression 
+   *   processing.
    * @throws IllegalDataException if more than one series was supplied and 
    * the resulting intersection failed to produce any series
    */
   private void computeIntersection() {
-    final ByteMap<ExpressionDataPoint[]> ordered_intersection = 
-        new ByteMap<ExpressionDataPoint[]>(); 
-    final Iterator<ITimeSyncedIterator> it = queries.values().iterator();
-    
-    // assume we have at least on query in our set
-    ITimeSyncedIterator sub = it.next();
-    Map<String, ByteMap<Integer>> flattened_tags = 
-        new HashMap<String, ByteMap<Integer>>(queries.size()); 
-    ByteMap<Integer> tags = new ByteMap<Integer>();
-    flattened_tags.put(sub.getId(), tags);
-    ExpressionDataPoint[] dps = sub.values();
-    
-    for (int i = 0; i < sub.size(); i++) {
-      final byte[] tagks = flattenTags(intersect_on_query_tagks, include_agg_tags,
-          dps[i].tags(), dps[i].aggregatedTags(), sub);
-      tags.put(tagks, i);
-
-      final ExpressionDataPoint[] idps = new ExpressionDataPoint[queries.size()];
-      idps[sub.getIndex()] = dps[i];
-      ordered_intersection.put(tagks, idps);
+    final long build_start = DateTime.nanoTime();
+    ITimeSyncedIterator build = null;
+    for (final ITimeSyncedIterator sub : queries.values()) {
+      if (build == null || sub.size() < build.size()) {
+        build = sub;
+      }
     }
     
-    if (!it.hasNext()) {
-      setCurrentAndMeta(ordered_intersection);
-      return;
+    final Map<JoinKey, JoinRow> table = 
+        new HashMap<JoinKey, JoinRow>(build.size() * 2);
+    ExpressionDataPoint[] dps = build.values();
+    for (int i = 0; i < build.size(); i++) {
+      final JoinKey key = new JoinKey(intersect_on_query_tagks, 
+          include_agg_tags, dps[i], build);
+      JoinRow row = table.get(key);
+      if (row == null) {
+        row = new JoinRow(key, queries.size());
+        table.put(key, row);
+      }
+      row.set(build.getIndex(), dps[i], i);
     }
+    final long probe_start = DateTime.nanoTime();
+    join_build_time = probe_start - build_start;
     
-    while (it.hasNext()) {
-      sub = it.next();
-      tags = new ByteMap<Integer>();
-      flattened_tags.put(sub.getId(), tags);
+    for (final ITimeSyncedIterator sub : queries.values()) {
+      if (sub == build) {
+        continue;
+      }
       dps = sub.values();
       
-      // loop through the series in the sub iterator, compute the flattened tag
-      // ids, then kick out any that are NOT in the existing intersection map.
+      // loop through the series in the sub iterator and kick out any that 
+      // are NOT in the table.
       for (int i = 0; i < sub.size(); i++) {
-        final byte[] tagks = flattenTags(intersect_on_query_tagks, include_agg_tags, 
-            dps[i].tags(), dps[i].aggregatedTags(), sub);
-        tags.put(tagks, i);
-
-        final ExpressionDataPoint[] idps = ordered_intersection.get(tagks);
-        if (idps == null) {
+        final JoinRow row = table.get(new JoinKey(intersect_on_query_tagks, 
+            include_agg_tags, dps[i], sub));
+        if (row == null) {
           if (LOG.isDebugEnabled()) {
-            LOG.debug("Kicking out " + Bytes.pretty(tagks) + " from " + sub.getId());
+            LOG.debug("Kicking out series " + i + " from " + sub.getId());
           }
           sub.nullIterator(i);
           continue;
         }
-        idps[sub.getIndex()] = dps[i];
+        row.set(sub.getIndex(), dps[i], i);
       }
-      
-      // gotta go backwards now to complete the intersection by kicking
-      // any series that appear in other sets but not HERE
-      final Iterator<Entry<byte[], ExpressionDataPoint[]>> reverse_it = 
-          ordered_intersection.iterator();
-      while (reverse_it.hasNext()) {
-        Entry<byte[], ExpressionDataPoint[]> e = reverse_it.next();
-        if (!tags.containsKey(e.getKey())) {
+    }
+    
+    // complete the intersection by kicking any rows that some set didn't
+    // match and nulling the iterators of the sets that did
+    final List<JoinRow> rows = new ArrayList<JoinRow>(table.size());
+    for (final JoinRow row : table.values()) {
+      if (row.matched == queries.size()) {
+        rows.add(row);
+        continue;
+      }
+      for (int x = 0; x < row.indices.length; x++) {
+        if (row.indices[x] >= 0) {
           if (LOG.isDebugEnabled()) {
-            LOG.debug("Kicking out " + Bytes.pretty(e.getKey()) + 
-                " from the main list since the query for " + sub.getId() + 
-                " didn't have it");
-          }
-          
-          // null the iterators for the other sets
-          for (final Map.Entry<String, ByteMap<Integer>> entry : 
-              flattened_tags.entrySet()) {
-            if (entry.getKey().equals(sub.getId())) {
-              continue;
-            }
-            final Integer index = entry.getValue().get(e.getKey());
-            if (index != null) {
-              queries.get(entry.getKey()).nullIterator(index);
-            }
+            LOG.debug("Kicking out series " + row.indices[x] + " from " 
+                + index_to_names[x] + " since another set didn't have it");
           }
-          
-          reverse_it.remove();
+          queries.get(index_to_names[x]).nullIterator(row.indices[x]);
         }
       }
     }
+    Collections.sort(rows);
+    join_probe_time = DateTime.nanoTime() - probe_start;
     
     // now set our properly condensed and ordered values
-    if (ordered_intersection.size() < 1) {
+    if (rows.isEmpty() && queries.size() > 1) {
       // TODO - is it best to toss an exception here or return an empty result?
       throw new IllegalDataException("No intersections found: " + this);
     }
     
-    setCurrentAndMeta(ordered_intersection);
+    setCurrentAndMeta(rows);
   }
   
   /**
    * Takes the resulting intersection and builds the {@link #current_values}
    * and {@link #meta} maps.
-   * @param ordered_intersection The intersection to build from.
+   * @param rows The sorted rows of the intersection to build from.
    */
-  private void setCurrentAndMeta(final ByteMap<ExpressionDataPoint[]> 
-      ordered_intersection) {
+  private void setCurrentAndMeta(final List<JoinRow> rows) {
     for (final String id : queries.keySet()) {
-      current_values.put(id, new ExpressionDataPoint[ordered_intersection.size()]);
+      current_values.put(id, new ExpressionDataPoint[rows.size()]);
     }
     
     int i = 0;
-    for (final ExpressionDataPoint[] idps : ordered_intersection.values()) {
-      for (int x = 0; x < idps.length; x++) {
+    for (final JoinRow row : rows) {
+      for (int x = 0; x < row.dps.length; x++) {
         final ExpressionDataPoint[] current_dps = 
             current_values.get(index_to_names[x]);
-        current_dps[i] = idps[x];
+        current_dps[i] = row.dps[x];
       }
       ++i;
     }
-    series_size = ordered_intersection.size();
+    series_size = rows.size();
   }
   
   /**
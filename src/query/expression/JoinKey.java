@@ -0,0 +1,167 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.Map;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+
+import net.opentsdb.utils.ByteSet;
+
+/**
+ * The key used to join series across sub queries. It identifies the same tag
+ * pairs and aggregated tag keys as the byte arrays built by
+ * {@link IntersectionIterator#flattenTags} without copying any UIDs. Instead
+ * a 64 bit fingerprint of the selected UIDs is computed once for hashing and
+ * the UIDs are only compared when two fingerprints match, so collisions can't
+ * join unrelated series.
+ * <p>
+ * Keys sort in the same order as the flattened byte arrays so that joined
+ * series are emitted in a stable order. Comparisons walk the UIDs in place 
+ * so hash probes and sorts don't allocate.
+ * @since 2.4
+ */
+final class JoinKey implements Comparable<JoinKey> {
+  /** FNV-1a 64 bit offset basis and prime */
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** An empty key */
+  private static final byte[][] EMPTY = new byte[0][];
+
+  /** The selected UIDs in key order, i.e. each tag key and value then the
+   * aggregated tag keys. Shares the UID arrays of the series. */
+  private final byte[][] segments;
+
+  /** The fingerprint of the selected UIDs */
+  private final long fingerprint;
+
+  /**
+   * Default ctor.
+   * @param use_query_tags Whether or not to join only on the tag keys in the
+   * sub query's filters.
+   * @param include_agg_tags Whether or not to include the aggregated tags.
+   * @param dp The series to compute the key for.
+   * @param sub The sub query iterator the series belongs to.
+   */
+  JoinKey(final boolean use_query_tags, final boolean include_agg_tags,
+      final ExpressionDataPoint dp, final ITimeSyncedIterator sub) {
+    final ByteMap<byte[]> tags = dp.tags();
+    if (tags == null || tags.isEmpty()) {
+      segments = EMPTY;
+    } else {
+      final ByteSet query_tagks;
+      if (use_query_tags) {
+        // same as flattenTags, no query tags means no tags in the key
+        query_tagks = sub.getQueryTagKs() != null ?
+            sub.getQueryTagKs() : new ByteSet();
+      } else {
+        query_tagks = null;
+      }
+      final ByteSet agg_tags = include_agg_tags ? dp.aggregatedTags() : null;
+      
+      int count = agg_tags == null ? 0 : agg_tags.size();
+      for (final byte[] tagk : tags.keySet()) {
+        if (query_tagks == null || query_tagks.contains(tagk)) {
+          count += 2;
+        }
+      }
+      segments = new byte[count][];
+      int idx = 0;
+      for (final Map.Entry<byte[], byte[]> pair : tags.entrySet()) {
+        if (query_tagks == null || query_tagks.contains(pair.getKey())) {
+          segments[idx++] = pair.getKey();
+          segments[idx++] = pair.getValue();
+        }
+      }
+      if (agg_tags != null) {
+        for (final byte[] tagk : agg_tags) {
+          segments[idx++] = tagk;
+        }
+      }
+    }
+
+    long hash = FNV_OFFSET;
+    for (final byte[] segment : segments) {
+      for (final byte b : segment) {
+        hash ^= b & 0xFF;
+        hash *= FNV_PRIME;
+      }
+    }
+    fingerprint = hash;
+  }
+
+  /** @return The 64 bit fingerprint of the key */
+  long fingerprint() {
+    return fingerprint;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (fingerprint ^ (fingerprint >>> 32));
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof JoinKey)) {
+      return false;
+    }
+    final JoinKey other = (JoinKey) obj;
+    return fingerprint == other.fingerprint && compareTo(other) == 0;
+  }
+
+  /**
+   * Compares the concatenated UIDs of both keys like {@link Bytes#memcmp} 
+   * would compare the flattened byte arrays, walking the segments in place.
+   */
+  @Override
+  public int compareTo(final JoinKey other) {
+    final byte[][] theirs = other.segments;
+    int i = 0;   // our segment
+    int x = 0;   // offset into our segment
+    int j = 0;   // their segment
+    int y = 0;   // offset into their segment
+    while (true) {
+      while (i < segments.length && x >= segments[i].length) {
+        i++;
+        x = 0;
+      }
+      while (j < theirs.length && y >= theirs[j].length) {
+        j++;
+        y = 0;
+      }
+      if (i >= segments.length) {
+        return j >= theirs.length ? 0 : -1;
+      }
+      if (j >= theirs.length) {
+        return 1;
+      }
+      // compare the overlapping run of both segments
+      final byte[] a = segments[i];
+      final byte[] b = theirs[j];
+      final int run = Math.min(a.length - x, b.length - y);
+      for (int n = 0; n < run; n++) {
+        final int cmp = (a[x + n] & 0xFF) - (b[y + n] & 0xFF);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      x += run;
+      y += run;
+    }
+  }
+}
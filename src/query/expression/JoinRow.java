@@ -0,0 +1,67 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.Arrays;
+
+/**
+ * A row of a join table with the matching series from each set, used by the
+ * {@link IntersectionIterator} and {@link UnionIterator}. Rows sort by their
+ * keys.
+ * @since 2.4
+ */
+final class JoinRow implements Comparable<JoinRow> {
+  /** The key shared by all series in the row */
+  final JoinKey key;
+
+  /** The series from each set, indexed on the set's index */
+  final ExpressionDataPoint[] dps;
+
+  /** The index of the series in each set, -1 if not matched */
+  final int[] indices;
+
+  /** How many sets matched this row */
+  int matched;
+
+  /**
+   * Default ctor.
+   * @param key The key of the row.
+   * @param sets The number of sets joined.
+   */
+  JoinRow(final JoinKey key, final int sets) {
+    this.key = key;
+    dps = new ExpressionDataPoint[sets];
+    indices = new int[sets];
+    Arrays.fill(indices, -1);
+  }
+
+  /**
+   * Stores a matching series. If a set has more than one series with the
+   * same key, the last one wins.
+   * @param set The index of the set.
+   * @param dp The series.
+   * @param index The index of the series in the set.
+   */
+  void set(final int set, final ExpressionDataPoint dp, final int index) {
+    if (indices[set] < 0) {
+      ++matched;
+    }
+    dps[set] = dp;
+    indices[set] = index;
+  }
+
+  @Override
+  public int compareTo(final JoinRow other) {
+    return key.compareTo(other.key);
+  }
+}
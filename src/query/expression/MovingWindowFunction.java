@@ -0,0 +1,335 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.MovingWindow;
+import net.opentsdb.core.MutableDataPoint;
+import net.opentsdb.core.TSQuery;
+
+/**
+ * Computes a statistic over a window that slides across each series. The
+ * window holds either the given number of data points, e.g. {@code 5}, or a
+ * unit of time in single quotes, e.g. {@code '5min'}. Until the window is
+ * full the function returns 0.
+ * <p>
+ * Points are kept in a {@link MovingWindow} that is reused for every series
+ * so each point is added, evicted and evaluated in constant time without
+ * allocating anything besides the output.
+ * <p>
+ * For count windows NaNs are skipped. For time windows they still move the
+ * window along but are ignored by the statistics.
+ * @since 2.4
+ */
+public class MovingWindowFunction implements Expression {
+
+  /** The largest number of points to allocate room for up front */
+  private static final int MAX_INITIAL_CAPACITY = 1024;
+
+  /** The statistics that can be computed over a window */
+  public enum Function {
+    /** The mean of the values in the window */
+    AVERAGE,
+    /** The sum of the values in the window */
+    SUM,
+    /** The smallest value in the window */
+    MIN,
+    /** The largest value in the window */
+    MAX,
+    /** The population standard deviation of the values in the window */
+    STDDEV,
+    /** An exponentially weighted moving average where the window sets the
+     * decay. For count windows each point is weighted 2 / (N + 1), for time
+     * windows the weight of the previous average decays by e^(-dt/window).
+     * Values are returned from the first point on. */
+    EWMA
+  }
+
+  /** The name of the function */
+  private final String name;
+
+  /** The statistic to compute */
+  private final Function function;
+
+  /**
+   * Default ctor.
+   * @param name The name of the function, used for the string field.
+   * @param function The statistic to compute.
+   */
+  public MovingWindowFunction(final String name, final Function function) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Missing function name");
+    }
+    if (function == null) {
+      throw new IllegalArgumentException("Missing window function");
+    }
+    this.name = name;
+    this.function = function;
+  }
+
+  @Override
+  public DataPoints[] evaluate(final TSQuery data_query,
+      final List<DataPoints[]> query_results, final List<String> params) {
+    if (data_query == null) {
+      throw new IllegalArgumentException("Missing time series query");
+    }
+    if (query_results == null || query_results.isEmpty()) {
+      return new DataPoints[]{};
+    }
+    if (params == null || params.isEmpty()) {
+      throw new IllegalArgumentException("Missing " + name + " window size");
+    }
+
+    String param = params.get(0);
+    if (param == null || param.isEmpty()) {
+      throw new IllegalArgumentException("Missing " + name + " window size");
+    }
+    param = param.trim();
+
+    long condition = -1;
+    boolean is_time_unit = false;
+    if (param.matches("^[0-9]+$")) {
+      try {
+        condition = Integer.parseInt(param);
+      } catch (NumberFormatException nfe) {
+        throw new IllegalArgumentException(
+            "Invalid parameter, must be an integer", nfe);
+      }
+    } else if (param.startsWith("'") && param.endsWith("'")) {
+      condition = parseParam(param);
+      is_time_unit = true;
+    } else {
+      throw new IllegalArgumentException("Unparseable window size: " + param);
+    }
+    if (condition <= 0) {
+      throw new IllegalArgumentException(name + " window must be an "
+          + "integer greater than zero");
+    }
+
+    int num_results = 0;
+    for (final DataPoints[] results : query_results) {
+      num_results += results.length;
+    }
+
+    final Evaluator evaluator = new Evaluator(condition, is_time_unit);
+    final long start = data_query.startTime();
+    final long end = data_query.endTime();
+    final DataPoints[] results = new DataPoints[num_results];
+    int ix = 0;
+    // one or more queries (m=...&m=...&m=...)
+    for (final DataPoints[] sub_query_result : query_results) {
+      // group bys (m=sum:foo{host=*})
+      for (final DataPoints dps : sub_query_result) {
+        evaluator.reset();
+        final List<DataPoint> points = new ArrayList<DataPoint>();
+        for (final DataPoint dp : dps) {
+          final long timestamp = dp.timestamp();
+          if (timestamp < start) {
+            continue;
+          }
+          if (timestamp > end) {
+            break;
+          }
+          // avoid flip-flopping between integers and floats, always use double
+          points.add(MutableDataPoint.ofDoubleValue(timestamp,
+              evaluator.next(timestamp, dp.toDouble())));
+        }
+        results[ix++] = new PostAggregatedDataPoints(dps,
+            points.toArray(new DataPoint[points.size()]));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Parses the parameter string to fetch the window size
+   * <p>
+   * Package private for UTs
+   * @param param The string to parse
+   * @return The window size (number of points or a unit of time in ms)
+   */
+  long parseParam(final String param) {
+    if (param == null || param.isEmpty()) {
+      throw new IllegalArgumentException(
+          "Window parameter may not be null or empty");
+    }
+    final char[] chars = param.toCharArray();
+    int idx = 0;
+    for (int c = 1; c < chars.length; c++) {
+      if (Character.isDigit(chars[c])) {
+        idx++;
+      } else {
+        break;
+      }
+    }
+    if (idx < 1) {
+      throw new IllegalArgumentException("Invalid moving window parameter: "
+          + param);
+    }
+
+    try {
+      final int time = Integer.parseInt(param.substring(1, idx + 1));
+      final String unit = param.substring(idx + 1, param.length() - 1);
+
+      // TODO(CL) - add a Graphite unit parser to DateTime for this kind of conversion
+      if ("day".equals(unit) || "d".equals(unit)) {
+        return TimeUnit.MILLISECONDS.convert(time, TimeUnit.DAYS);
+      } else if ("hr".equals(unit) || "hour".equals(unit) || "h".equals(unit)) {
+        return TimeUnit.MILLISECONDS.convert(time, TimeUnit.HOURS);
+      } else if ("min".equals(unit) || "m".equals(unit)) {
+        return TimeUnit.MILLISECONDS.convert(time, TimeUnit.MINUTES);
+      } else if ("sec".equals(unit) || "s".equals(unit)) {
+        return TimeUnit.MILLISECONDS.convert(time, TimeUnit.SECONDS);
+      } else {
+        throw new IllegalArgumentException("Unknown time unit=" + unit
+            + " in window=" + param);
+      }
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("Unable to parse moving window "
+          + "parameter: " + param, nfe);
+    }
+  }
+
+  @Override
+  public String writeStringField(final List<String> query_params,
+      final String inner_expression) {
+    return name + "(" + inner_expression + ")";
+  }
+
+  /**
+   * Slides the window across a series one point at a time. A point is part of
+   * a time window if it is less than the window size older than the current
+   * point and the window is full once a point at least that old was seen.
+   * <p>
+   * Package private for unit testing
+   */
+  final class Evaluator {
+    /** The condition to satisfy, either a time unit or # of data points */
+    private final long condition;
+    /** Whether or not the condition is a time unit or the # of data points */
+    private final boolean is_time_unit;
+    /** The window, null for EWMAs */
+    private final MovingWindow window;
+    /** Whether or not a time window has been filled */
+    private boolean window_full;
+    /** The current EWMA, NaN until the first value */
+    private double ewma;
+    /** The timestamp of the last EWMA update */
+    private long last_timestamp;
+
+    /**
+     * Default ctor
+     * @param condition The windowing condition
+     * @param is_time_unit Whether or not the condition is a time unit or
+     * the # of data points
+     */
+    Evaluator(final long condition, final boolean is_time_unit) {
+      this.condition = condition;
+      this.is_time_unit = is_time_unit;
+      if (function == Function.EWMA) {
+        window = null;
+      } else {
+        window = new MovingWindow(is_time_unit ? 16 :
+          (int) Math.min(condition, MAX_INITIAL_CAPACITY),
+          function == Function.MIN || function == Function.MAX);
+      }
+      reset();
+    }
+
+    /** Resets the state for the next series */
+    void reset() {
+      if (window != null) {
+        window.clear();
+      }
+      window_full = false;
+      ewma = Double.NaN;
+    }
+
+    /**
+     * Adds the next point of the series to the window.
+     * @param timestamp The timestamp of the point in milliseconds.
+     * @param value The value of the point.
+     * @return The statistic for the window ending at this point or 0 if the
+     * window isn't full yet.
+     */
+    double next(final long timestamp, final double value) {
+      if (function == Function.EWMA) {
+        return nextEwma(timestamp, value);
+      }
+
+      if (is_time_unit) {
+        window.add(timestamp, value);
+        while (window.size() > 0 &&
+            timestamp - window.timestamp(0) >= condition) {
+          window.removeFirst();
+          window_full = true;
+        }
+      } else {
+        if (Double.isNaN(value)) {
+          // skip NaNs to avoid NaNing everything in the window.
+          return window.size() >= condition ? evaluate() : 0;
+        }
+        window.add(timestamp, value);
+        if (window.size() > condition) {
+          window.removeFirst();
+        }
+        window_full = window.size() >= condition;
+      }
+
+      if (!window_full || window.count() < 1) {
+        return 0;
+      }
+      return evaluate();
+    }
+
+    /** @return The statistic for the current window */
+    private double evaluate() {
+      switch (function) {
+      case AVERAGE:
+        return window.mean();
+      case SUM:
+        return window.sum();
+      case MIN:
+        return window.min();
+      case MAX:
+        return window.max();
+      case STDDEV:
+        return window.stdDev();
+      default:
+        throw new IllegalStateException("Unhandled function: " + function);
+      }
+    }
+
+    /** @return The updated EWMA, skipping NaNs */
+    private double nextEwma(final long timestamp, final double value) {
+      if (Double.isNaN(value)) {
+        return Double.isNaN(ewma) ? 0 : ewma;
+      }
+      if (Double.isNaN(ewma)) {
+        ewma = value;
+      } else {
+        final double alpha = is_time_unit ?
+            1 - Math.exp(-(double) (timestamp - last_timestamp) / condition) :
+            2.0 / (condition + 1);
+        ewma += alpha * (value - ewma);
+      }
+      last_timestamp = timestamp;
+      return ewma;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.PriorityQueue;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+/**
+ * Selects the top "n" series by a per-series score, keeping only the current
+ * candidates in a bounded min-heap. Series are scored without copying their
+ * points and only the "n" winners are referenced once the collector is done.
+ * @since 2.4
+ */
+final class TopNCollector {
+
+  /** How a series is scored. */
+  enum Mode {
+    /** The maximum value within the query time range. */
+    MAX,
+    /** The value at the latest timestamp within the query time range. Series
+     * that stopped reporting earlier rank below series that are current. */
+    CURRENT
+  }
+
+  /** The first window, in milliseconds, read back from the end of the range
+   * in {@link Mode#CURRENT}. */
+  private static final long CURRENT_WINDOW_MS = 60000;
+
+  /** The number of series to return. */
+  private final int topn;
+
+  /** The scoring mode. */
+  private final Mode mode;
+
+  /** Query start time in milliseconds for filtering */
+  private final long start;
+
+  /** Query end time in milliseconds for filtering */
+  private final long end;
+
+  /** Min-heap on the rank so the weakest candidate is at the head. */
+  private final PriorityQueue<Candidate> heap;
+
+  /** Series offered so far, used to keep the ordering stable on ties. */
+  private int sequence;
+
+  /**
+   * Default ctor.
+   * @param topn The number of series to keep, must be greater than zero.
+   * @param mode The scoring mode.
+   * @param start Query start time in milliseconds for filtering
+   * @param end Query end time in milliseconds for filtering
+   */
+  TopNCollector(final int topn, final Mode mode, final long start,
+      final long end) {
+    this.topn = topn;
+    this.mode = mode;
+    this.start = start;
+    this.end = end;
+    heap = new PriorityQueue<Candidate>(Math.min(topn, 1024) + 1);
+  }
+
+  /**
+   * Scores the series and keeps a reference to it if it ranks within the top
+   * "n" so far. No points are copied, the series is only read again if it is
+   * serialized.
+   * Series without any data points are ignored in {@link Mode#CURRENT}.
+   * @param dps The series to offer.
+   */
+  void offer(final DataPoints dps) {
+    final Candidate candidate = mode == Mode.MAX ? scoreMax(dps) 
+        : scoreCurrent(dps);
+    if (candidate == null) {
+      return;
+    }
+    if (heap.size() >= topn) {
+      if (heap.peek().compareTo(candidate) >= 0) {
+        // can't make the cut, drop it before it's retained
+        return;
+      }
+      heap.poll();
+    }
+    candidate.series = dps;
+    heap.add(candidate);
+  }
+
+  /**
+   * Scores the series by its maximum value within the range in one pass.
+   * @param dps The series to score.
+   * @return A candidate for the series.
+   */
+  private Candidate scoreMax(final DataPoints dps) {
+    double value = Double.NEGATIVE_INFINITY;
+    final SeekableView it = dps.iterator();
+    while (it.hasNext()) {
+      final DataPoint point = it.next();
+      final long ts = point.timestamp();
+      if (ts < start) {
+        continue;
+      }
+      if (ts > end) {
+        // views are sorted so nothing else can be in range
+        break;
+      }
+      final double v = point.toDouble();
+      if (!Double.isNaN(v) && v > value) {
+        value = v;
+      }
+    }
+    return new Candidate(Long.MIN_VALUE, value, sequence++);
+  }
+
+  /**
+   * Scores the series by its latest value within the range. Rather than 
+   * walking the whole series, the iterator is seeked to a window at the end
+   * of the range that doubles until a real value is found or the window
+   * covers the full range. Views that can't seek are walked once.
+   * @param dps The series to score.
+   * @return A candidate for the series or null if it doesn't have any points.
+   */
+  private Candidate scoreCurrent(final DataPoints dps) {
+    long window = CURRENT_WINDOW_MS;
+    while (true) {
+      long from = window >= end - start ? start : end - window;
+      final SeekableView it = dps.iterator();
+      try {
+        it.seek(from);
+      } catch (UnsupportedOperationException e) {
+        // e.g. expression results, walk them once from the start instead
+        from = start;
+      }
+      boolean found = false;
+      long timestamp = Long.MIN_VALUE;
+      double value = Double.NEGATIVE_INFINITY;
+      while (it.hasNext()) {
+        final DataPoint point = it.next();
+        final long ts = point.timestamp();
+        if (ts < from) {
+          continue;
+        }
+        if (ts > end) {
+          break;
+        }
+        final double v = point.toDouble();
+        if (Double.isNaN(v)) {
+          continue;
+        }
+        found = true;
+        timestamp = ts;
+        value = v;
+      }
+      if (found) {
+        return new Candidate(timestamp, value, sequence++);
+      }
+      if (from == start) {
+        if (!dps.iterator().hasNext()) {
+          // matches the behavior of the original aggregation iterator
+          return null;
+        }
+        return new Candidate(Long.MIN_VALUE, Double.NEGATIVE_INFINITY, 
+            sequence++);
+      }
+      window = window > Long.MAX_VALUE / 2 ? Long.MAX_VALUE : window * 2;
+    }
+  }
+
+  /** @return The selected series sorted from highest to lowest rank. */
+  DataPoints[] results() {
+    final DataPoints[] results = new DataPoints[heap.size()];
+    for (int i = results.length - 1; i >= 0; i--) {
+      results[i] = heap.poll().series;
+    }
+    return results;
+  }
+
+  /**
+   * A scored series. Natural ordering is ascending by rank so that the heap
+   * head is the weakest candidate. Earlier series win ties.
+   */
+  private static final class Candidate implements Comparable<Candidate> {
+    final long timestamp;
+    final double value;
+    final int sequence;
+    DataPoints series;
+
+    Candidate(final long timestamp, final double value, final int sequence) {
+      this.timestamp = timestamp;
+      this.value = value;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(final Candidate other) {
+      if (timestamp != other.timestamp) {
+        return timestamp < other.timestamp ? -1 : 1;
+      }
+      final int cmp = Double.compare(value, other.value);
+      if (cmp != 0) {
+        return cmp;
+      }
+      return other.sequence - sequence;
+    }
+  }
+}
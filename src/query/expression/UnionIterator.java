@@ -12,8 +12,10 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.query.expression;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -21,9 +23,9 @@ import net.opentsdb.core.FillPolicy;
 import net.opentsdb.core.IllegalDataException;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.utils.ByteSet;
+import net.opentsdb.utils.DateTime;
 
 import org.hbase.async.HBaseClient;
-import org.hbase.async.Bytes.ByteMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -78,6 +80,12 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
   /** A data point used for filling missing time series */
   private ExpressionDataPoint fill_dp;
   
+  /** Time in nanoseconds spent building the join table */
+  private long join_build_time;
+  
+  /** Time in nanoseconds spent probing the join table */
+  private long join_probe_time;
+  
   /**
    * Default ctor
    * @param id The variable ID for this iterator
@@ -166,51 +174,76 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
   
   /**
    * Computes the union of all sets, matching on tags and optionally the 
-   * aggregated tags across each variable.
+   * aggregated tags across each variable with a hash join. The largest set
+   * builds the table and the others probe it, adding rows for series that
+   * weren't seen yet.
    */
   private void computeUnion() {
-    // key = flattened tags, array of queries.size()
-    final ByteMap<ExpressionDataPoint[]> ordered_union = 
-        new ByteMap<ExpressionDataPoint[]>(); 
-
-    final Iterator<ITimeSyncedIterator> it = queries.values().iterator();
-    while (it.hasNext()) {
-      final ITimeSyncedIterator sub = it.next();
-      final ExpressionDataPoint[] dps = sub.values();
-      final ByteMap<Integer> local_tags = new ByteMap<Integer>();
-      
-      for (int i = 0; i < sub.size(); i++) {
-        final byte[] key = flattenTags(union_on_query_tagks, include_agg_tags, 
-            dps[i], sub);
-        local_tags.put(key, i);
-        ExpressionDataPoint[] udps = ordered_union.get(key);
-        if (udps == null) {
-          udps = new ExpressionDataPoint[queries.size()];
-          ordered_union.put(key, udps);
-        }
-        udps[sub.getIndex()] = dps[i];
+    final long build_start = DateTime.nanoTime();
+    ITimeSyncedIterator build = null;
+    for (final ITimeSyncedIterator sub : queries.values()) {
+      if (build == null || sub.size() > build.size()) {
+        build = sub;
+      }
+    }
+    if (build == null) {
+      return;
+    }
+    
+    final Map<JoinKey, JoinRow> table = 
+        new HashMap<JoinKey, JoinRow>(build.size() * 2);
+    join(build, table);
+    final long probe_start = DateTime.nanoTime();
+    join_build_time = probe_start - build_start;
+    
+    for (final ITimeSyncedIterator sub : queries.values()) {
+      if (sub != build) {
+        join(sub, table);
       }
     }
     
-    if (ordered_union.size() < 1) {
+    if (table.size() < 1) {
       // if no data, just stop here
+      join_probe_time = DateTime.nanoTime() - probe_start;
       return;
     }
     
-    setCurrentAndMeta(ordered_union);
+    final List<JoinRow> rows = new ArrayList<JoinRow>(table.values());
+    Collections.sort(rows);
+    join_probe_time = DateTime.nanoTime() - probe_start;
+    setCurrentAndMeta(rows);
+  }
+  
+  /**
+   * Adds the series of a set to the join table.
+   * @param sub The set to add.
+   * @param table The table to add to.
+   */
+  private void join(final ITimeSyncedIterator sub, 
+      final Map<JoinKey, JoinRow> table) {
+    final ExpressionDataPoint[] dps = sub.values();
+    for (int i = 0; i < sub.size(); i++) {
+      final JoinKey key = new JoinKey(union_on_query_tagks, include_agg_tags, 
+          dps[i], sub);
+      JoinRow row = table.get(key);
+      if (row == null) {
+        row = new JoinRow(key, queries.size());
+        table.put(key, row);
+      }
+      row.set(sub.getIndex(), dps[i], i);
+    }
   }
   
   /**
    * Takes the resulting union and builds the {@link #current_values}
    * and {@link #meta} maps.
-   * @param ordered_union The union to build from.
+   * @param rows The sorted rows of the union to build from.
    */
-  private void setCurrentAndMeta(final ByteMap<ExpressionDataPoint[]> 
-      ordered_union) {
+  private void setCurrentAndMeta(final List<JoinRow> rows) {
     for (final String id : queries.keySet()) {
-      current_values.put(id, new ExpressionDataPoint[ordered_union.size()]);
+      current_values.put(id, new ExpressionDataPoint[rows.size()]);
       // TODO - blech. Fill with a sentinel value to reflect "no data here!"
-      final int[] m = new int[ordered_union.size()];
+      final int[] m = new int[rows.size()];
       for (int i = 0; i < m.length; i++) {
         m[i] = -1;
       }
@@ -218,8 +251,8 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
     }
     
     int i = 0;
-    for (final Entry<byte[], ExpressionDataPoint[]> entry : ordered_union.entrySet()) {
-      final ExpressionDataPoint[] idps = entry.getValue();
+    for (final JoinRow row : rows) {
+      final ExpressionDataPoint[] idps = row.dps;
       for (int x = 0; x < idps.length; x++) {
         final ExpressionDataPoint[] current_dps = 
             current_values.get(index_to_names[x]);
@@ -240,7 +273,7 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
         }
       }
     }
-    series_size = ordered_union.size();
+    series_size = rows.size();
   }
   
   /**
@@ -428,6 +461,16 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
     return series_size;
   }
 
+  @Override
+  public long getJoinBuildTime() {
+    return join_build_time;
+  }
+  
+  @Override
+  public long getJoinProbeTime() {
+    return join_probe_time;
+  }
+
   @Override
   public boolean hasNext(int index) {
     for (final Entry<String, int[]> entry : single_series_matrix.entrySet()) {
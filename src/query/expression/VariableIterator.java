@@ -112,4 +112,12 @@ public interface VariableIterator {
   
   /** @return the next timestamp for all results without iterating */
   public long nextTimestamp();
+  
+  /** @return The time in nanoseconds spent building the join table.
+   * @since 2.4 */
+  public long getJoinBuildTime();
+  
+  /** @return The time in nanoseconds spent probing the join table and 
+   * ordering the joined series. @since 2.4 */
+  public long getJoinProbeTime();
 }
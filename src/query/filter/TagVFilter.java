@@ -19,6 +19,7 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -159,6 +160,35 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
    */
   public abstract Deferred<Boolean> match(final Map<String, String> tags);
   
+  /**
+   * Whether or not the result of {@link #match(Map)} depends solely on the
+   * value of this filter's tag key. If so, scanners may call 
+   * {@link #matchTagv(String)} once per distinct tag value UID and cache the
+   * result instead of resolving every tag in every row. Defaults to false so
+   * that plugins keep the full map.
+   * @return True if {@link #matchTagv(String)} is implemented.
+   * @since 2.4
+   */
+  @JsonIgnore
+  public boolean matchesOnTagv() {
+    return false;
+  }
+  
+  /**
+   * Synchronously evaluates the filter against a single tag value. Only
+   * called when {@link #matchesOnTagv()} returns true.
+   * @param tagv The value of the filter's tag key, null if the series does 
+   * not have the tag key.
+   * @return True if the tag value matches, false if it doesn't.
+   * @throws UnsupportedOperationException if the filter requires the full 
+   * tag map.
+   * @since 2.4
+   */
+  public boolean matchTagv(final String tagv) {
+    throw new UnsupportedOperationException("Filter " + getName() 
+        + " must be evaluated against the full tag map");
+  }
+  
   /**
    * The name of this filter as used in queries. When used in URL queries the
    * value will be in parentheses, e.g. filter(&lt;exp&gt;)
@@ -399,6 +429,16 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
    * The value will be the tag UID (unless it's an exception of course)
    */
   public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    return resolveTagk(tsdb);
+  }
+  
+  /**
+   * Resolves the tagk name to it's UID without any of the tag value lookups
+   * that implementations may add to {@link #resolveTagkName(TSDB)}.
+   * @param tsdb The TSDB to use for the lookup
+   * @return A deferred resolving to the tag key UID.
+   */
+  private Deferred<byte[]> resolveTagk(final TSDB tsdb) {
     class ResolvedCB implements Callback<byte[], byte[]> {
       @Override
       public byte[] call(final byte[] uid) throws Exception {
@@ -486,6 +526,56 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
     return Deferred.group(tagvs).addCallback(new ResolvedTagVCB());
   }
   
+  /**
+   * Expands a pattern filter into the set of tag value UIDs it matches so the
+   * values can be pushed into the row key filter the same way literals are.
+   * The candidate names are pulled from the UID table with a prefix scan,
+   * which also warms the UID cache, and each is run through 
+   * {@link #matchTagv(String)}. If "tsd.query.filter.expand_patterns" is 
+   * disabled, there isn't a literal prefix or more than 
+   * "tsd.query.filter.expansion_limit" values share the prefix then only the 
+   * tag key is resolved and the filter runs after the scan as usual.
+   * @param tsdb The TSDB to use for the lookups
+   * @param prefix A literal prefix that every matching value must start with.
+   * May be null.
+   * @return A deferred to let the caller know that the lookup was completed.
+   * The value will be the tag UID (unless it's an exception of course)
+   * @since 2.4
+   */
+  protected Deferred<byte[]> expandTagvs(final TSDB tsdb, final String prefix) {
+    final Config config = tsdb.getConfig();
+    if (prefix == null || prefix.isEmpty() || 
+        !config.getBoolean("tsd.query.filter.expand_patterns")) {
+      return resolveTagk(tsdb);
+    }
+    final int limit = config.getInt("tsd.query.filter.expansion_limit");
+    
+    /** Matches the candidates and resolves the survivors to UIDs */
+    class SuggestCB implements Callback<Deferred<byte[]>, List<String>> {
+      @Override
+      public Deferred<byte[]> call(final List<String> names) throws Exception {
+        if (names.size() > limit) {
+          LOG.debug("Not expanding " + TagVFilter.this + " as more than " 
+              + limit + " tag values start with " + prefix);
+          return resolveTagk(tsdb);
+        }
+        final Set<String> matched = new HashSet<String>(names.size());
+        for (final String name : names) {
+          if (matchTagv(name)) {
+            matched.add(name);
+          }
+        }
+        if (matched.isEmpty()) {
+          return resolveTagk(tsdb);
+        }
+        return resolveTags(tsdb, matched);
+      }
+    }
+    
+    return tsdb.suggestTagValuesAsync(prefix, limit + 1)
+        .addCallbackDeferring(new SuggestCB());
+  }
+  
   /** @return the tag key associated with this filter */
   public String getTagk() {
     return tagk;
@@ -80,12 +80,20 @@ public class TagVLiteralOrFilter extends TagVFilter {
   
   @Override
   public Deferred<Boolean> match(final Map<String, String> tags) {
-    final String tagv = tags.get(tagk);
+    return Deferred.fromResult(matchTagv(tags.get(tagk)));
+  }
+  
+  @Override
+  public boolean matchesOnTagv() {
+    return true;
+  }
+  
+  @Override
+  public boolean matchTagv(final String tagv) {
     if (tagv == null) {
-      return Deferred.fromResult(false);
+      return false;
     }
-    return Deferred.fromResult(
-        literals.contains(case_insensitive ? tagv.toLowerCase() : tagv));
+    return literals.contains(case_insensitive ? tagv.toLowerCase() : tagv);
   }
 
   @Override
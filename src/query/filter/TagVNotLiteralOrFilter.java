@@ -12,13 +12,24 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.query.filter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Objects;
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 /**
@@ -37,6 +48,9 @@ public class TagVNotLiteralOrFilter extends TagVFilter {
   /** Whether or not the match should be case insensitive */
   final protected boolean case_insensitive;
   
+  /** The sorted UIDs of the excluded values, null if not resolved */
+  protected List<byte[]> excluded_uids;
+  
   /**
    * The default Ctor that disables case insensitivity
    * @param tagk The tag key to associate with this filter
@@ -77,12 +91,100 @@ public class TagVNotLiteralOrFilter extends TagVFilter {
   
   @Override
   public Deferred<Boolean> match(final Map<String, String> tags) {
-    final String tagv = tags.get(tagk);
+    return Deferred.fromResult(matchTagv(tags.get(tagk)));
+  }
+  
+  @Override
+  public boolean matchesOnTagv() {
+    return true;
+  }
+  
+  @Override
+  public boolean matchTagv(final String tagv) {
     if (tagv == null) {
-      return Deferred.fromResult(true);
+      return true;
+    }
+    return !(literals.contains(case_insensitive ? tagv.toLowerCase() : tagv));
+  }
+  
+  /**
+   * Resolves the tag key and, if the filter is NOT case insensitive and there
+   * are fewer literals than the expansion limit, the UIDs of the excluded
+   * values so that they can be skipped in the row key filter and matched
+   * without resolving names. Values that don't have a UID are ignored as no
+   * series can carry them.
+   * @param tsdb The TSDB to use for the lookups
+   * @return A deferred to let the caller know that the lookup was completed.
+   * The value will be the tag UID (unless it's an exception of course)
+   * @since 2.4
+   */
+  @Override
+  public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    final Config config = tsdb.getConfig();
+    if (case_insensitive || 
+        literals.size() > config.getInt("tsd.query.filter.expansion_limit")) {
+      return super.resolveTagkName(tsdb);
     }
-    return Deferred.fromResult(
-        !(literals.contains(case_insensitive ? tagv.toLowerCase() : tagv)));
+    
+    /** Drops values that were never assigned a UID */
+    class NoSuchNameCB implements Callback<byte[], Exception> {
+      @Override
+      public byte[] call(final Exception e) throws Exception {
+        if (e instanceof NoSuchUniqueName) {
+          return null;
+        }
+        throw e;
+      }
+    }
+    
+    /** Stores the sorted UIDs once the tag key is resolved as well */
+    class ExcludedCB implements Callback<byte[], byte[]> {
+      final List<byte[]> uids;
+      
+      ExcludedCB(final List<byte[]> uids) {
+        this.uids = uids;
+      }
+      
+      @Override
+      public byte[] call(final byte[] tagk) throws Exception {
+        excluded_uids = uids;
+        return tagk;
+      }
+    }
+    
+    /** Sorts the resolved UIDs and then resolves the tag key */
+    class ResolvedTagVCB implements Callback<Deferred<byte[]>, 
+        ArrayList<byte[]>> {
+      @Override
+      public Deferred<byte[]> call(final ArrayList<byte[]> results) 
+          throws Exception {
+        final List<byte[]> uids = new ArrayList<byte[]>(results.size());
+        for (final byte[] uid : results) {
+          if (uid != null) {
+            uids.add(uid);
+          }
+        }
+        Collections.sort(uids, Bytes.MEMCMP);
+        return TagVNotLiteralOrFilter.super.resolveTagkName(tsdb)
+            .addCallback(new ExcludedCB(uids));
+      }
+    }
+    
+    final List<Deferred<byte[]>> tagvs = 
+        new ArrayList<Deferred<byte[]>>(literals.size());
+    for (final String tagv : literals) {
+      tagvs.add(tsdb.getUIDAsync(UniqueIdType.TAGV, tagv)
+          .addErrback(new NoSuchNameCB()));
+    }
+    return Deferred.group(tagvs).addCallbackDeferring(new ResolvedTagVCB());
+  }
+  
+  /** @return The sorted UIDs of the excluded values, which may be empty if 
+   * none exist, or null if they weren't resolved. 
+   * @since 2.4 */
+  @JsonIgnore
+  public List<byte[]> getExcludedTagVUids() {
+    return excluded_uids;
   }
   
   @Override
@@ -16,6 +16,8 @@ import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import net.opentsdb.core.TSDB;
+
 import com.google.common.base.Objects;
 import com.stumbleupon.async.Deferred;
 
@@ -48,11 +50,56 @@ public class TagVRegexFilter extends TagVFilter {
   
   @Override
   public Deferred<Boolean> match(final Map<String, String> tags) {
-    final String tagv = tags.get(tagk);
+    return Deferred.fromResult(matchTagv(tags.get(tagk)));
+  }
+  
+  @Override
+  public boolean matchesOnTagv() {
+    return true;
+  }
+  
+  @Override
+  public boolean matchTagv(final String tagv) {
     if (tagv == null) {
-      return Deferred.fromResult(false);
+      return false;
+    }
+    return pattern.matcher(tagv).find();
+  }
+
+  /**
+   * Overridden here so that anchored patterns with a literal prefix can be
+   * expanded into tag value UIDs when enabled.
+   */
+  @Override
+  public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    return expandTagvs(tsdb, literalPrefix(pattern.pattern()));
+  }
+  
+  /**
+   * Finds the literal prefix that every match of an anchored pattern must 
+   * start with, e.g. "web" for "^web[0-9]+". Alternations are not supported.
+   * @param regex The pattern to parse.
+   * @return The literal prefix or null if the pattern is not anchored or 
+   * doesn't start with a literal.
+   */
+  static String literalPrefix(final String regex) {
+    if (regex.length() < 2 || regex.charAt(0) != '^' || 
+        regex.indexOf('|') >= 0) {
+      return null;
+    }
+    final StringBuilder buf = new StringBuilder();
+    for (int i = 1; i < regex.length(); i++) {
+      final char c = regex.charAt(i);
+      if (".[]{}()\\*+?^$|".indexOf(c) >= 0) {
+        // these quantifiers make the previous character optional
+        if ((c == '*' || c == '?' || c == '{') && buf.length() > 0) {
+          buf.setLength(buf.length() - 1);
+        }
+        break;
+      }
+      buf.append(c);
     }
-    return Deferred.fromResult(pattern.matcher(tagv).find());
+    return buf.length() > 0 ? buf.toString() : null;
   }
 
   @Override
@@ -0,0 +1,323 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+import net.opentsdb.utils.LongByteMap;
+
+import org.hbase.async.Bytes;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Evaluates post-scan filters directly against the tag value UIDs in a row
+ * key. The filters are compiled once per query: they're grouped by tag key in
+ * row key order so that a single pass over the tag section of a key finds the
+ * value for every filter, and each filter is turned into the cheapest check
+ * its resolution allows.
+ * <ul>
+ * <li>Filters whose matches were resolved to UIDs up front, i.e. literals and
+ * expanded patterns, test membership in a sorted array of UIDs.</li>
+ * <li>Negated literals test for the absence of their excluded UIDs, see
+ * {@link TagVNotLiteralOrFilter#getExcludedTagVUids()}.</li>
+ * <li>Anything else caches its result per tag value UID for the life of the
+ * query so that a distinct tag value is resolved to a string and matched
+ * once instead of resolving every tag of every row into a map.</li>
+ * </ul>
+ * Only filters that match on their own tag value can be evaluated this way,
+ * see {@link TagVFilter#matchesOnTagv()}, and their tag keys must already be
+ * resolved. Callers should check {@link #canMatch(List)} first and fall back
+ * to {@link TagVFilter#match(java.util.Map)} otherwise.
+ * <p>
+ * Instances are thread safe and {@link #match(byte[])} is lock free so they
+ * can be shared by the scanners of a query.
+ * @since 2.4
+ */
+public final class TagVUidMatcher {
+  /** Cached value for tag values that don't match */
+  private static final byte NO_MATCH = 1;
+
+  /** Cached value for tag values that match */
+  private static final byte MATCH = 2;
+
+  /** The TSDB used to resolve tag values */
+  private final TSDB tsdb;
+
+  /** The distinct tag keys of the filters, sorted as they are in row keys */
+  private final byte[][] tagks;
+
+  /** The filters to evaluate, sorted by tag key */
+  private final TagVFilter[] filters;
+
+  /** Index into {@link #filters} of the first filter for each tag key */
+  private final int[] slot_start;
+
+  /** Sorted tag value UIDs that match (or, when negated, fail) each filter.
+   * Null for filters that need their names resolved. */
+  private final long[][] uids;
+
+  /** Whether the UIDs in {@link #uids} are the values a filter excludes */
+  private final boolean[] negated;
+
+  /** Per filter results keyed on the tag value UID. Null for filters that
+   * are evaluated against {@link #uids}. */
+  private final LongByteMap[] results;
+
+  /** Per filter results for rows missing the tag key */
+  private final boolean[] missing;
+
+  /** Offset of the first tag pair in a row key */
+  private final int tags_offset;
+
+  /** Tag key width in bytes */
+  private final short tagk_width;
+
+  /** Tag value width in bytes */
+  private final short tagv_width;
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB used to resolve tag values.
+   * @param filters The non-empty list of filters to evaluate.
+   * @throws IllegalArgumentException if the filters cannot be evaluated on
+   * UIDs.
+   */
+  public TagVUidMatcher(final TSDB tsdb, final List<TagVFilter> filters) {
+    if (tsdb == null) {
+      throw new IllegalArgumentException("TSDB cannot be null");
+    }
+    if (!canMatch(filters)) {
+      throw new IllegalArgumentException("Filters cannot be evaluated on "
+          + "UIDs: " + filters);
+    }
+    this.tsdb = tsdb;
+    tags_offset = Const.SALT_WIDTH() + TSDB.metrics_width()
+        + Const.TIMESTAMP_BYTES;
+    tagk_width = TSDB.tagk_width();
+    tagv_width = TSDB.tagv_width();
+
+    final List<TagVFilter> sorted = new ArrayList<TagVFilter>(filters);
+    Collections.sort(sorted, new Comparator<TagVFilter>() {
+      @Override
+      public int compare(final TagVFilter a, final TagVFilter b) {
+        return Bytes.memcmp(a.getTagkBytes(), b.getTagkBytes());
+      }
+    });
+    this.filters = sorted.toArray(new TagVFilter[sorted.size()]);
+
+    final List<byte[]> distinct = new ArrayList<byte[]>();
+    final List<Integer> starts = new ArrayList<Integer>();
+    for (int i = 0; i < this.filters.length; i++) {
+      final byte[] tagk = this.filters[i].getTagkBytes();
+      if (distinct.isEmpty() || 
+          Bytes.memcmp(distinct.get(distinct.size() - 1), tagk) != 0) {
+        distinct.add(tagk);
+        starts.add(i);
+      }
+    }
+    tagks = distinct.toArray(new byte[distinct.size()][]);
+    slot_start = new int[starts.size() + 1];
+    for (int i = 0; i < starts.size(); i++) {
+      slot_start[i] = starts.get(i);
+    }
+    slot_start[starts.size()] = this.filters.length;
+
+    uids = new long[this.filters.length][];
+    negated = new boolean[this.filters.length];
+    results = new LongByteMap[this.filters.length];
+    missing = new boolean[this.filters.length];
+    for (int i = 0; i < this.filters.length; i++) {
+      final TagVFilter filter = this.filters[i];
+      missing[i] = filter.matchTagv(null);
+      if (!filter.getTagVUids().isEmpty()) {
+        uids[i] = toSortedLongs(filter.getTagVUids());
+      } else if (filter instanceof TagVNotLiteralOrFilter && 
+          ((TagVNotLiteralOrFilter) filter).getExcludedTagVUids() != null) {
+        uids[i] = toSortedLongs(
+            ((TagVNotLiteralOrFilter) filter).getExcludedTagVUids());
+        negated[i] = true;
+      } else {
+        results[i] = new LongByteMap();
+      }
+    }
+  }
+
+  /**
+   * Determines whether or not all of the filters can be evaluated on tag
+   * value UIDs.
+   * @param filters The filters to check, may be null.
+   * @return True if the list is not empty and every filter has a resolved tag
+   * key and matches on its tag value alone.
+   */
+  public static boolean canMatch(final List<TagVFilter> filters) {
+    if (filters == null || filters.isEmpty()) {
+      return false;
+    }
+    for (final TagVFilter filter : filters) {
+      if (!filter.matchesOnTagv() || filter.getTagkBytes() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Evaluates the filters against the row key using cached results only.
+   * @param key The row key to evaluate.
+   * @return {@link Boolean#TRUE} if every filter matched, {@link Boolean#FALSE}
+   * if any filter failed and null if one or more tag values have not been
+   * seen yet. In that case call {@link #resolve(byte[])}.
+   */
+  public Boolean match(final byte[] key) {
+    boolean unknown = false;
+    int pos = tags_offset;
+    for (int slot = 0; slot < tagks.length; slot++) {
+      pos = seek(key, pos, tagks[slot]);
+      final boolean found = pos + tagk_width + tagv_width <= key.length && 
+          compareTagk(key, pos, tagks[slot]) == 0;
+      final long uid = found ? uidToLong(key, pos + tagk_width) : 0;
+      for (int i = slot_start[slot]; i < slot_start[slot + 1]; i++) {
+        if (!found) {
+          if (!missing[i]) {
+            return Boolean.FALSE;
+          }
+        } else if (uids[i] != null) {
+          if ((Arrays.binarySearch(uids[i], uid) >= 0) == negated[i]) {
+            return Boolean.FALSE;
+          }
+        } else {
+          final byte result = results[i].get(uid);
+          if (result == LongByteMap.NO_VALUE) {
+            unknown = true;
+          } else if (result == NO_MATCH) {
+            return Boolean.FALSE;
+          }
+        }
+      }
+    }
+    return unknown ? null : Boolean.TRUE;
+  }
+
+  /**
+   * Resolves the tag values in the row key that haven't been seen yet and
+   * caches the filter results. Once the lookups complete, call
+   * {@link #match(byte[])} to evaluate the row. Scanners racing on the same
+   * new tag value may both resolve it, the UID cache makes that cheap.
+   * @param key The row key to evaluate.
+   * @return A list with one deferred per tag value being resolved, empty if
+   * all of them were cached. The deferreds resolve to an exception if a tag
+   * value could not be resolved.
+   */
+  public List<Deferred<Object>> resolve(final byte[] key) {
+    final List<Deferred<Object>> lookups = new ArrayList<Deferred<Object>>(1);
+    int pos = tags_offset;
+    for (int slot = 0; slot < tagks.length; slot++) {
+      pos = seek(key, pos, tagks[slot]);
+      if (pos + tagk_width + tagv_width > key.length || 
+          compareTagk(key, pos, tagks[slot]) != 0) {
+        continue;
+      }
+      final int offset = pos + tagk_width;
+      final long uid = uidToLong(key, offset);
+      for (int i = slot_start[slot]; i < slot_start[slot + 1]; i++) {
+        final LongByteMap result = results[i];
+        if (result == null || result.get(uid) != LongByteMap.NO_VALUE) {
+          continue;
+        }
+
+        final TagVFilter filter = filters[i];
+        /** Caches the filter result for the resolved tag value */
+        class ResolvedCB implements Callback<Object, String> {
+          @Override
+          public Object call(final String tagv) throws Exception {
+            result.put(uid, filter.matchTagv(tagv) ? MATCH : NO_MATCH);
+            return null;
+          }
+        }
+
+        lookups.add(tsdb.getUidName(UniqueIdType.TAGV,
+            Arrays.copyOfRange(key, offset, offset + tagv_width))
+              .addCallback(new ResolvedCB()));
+      }
+    }
+    return lookups;
+  }
+
+  /** @return The number of distinct tag values cached across filters. */
+  public int cachedTagvs() {
+    int count = 0;
+    for (final LongByteMap result : results) {
+      if (result != null) {
+        count += result.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Skips tag pairs in the row key that sort before the given tag key. Since
+   * both the key and the compiled tag keys are sorted, each call picks up
+   * where the last one left off.
+   * @param key The row key to search.
+   * @param pos The offset of the tag pair to start from.
+   * @param tagk The tag key UID to search for.
+   * @return The offset of the first tag pair with a tag key greater than or
+   * equal to the given key, or the end of the key.
+   */
+  private int seek(final byte[] key, int pos, final byte[] tagk) {
+    while (pos + tagk_width + tagv_width <= key.length && 
+        compareTagk(key, pos, tagk) < 0) {
+      pos += tagk_width + tagv_width;
+    }
+    return pos;
+  }
+
+  /** @return An unsigned comparison of the tag key at the offset. */
+  private int compareTagk(final byte[] key, final int pos, final byte[] tagk) {
+    for (int i = 0; i < tagk_width; i++) {
+      final int cmp = (key[pos + i] & 0xFF) - (tagk[i] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  /** @return The tag value UID at the offset packed into a long. */
+  private long uidToLong(final byte[] key, final int offset) {
+    long uid = 0;
+    for (int i = 0; i < tagv_width; i++) {
+      uid = (uid << 8) | (key[offset + i] & 0xFF);
+    }
+    return uid;
+  }
+
+  /** @return The UIDs packed into longs and sorted for binary searches. */
+  private long[] toSortedLongs(final List<byte[]> values) {
+    final long[] longs = new long[values.size()];
+    for (int i = 0; i < longs.length; i++) {
+      longs[i] = uidToLong(values.get(i), 0);
+    }
+    Arrays.sort(longs);
+    return longs;
+  }
+}
@@ -15,6 +15,7 @@ package net.opentsdb.query.filter;
 import java.util.Arrays;
 import java.util.Map;
 
+import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -112,30 +113,53 @@ public class TagVWildcardFilter extends TagVFilter {
 
   @Override
   public Deferred<Boolean> match(final Map<String, String> tags) {
-    String tagv = tags.get(tagk);
+    return Deferred.fromResult(matchTagv(tags.get(tagk)));
+  }
+  
+  @Override
+  public boolean matchesOnTagv() {
+    return true;
+  }
+  
+  @Override
+  public boolean matchTagv(String tagv) {
     if (tagv == null) {
-      return Deferred.fromResult(false);
+      return false;
     } else if (components.length == 1 && components[0].equals("*")) {
       // match all
-      return Deferred.fromResult(true);
+      return true;
     } else if (case_insensitive) {
-      tagv = tags.get(tagk).toLowerCase();
+      tagv = tagv.toLowerCase();
     }
     if (has_postfix && !has_prefix && 
         !tagv.endsWith(components[components.length-1])) {
-      return Deferred.fromResult(false);
+      return false;
     }
     if (has_prefix && !has_postfix && !tagv.startsWith(components[0])) {
-      return Deferred.fromResult(false);
+      return false;
     }
     int idx = 0;
     for (int i = 0; i < components.length; i++) {
       if (tagv.indexOf(components[i], idx) < 0) {
-        return Deferred.fromResult(false);
+        return false;
       }
       idx += components[i].length();
     }
-    return Deferred.fromResult(true);
+    return true;
+  }
+
+  /**
+   * Overridden here so that case sensitive filters starting with a literal
+   * and ending with a wildcard, e.g. "web*", can be expanded into tag value 
+   * UIDs when enabled. Infix filters like "we*b" don't anchor the first 
+   * component to the start of the value so they're matched after the scan.
+   */
+  @Override
+  public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    if (case_insensitive || has_postfix || !has_prefix) {
+      return expandTagvs(tsdb, null);
+    }
+    return expandTagvs(tsdb, components[0]);
   }
 
   @Override
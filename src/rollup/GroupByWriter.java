@@ -0,0 +1,616 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.DateTime;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Maintains "materialized group-bys" from the raw data points written through
+ * this TSD and flushes them to the group by table of the default rollup
+ * interval so that hot group by queries don't have to read every series.
+ * <p>
+ * Rules are configured in {@code tsd.rollups.groupby.rules} as a semicolon
+ * separated list of {@code <aggregator>:<metric>{<tagk>,<tagk>}} entries,
+ * e.g. {@code sum:sys.cpu.user{dc}}. Every raw data point of a rule's metric
+ * is added to an in-memory window of the default interval width keyed on the
+ * values of the rule's tag keys. Within a window each source series
+ * contributes the average of its values, and the series are then combined
+ * with the rule's aggregator, the same as a {@code sum:1m-avg:} query over
+ * the raw data would. Only {@code sum}, {@code min} and {@code max} are
+ * supported as they can be re-aggregated at query time. Only one rule may be
+ * configured per metric and aggregator as every rule writes the same
+ * aggregate tag value. Points missing one of the rule's tag keys are dropped
+ * and counted, and the rule stops answering queries as its groups no longer
+ * cover every series.
+ * <p>
+ * Windows are closed once their end is more than
+ * {@code tsd.rollups.groupby.grace_period} seconds in the past and written on
+ * the next flush, every {@code tsd.rollups.groupby.flush_interval} seconds,
+ * through {@link TSDB#addAggregatePoint} with the aggregate tag set to the
+ * upper case aggregator. Points for closed windows are dropped and counted
+ * as late. At most {@code tsd.rollups.groupby.max_windows} windows are kept
+ * open.
+ * <p>
+ * If {@code tsd.rollups.groupby.query.enable} is set, {@link #preAggregateFor}
+ * lets queries that match a rule read the pre-aggregated series instead. As
+ * the writer only knows about the data it has written, queries starting
+ * before the first complete window since this TSD started or ending after
+ * the last flushed window are not matched. Matched queries only read series
+ * with exactly the rule's tag keys, see {@link #tagKeysFor}, so that other
+ * pre-aggregates of the metric with the same aggregator, e.g. written through
+ * the rollup API, are not counted as well.
+ * <p>
+ * <b>Warning:</b> Each TSD only aggregates the points written through it and
+ * the pre-aggregated cells are overwritten, not merged. If the series of a
+ * group are written through more than one TSD, the last TSD to flush a
+ * window wins and the group by only covers its share of the series. Query
+ * matching is therefore off by default and should only be enabled when every
+ * group is written through a single TSD, e.g. when writers are sharded on
+ * the rule's tags.
+ * @since 2.4
+ */
+public final class GroupByWriter implements TimerTask {
+  private static final Logger LOG = LoggerFactory.getLogger(GroupByWriter.class);
+
+  /** Charset used to build map keys. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The aggregators that can be maintained. */
+  public static final List<String> SUPPORTED_AGGREGATORS =
+      Collections.unmodifiableList(Arrays.asList("sum", "min", "max"));
+
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
+  /** The configured rules. */
+  private final List<Rule> rules;
+
+  /** The width of each window in seconds, from the default interval. */
+  private final int width;
+
+  /** How long, in seconds, to wait for late data before closing a window. */
+  private final int grace_period;
+
+  /** How often, in seconds, to flush closed windows. */
+  private final int flush_interval;
+
+  /** The maximum number of open windows. */
+  private final int max_windows;
+
+  /** Whether or not queries may be answered from the pre-aggregates. */
+  private final boolean query_enabled;
+
+  /** Queries starting before this unix epoch time in seconds are not
+   * matched as earlier windows may be missing. */
+  private final long complete_from;
+
+  /** Windows ending at or before this unix epoch time in seconds have been
+   * flushed. 0 until the first flush. */
+  private volatile long flushed_through;
+
+  /** The open windows keyed on rule, start and the kept tags. */
+  private final ConcurrentMap<String, Window> windows;
+
+  /** Windows ending at or before this unix epoch time in seconds are closed. */
+  private volatile long closed_through;
+
+  /** Counters for stats. */
+  private final AtomicLong late_dps = new AtomicLong();
+  private final AtomicLong full_dps = new AtomicLong();
+  private final AtomicLong missing_dps = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+  private final AtomicLong queries = new AtomicLong();
+
+  /**
+   * Default ctor. Parses the rules and schedules the periodic flush.
+   * @param tsdb The non-null TSDB to pull config and the rollup config from.
+   * @throws IllegalArgumentException if rollups or a default interval are not
+   * configured, a rule is invalid or one of the durations is invalid.
+   */
+  public GroupByWriter(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final RollupInterval interval = tsdb.getDefaultInterval();
+    if (tsdb.getRollupConfig() == null || interval == null) {
+      throw new IllegalArgumentException("The group by writer requires "
+          + "'tsd.rollups.enable' and a default rollup interval.");
+    }
+    width = interval.getIntervalSeconds();
+    rules = parseRules(tsdb.getConfig().getString("tsd.rollups.groupby.rules"));
+
+    grace_period = tsdb.getConfig().getInt("tsd.rollups.groupby.grace_period");
+    if (grace_period < 0) {
+      throw new IllegalArgumentException("The group by writer grace period "
+          + "cannot be negative: " + grace_period);
+    }
+    flush_interval = tsdb.getConfig().getInt(
+        "tsd.rollups.groupby.flush_interval");
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("The group by writer flush interval "
+          + "must be at least 1 second: " + flush_interval);
+    }
+    max_windows = tsdb.getConfig().getInt("tsd.rollups.groupby.max_windows");
+    if (max_windows < 1) {
+      throw new IllegalArgumentException("The group by writer must allow at "
+          + "least 1 window: " + max_windows);
+    }
+    query_enabled = tsdb.getConfig().getBoolean(
+        "tsd.rollups.groupby.query.enable");
+
+    windows = new ConcurrentHashMap<String, Window>();
+    final long now = DateTime.currentTimeMillis() / 1000;
+    closed_through = now - grace_period;
+    complete_from = now - (now % width) + width;
+    tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Parses and validates the rules.
+   * @param rules A semicolon separated list of rules.
+   * @return The rules, may be empty.
+   * @throws IllegalArgumentException if a rule is malformed, uses an
+   * unsupported aggregator or has the same metric and aggregator as another
+   * rule.
+   */
+  static List<Rule> parseRules(final String rules) {
+    final List<Rule> parsed = new ArrayList<Rule>();
+    if (rules == null || rules.trim().isEmpty()) {
+      return parsed;
+    }
+    for (final String entry : rules.split(";")) {
+      final String rule = entry.trim();
+      if (rule.isEmpty()) {
+        continue;
+      }
+      final int colon = rule.indexOf(':');
+      final int open = rule.indexOf('{');
+      if (colon < 1 || (open > -1 && (open < colon + 2 ||
+          rule.charAt(rule.length() - 1) != '}'))) {
+        throw new IllegalArgumentException("Invalid group by rule: " + rule);
+      }
+      final String aggregator = rule.substring(0, colon).trim().toLowerCase();
+      if (!SUPPORTED_AGGREGATORS.contains(aggregator)) {
+        throw new IllegalArgumentException("Group bys cannot be maintained "
+            + "for the aggregator: " + aggregator);
+      }
+      final String metric = (open < 0 ? rule.substring(colon + 1) :
+        rule.substring(colon + 1, open)).trim();
+      if (metric.isEmpty()) {
+        throw new IllegalArgumentException("Missing the metric in group by "
+            + "rule: " + rule);
+      }
+      final List<String> tag_keys = new ArrayList<String>();
+      if (open > -1) {
+        for (final String tagk :
+            rule.substring(open + 1, rule.length() - 1).split(",")) {
+          if (!tagk.trim().isEmpty()) {
+            tag_keys.add(tagk.trim());
+          }
+        }
+      }
+      Collections.sort(tag_keys);
+      for (final Rule existing : parsed) {
+        if (existing.metric.equals(metric) &&
+            existing.aggregator.equals(aggregator)) {
+          throw new IllegalArgumentException("Group by rule " + rule
+              + " would write the same " + aggregator.toUpperCase()
+              + " pre-aggregates as " + existing);
+        }
+      }
+      parsed.add(new Rule(aggregator, metric,
+          Collections.unmodifiableList(tag_keys)));
+    }
+    return parsed;
+  }
+
+  /**
+   * Adds a raw data point to the open window of each matching rule. Points
+   * carrying an aggregate tag other than the raw value are skipped. Points
+   * missing one of a rule's tag keys are dropped for that rule and the rule
+   * no longer answers queries.
+   * @param row_key The data table row key, with or without the salt.
+   * @param metric The metric name.
+   * @param timestamp The timestamp of the data point in seconds or
+   * milliseconds.
+   * @param value The encoded value.
+   * @param flags The length and type flags of the value.
+   * @param tags The tags of the series.
+   */
+  public void record(final byte[] row_key,
+                     final String metric,
+                     final long timestamp,
+                     final byte[] value,
+                     final short flags,
+                     final Map<String, String> tags) {
+    final String agg_tag_value = tags.get(tsdb.getAggTagKey());
+    if (agg_tag_value != null &&
+        !agg_tag_value.equals(tsdb.getRawTagValue())) {
+      return;
+    }
+    String tsuid = null;
+    double double_value = 0;
+    for (int i = 0; i < rules.size(); i++) {
+      final Rule rule = rules.get(i);
+      if (!rule.metric.equals(metric)) {
+        continue;
+      }
+      if (tsuid == null) {
+        tsuid = new String(UniqueId.getTSUIDFromKey(row_key,
+            TSDB.metrics_width(), Const.TIMESTAMP_BYTES), CHARSET);
+        double_value = (flags & Const.FLAG_FLOAT) == 0 ?
+            Internal.extractIntegerValue(value, 0, (byte) flags) :
+            Internal.extractFloatingPointValue(value, 0, (byte) flags);
+      }
+      final Map<String, String> kept = new TreeMap<String, String>();
+      for (final String tagk : rule.tag_keys) {
+        final String tagv = tags.get(tagk);
+        if (tagv == null) {
+          break;
+        }
+        kept.put(tagk, tagv);
+      }
+      if (kept.size() != rule.tag_keys.size()) {
+        missing_dps.incrementAndGet();
+        if (!rule.incomplete) {
+          rule.incomplete = true;
+          LOG.warn("Dropping points of " + metric + tags + " missing tag keys "
+              + "of the group by rule " + rule + ", queries will no longer "
+              + "be answered from its pre-aggregates");
+        }
+        continue;
+      }
+      final long seconds = (timestamp & Const.SECOND_MASK) != 0 ?
+          timestamp / 1000 : timestamp;
+      final long start = seconds - (seconds % width);
+      if (start + width <= closed_through) {
+        late_dps.incrementAndGet();
+        continue;
+      }
+      final String key = i + ":" + start + ":" + kept;
+      Window window = windows.get(key);
+      if (window == null) {
+        if (windows.size() >= max_windows) {
+          full_dps.incrementAndGet();
+          continue;
+        }
+        final Window fresh = new Window(rule, kept, start);
+        window = windows.putIfAbsent(key, fresh);
+        if (window == null) {
+          window = fresh;
+        }
+      }
+      if (!window.add(tsuid, double_value, closed_through)) {
+        late_dps.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Checks whether a query can be answered from a pre-aggregated series.
+   * Every tag key filtered on must be kept by the rule, the rule must not
+   * have dropped points for missing tag keys, the query must
+   * start at or after the first complete window and the window holding the
+   * query end must have been flushed. The caller is responsible for checking
+   * the rest of the query, e.g. rates and downsampling.
+   * @param metric The metric name.
+   * @param aggregator The name of the query's group by aggregator.
+   * @param filters The query's filters, may be null.
+   * @param start The query start time in seconds.
+   * @param end The query end time in seconds.
+   * @return The value of the aggregate tag to filter on or null if no rule
+   * matches or query matching is disabled.
+   */
+  public String preAggregateFor(final String metric, final String aggregator,
+      final List<TagVFilter> filters, final long start, final long end) {
+    if (!query_enabled || start < complete_from ||
+        end - (end % width) + width > flushed_through) {
+      return null;
+    }
+    for (final Rule rule : rules) {
+      if (!rule.metric.equals(metric) ||
+          !rule.aggregator.equalsIgnoreCase(aggregator) || rule.incomplete) {
+        continue;
+      }
+      boolean matched = true;
+      if (filters != null) {
+        for (final TagVFilter filter : filters) {
+          if (!rule.tag_keys.contains(filter.getTagk())) {
+            matched = false;
+            break;
+          }
+        }
+      }
+      if (matched) {
+        queries.incrementAndGet();
+        return rule.aggregator.toUpperCase();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the tag keys of the pre-aggregates written for a metric and
+   * aggregator. Queries answered from the pre-aggregates must match series
+   * with exactly these tag keys.
+   * @param metric The metric name.
+   * @param aggregator The name of the group by aggregator.
+   * @return The sorted, unmodifiable tag keys or null if no rule matches.
+   */
+  public List<String> tagKeysFor(final String metric, final String aggregator) {
+    for (final Rule rule : rules) {
+      if (rule.metric.equals(metric) &&
+          rule.aggregator.equalsIgnoreCase(aggregator)) {
+        return rule.tag_keys;
+      }
+    }
+    return null;
+  }
+
+  /** @return The width of a window in seconds. */
+  public int windowWidth() {
+    return width;
+  }
+
+  /**
+   * Closes the windows that ended more than the grace period ago and writes
+   * their aggregates.
+   * @return A deferred to wait on for the writes, resolves to null. Failures
+   * are logged and counted.
+   */
+  public Deferred<Object> flush() {
+    closed_through = (DateTime.currentTimeMillis() / 1000) - grace_period;
+    final long flushing_through = closed_through - (closed_through % width);
+    final List<Deferred<Object>> writes = new ArrayList<Deferred<Object>>();
+    for (final Map.Entry<String, Window> entry : windows.entrySet()) {
+      final Window window = entry.getValue();
+      if (window.start + width > closed_through) {
+        continue;
+      }
+      if (windows.remove(entry.getKey(), window) && window.close()) {
+        write(window, writes);
+      }
+    }
+
+    /** Lets queries through once the writes are done and groups to a single
+     * null. */
+    class GroupCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> ignored) throws Exception {
+        advanceFlushedThrough(flushing_through);
+        return null;
+      }
+    }
+
+    if (writes.isEmpty()) {
+      advanceFlushedThrough(flushing_through);
+      return Deferred.fromResult(null);
+    }
+    LOG.debug("Flushing " + writes.size() + " group by data points");
+    return Deferred.group(writes).addCallback(new GroupCB());
+  }
+
+  /** @param timeout The timeout reference. */
+  @Override
+  public void run(final Timeout timeout) {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      LOG.error("Failed to flush group by windows", e);
+    } finally {
+      try {
+        tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.SECONDS);
+      } catch (IllegalStateException e) {
+        LOG.debug("Timer stopped, no more group by flushes scheduled");
+      }
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("groupby.writer.windows", windows.size());
+    collector.record("groupby.writer.dropped", late_dps, "reason=late");
+    collector.record("groupby.writer.dropped", full_dps, "reason=full");
+    collector.record("groupby.writer.dropped", missing_dps,
+        "reason=missing_tags");
+    collector.record("groupby.writer.written", written);
+    collector.record("groupby.writer.errors", write_errors);
+    collector.record("groupby.writer.queries", queries);
+  }
+
+  /** @return The number of open windows. */
+  public int openWindows() {
+    return windows.size();
+  }
+
+  /** @return The number of points dropped because their window was closed. */
+  public long lateDataPoints() {
+    return late_dps.get();
+  }
+
+  /** @return The number of points dropped because too many windows were open. */
+  public long droppedDataPoints() {
+    return full_dps.get();
+  }
+
+  /** @return The number of points dropped for missing a rule's tag keys. */
+  public long missingTagsDataPoints() {
+    return missing_dps.get();
+  }
+
+  /**
+   * Moves the flushed watermark forward, never back, as flushes from the
+   * timer and a shutdown may complete out of order.
+   * @param through The end of the last window written by a flush.
+   */
+  private synchronized void advanceFlushedThrough(final long through) {
+    if (through > flushed_through) {
+      flushed_through = through;
+    }
+  }
+
+  /**
+   * Writes the aggregate of a closed window.
+   * @param window The closed window.
+   * @param writes The list to add the deferred to.
+   */
+  private void write(final Window window, final List<Deferred<Object>> writes) {
+    /** Logs and counts failures. */
+    class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        write_errors.incrementAndGet();
+        LOG.warn("Failed to write the group by " + window, e);
+        return null;
+      }
+    }
+
+    final Deferred<Object> deferred;
+    try {
+      deferred = window.write(tsdb);
+    } catch (RuntimeException e) {
+      write_errors.incrementAndGet();
+      LOG.warn("Failed to write the group by " + window, e);
+      return;
+    }
+    written.incrementAndGet();
+    writes.add(deferred.addErrback(new ErrCB()));
+  }
+
+  /** A materialized group by rule. */
+  static final class Rule {
+    final String aggregator;
+    final String metric;
+    final List<String> tag_keys;
+    /** Set once a point missing one of the tag keys was dropped. */
+    volatile boolean incomplete;
+
+    Rule(final String aggregator, final String metric,
+        final List<String> tag_keys) {
+      this.aggregator = aggregator;
+      this.metric = metric;
+      this.tag_keys = tag_keys;
+    }
+
+    @Override
+    public String toString() {
+      return aggregator + ":" + metric + tag_keys;
+    }
+  }
+
+  /**
+   * The per series sums and counts of one group over one window. Adds and the
+   * close are synchronized on the window.
+   */
+  private final class Window {
+    private final Rule rule;
+    private final Map<String, String> tags;
+    private final long start;
+    private final Map<String, double[]> series;
+    private boolean closed;
+
+    Window(final Rule rule, final Map<String, String> tags, final long start) {
+      this.rule = rule;
+      this.tags = tags;
+      this.start = start;
+      series = new HashMap<String, double[]>();
+    }
+
+    /**
+     * Adds a value for a source series.
+     * @return False if the window was already closed.
+     */
+    synchronized boolean add(final String tsuid, final double value,
+        final long closed_through) {
+      if (closed || start + width <= closed_through) {
+        return false;
+      }
+      double[] sum_count = series.get(tsuid);
+      if (sum_count == null) {
+        sum_count = new double[2];
+        series.put(tsuid, sum_count);
+      }
+      sum_count[0] += value;
+      sum_count[1]++;
+      return true;
+    }
+
+    /**
+     * Closes the window so no more values can be added.
+     * @return True if the window has any values to write.
+     */
+    synchronized boolean close() {
+      closed = true;
+      return !series.isEmpty();
+    }
+
+    /** Combines the series averages and writes the result. */
+    synchronized Deferred<Object> write(final TSDB tsdb) {
+      double result = rule.aggregator.equals("sum") ? 0 :
+        rule.aggregator.equals("min") ? Double.POSITIVE_INFINITY :
+          Double.NEGATIVE_INFINITY;
+      for (final double[] sum_count : series.values()) {
+        final double avg = sum_count[0] / sum_count[1];
+        if (rule.aggregator.equals("sum")) {
+          result += avg;
+        } else if (rule.aggregator.equals("min")) {
+          result = Math.min(result, avg);
+        } else {
+          result = Math.max(result, avg);
+        }
+      }
+      final Map<String, String> copy = new HashMap<String, String>(tags);
+      if (result == Math.rint(result) && !Double.isInfinite(result) &&
+          Math.abs(result) < Long.MAX_VALUE) {
+        return tsdb.addAggregatePoint(rule.metric, start, (long) result, copy,
+            true, null, null, rule.aggregator);
+      }
+      return tsdb.addAggregatePoint(rule.metric, start, result, copy, true,
+          null, null, rule.aggregator);
+    }
+
+    @Override
+    public String toString() {
+      return rule + " window at " + start + " for " + tags;
+    }
+  }
+}
@@ -37,6 +37,10 @@ public class RollupQuery {
    * reduce the number of calculations at scan time*/
   private final byte[] agg_prefix;
   
+  /** Whether or not averages are weighted by their counts across series, 
+   * set when {@link Aggregators#WAVG} is used over averaged rollups. */
+  private final boolean weighted;
+  
   /** Initial downsampling interval form the user, will be used to 
    * downsample the lower sampling rate, if data is not available for the 
    * requested sampling rate. It is in milliseconds*/
@@ -71,6 +75,9 @@ public class RollupQuery {
     // we match properly on the column names
     if (rollup_agg == Aggregators.ZIMSUM) {
       this.rollup_agg = Aggregators.SUM;
+    } else if (rollup_agg == Aggregators.WAVG) {
+      // weighted averages read the same sum and count columns
+      this.rollup_agg = Aggregators.AVG;
     } else if (rollup_agg == Aggregators.MIMMAX) {
       this.rollup_agg = Aggregators.MAX;
     } else if (rollup_agg == Aggregators.MIMMIN) {
@@ -87,9 +94,14 @@ public class RollupQuery {
     } else {
       this.group_by = group_by;
     }
-    if (group_by == Aggregators.AVG) {
+    weighted = this.rollup_agg == Aggregators.AVG && 
+        (rollup_agg == Aggregators.WAVG || group_by == Aggregators.WAVG);
+    if (group_by == Aggregators.AVG || weighted) {
       agg_prefix = RollupUtils.getRollupQualifierPrefix(
           Aggregators.SUM.toString());
+    } else if (group_by == Aggregators.WAVG) {
+      agg_prefix = RollupUtils.getRollupQualifierPrefix(
+          this.rollup_agg.toString());
     } else {
       agg_prefix = RollupUtils.getRollupQualifierPrefix(
           this.group_by.toString());
@@ -99,7 +111,7 @@ public class RollupQuery {
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(rollup_interval, rollup_agg.toString());
+    return Objects.hashCode(rollup_interval, rollup_agg.toString(), weighted);
   }
   
   @Override
@@ -115,7 +127,8 @@ public class RollupQuery {
     }
     final RollupQuery query = (RollupQuery)obj;
     return Objects.equal(rollup_agg, query.rollup_agg) 
-        && rollup_interval.equals(query.rollup_interval);
+        && rollup_interval.equals(query.rollup_interval)
+        && weighted == query.weighted;
   }
   
   @Override
@@ -127,6 +140,9 @@ public class RollupQuery {
         .append(rollup_agg.toString())
         .append(", group_by=")
         .append(group_by.toString());
+    if (weighted) {
+      buf.append(", weighted=true");
+    }
     return buf.toString();
   }
 
@@ -150,6 +166,17 @@ public class RollupQuery {
     return group_by;
   }
   
+  /**
+   * Whether or not the averaged rollups are merged by their sums and counts 
+   * in one pass and weighed by their counts across series.
+   * @return True if {@link Aggregators#WAVG} was used over averaged rollups.
+   * @since 2.4
+   */
+  @JsonIgnore
+  public boolean isWeighted() {
+    return weighted;
+  }
+  
   /**
    * Does it contain a valid rollup interval, mainly says it is not the default
    * rollup. Default rollup is of same resolution as raw data. So if true, 
@@ -97,7 +97,8 @@ public final class RollupSeq implements iRowSeq {
     
     // TODO - others
     need_count = rollup_query.getGroupBy() == Aggregators.AVG ||
-                 rollup_query.getGroupBy() == Aggregators.DEV;
+                 rollup_query.getGroupBy() == Aggregators.DEV ||
+                 rollup_query.isWeighted();
     
     // WARNING overallocation
     qualifiers = new byte[rollup_query.getRollupInterval().getIntervals() * 2];
@@ -133,7 +134,9 @@ public final class RollupSeq implements iRowSeq {
     key = column.key();
     
     //Check whether the cell is generated by same rollup aggregator
-    if (need_count) {
+    if (RollupUtils.isPackedRollupQualifier(column.qualifier())) {
+      appendPacked(column);
+    } else if (need_count) {
       System.out.println("AGG ID: " + agg_id + "  COUNT ID: " + count_id + "  MASK: " + (column.qualifier()[0] & RollupUtils.AGGREGATOR_MASK));
       if ((column.qualifier()[0] & RollupUtils.AGGREGATOR_MASK) == agg_id) {
         append(column, false, false);
@@ -180,7 +183,9 @@ public final class RollupSeq implements iRowSeq {
     }
     
     //Check whether the cell is generated by same rollup aggregator
-    if (need_count) {
+    if (RollupUtils.isPackedRollupQualifier(column.qualifier())) {
+      appendPacked(column);
+    } else if (need_count) {
       if ((column.qualifier()[0] & RollupUtils.AGGREGATOR_MASK) == agg_id) {
         append(column, false, false);
       } else if ((column.qualifier()[0] & RollupUtils.AGGREGATOR_MASK) == count_id) {
@@ -208,6 +213,42 @@ public final class RollupSeq implements iRowSeq {
     }
   }
 
+  /**
+   * Pulls the requested aggregate, and the count if needed, out of a packed
+   * column without decoding the other values. Aggregates missing from the
+   * column are skipped.
+   * @param column The non-null packed key value to add.
+   */
+  private void appendPacked(final KeyValue column) {
+    appendPacked(column, agg_id, false);
+    if (need_count) {
+      appendPacked(column, count_id, true);
+    }
+  }
+  
+  /**
+   * Adds one aggregate from a packed column to the byte arrays.
+   * @param column The non-null packed key value to add.
+   * @param id The ID of the aggregate to pull.
+   * @param is_count Whether or not the aggregate is for counts.
+   */
+  private void appendPacked(final KeyValue column, 
+                            final int id, 
+                            final boolean is_count) {
+    final byte[] value = column.value();
+    final int index = RollupUtils.getPackedRollupIndex(value, id);
+    if (index < 0) {
+      return;
+    }
+    final byte flags = RollupUtils.getPackedRollupFlags(value, index);
+    final byte[] qualifier = new byte[] { column.qualifier()[0], 
+        (byte) ((column.qualifier()[1] & ~Const.FLAGS_MASK) | 
+            (flags & Const.FLAGS_MASK)) };
+    append(column, is_count, qualifier, 0, value, 
+        RollupUtils.getPackedRollupValueOffset(value, index), 
+        (flags & Const.LENGTH_MASK) + 1);
+  }
+  
   /**
    * Adds the column to the byte arrays.
    * @param column The non-null key value to add.
@@ -218,13 +259,38 @@ public final class RollupSeq implements iRowSeq {
   private void append(final KeyValue column, 
                       final boolean is_count, 
                       final boolean strip_string) {
+    final int qual_index;
+    if (!strip_string) {
+      qual_index = 1;
+    } else if (is_count) {
+      qual_index = RollupQuery.COUNT.length + 1;
+    } else {
+      qual_index = rollup_query.getRollupAggPrefix().length;
+    }
+    append(column, is_count, column.qualifier(), qual_index, column.value(), 
+        0, column.value().length);
+  }
+  
+  /**
+   * Adds an offset and value to the byte arrays.
+   * @param column The non-null key value the data came from.
+   * @param is_count Whether or not the data is for counts.
+   * @param qualifier The array holding the 2 byte offset and flags.
+   * @param qual_index The index of the offset in the qualifier.
+   * @param value The array holding the value.
+   * @param value_index The index of the value in the array.
+   * @param value_length The length of the value.
+   */
+  private void append(final KeyValue column, 
+                      final boolean is_count, 
+                      final byte[] qualifier,
+                      final int qual_index,
+                      final byte[] value,
+                      final int value_index,
+                      final int value_length) {
     // for now assume we properly allocated our qualifiers
     if (is_count) {
-      int offset = strip_string ? 
-          Internal.getOffsetFromQualifier(column.qualifier(), 
-          RollupQuery.COUNT.length + 1) :
-            Internal.getOffsetFromQualifier(column.qualifier(), 
-                1);
+      int offset = Internal.getOffsetFromQualifier(qualifier, qual_index);
       if (last_count_offset > -1 && offset <= last_count_offset) {
         // only accept equivalent offsets. If somehow we get an earlier one, HBase is broke 
         if (offset == last_count_offset && tsdb.getConfig().fix_duplicates()) {
@@ -254,27 +320,19 @@ public final class RollupSeq implements iRowSeq {
       }
       last_count_offset = offset;
       last_count_ts = column.timestamp();
-      if (strip_string) {
-        System.arraycopy(column.qualifier(), RollupQuery.COUNT.length + 1, 
-            count_qualifiers, indices[2], 2);
-      } else {
-        System.arraycopy(column.qualifier(), 1, count_qualifiers, indices[2], 2);
-      }
+      System.arraycopy(qualifier, qual_index, count_qualifiers, indices[2], 2);
       indices[2] += 2;
       
-      if (indices[3] + column.value().length > count_values.length) {
+      if (indices[3] + value_length > count_values.length) {
         byte[] buf = new byte[count_values.length * 2];
         System.arraycopy(count_values, 0, buf, 0, count_values.length);
         count_values = buf;
       }
-      System.arraycopy(column.value(), 0, count_values, indices[3], 
-          column.value().length);
-      indices[3] += column.value().length;
+      System.arraycopy(value, value_index, count_values, indices[3], 
+          value_length);
+      indices[3] += value_length;
     } else {
-      int offset = strip_string ? 
-          Internal.getOffsetFromQualifier(column.qualifier(), 
-              rollup_query.getRollupAggPrefix().length)
-          : Internal.getOffsetFromQualifier(column.qualifier(), 1);
+      int offset = Internal.getOffsetFromQualifier(qualifier, qual_index);
       if (last_offset > -1 && offset <= last_offset) {
         // only accept equivalent offsets. If somehow we get an earlier one, HBase is broke
         if (offset == last_offset && tsdb.getConfig().fix_duplicates()) {
@@ -303,22 +361,16 @@ public final class RollupSeq implements iRowSeq {
       }
       last_offset = offset;
       last_value_ts = column.timestamp();
-      if (strip_string) {
-        System.arraycopy(column.qualifier(), 
-            rollup_query.getRollupAggPrefix().length, qualifiers, indices[0], 2);
-      } else {
-        System.arraycopy(column.qualifier(), 1, qualifiers, indices[0], 2);
-      }
+      System.arraycopy(qualifier, qual_index, qualifiers, indices[0], 2);
       indices[0] += 2;
       
-      if (indices[1] + column.value().length > values.length) {
+      if (indices[1] + value_length > values.length) {
         byte[] buf = new byte[values.length * 2];
         System.arraycopy(values, 0, buf, 0, values.length);
         values = buf;
       }
-      System.arraycopy(column.value(), 0, values, indices[1], 
-          column.value().length);
-      indices[1] += column.value().length;
+      System.arraycopy(value, value_index, values, indices[1], value_length);
+      indices[1] += value_length;
     }
   }
   
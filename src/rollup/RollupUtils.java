@@ -19,6 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.opentsdb.core.Const;
+import net.opentsdb.core.IllegalDataException;
 
 /**
  * Static util class for dealing with parsing and storing rolled up data points
@@ -34,6 +35,12 @@ public final class RollupUtils {
   /** The rollup qualifier delimiter character */
   public static final String ROLLUP_QUAL_DELIM = ":";
   
+  /** The version byte leading a packed rollup value */
+  public static final byte PACKED_VERSION = 1;
+  
+  /** The length of a packed rollup qualifier, just the offset and flags */
+  public static final int PACKED_QUALIFIER_LENGTH = 2;
+  
   private RollupUtils() {
     // Do not instantiate me brah!
   }
@@ -167,6 +174,141 @@ public final class RollupUtils {
     return qualifier;
   }
   
+  /**
+   * Builds a qualifier for a packed rollup column holding every aggregate for
+   * the timestamp. It's just the offset on 2 bytes with the flag bits left 
+   * empty as each value carries its own flags in the header. I.e.
+   * {@code <offset(0)>
+   *    2 bytes }
+   * @param timestamp The data point timestamp
+   * @param basetime The base timestamp to calculate the offset from 
+   * @param interval The RollupInterval object with data about the interval
+   * @return A 2 byte array to use as the qualifier
+   * @throws IllegalArgumentException if the timestamp is too far from the 
+   * base time to fit within the interval.
+   * @since 2.4
+   */
+  public static byte[] buildPackedRollupQualifier(final long timestamp,
+                                                  final int basetime,
+                                                  final RollupInterval interval) {
+    final byte[] qualifier = buildRollupQualifier(timestamp, basetime, 
+        (short) 0, 0, interval);
+    return new byte[] { qualifier[1], qualifier[2] };
+  }
+  
+  /**
+   * Packs the values of multiple aggregates for one timestamp into a single
+   * column value. The header is a version byte, the number of aggregates and
+   * then the aggregator ID and length/type flags of each value followed by 
+   * the values in the same order. I.e.
+   * {@code <version><n><id><flags>...<value>...
+   *     1     1   1    1  * n   * n }
+   * @param aggregator_ids The IDs of the aggregators.
+   * @param flags The length and type flags of each value.
+   * @param values The encoded values.
+   * @return The packed value.
+   * @throws IllegalArgumentException if the arrays are empty, differ in 
+   * length or a value's length doesn't match its flags.
+   * @since 2.4
+   */
+  public static byte[] buildPackedRollupValue(final int[] aggregator_ids,
+                                              final short[] flags,
+                                              final byte[][] values) {
+    if (aggregator_ids.length < 1 || aggregator_ids.length > 127 || 
+        aggregator_ids.length != flags.length || 
+        aggregator_ids.length != values.length) {
+      throw new IllegalArgumentException("Invalid number of aggregates to "
+          + "pack: " + aggregator_ids.length);
+    }
+    int length = 2 + (aggregator_ids.length * 2);
+    for (int i = 0; i < values.length; i++) {
+      if (values[i].length != (flags[i] & Const.LENGTH_MASK) + 1) {
+        throw new IllegalArgumentException("Value length " + values[i].length 
+            + " doesn't match the flags " + flags[i]);
+      }
+      length += values[i].length;
+    }
+    final byte[] packed = new byte[length];
+    packed[0] = PACKED_VERSION;
+    packed[1] = (byte) aggregator_ids.length;
+    int value_index = 2 + (aggregator_ids.length * 2);
+    for (int i = 0; i < aggregator_ids.length; i++) {
+      packed[2 + (i * 2)] = (byte) aggregator_ids[i];
+      packed[3 + (i * 2)] = (byte) flags[i];
+      System.arraycopy(values[i], 0, packed, value_index, values[i].length);
+      value_index += values[i].length;
+    }
+    return packed;
+  }
+  
+  /**
+   * Determines whether or not the column is a packed rollup column. Legacy
+   * rollup qualifiers are at least 3 bytes long.
+   * @param qualifier A non-null qualifier.
+   * @return True if the column holds packed aggregates.
+   * @since 2.4
+   */
+  public static boolean isPackedRollupQualifier(final byte[] qualifier) {
+    return qualifier.length == PACKED_QUALIFIER_LENGTH;
+  }
+  
+  /**
+   * Finds the header entry of an aggregate in a packed rollup value without
+   * decoding the values.
+   * @param value A packed value.
+   * @param aggregator_id The ID of the aggregator to find.
+   * @return The index of the entry or -1 if the aggregate isn't present.
+   * @throws IllegalDataException if the value has an unknown version or is
+   * too short.
+   * @since 2.4
+   */
+  public static int getPackedRollupIndex(final byte[] value, 
+                                         final int aggregator_id) {
+    if (value.length < 2 || value[0] != PACKED_VERSION || 
+        value.length < 2 + (value[1] * 2)) {
+      throw new IllegalDataException("Invalid packed rollup value: " 
+          + Bytes.pretty(value));
+    }
+    for (int i = 0; i < value[1]; i++) {
+      if (value[2 + (i * 2)] == (byte) aggregator_id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * @param value A packed value.
+   * @param index The index of an entry from {@link #getPackedRollupIndex}.
+   * @return The length and type flags of the entry's value.
+   * @since 2.4
+   */
+  public static byte getPackedRollupFlags(final byte[] value, 
+                                          final int index) {
+    return value[3 + (index * 2)];
+  }
+  
+  /**
+   * @param value A packed value.
+   * @param index The index of an entry from {@link #getPackedRollupIndex}.
+   * @return The offset of the entry's value in the array.
+   * @throws IllegalDataException if the value is truncated.
+   * @since 2.4
+   */
+  public static int getPackedRollupValueOffset(final byte[] value, 
+                                               final int index) {
+    int offset = 2 + (value[1] * 2);
+    for (int i = 0; i < index; i++) {
+      offset += (value[3 + (i * 2)] & Const.LENGTH_MASK) + 1;
+    }
+    if (offset + (value[3 + (index * 2)] & Const.LENGTH_MASK) + 1 
+        > value.length) {
+      throw new IllegalDataException("Truncated packed rollup value: " 
+          + Bytes.pretty(value));
+    }
+    return offset;
+  }
+  
   /**
    * Returns the absolute timestamp of a data point qualifier in milliseconds
    * @param qualifier The qualifier to parse
@@ -0,0 +1,324 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+
+import org.hbase.async.Bytes;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * The accumulated sum, count, min and max of a single series over one rollup
+ * interval, used to generate rollups from raw data. Integers are summed as
+ * longs until a floating point value is added or the sum would overflow.
+ * <p>
+ * Adds and the close are synchronized on the window so it can be shared
+ * between writers and a flushing thread.
+ * @since 2.4
+ */
+public final class RollupWindow {
+  /** The aggregations a window can produce. */
+  public static final List<String> SUPPORTED_AGGREGATIONS =
+      Collections.unmodifiableList(Arrays.asList("sum", "count", "min", "max"));
+
+  private final String metric;
+  private final Map<String, String> tags;
+  private final RollupInterval interval;
+  private final long start;
+
+  private long count;
+  private boolean integers = true;
+  private long long_sum;
+  private long long_min = Long.MAX_VALUE;
+  private long long_max = Long.MIN_VALUE;
+  private double sum;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+  private boolean closed;
+
+  /**
+   * Default ctor.
+   * @param metric The metric name.
+   * @param tags The tags of the series, not copied.
+   * @param interval The interval the window covers.
+   * @param start The start of the window in unix epoch seconds, see
+   * {@link #windowStart}.
+   */
+  public RollupWindow(final String metric, final Map<String, String> tags,
+      final RollupInterval interval, final long start) {
+    this.metric = metric;
+    this.tags = tags;
+    this.interval = interval;
+    this.start = start;
+  }
+
+  /**
+   * Parses and validates a comma separated list of aggregations.
+   * @param aggregations The list to parse.
+   * @param rollup_config The rollup config the aggregations must be mapped in.
+   * @return The lower case aggregations.
+   * @throws IllegalArgumentException if an aggregation isn't supported or
+   * mapped to an ID.
+   */
+  public static String[] parseAggregations(final String aggregations,
+      final RollupConfig rollup_config) {
+    final String[] aggs = aggregations.split(",");
+    for (int i = 0; i < aggs.length; i++) {
+      aggs[i] = aggs[i].trim().toLowerCase();
+      if (!SUPPORTED_AGGREGATIONS.contains(aggs[i])) {
+        throw new IllegalArgumentException("Rollups cannot be generated for "
+            + "the aggregation: " + aggs[i]);
+      }
+      // throws if not mapped
+      rollup_config.getIdForAggregator(aggs[i]);
+    }
+    return aggs;
+  }
+
+  /**
+   * Calculates the start of the window a timestamp falls in, aligned to the
+   * row base time so it maps to a valid rollup qualifier offset.
+   * @param seconds The timestamp in seconds.
+   * @param interval The interval to calculate for.
+   * @return The start of the window in seconds.
+   */
+  public static long windowStart(final long seconds,
+      final RollupInterval interval) {
+    final long base_time = RollupUtils.getRollupBasetime(seconds, interval);
+    return base_time + ((seconds - base_time) / interval.getIntervalSeconds())
+        * interval.getIntervalSeconds();
+  }
+
+  /** @return The metric name. */
+  public String metric() {
+    return metric;
+  }
+
+  /** @return The tags of the series. */
+  public Map<String, String> tags() {
+    return tags;
+  }
+
+  /** @return The interval the window covers. */
+  public RollupInterval interval() {
+    return interval;
+  }
+
+  /** @return The start of the window, inclusive, in seconds. */
+  public long start() {
+    return start;
+  }
+
+  /** @return The end of the window, exclusive, in seconds. */
+  public long end() {
+    return start + interval.getIntervalSeconds();
+  }
+
+  /** @return The number of values added. */
+  public synchronized long count() {
+    return count;
+  }
+
+  /**
+   * Adds a value to the window.
+   * @param is_integer Whether or not the value is an integer.
+   * @param long_value The integer value, ignored if not an integer.
+   * @param double_value The value as a double.
+   * @param closed_through Reject the value if the window ends at or before
+   * this time in seconds. Use {@link Long#MIN_VALUE} to skip the check.
+   * @return False if the window was already closed.
+   */
+  public synchronized boolean add(final boolean is_integer,
+      final long long_value, final double double_value,
+      final long closed_through) {
+    if (closed || end() <= closed_through) {
+      return false;
+    }
+    if (integers && is_integer) {
+      final long result = long_sum + long_value;
+      if (((long_sum ^ result) & (long_value ^ result)) < 0) {
+        integers = false;
+      } else {
+        long_sum = result;
+      }
+      if (long_value < long_min) {
+        long_min = long_value;
+      }
+      if (long_value > long_max) {
+        long_max = long_value;
+      }
+    } else {
+      integers = false;
+    }
+    sum += double_value;
+    if (double_value < min) {
+      min = double_value;
+    }
+    if (double_value > max) {
+      max = double_value;
+    }
+    count++;
+    return true;
+  }
+
+  /**
+   * Closes the window so no more values can be added.
+   * @return True if the window has any values to write.
+   */
+  public synchronized boolean close() {
+    closed = true;
+    return count > 0;
+  }
+
+  /**
+   * Writes an aggregation of the window to its rollup table through
+   * {@link TSDB#addAggregatePoint}.
+   * @param tsdb The TSDB to write to.
+   * @param aggregation One of the {@link #SUPPORTED_AGGREGATIONS}.
+   * @return The deferred from the write.
+   * @throws IllegalArgumentException if the aggregation is not supported or
+   * the point could not be written.
+   */
+  public synchronized Deferred<Object> write(final TSDB tsdb,
+      final String aggregation) {
+    final Map<String, String> copy = new HashMap<String, String>(tags);
+    final String interval_string = interval.getInterval();
+    if (aggregation.equals("count")) {
+      return tsdb.addAggregatePoint(metric, start, count, copy, false,
+          interval_string, aggregation, null);
+    }
+    final int index = SUPPORTED_AGGREGATIONS.indexOf(aggregation);
+    if (index < 0) {
+      throw new IllegalArgumentException("Rollups cannot be generated for "
+          + "the aggregation: " + aggregation);
+    }
+    if (integers) {
+      return tsdb.addAggregatePoint(metric, start, aggregation.equals("sum") ?
+          long_sum : aggregation.equals("min") ? long_min : long_max, copy,
+          false, interval_string, aggregation, null);
+    }
+    return tsdb.addAggregatePoint(metric, start, aggregation.equals("sum") ?
+        sum : aggregation.equals("min") ? min : max, copy, false,
+        interval_string, aggregation, null);
+  }
+
+  /**
+   * Writes the aggregations of the window to its rollup table as a single
+   * packed column through {@link TSDB#addPackedRollupPoint}.
+   * @param tsdb The TSDB to write to.
+   * @param aggregations The {@link #SUPPORTED_AGGREGATIONS} to pack.
+   * @return The deferred from the write.
+   * @throws IllegalArgumentException if an aggregation is not supported or
+   * the point could not be written.
+   */
+  public synchronized Deferred<Object> writePacked(final TSDB tsdb,
+      final String[] aggregations) {
+    final byte[][] values = new byte[aggregations.length][];
+    final short[] flags = new short[aggregations.length];
+    for (int i = 0; i < aggregations.length; i++) {
+      final String aggregation = aggregations[i];
+      if (!SUPPORTED_AGGREGATIONS.contains(aggregation)) {
+        throw new IllegalArgumentException("Rollups cannot be generated for "
+            + "the aggregation: " + aggregation);
+      }
+      if (aggregation.equals("count") || integers) {
+        values[i] = Internal.vleEncodeLong(aggregation.equals("count") ? count
+            : aggregation.equals("sum") ? long_sum
+            : aggregation.equals("min") ? long_min : long_max);
+        flags[i] = (short) (values[i].length - 1);
+      } else {
+        values[i] = Bytes.fromLong(Double.doubleToRawLongBits(
+            aggregation.equals("sum") ? sum
+            : aggregation.equals("min") ? min : max));
+        flags[i] = (short) (Const.FLAG_FLOAT | 0x7);
+      }
+    }
+    return tsdb.addPackedRollupPoint(metric, start,
+        new HashMap<String, String>(tags), interval.getInterval(),
+        aggregations, values, flags);
+  }
+
+  @Override
+  public String toString() {
+    return interval.getInterval() + " window at " + start + " for " + metric
+        + " " + tags;
+  }
+
+  /** Writes the window to a checkpoint stream. */
+  synchronized void writeTo(final DataOutputStream out) throws IOException {
+    out.writeUTF(metric);
+    out.writeInt(tags.size());
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      out.writeUTF(tag.getKey());
+      out.writeUTF(tag.getValue());
+    }
+    out.writeUTF(interval.getInterval());
+    out.writeLong(start);
+    out.writeLong(count);
+    out.writeBoolean(integers);
+    out.writeLong(long_sum);
+    out.writeLong(long_min);
+    out.writeLong(long_max);
+    out.writeDouble(sum);
+    out.writeDouble(min);
+    out.writeDouble(max);
+  }
+
+  /**
+   * Reads a window from a checkpoint stream.
+   * @param in The stream to read from.
+   * @param rollup_config The config to find the interval in.
+   * @return The window or null if its interval is no longer configured.
+   * @throws IOException if the stream couldn't be read.
+   */
+  static RollupWindow readFrom(final DataInputStream in,
+      final RollupConfig rollup_config) throws IOException {
+    final String metric = in.readUTF();
+    final int num_tags = in.readInt();
+    final Map<String, String> tags = new HashMap<String, String>(num_tags);
+    for (int i = 0; i < num_tags; i++) {
+      tags.put(in.readUTF(), in.readUTF());
+    }
+    final String interval_string = in.readUTF();
+    final long start = in.readLong();
+    RollupInterval interval = null;
+    try {
+      interval = rollup_config.getRollupInterval(interval_string);
+    } catch (NoSuchElementException e) {
+      // skipped by the caller once the rest of the window is read
+    }
+    final RollupWindow window = new RollupWindow(metric, tags, interval, start);
+    window.count = in.readLong();
+    window.integers = in.readBoolean();
+    window.long_sum = in.readLong();
+    window.long_min = in.readLong();
+    window.long_max = in.readLong();
+    window.sum = in.readDouble();
+    window.min = in.readDouble();
+    window.max = in.readDouble();
+    return interval == null ? null : window;
+  }
+}
@@ -0,0 +1,502 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.DateTime;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Generates rollups from the raw data points written through this TSD so
+ * that the rollup tables don't need to be populated by an external job.
+ * <p>
+ * Every raw data point is added to an in-memory window for each of the
+ * non-default intervals in the {@link RollupConfig}. A window is closed once
+ * its end is more than {@code tsd.rollups.writer.grace_period} seconds in the
+ * past and on the next flush, every
+ * {@code tsd.rollups.writer.flush_interval} seconds, each of the aggregations
+ * in {@code tsd.rollups.writer.aggregations} is written through
+ * {@link TSDB#addAggregatePoint}, or as a single packed column through
+ * {@link TSDB#addPackedRollupPoint} if {@code tsd.rollups.packed.enable} is
+ * set. Points that arrive for a closed window are dropped and counted as late.
+ * <p>
+ * At most {@code tsd.rollups.writer.max_windows} windows are kept open. Once
+ * full, points for new windows are dropped and counted until a flush frees
+ * some space.
+ * <p>
+ * If {@code tsd.rollups.writer.checkpoint_file} is set then the open windows
+ * are written to the file after every flush and on shutdown, and loaded back
+ * on startup so a restart doesn't lose the partial windows. The file is
+ * written on a separate thread so the disk I/O doesn't hold up the timer. It
+ * is local to the TSD so it only covers the points written through this
+ * instance.
+ * <p>
+ * <b>Warning:</b> Each TSD only aggregates the points written through it and
+ * the rollup cells are overwritten, not merged. If points for the same series
+ * are written through more than one TSD, the last TSD to flush a window wins
+ * and the rollup only covers its share of the points. Only enable the writer
+ * when every series is written through a single TSD, e.g. when writers are
+ * sharded on the series.
+ * @since 2.4
+ */
+public final class RollupWriter implements TimerTask {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupWriter.class);
+
+  /** Charset used to build map keys. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The version of the checkpoint file format. */
+  private static final int CHECKPOINT_VERSION = 1;
+
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
+  /** The rollup config to pull intervals from. */
+  private final RollupConfig rollup_config;
+
+  /** The non-default intervals to generate rollups for. */
+  private final List<RollupInterval> intervals;
+
+  /** The aggregations to write for each window. */
+  private final String[] aggregations;
+
+  /** Whether or not to write all aggregations of a window as one packed
+   * column. */
+  private final boolean packed;
+
+  /** How long, in seconds, to wait for late data before closing a window. */
+  private final int grace_period;
+
+  /** How often, in seconds, to flush closed windows. */
+  private final int flush_interval;
+
+  /** The maximum number of open windows. */
+  private final int max_windows;
+
+  /** An optional file to checkpoint open windows to, null if disabled. */
+  private final File checkpoint_file;
+
+  /** Writes the checkpoints off the timer thread, null if disabled. */
+  private final ExecutorService checkpointer;
+
+  /** The open windows keyed on interval, start and TSUID. */
+  private final ConcurrentMap<String, RollupWindow> windows;
+
+  /** Windows ending at or before this unix epoch time in seconds are closed. */
+  private volatile long closed_through;
+
+  /** Counters for stats. */
+  private final AtomicLong late_dps = new AtomicLong();
+  private final AtomicLong full_dps = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+
+  /**
+   * Default ctor. Loads the checkpoint if configured and schedules the
+   * periodic flush.
+   * @param tsdb The non-null TSDB to pull config and the rollup config from.
+   * @throws IllegalArgumentException if rollups are not configured, an
+   * aggregation isn't supported or mapped to an ID or one of the durations is
+   * invalid.
+   */
+  public RollupWriter(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    rollup_config = tsdb.getRollupConfig();
+    if (rollup_config == null) {
+      throw new IllegalArgumentException("The rollup writer requires "
+          + "'tsd.rollups.enable' and a rollup config.");
+    }
+    intervals = new ArrayList<RollupInterval>();
+    for (final RollupInterval interval : rollup_config.getRollups().values()) {
+      if (!interval.isDefaultInterval()) {
+        intervals.add(interval);
+      }
+    }
+
+    aggregations = RollupWindow.parseAggregations(tsdb.getConfig().getString(
+        "tsd.rollups.writer.aggregations"), rollup_config);
+
+    packed = tsdb.getConfig().getBoolean("tsd.rollups.packed.enable");
+    grace_period = tsdb.getConfig().getInt("tsd.rollups.writer.grace_period");
+    if (grace_period < 0) {
+      throw new IllegalArgumentException("The rollup writer grace period "
+          + "cannot be negative: " + grace_period);
+    }
+    flush_interval = tsdb.getConfig().getInt(
+        "tsd.rollups.writer.flush_interval");
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("The rollup writer flush interval "
+          + "must be at least 1 second: " + flush_interval);
+    }
+    max_windows = tsdb.getConfig().getInt("tsd.rollups.writer.max_windows");
+    if (max_windows < 1) {
+      throw new IllegalArgumentException("The rollup writer must allow at "
+          + "least 1 window: " + max_windows);
+    }
+    final String checkpoint = tsdb.getConfig().getString(
+        "tsd.rollups.writer.checkpoint_file");
+    checkpoint_file = checkpoint == null || checkpoint.isEmpty() ? null :
+      new File(checkpoint);
+
+    checkpointer = checkpoint_file == null ? null :
+      Executors.newSingleThreadExecutor(new CheckpointThreadFactory());
+
+    windows = new ConcurrentHashMap<String, RollupWindow>();
+    closed_through = (DateTime.currentTimeMillis() / 1000) - grace_period;
+    if (checkpoint_file != null && checkpoint_file.exists()) {
+      loadCheckpoint();
+    }
+    tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Adds a raw data point to the open window of each interval. Points carrying
+   * the aggregate tag are pre-aggregates and skipped.
+   * @param row_key The data table row key, with or without the salt.
+   * @param metric The metric name.
+   * @param timestamp The timestamp of the data point in seconds or
+   * milliseconds.
+   * @param value The encoded value.
+   * @param flags The length and type flags of the value.
+   * @param tags The tags of the series. Copied if a window is created.
+   */
+  public void record(final byte[] row_key,
+                     final String metric,
+                     final long timestamp,
+                     final byte[] value,
+                     final short flags,
+                     final Map<String, String> tags) {
+    if (intervals.isEmpty() || tags.containsKey(tsdb.getAggTagKey())) {
+      return;
+    }
+    final long seconds = (timestamp & Const.SECOND_MASK) != 0 ?
+        timestamp / 1000 : timestamp;
+    final boolean is_integer = (flags & Const.FLAG_FLOAT) == 0;
+    final long long_value = is_integer ?
+        Internal.extractIntegerValue(value, 0, (byte) flags) : 0;
+    final double double_value = is_integer ? long_value :
+        Internal.extractFloatingPointValue(value, 0, (byte) flags);
+    final String tsuid = new String(UniqueId.getTSUIDFromKey(row_key,
+        TSDB.metrics_width(), Const.TIMESTAMP_BYTES), CHARSET);
+
+    for (final RollupInterval interval : intervals) {
+      final long start = RollupWindow.windowStart(seconds, interval);
+      if (start + interval.getIntervalSeconds() <= closed_through) {
+        late_dps.incrementAndGet();
+        continue;
+      }
+      final String key = key(interval, start, tsuid);
+      RollupWindow window = windows.get(key);
+      if (window == null) {
+        if (windows.size() >= max_windows) {
+          full_dps.incrementAndGet();
+          continue;
+        }
+        final RollupWindow fresh = new RollupWindow(metric,
+            new HashMap<String, String>(tags), interval, start);
+        window = windows.putIfAbsent(key, fresh);
+        if (window == null) {
+          window = fresh;
+        }
+      }
+      if (!window.add(is_integer, long_value, double_value, closed_through)) {
+        late_dps.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Closes the windows that ended more than the grace period ago and writes
+   * their aggregates, then checkpoints the windows that are still open in
+   * the background.
+   * @return A deferred to wait on for the writes and the checkpoint, resolves
+   * to null. Failures are logged and counted.
+   */
+  public Deferred<Object> flush() {
+    closed_through = (DateTime.currentTimeMillis() / 1000) - grace_period;
+    final List<Deferred<Object>> writes = new ArrayList<Deferred<Object>>();
+    for (final Map.Entry<String, RollupWindow> entry : windows.entrySet()) {
+      final RollupWindow window = entry.getValue();
+      if (window.end() > closed_through) {
+        continue;
+      }
+      if (windows.remove(entry.getKey(), window) && window.close()) {
+        write(window, writes);
+      }
+    }
+    if (checkpoint_file != null) {
+      writes.add(checkpointAsync());
+    }
+
+    /** Group to a single null. */
+    class GroupCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> ignored) throws Exception {
+        return null;
+      }
+    }
+
+    if (writes.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    LOG.debug("Flushing " + writes.size() + " rollup data points");
+    return Deferred.group(writes).addCallback(new GroupCB());
+  }
+
+  /**
+   * Writes the open windows to the checkpoint file, if configured, through a
+   * temporary file so a crash mid-write leaves the previous checkpoint intact.
+   * Failures are logged.
+   */
+  public void checkpoint() {
+    if (checkpoint_file == null) {
+      return;
+    }
+    final File temp = new File(checkpoint_file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(temp)));
+      final List<Map.Entry<String, RollupWindow>> open =
+          new ArrayList<Map.Entry<String, RollupWindow>>(windows.entrySet());
+      out.writeInt(CHECKPOINT_VERSION);
+      out.writeInt(open.size());
+      for (final Map.Entry<String, RollupWindow> entry : open) {
+        out.writeUTF(entry.getKey());
+        entry.getValue().writeTo(out);
+      }
+      out.close();
+      out = null;
+      if (checkpoint_file.exists() && !checkpoint_file.delete()) {
+        throw new IOException("Unable to delete the old checkpoint");
+      }
+      if (!temp.renameTo(checkpoint_file)) {
+        throw new IOException("Unable to rename " + temp);
+      }
+      LOG.debug("Checkpointed " + open.size() + " rollup windows to "
+          + checkpoint_file);
+    } catch (IOException e) {
+      LOG.error("Failed to checkpoint rollup windows to " + checkpoint_file, e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) { }
+      }
+    }
+  }
+
+  /** @param timeout The timeout reference. */
+  @Override
+  public void run(final Timeout timeout) {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      LOG.error("Failed to flush rollup windows", e);
+    } finally {
+      try {
+        tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.SECONDS);
+      } catch (IllegalStateException e) {
+        LOG.debug("Timer stopped, no more rollup flushes scheduled");
+      }
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.writer.windows", windows.size());
+    collector.record("rollup.writer.dropped", late_dps, "reason=late");
+    collector.record("rollup.writer.dropped", full_dps, "reason=full");
+    collector.record("rollup.writer.written", written);
+    collector.record("rollup.writer.errors", write_errors);
+  }
+
+  /** @return The number of open windows. */
+  public int openWindows() {
+    return windows.size();
+  }
+
+  /** @return The number of points dropped because their window was closed. */
+  public long lateDataPoints() {
+    return late_dps.get();
+  }
+
+  /** @return The number of points dropped because too many windows were open. */
+  public long droppedDataPoints() {
+    return full_dps.get();
+  }
+
+  /** @return The map key for a window. */
+  private static String key(final RollupInterval interval, final long start,
+      final String tsuid) {
+    return interval.getInterval() + ':' + start + ':' + tsuid;
+  }
+
+  /**
+   * Writes each of the configured aggregations for a closed window.
+   * @param window The closed window.
+   * @param writes The list to add the deferreds to.
+   */
+  private void write(final RollupWindow window,
+      final List<Deferred<Object>> writes) {
+    /** Logs and counts failures. */
+    class ErrCB implements Callback<Object, Exception> {
+      final String agg;
+      ErrCB(final String agg) {
+        this.agg = agg;
+      }
+      @Override
+      public Object call(final Exception e) throws Exception {
+        write_errors.incrementAndGet();
+        LOG.warn("Failed to write the " + agg + " rollup of " + window, e);
+        return null;
+      }
+    }
+
+    if (packed) {
+      final Deferred<Object> deferred;
+      try {
+        deferred = window.writePacked(tsdb, aggregations);
+      } catch (RuntimeException e) {
+        write_errors.incrementAndGet();
+        LOG.warn("Failed to write the packed rollups of " + window, e);
+        return;
+      }
+      written.incrementAndGet();
+      writes.add(deferred.addErrback(new ErrCB("packed")));
+      return;
+    }
+    for (final String agg : aggregations) {
+      final Deferred<Object> deferred;
+      try {
+        deferred = window.write(tsdb, agg);
+      } catch (RuntimeException e) {
+        write_errors.incrementAndGet();
+        LOG.warn("Failed to write the " + agg + " rollup of " + window, e);
+        continue;
+      }
+      written.incrementAndGet();
+      writes.add(deferred.addErrback(new ErrCB(agg)));
+    }
+  }
+
+  /** Loads the open windows from the checkpoint file. Failures are logged. */
+  private void loadCheckpoint() {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(checkpoint_file)));
+      final int version = in.readInt();
+      if (version != CHECKPOINT_VERSION) {
+        throw new IOException("Unsupported checkpoint version " + version);
+      }
+      final int count = in.readInt();
+      int loaded = 0;
+      for (int i = 0; i < count; i++) {
+        final String key = in.readUTF();
+        final RollupWindow window = RollupWindow.readFrom(in, rollup_config);
+        if (window == null) {
+          LOG.warn("Skipping a checkpointed rollup window with an interval "
+              + "that is no longer configured");
+        } else if (!window.interval().isDefaultInterval()) {
+          windows.put(key, window);
+          loaded++;
+        }
+      }
+      LOG.info("Loaded " + loaded + " rollup windows from " + checkpoint_file);
+    } catch (IOException e) {
+      LOG.error("Failed to load the rollup checkpoint " + checkpoint_file, e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) { }
+      }
+    }
+  }
+
+  /**
+   * Queues a checkpoint on the checkpoint thread.
+   * @return A deferred resolving to null once the checkpoint was written or
+   * failed.
+   */
+  private Deferred<Object> checkpointAsync() {
+    final Deferred<Object> deferred = new Deferred<Object>();
+
+    /** Writes the checkpoint and lets the caller know. */
+    class CheckpointTask implements Runnable {
+      @Override
+      public void run() {
+        try {
+          checkpoint();
+        } finally {
+          deferred.callback(null);
+        }
+      }
+    }
+
+    try {
+      checkpointer.execute(new CheckpointTask());
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Unable to queue a checkpoint of the rollup windows", e);
+      return Deferred.fromResult(null);
+    }
+    return deferred;
+  }
+
+  /** Names the checkpoint thread and keeps it from blocking a shutdown. */
+  private static final class CheckpointThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "OpenTSDB Rollup Checkpoint");
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -221,7 +221,13 @@ public class TimeSeriesLookup {
           final byte[] tsuid = query.useMeta() ? row.get(0).key() : 
             UniqueId.getTSUIDFromKey(row.get(0).key(), TSDB.metrics_width(), 
                 Const.TIMESTAMP_BYTES);
-          
+
+          // metric only rows in the meta table hold cardinality sketches, not
+          // time series
+          if (query.useMeta() && tsuid.length <= TSDB.metrics_width()) {
+            continue;
+          }
+
           // TODO - there MUST be a better way than creating a ton of temp
           // string objects.
           if (tagv_regex != null && 
@@ -22,15 +22,18 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Objects;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 
+import net.opentsdb.core.CancellationToken;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.QueryException;
 import net.opentsdb.core.TSQuery;
@@ -77,6 +80,15 @@ public class QueryStats {
   private static Cache<Integer, QueryStats> completed_queries = 
       CacheBuilder.newBuilder().maximumSize(COMPLETED_QUERY_CACHE_SIZE).build();
   
+  /** Counters of cancelled queries, indexed on the reason ordinal. */
+  private static final AtomicLong[] cancelled_queries = 
+      new AtomicLong[CancellationToken.Reason.values().length];
+  static {
+    for (int i = 0; i < cancelled_queries.length; i++) {
+      cancelled_queries[i] = new AtomicLong();
+    }
+  }
+  
   /** Start time for the query in nano seconds. Can be set post construction 
    * if necessary */
   private final long query_start_ns;
@@ -126,6 +138,9 @@ public class QueryStats {
   /** Whether or not the data was successfully sent to the client */
   private boolean sent_to_client;
   
+  /** The token checked by the storage layer to abort the query early */
+  private final CancellationToken cancellation = new CancellationToken();
+  
   /**
    * A list of statistics surrounding individual queries
    */
@@ -133,10 +148,40 @@ public class QueryStats {
     // Query Setup stats
     STRING_TO_UID_TIME ("stringToUidTime", true),
     
+    // Query planner stats. The plan is the ordinal of the strategy
+    QUERY_PLAN ("queryPlan", false),
+    PLANNED_SCAN_BUCKETS ("plannedScanBuckets", false),
+    PLANNED_MULTI_GET_BUCKETS ("plannedMultiGetBuckets", false),
+    ESTIMATED_ROWS ("estimatedRows", false),
+    ACTUAL_ROWS ("actualRows", false),
+    TAG_INDEX_SERIES ("tagIndexSeries", false),
+    ESTIMATED_SERIES ("estimatedSeries", false),
+    ESTIMATED_BYTES ("estimatedBytes", false),
+    ESTIMATED_DATA_POINTS ("estimatedDataPoints", false),
+    // Signed percentage the estimates were off by compared to what was fetched
+    BYTES_ESTIMATE_ERROR ("bytesEstimateErrorPct", false),
+    DATA_POINTS_ESTIMATE_ERROR ("dataPointsEstimateErrorPct", false),
+    // Rollup stitching. Rollups are read before the split time in seconds,
+    // raw data from it on
+    ROLLUP_INTERVAL ("rollupIntervalSeconds", false),
+    ROLLUP_SPLIT_TIME ("rollupSplitTime", false),
+    RAW_TAIL_SERIES ("rawTailSeries", false),
+
+    // Cancellation stats. The reason is the ordinal of the reason plus one
+    QUERY_CANCELLED ("queryCancelled", false),
+    CANCELLED_SCANNERS ("cancelledScanners", false),
+    
+    // Query scheduler stats
+    QUERY_COST ("queryCost", false),
+    SCHEDULER_WAIT_TIME ("schedulerWaitTime", true),
+    
     // Storage stats
     COLUMNS_FROM_STORAGE ("columnsFromStorage", false),
     ROWS_FROM_STORAGE ("rowsFromStorage", false),
     BYTES_FROM_STORAGE ("bytesFromStorage", false),
+    // What the salt scanners counted against the byte and data point limits
+    FETCHED_BYTES ("fetchedBytes", false),
+    FETCHED_DATA_POINTS ("fetchedDataPoints", false),
     SUCCESSFUL_SCAN ("successfulScan", false),
     
     // Single Scanner stats
@@ -157,6 +202,15 @@ public class QueryStats {
     QUERY_SCAN_TIME ("queryScanTime", true),
     GROUP_BY_TIME ("groupByTime", true),
     
+    // Histogram merge stats
+    HISTOGRAM_DECODES ("histogramDecodes", false),
+    HISTOGRAM_ENCODED_MERGES ("histogramEncodedMerges", false),
+    HISTOGRAM_BYTES_MERGED ("histogramBytesMerged", false),
+    
+    // Expression stats
+    JOIN_BUILD_TIME ("joinBuildTime", true),
+    JOIN_PROBE_TIME ("joinProbeTime", true),
+    
     // Serialization time stats
     UID_TO_STRING_TIME ("uidToStringTime", true),
     AGGREGATED_SIZE ("emittedDPs", false),
@@ -342,6 +396,7 @@ public class QueryStats {
       final Throwable exception) {
     this.exception = exception;
     this.response = response;
+    cancellation.complete();
     
     query_completed_ts = DateTime.currentTimeMillis();
     overall_stats.put(QueryStat.PROCESSING_PRE_WRITE_TIME, DateTime.nanoTime() - query_start_ns);
@@ -407,6 +462,7 @@ public class QueryStats {
       // don't need to lock the map beyond what the iterator will do implicitly
       for (final QueryStats stats : running_queries.values()) {
         final Map<String, Object> obj = new HashMap<String, Object>(10);
+        obj.put("id", stats.hashCode());
         obj.put("query", stats.query);
         obj.put("remote", stats.remote_address);
         obj.put("user", stats.user);
@@ -434,6 +490,44 @@ public class QueryStats {
    */
   public static void collectStats(final StatsCollector collector) {
     collector.record("query.count", running_queries.size(), "type=running");
+    for (final CancellationToken.Reason reason : 
+        CancellationToken.Reason.values()) {
+      collector.record("query.cancelled", 
+          cancelled_queries[reason.ordinal()].get(), 
+          "reason=" + reason.toString().toLowerCase());
+    }
+  }
+  
+  /**
+   * Cancels the running query with the given ID as reported in the running
+   * list of {@link #getRunningAndCompleteStats()}.
+   * @param id The ID of the running query.
+   * @return True if the query was found and cancelled, false if it wasn't
+   * running or was already cancelled.
+   */
+  public static boolean cancelRunningQuery(final int id) {
+    final QueryStats stats = running_queries.get(id);
+    if (stats == null) {
+      return false;
+    }
+    return stats.cancel(CancellationToken.Reason.KILLED);
+  }
+  
+  /**
+   * Cancels the query so that scanners and multi-gets stop at their next
+   * batch. Has no effect if the query was already cancelled or completed.
+   * @param reason The non-null reason for cancelling.
+   * @return True if the query was cancelled by this call.
+   */
+  public boolean cancel(final CancellationToken.Reason reason) {
+    if (!cancellation.cancel(reason)) {
+      return false;
+    }
+    cancelled_queries[reason.ordinal()].incrementAndGet();
+    addStat(QueryStat.QUERY_CANCELLED, reason.ordinal() + 1);
+    LOG.warn("Cancelled query for remote " + remote_address + " with hash " 
+        + hashCode() + " due to " + reason);
+    return true;
   }
   
   /**
@@ -577,6 +671,53 @@ public class QueryStats {
           (cumulation.getValue().getKey() / query_stats.size()));
       overall_stats.put(names.getValue(), cumulation.getValue().getValue());
     }
+    
+    aggEstimateErrors();
+  }
+  
+  /**
+   * Compares the size estimates of each sub query with what was actually
+   * fetched from storage. Run after the counters are rolled up so that the
+   * percentages aren't summed. The overall error only considers sub queries
+   * with both an estimate and fetched counts.
+   */
+  private void aggEstimateErrors() {
+    long estimated_bytes = 0;
+    long fetched_bytes = 0;
+    long estimated_dps = 0;
+    long fetched_dps = 0;
+    boolean found = false;
+    for (final Map<QueryStat, Long> sub_query : query_stats.values()) {
+      final Long est_bytes = sub_query.get(QueryStat.ESTIMATED_BYTES);
+      final Long est_dps = sub_query.get(QueryStat.ESTIMATED_DATA_POINTS);
+      final Long bytes = sub_query.get(QueryStat.FETCHED_BYTES);
+      final Long dps = sub_query.get(QueryStat.FETCHED_DATA_POINTS);
+      if (est_bytes == null || est_dps == null || bytes == null || 
+          dps == null) {
+        continue;
+      }
+      sub_query.put(QueryStat.BYTES_ESTIMATE_ERROR, 
+          estimateError(est_bytes, bytes));
+      sub_query.put(QueryStat.DATA_POINTS_ESTIMATE_ERROR, 
+          estimateError(est_dps, dps));
+      estimated_bytes += est_bytes;
+      fetched_bytes += bytes;
+      estimated_dps += est_dps;
+      fetched_dps += dps;
+      found = true;
+    }
+    if (found) {
+      overall_stats.put(QueryStat.BYTES_ESTIMATE_ERROR, 
+          estimateError(estimated_bytes, fetched_bytes));
+      overall_stats.put(QueryStat.DATA_POINTS_ESTIMATE_ERROR, 
+          estimateError(estimated_dps, fetched_dps));
+    }
+  }
+  
+  /** @return The signed percentage the estimate was off by */
+  private static long estimateError(final long estimate, final long actual) {
+    return (long) (((double) (estimate - actual) * 100) / 
+        Math.max(actual, 1));
   }
   
   /**
@@ -703,6 +844,12 @@ public class QueryStats {
     return user;
   }
   
+  /** @return The cancellation token for the query */
+  @JsonIgnore
+  public CancellationToken getCancellationToken() {
+    return cancellation;
+  }
+  
   /** @return The multi-mapped set of request headers associated with the query */
   public Map<String, String> getRequestHeaders() {
     return headers;
@@ -88,6 +88,7 @@ public class OpenTSDBMain {
   
   static {
     Map<String, Class<?>> tmp = new HashMap<String, Class<?>>();
+    tmp.put("backfill", RollupBackfill.class);
     tmp.put("fsck", Fsck.class);
     tmp.put("import", TextImporter.class);
     tmp.put("mkmetric", UidManager.class); // -> shift --> set uid assign metrics "$@"
@@ -106,6 +107,7 @@ public class OpenTSDBMain {
   public static void mainUsage(PrintStream ps) {
     StringBuilder b = new StringBuilder("\nUsage: java -jar [opentsdb.jar] [command] [args]\nValid commands:")
       .append("\n\ttsd: Starts a new TSDB instance")
+      .append("\n\tbackfill: Generates rollups from the raw data in a TSDB")
       .append("\n\tfsck: Searches for and optionally fixes corrupted data in a TSDB")
       .append("\n\timport: Imports data from a file into HBase through a TSDB")
       .append("\n\tmkmetric: Creates a new metric")
@@ -0,0 +1,733 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.IllegalDataException;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.core.RowKey;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupWindow;
+import net.opentsdb.uid.NoSuchUniqueId;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Tool to populate rollup tables from the raw data table, e.g. after adding a
+ * new interval to the {@link RollupConfig}. The scan is split into tasks, one
+ * per salt bucket for each metric given on the command line or one per slice
+ * of the data table for a full scan, and the tasks are worked through by a
+ * pool of threads. Each task computes the configured aggregations of every
+ * series over each window of the selected intervals and writes them through
+ * {@link TSDB#addAggregatePoint}, or {@link TSDB#addPackedRollupPoint} if
+ * {@code tsd.rollups.packed.enable} is set, waiting on the writes every
+ * {@code --batch-size} rollups.
+ * <p>
+ * The time range is widened to whole windows of each interval so that no
+ * partial window overwrites a complete rollup. If a checkpoint file is given,
+ * finished tasks are appended to it and skipped when the tool is re-run with
+ * the same arguments.
+ * <p>
+ * Note that duplicate raw data points are counted twice. Run an fsck first if
+ * the data table may have duplicates.
+ * @since 2.4
+ */
+final class RollupBackfill {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupBackfill.class);
+
+  /** Charset used to build map keys. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** How often to log progress in milliseconds. */
+  static long report_interval = 10000;
+
+  /** The TSDB to scan and write through. */
+  private final TSDB tsdb;
+
+  /** The intervals to generate. */
+  private final List<RollupInterval> intervals;
+
+  /** The aggregations to write for each window. */
+  private final String[] aggregations;
+
+  /** Whether or not to write the aggregations of a window as one packed
+   * column. */
+  private final boolean packed;
+
+  /** The first and last window start for each interval, in seconds. */
+  private final long[] first_windows;
+  private final long[] last_windows;
+
+  /** The time range to scan in seconds, start inclusive, end exclusive. */
+  private final long scan_start;
+  private final long scan_end;
+
+  /** How many threads to run. */
+  private final int threads;
+
+  /** How many rollups to write before waiting on the writes. */
+  private final int batch_size;
+
+  /** An optional limit on the rollups written per second. */
+  private final RateLimiter rate_limiter;
+
+  /** An optional file to record finished tasks in. */
+  private final File checkpoint_file;
+
+  /** The header written to and expected in the checkpoint file. */
+  private final String checkpoint_header;
+
+  /** Tasks finished in a previous run. */
+  private final Set<String> completed;
+
+  /** Counters for the progress report. */
+  final AtomicLong rows_processed = new AtomicLong();
+  final AtomicLong datapoints_processed = new AtomicLong();
+  final AtomicLong rollups_written = new AtomicLong();
+  final AtomicLong errors = new AtomicLong();
+  final AtomicLong tasks_completed = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to scan and write through, with a rollup config.
+   * @param intervals The non-default intervals to generate.
+   * @param aggregations The aggregations to write.
+   * @param start The start of the range in unix epoch seconds, inclusive.
+   * @param end The end of the range in unix epoch seconds, exclusive.
+   * @param threads How many threads to run.
+   * @param batch_size How many rollups to write before waiting.
+   * @param rate The maximum rollups to write per second, 0 for no limit.
+   * @param checkpoint_file An optional file to record finished tasks in.
+   * @throws IllegalArgumentException if a parameter was invalid or the
+   * checkpoint file was written for a different run.
+   */
+  RollupBackfill(final TSDB tsdb, final List<RollupInterval> intervals,
+      final String[] aggregations, final long start, final long end,
+      final int threads, final int batch_size, final double rate,
+      final File checkpoint_file) {
+    if (intervals == null || intervals.isEmpty()) {
+      throw new IllegalArgumentException("At least one interval is required");
+    }
+    for (final RollupInterval interval : intervals) {
+      if (interval.isDefaultInterval()) {
+        throw new IllegalArgumentException("Cannot backfill the default "
+            + "interval: " + interval.getInterval());
+      }
+    }
+    if (start < 0 || end <= start) {
+      throw new IllegalArgumentException("The end time must be greater than "
+          + "the start time: " + start + " to " + end);
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("Must have at least one thread");
+    }
+    if (batch_size < 1) {
+      throw new IllegalArgumentException("The batch size must be at least 1");
+    }
+    if (rate < 0) {
+      throw new IllegalArgumentException("The rate cannot be negative");
+    }
+    this.tsdb = tsdb;
+    this.intervals = intervals;
+    this.aggregations = aggregations;
+    packed = tsdb.getConfig().getBoolean("tsd.rollups.packed.enable");
+    this.threads = threads;
+    this.batch_size = batch_size;
+    rate_limiter = rate > 0 ? RateLimiter.create(rate) : null;
+    this.checkpoint_file = checkpoint_file;
+
+    first_windows = new long[intervals.size()];
+    last_windows = new long[intervals.size()];
+    long min_start = Long.MAX_VALUE;
+    long max_end = Long.MIN_VALUE;
+    final StringBuilder buf = new StringBuilder("# ");
+    for (int i = 0; i < intervals.size(); i++) {
+      final RollupInterval interval = intervals.get(i);
+      first_windows[i] = RollupWindow.windowStart(start, interval);
+      last_windows[i] = RollupWindow.windowStart(end - 1, interval);
+      min_start = Math.min(min_start, first_windows[i]);
+      max_end = Math.max(max_end,
+          last_windows[i] + interval.getIntervalSeconds());
+      buf.append(interval.getInterval()).append(',');
+    }
+    scan_start = min_start;
+    scan_end = max_end;
+    buf.append(' ').append(Arrays.toString(aggregations))
+       .append(' ').append(start).append(' ').append(end);
+    checkpoint_header = buf.toString();
+    completed = loadCheckpoint();
+  }
+
+  /**
+   * Runs the backfill.
+   * @param metrics An optional list of metric names to backfill. If null or
+   * empty the full data table is scanned.
+   * @return The number of errors encountered.
+   * @throws Exception if something went pear shaped.
+   */
+  long run(final List<String> metrics) throws Exception {
+    final long start_time = System.currentTimeMillis();
+    final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+    for (final Task task : buildTasks(metrics)) {
+      if (completed.contains(task.id)) {
+        LOG.info("Skipping task [" + task.id + "] finished in a previous run");
+        continue;
+      }
+      tasks.add(task);
+    }
+    LOG.info("Backfilling " + intervals.size() + " intervals from "
+        + scan_start + " to " + scan_end + " with " + tasks.size() + " tasks");
+
+    final List<Thread> workers = new ArrayList<Thread>(threads);
+    for (int i = 0; i < Math.min(threads, tasks.size()); i++) {
+      final Thread worker = new Worker(tasks, i);
+      worker.setName("RollupBackfill #" + i);
+      worker.start();
+      workers.add(worker);
+    }
+
+    final Thread reporter = new ProgressReporter(start_time);
+    reporter.start();
+    for (final Thread worker : workers) {
+      worker.join();
+      LOG.info("Thread [" + worker + "] Finished");
+    }
+    reporter.interrupt();
+    // make sure buffered data is flushed to storage before exiting
+    tsdb.flush().joinUninterruptibly();
+
+    final long duration = (System.currentTimeMillis() - start_time) / 1000;
+    LOG.info("Completed rollup backfill of [" + rows_processed.get()
+        + "] rows, [" + datapoints_processed.get() + "] data points and ["
+        + rollups_written.get() + "] rollups with [" + errors.get()
+        + "] errors in [" + duration + "] seconds");
+    return errors.get();
+  }
+
+  /**
+   * Computes the tasks for the run.
+   * @param metrics An optional list of metrics to scan.
+   * @return The tasks to run.
+   */
+  List<Task> buildTasks(final List<String> metrics) {
+    final List<Task> tasks = new ArrayList<Task>();
+    if (metrics == null || metrics.isEmpty()) {
+      int i = 0;
+      for (final Scanner scanner :
+          CliUtils.getDataTableScanners(tsdb, threads)) {
+        tasks.add(new Task("full:" + i++, scanner));
+      }
+      return tasks;
+    }
+
+    final int metric_width = TSDB.metrics_width();
+    final byte[] start_time = Bytes.fromInt((int) Internal.baseTime(scan_start));
+    final byte[] stop_time = Bytes.fromInt(
+        (int) (Internal.baseTime(scan_end - 1) + Const.MAX_TIMESPAN));
+    for (final String metric : metrics) {
+      final byte[] uid = tsdb.getUID(UniqueIdType.METRIC, metric);
+      final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+      for (int i = 0; i < buckets; i++) {
+        final byte[] start_key = new byte[Const.SALT_WIDTH() + metric_width +
+                                          Const.TIMESTAMP_BYTES];
+        if (Const.SALT_WIDTH() > 0) {
+          System.arraycopy(RowKey.getSaltBytes(i), 0, start_key, 0,
+              Const.SALT_WIDTH());
+        }
+        System.arraycopy(uid, 0, start_key, Const.SALT_WIDTH(), metric_width);
+        final byte[] stop_key = Arrays.copyOf(start_key, start_key.length);
+        System.arraycopy(start_time, 0, start_key,
+            Const.SALT_WIDTH() + metric_width, Const.TIMESTAMP_BYTES);
+        System.arraycopy(stop_time, 0, stop_key,
+            Const.SALT_WIDTH() + metric_width, Const.TIMESTAMP_BYTES);
+
+        final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
+        scanner.setStartKey(start_key);
+        scanner.setStopKey(stop_key);
+        scanner.setFamily(TSDB.FAMILY());
+        tasks.add(new Task(metric + ":" + i, scanner));
+      }
+    }
+    return tasks;
+  }
+
+  /**
+   * Scans a task and writes the rollups for it.
+   * @param task The task to run.
+   * @throws Exception if the scan failed.
+   */
+  void process(final Task task) throws Exception {
+    final TaskState state = new TaskState();
+    ArrayList<ArrayList<KeyValue>> rows;
+    while ((rows = task.scanner.nextRows().joinUninterruptibly()) != null) {
+      for (final ArrayList<KeyValue> row : rows) {
+        processRow(row, state);
+      }
+    }
+    emit(state, Long.MAX_VALUE);
+    state.waitForBatch();
+    markCompleted(task.id);
+    tasks_completed.incrementAndGet();
+  }
+
+  /**
+   * Adds the data points of a row to the open windows of its series. Since
+   * rows are sorted on metric then base time, windows ending at or before the
+   * base time of the row can't receive any more data and are written.
+   * @param row The row to process.
+   * @param state The state of the task.
+   */
+  void processRow(final ArrayList<KeyValue> row, final TaskState state) {
+    final byte[] key = row.get(0).key();
+    final long base_time = Internal.baseTime(key);
+    if (base_time + Const.MAX_TIMESPAN <= scan_start ||
+        base_time >= scan_end) {
+      // full table scans can't filter on time
+      return;
+    }
+    final byte[] metric = Arrays.copyOfRange(key, Const.SALT_WIDTH(),
+        Const.SALT_WIDTH() + TSDB.metrics_width());
+    if (state.metric == null || !Arrays.equals(metric, state.metric)) {
+      emit(state, Long.MAX_VALUE);
+      state.tags.clear();
+      state.metric = metric;
+      state.metric_name = null;
+    } else if (base_time > state.base_time) {
+      emit(state, base_time);
+    }
+    state.base_time = base_time;
+    rows_processed.incrementAndGet();
+
+    final String tsuid = new String(UniqueId.getTSUIDFromKey(key,
+        TSDB.metrics_width(), Const.TIMESTAMP_BYTES), CHARSET);
+    if (!state.tags.containsKey(tsuid)) {
+      try {
+        if (state.metric_name == null) {
+          state.metric_name = Internal.metricName(tsdb, key);
+        }
+        final Map<String, String> tags = Internal.getTags(tsdb, key);
+        // skip pre-aggregated data
+        state.tags.put(tsuid,
+            tags.containsKey(tsdb.getAggTagKey()) ? null : tags);
+      } catch (NoSuchUniqueId e) {
+        LOG.warn("Skipping row with an unknown UID " + Arrays.toString(key)
+            + ": " + e.getMessage());
+        errors.incrementAndGet();
+        return;
+      }
+    }
+    final Map<String, String> tags = state.tags.get(tsuid);
+    if (tags == null) {
+      return;
+    }
+
+    final ArrayList<Cell> cells;
+    try {
+      cells = Internal.extractDataPoints(row, row.size());
+    } catch (IllegalDataException e) {
+      LOG.warn("Skipping row with bad data " + Arrays.toString(key), e);
+      errors.incrementAndGet();
+      return;
+    }
+    for (final Cell cell : cells) {
+      final long timestamp = cell.timestamp(base_time) / 1000;
+      final Number value = cell.parseValue();
+      boolean used = false;
+      for (int i = 0; i < intervals.size(); i++) {
+        final RollupInterval interval = intervals.get(i);
+        final long start = RollupWindow.windowStart(timestamp, interval);
+        if (start < first_windows[i] || start > last_windows[i]) {
+          continue;
+        }
+        final String window_key = interval.getInterval() + ':' + start + ':'
+            + tsuid;
+        RollupWindow window = state.windows.get(window_key);
+        if (window == null) {
+          window = new RollupWindow(state.metric_name, tags, interval, start);
+          state.windows.put(window_key, window);
+        }
+        window.add(cell.isInteger(), value.longValue(), value.doubleValue(),
+            Long.MIN_VALUE);
+        used = true;
+      }
+      if (used) {
+        datapoints_processed.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Writes and removes the windows ending at or before the given time.
+   * @param state The state of the task.
+   * @param through The time in seconds.
+   */
+  private void emit(final TaskState state, final long through) {
+    /** Logs and counts failures. */
+    final class ErrCB implements Callback<Object, Exception> {
+      final RollupWindow window;
+      ErrCB(final RollupWindow window) {
+        this.window = window;
+      }
+      @Override
+      public Object call(final Exception e) throws Exception {
+        errors.incrementAndGet();
+        LOG.error("Failed to write rollup for " + window, e);
+        return null;
+      }
+    }
+
+    final Iterator<RollupWindow> iterator = state.windows.values().iterator();
+    while (iterator.hasNext()) {
+      final RollupWindow window = iterator.next();
+      if (window.end() > through) {
+        continue;
+      }
+      iterator.remove();
+      if (!window.close()) {
+        continue;
+      }
+      if (packed) {
+        if (rate_limiter != null) {
+          rate_limiter.acquire();
+        }
+        try {
+          state.batch.add(window.writePacked(tsdb, aggregations)
+              .addErrback(new ErrCB(window)));
+          rollups_written.incrementAndGet();
+        } catch (RuntimeException e) {
+          errors.incrementAndGet();
+          LOG.error("Failed to write rollup for " + window, e);
+        }
+        if (state.batch.size() >= batch_size) {
+          state.waitForBatch();
+        }
+        continue;
+      }
+      for (final String agg : aggregations) {
+        if (rate_limiter != null) {
+          rate_limiter.acquire();
+        }
+        try {
+          state.batch.add(window.write(tsdb, agg)
+              .addErrback(new ErrCB(window)));
+          rollups_written.incrementAndGet();
+        } catch (RuntimeException e) {
+          errors.incrementAndGet();
+          LOG.error("Failed to write rollup for " + window, e);
+        }
+        if (state.batch.size() >= batch_size) {
+          state.waitForBatch();
+        }
+      }
+    }
+  }
+
+  /** @return The tasks finished by a previous run with the same arguments. */
+  private Set<String> loadCheckpoint() {
+    final Set<String> tasks = new HashSet<String>();
+    if (checkpoint_file == null || !checkpoint_file.exists()) {
+      return tasks;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(checkpoint_file));
+      final String header = reader.readLine();
+      if (header != null && !header.equals(checkpoint_header)) {
+        throw new IllegalArgumentException("The checkpoint file "
+            + checkpoint_file + " was written for a different run: " + header);
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          tasks.add(line);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to read the checkpoint file "
+          + checkpoint_file, e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) { }
+      }
+    }
+    LOG.info("Loaded " + tasks.size() + " finished tasks from "
+        + checkpoint_file);
+    return tasks;
+  }
+
+  /**
+   * Appends a finished task to the checkpoint file, if configured. Failures
+   * are logged and the task will be run again on the next run.
+   * @param id The ID of the task.
+   */
+  private synchronized void markCompleted(final String id) {
+    if (checkpoint_file == null) {
+      return;
+    }
+    Writer writer = null;
+    try {
+      final boolean exists = checkpoint_file.exists() &&
+          checkpoint_file.length() > 0;
+      writer = new FileWriter(checkpoint_file, true);
+      if (!exists) {
+        writer.write(checkpoint_header + "\n");
+      }
+      writer.write(id + "\n");
+    } catch (IOException e) {
+      LOG.error("Failed to checkpoint task [" + id + "]", e);
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) { }
+      }
+    }
+  }
+
+  /** A scanner over a part of the data table. */
+  static final class Task {
+    final String id;
+    final Scanner scanner;
+
+    Task(final String id, final Scanner scanner) {
+      this.id = id;
+      this.scanner = scanner;
+    }
+  }
+
+  /** The open windows and pending writes of a task. */
+  static final class TaskState {
+    /** The metric UID of the last row. */
+    byte[] metric;
+
+    /** The base time of the last row. */
+    long base_time;
+
+    /** The name of the current metric, null until resolved. */
+    String metric_name;
+
+    /** Tags of the series of the current metric keyed on TSUID, null values
+     * for pre-aggregated series. */
+    final Map<String, Map<String, String>> tags =
+        new HashMap<String, Map<String, String>>();
+
+    /** Open windows keyed on interval, start and TSUID. */
+    final Map<String, RollupWindow> windows =
+        new HashMap<String, RollupWindow>();
+
+    /** Writes that haven't been waited on. */
+    final List<Deferred<Object>> batch = new ArrayList<Deferred<Object>>();
+
+    /** Waits for the pending writes to complete. */
+    void waitForBatch() {
+      if (batch.isEmpty()) {
+        return;
+      }
+      try {
+        Deferred.group(batch).joinUninterruptibly();
+      } catch (Exception e) {
+        // failures are logged by the errbacks
+        LOG.debug("Batch completed with errors", e);
+      }
+      batch.clear();
+    }
+  }
+
+  /** Runs tasks until the queue is empty. */
+  final class Worker extends Thread {
+    final ConcurrentLinkedQueue<Task> tasks;
+    final int thread_id;
+
+    Worker(final ConcurrentLinkedQueue<Task> tasks, final int thread_id) {
+      this.tasks = tasks;
+      this.thread_id = thread_id;
+    }
+
+    @Override
+    public void run() {
+      Task task;
+      while ((task = tasks.poll()) != null) {
+        try {
+          process(task);
+          LOG.info("[" + thread_id + "] Finished task [" + task.id + "]");
+        } catch (Exception e) {
+          errors.incrementAndGet();
+          LOG.error("[" + thread_id + "] Task [" + task.id + "] failed", e);
+        }
+      }
+    }
+  }
+
+  /** Logs the progress and throughput while the backfill runs. */
+  final class ProgressReporter extends Thread {
+    final long start_time;
+
+    ProgressReporter(final long start_time) {
+      super("Progress");
+      this.start_time = start_time;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(report_interval);
+        } catch (InterruptedException e) {
+          return;
+        }
+        final double seconds = Math.max(1,
+            (System.currentTimeMillis() - start_time) / 1000);
+        LOG.info("Processed " + rows_processed.get() + " rows, "
+            + datapoints_processed.get() + " data points ("
+            + (long) (datapoints_processed.get() / seconds) + "/s), wrote "
+            + rollups_written.get() + " rollups ("
+            + (long) (rollups_written.get() / seconds) + "/s), finished "
+            + tasks_completed.get() + " tasks with " + errors.get()
+            + " errors");
+      }
+    }
+  }
+
+  /** Prints usage and exits with the given retval. */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: backfill --start START-DATE [flags] "
+        + "[metrics...]\n"
+        + "Generates rollups from the raw data table. Specify the metrics to "
+        + "backfill or use the --full-scan flag to scan the entire data "
+        + "table.\n");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    argp.addOption("--help", "Print help information.");
+    CliOptions.addCommon(argp);
+    argp.addOption("--start", "START-DATE",
+        "The start of the time range to backfill (required).");
+    argp.addOption("--end", "END-DATE",
+        "The end of the time range to backfill (default: now).");
+    argp.addOption("--intervals", "INTERVALS", "A comma separated list of "
+        + "rollup intervals to backfill (default: all but the default).");
+    argp.addOption("--aggregations", "AGGREGATIONS", "A comma separated list "
+        + "of aggregations to write (default: "
+        + "'tsd.rollups.writer.aggregations').");
+    argp.addOption("--full-scan", "Scan the entire data table.");
+    argp.addOption("--threads", "NUMBER",
+        "Number of threads to run (default: 2 per core).");
+    argp.addOption("--batch-size", "NUMBER",
+        "Number of rollups to write before waiting on them (default: 1024).");
+    argp.addOption("--rate", "NUMBER",
+        "Maximum number of rollups to write per second (default: no limit).");
+    argp.addOption("--checkpoint", "FILE",
+        "A file to record finished tasks in so a re-run can resume.");
+    args = CliOptions.parse(argp, args);
+
+    if (argp.has("--help")) {
+      usage(argp, "", 0);
+    }
+    if (!argp.has("--start")) {
+      usage(argp, "Must supply a start time", 1);
+    }
+    final List<String> metrics = args == null ?
+        new ArrayList<String>() : Arrays.asList(args);
+    if (metrics.isEmpty() && !argp.has("--full-scan")) {
+      usage(argp, "Must supply metrics or use the '--full-scan' flag", 1);
+    }
+
+    final Config config = CliOptions.getConfig(argp);
+    final TSDB tsdb = new TSDB(config);
+    final RollupConfig rollup_config = tsdb.getRollupConfig();
+    if (rollup_config == null) {
+      usage(argp, "Rollups must be enabled with 'tsd.rollups.enable'", 1);
+    }
+
+    final List<RollupInterval> intervals = new ArrayList<RollupInterval>();
+    if (argp.has("--intervals")) {
+      for (final String interval : argp.get("--intervals").split(",")) {
+        intervals.add(rollup_config.getRollupInterval(interval.trim()));
+      }
+    } else {
+      for (final RollupInterval interval : rollup_config.getIntervals()) {
+        if (!interval.isDefaultInterval()) {
+          intervals.add(interval);
+        }
+      }
+    }
+    final String[] aggregations = RollupWindow.parseAggregations(
+        argp.get("--aggregations",
+            config.getString("tsd.rollups.writer.aggregations")),
+        rollup_config);
+    final long start = DateTime.parseDateTimeString(argp.get("--start"),
+        null) / 1000;
+    final long end = argp.has("--end") ?
+        DateTime.parseDateTimeString(argp.get("--end"), null) / 1000 :
+        System.currentTimeMillis() / 1000;
+    final int threads = argp.has("--threads") ?
+        Integer.parseInt(argp.get("--threads")) :
+        Runtime.getRuntime().availableProcessors() * 2;
+    final int batch_size = Integer.parseInt(argp.get("--batch-size", "1024"));
+    final double rate = Double.parseDouble(argp.get("--rate", "0"));
+    final File checkpoint = argp.has("--checkpoint") ?
+        new File(argp.get("--checkpoint")) : null;
+    argp = null;
+
+    long errors = 0;
+    try {
+      tsdb.checkNecessaryTablesExist().joinUninterruptibly();
+      final RollupBackfill backfill = new RollupBackfill(tsdb, intervals,
+          aggregations, start, end, threads, batch_size, rate, checkpoint);
+      errors = backfill.run(metrics);
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+    System.exit(errors == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,178 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.core.TagIndex;
+
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+/**
+ * Tool helper class used to rebuild the {@link TagIndex} from the rows in
+ * the data table, e.g. after enabling the index on an existing install or
+ * after the index table was truncated. Each worker walks a slice of the data
+ * table and writes index entries for every row key it finds. Writes are
+ * idempotent so running the sync multiple times is safe.
+ * @since 2.4
+ */
+final class TagIndexSync extends Thread {
+  private static final Logger LOG = LoggerFactory.getLogger(TagIndexSync.class);
+
+  /** The index to write to, shared across workers. */
+  final TagIndex tag_index;
+
+  /** The scanner for this worker */
+  final Scanner scanner;
+
+  /** A shared counter of the rows processed by all workers */
+  final AtomicLong rows_processed;
+
+  /** Diagnostic ID for this thread */
+  final int thread_id;
+
+  /**
+   * Constructor that sets local variables
+   * @param tag_index The index to write to
+   * @param scanner The scanner to use for this worker
+   * @param rows_processed A shared counter of processed rows
+   * @param thread_id The ID of this thread (starts at 0)
+   */
+  public TagIndexSync(final TagIndex tag_index, final Scanner scanner,
+      final AtomicLong rows_processed, final int thread_id) {
+    this.tag_index = tag_index;
+    this.scanner = scanner;
+    this.rows_processed = rows_processed;
+    this.thread_id = thread_id;
+  }
+
+  /**
+   * Loops through the slice of the data table and exits when complete.
+   */
+  public void run() {
+    // list of deferred calls used to act as a buffer
+    final ArrayList<Deferred<Object>> storage_calls =
+      new ArrayList<Deferred<Object>>();
+    final Deferred<Object> result = new Deferred<Object>();
+
+    final class ErrBack implements Callback<Object, Exception> {
+      @Override
+      public Object call(Exception e) throws Exception {
+        LOG.error("[" + thread_id + "] Sync thread failed with exception", e);
+        result.callback(null);
+        return null;
+      }
+    }
+    final ErrBack err_back = new ErrBack();
+
+    /**
+     * Scanner callback that recursively loops through all of the data point
+     * rows. Note that we don't process the actual data points, just the row
+     * keys.
+     */
+    final class IndexScanner implements Callback<Object,
+      ArrayList<ArrayList<KeyValue>>> {
+
+      /**
+       * Fetches the next set of rows from the scanner and adds this class as
+       * a callback
+       * @return A meaningless deferred to wait on until all data rows have
+       * been processed.
+       */
+      public Object scan() {
+        return scanner.nextRows().addCallback(this).addErrback(err_back);
+      }
+
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows)
+          throws Exception {
+        if (rows == null) {
+          result.callback(null);
+          return null;
+        }
+
+        for (final ArrayList<KeyValue> row : rows) {
+          final byte[] key = row.get(0).key();
+          rows_processed.incrementAndGet();
+          // the index skips series already written for the row's bucket
+          try {
+            storage_calls.add(tag_index.index(key));
+          } catch (RuntimeException e) {
+            LOG.error("Processing row " + Arrays.toString(key)
+                + " failed with exception: " + e.getMessage());
+            LOG.debug("Row: " + row + " stack trace: ", e);
+          }
+        }
+
+        /**
+         * A buffering callback used to avoid StackOverflowError exceptions
+         * where the list of deferred calls can exceed the limit. Instead we'll
+         * process the Scanner's limit in rows, wait for all of the storage
+         * calls to complete, then continue on to the next set.
+         */
+        final class ContinueCB implements Callback<Object, ArrayList<Object>> {
+          @Override
+          public Object call(final ArrayList<Object> puts) throws Exception {
+            storage_calls.clear();
+            return scan();
+          }
+        }
+
+        /**
+         * Catch exceptions in one of the grouped calls and continue scanning.
+         */
+        final class ContinueEB implements Callback<Object, Exception> {
+          @Override
+          public Object call(final Exception e) throws Exception {
+            Throwable ex = e;
+            while (ex.getClass().equals(DeferredGroupException.class)) {
+              if (ex.getCause() == null) {
+                LOG.warn("Unable to get to the root cause of the DGE");
+                break;
+              }
+              ex = ex.getCause();
+            }
+            LOG.error("[" + thread_id + "] Upstream Exception: ", ex);
+            storage_calls.clear();
+            return scan();
+          }
+        }
+
+        // call ourself again but wait for the current set of storage calls to
+        // complete so we don't OOM
+        Deferred.group(storage_calls).addCallback(new ContinueCB())
+          .addErrback(new ContinueEB());
+        return null;
+      }
+    }
+
+    final IndexScanner index_scanner = new IndexScanner();
+    try {
+      index_scanner.scan();
+      result.joinUninterruptibly();
+      LOG.info("[" + thread_id + "] Complete");
+    } catch (Exception e) {
+      LOG.error("[" + thread_id + "] Scanner Exception", e);
+      throw new RuntimeException("[" + thread_id + "] Scanner exception", e);
+    }
+  }
+}
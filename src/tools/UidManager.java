@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +37,7 @@ import org.hbase.async.PutRequest;
 import org.hbase.async.Scanner;
 
 import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TagIndex;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
@@ -76,6 +78,7 @@ final class UidManager {
         + "  metasync: Generates missing TSUID and UID meta entries, updates\n"
         + "            created timestamps\n"
         + "  metapurge: Removes meta data entries from the UID table\n"
+        + "  tagindexsync: Rebuilds the secondary tag index from the data table\n"
         + "  treesync: Process all timeseries meta objects through tree rules\n"
         + "  treepurge <id> [definition]: Purge a tree and/or the branches\n"
         + "            from storage. Provide an integer Tree ID and optionally\n"
@@ -205,6 +208,20 @@ final class UidManager {
         LOG.error("Unexpected exception", e);
         return 3;
       }      
+    } else if (args[0].equals("tagindexsync")) {
+      // check for the data and index table existence
+      try {
+        tsdb.getClient().ensureTableExists(
+            tsdb.getConfig().getString(
+                "tsd.storage.hbase.data_table")).joinUninterruptibly();
+        tsdb.getClient().ensureTableExists(
+            tsdb.getConfig().getString(
+                "tsd.storage.hbase.tag_index_table")).joinUninterruptibly();
+        return tagIndexSync(tsdb);
+      } catch (Exception e) {
+        LOG.error("Unexpected exception", e);
+        return 3;
+      }
     } else if (args[0].equals("metapurge")) {
       // check for the data table existence and initialize our plugins 
       // so that update meta data can be pushed to search engines
@@ -1040,6 +1057,45 @@ final class UidManager {
     return 0;
   }
   
+  /**
+   * Runs through the entire data table and writes {@link TagIndex} entries 
+   * for every row key found. Work is split across worker threads the same way
+   * as {@link #metaSync}.
+   * @param tsdb The tsdb to use for processing
+   * @return 0 if completed successfully, something else if it dies
+   */
+  private static int tagIndexSync(final TSDB tsdb) throws Exception {
+    final long start_time = System.currentTimeMillis() / 1000;
+    final int workers = Runtime.getRuntime().availableProcessors() * 2;
+    final TagIndex tag_index = new TagIndex(tsdb);
+    final AtomicLong rows_processed = new AtomicLong();
+
+    final List<Scanner> scanners = CliUtils.getDataTableScanners(tsdb, workers);
+    LOG.info("Spooling up [" + scanners.size() + "] worker threads");
+    final List<Thread> threads = new ArrayList<Thread>(scanners.size());
+    int i = 0;
+    for (final Scanner scanner : scanners) {
+      final TagIndexSync worker = new TagIndexSync(tag_index, scanner, 
+          rows_processed, i++);
+      worker.setName("TagIndexSync #" + i);
+      worker.start();
+      threads.add(worker);
+    }
+
+    for (final Thread thread : threads) {
+      thread.join();
+      LOG.info("Thread [" + thread + "] Finished");
+    }
+    LOG.info("All tag index sync threads have completed");
+    // make sure buffered data is flushed to storage before exiting
+    tsdb.flush().joinUninterruptibly();
+    
+    final long duration = (System.currentTimeMillis() / 1000) - start_time;
+    LOG.info("Completed tag index synchronization of [" + rows_processed.get() 
+        + "] rows in [" + duration + "] seconds");
+    return 0;
+  }
+  
   /**
    * Runs through the tsdb-uid table and removes TSMeta, UIDMeta and TSUID 
    * counter entries from the table
@@ -463,7 +463,7 @@ public abstract class AbstractHttpQuery {
   }
   
   /** A simple class that marks a query as complete when the stats are set */
-  private class SendSuccess implements ChannelFutureListener {
+  protected class SendSuccess implements ChannelFutureListener {
     @Override
     public void operationComplete(final ChannelFuture future) throws Exception {
       if(future.isSuccess()) {
@@ -0,0 +1,201 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.meta.CardinalityEstimator;
+import net.opentsdb.meta.CardinalityEstimator.MetricSketches;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+import net.opentsdb.utils.Exceptions;
+
+/**
+ * Returns the estimated number of time series for a metric, the number of
+ * values for each of its tag keys and the number of series a set of filters
+ * would match, using the sketches maintained by the
+ * {@link CardinalityEstimator}. Nothing is scanned so it's cheap enough to
+ * call before every query.
+ * <p>
+ * The metric and filters are given as the {@code m} query string parameter,
+ * e.g. {@code /api/cardinality?m=sys.cpu.user{host=web01|web02}}. Only
+ * literal filters narrow the estimate.
+ * @since 2.4
+ */
+final class CardinalityRpc implements HttpRpc {
+
+  /**
+   * Handles the /api/cardinality endpoint
+   * @param tsdb The TSDB to which we belong
+   * @param query The HTTP query to work with
+   * @throws BadRequestException if estimation is disabled or the query is
+   * malformed.
+   */
+  @Override
+  public void execute(final TSDB tsdb, final HttpQuery query) {
+    final HttpMethod method = query.getAPIMethod();
+    if (method != HttpMethod.GET) {
+      throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED,
+          "Method not allowed", "The HTTP method [" + method.getName() +
+          "] is not permitted for this endpoint");
+    }
+    final CardinalityEstimator estimator = tsdb.getCardinalityEstimator();
+    if (estimator == null) {
+      throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED,
+          "Cardinality estimation is not enabled");
+    }
+
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>();
+    final String metric;
+    try {
+      metric = Tags.parseWithMetricAndFilters(
+          query.getRequiredQueryStringParam("m"), filters);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Unable to parse query", e);
+    }
+
+    // has to be concurrent if the uid table is split across servers
+    final Map<String, Object> response =
+        new ConcurrentHashMap<String, Object>(4);
+    final Map<String, Long> tag_values = new TreeMap<String, Long>();
+    response.put("metric", metric);
+
+    /** Stores the value count under the tag key name. */
+    class TagkCB implements Callback<Object, String> {
+      final long values;
+      TagkCB(final long values) {
+        this.values = values;
+      }
+      @Override
+      public Object call(final String tagk) throws Exception {
+        synchronized (tag_values) {
+          tag_values.put(tagk, values);
+        }
+        return null;
+      }
+    }
+
+    /** Sends the response once the tag keys are resolved. */
+    class SerializeCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> ignored) throws Exception {
+        response.put("tags", tag_values);
+        query.sendReply(query.serializer().formatCardinalityV1(response));
+        return null;
+      }
+    }
+
+    /** Computes the estimates and resolves the tag key names. */
+    class SketchesCB implements Callback<Deferred<Object>, MetricSketches> {
+      @Override
+      public Deferred<Object> call(final MetricSketches sketches)
+          throws Exception {
+        response.put("series", sketches.series());
+        response.put("estimate", sketches.estimateSeries(literals(filters)));
+        final List<Deferred<Object>> names = new ArrayList<Deferred<Object>>();
+        for (final Map.Entry<byte[], Long> entry : sketches.tagValues()) {
+          names.add(tsdb.getUidName(UniqueIdType.TAGK, entry.getKey())
+              .addCallback(new TagkCB(entry.getValue())));
+        }
+        return Deferred.group(names).addCallback(new SerializeCB());
+      }
+    }
+
+    /** Fetches the sketches once the filters are resolved. */
+    class FiltersCB implements Callback<Deferred<Object>, ArrayList<byte[]>> {
+      final byte[] metric_uid;
+      FiltersCB(final byte[] metric_uid) {
+        this.metric_uid = metric_uid;
+      }
+      @Override
+      public Deferred<Object> call(final ArrayList<byte[]> ignored)
+          throws Exception {
+        return estimator.getSketches(metric_uid)
+            .addCallbackDeferring(new SketchesCB());
+      }
+    }
+
+    /** Resolves the filters once we have the metric. */
+    class MetricCB implements Callback<Deferred<Object>, byte[]> {
+      @Override
+      public Deferred<Object> call(final byte[] metric_uid) throws Exception {
+        final List<Deferred<byte[]>> resolutions =
+            new ArrayList<Deferred<byte[]>>(filters.size());
+        for (final TagVFilter filter : filters) {
+          resolutions.add(filter.resolveTagkName(tsdb));
+        }
+        return Deferred.group(resolutions)
+            .addCallbackDeferring(new FiltersCB(metric_uid));
+      }
+    }
+
+    /** Returns a 404 for unknown names, the rest go to the handler. */
+    class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        final Throwable ex = e instanceof DeferredGroupException ?
+            Exceptions.getCause((DeferredGroupException) e) : e;
+        if (ex instanceof NoSuchUniqueName) {
+          query.sendReply(HttpResponseStatus.NOT_FOUND,
+              query.serializer().formatErrorV1(
+                  new BadRequestException(HttpResponseStatus.NOT_FOUND,
+                      "Unable to resolve one or more names", ex)));
+        } else {
+          query.badRequest(new BadRequestException(ex));
+        }
+        return null;
+      }
+    }
+
+    tsdb.getUIDAsync(UniqueIdType.METRIC, metric)
+      .addCallbackDeferring(new MetricCB())
+      .addErrback(new ErrCB());
+  }
+
+  /**
+   * Collects the resolved literal values of the filters per tag key. When
+   * more than one filter applies to a tag key the smallest set is kept as
+   * all of them have to match.
+   * @param filters The resolved filters.
+   * @return A map of tag key UIDs to tag value UIDs, may be empty.
+   */
+  static ByteMap<byte[][]> literals(final List<TagVFilter> filters) {
+    final ByteMap<byte[][]> literals = new ByteMap<byte[][]>();
+    for (final TagVFilter filter : filters) {
+      if (filter.getTagVUids().isEmpty()) {
+        continue;
+      }
+      final byte[][] existing = literals.get(filter.getTagkBytes());
+      if (existing == null || existing.length > filter.getTagVUids().size()) {
+        literals.put(filter.getTagkBytes(), filter.getTagVUids().toArray(
+            new byte[filter.getTagVUids().size()][]));
+      }
+    }
+    return literals;
+  }
+}
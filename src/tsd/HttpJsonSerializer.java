@@ -1181,6 +1181,17 @@ class HttpJsonSerializer extends HttpSerializer {
     return serializeJSON(results);
   }
   
+  /**
+   * Format the response from a cardinality estimate
+   * @param response A map of the metric, estimates and tag value counts
+   * @return A JSON structure
+   * @throws JSONException if serialization failed
+   * @since 2.4
+   */
+  public ChannelBuffer formatCardinalityV1(final Map<String, Object> response) {
+    return serializeJSON(response);
+  }
+  
   /**
    * Format the running configuration
    * @param config The running config to serialize
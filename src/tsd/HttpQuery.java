@@ -16,6 +16,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -37,7 +38,10 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -92,6 +96,9 @@ final class HttpQuery extends AbstractHttpQuery {
   /** Whether or not to show stack traces in the output */
   private final boolean show_stack_trace;
 
+  /** Set once the headers of a chunked response have been written */
+  private boolean streaming;
+
   /**
    * Constructor.
    * @param request The request in this HTTP query.
@@ -598,6 +605,70 @@ final class HttpQuery extends AbstractHttpQuery {
     sendBuffer(status, buf);
   }
 
+  /**
+   * Sends part of a 200 response using chunked transfer encoding. The status
+   * and headers go out with the first chunk. Once called, the response must
+   * be finished with {@link #sendLastChunk(ChannelBuffer)} as the status can
+   * no longer be changed.
+   * @param buf The content to send. It must not be modified until the
+   * returned future completes.
+   * @return The future for the write, failed if the client went away.
+   * @since 2.4
+   */
+  public ChannelFuture sendChunk(final ChannelBuffer buf) {
+    if (!channel().isConnected()) {
+      return Channels.failedFuture(channel(), new ClosedChannelException());
+    }
+    if (!streaming) {
+      streaming = true;
+      response().setStatus(HttpResponseStatus.OK);
+      response().headers().set(HttpHeaders.Names.CONTENT_TYPE,
+          serializer.responseContentType());
+      response().headers().set(HttpHeaders.Names.TRANSFER_ENCODING,
+          HttpHeaders.Values.CHUNKED);
+      response().setChunked(true);
+      channel().write(response());
+    }
+    return channel().write(new DefaultHttpChunk(buf));
+  }
+
+  /**
+   * Sends the remaining content of a chunked response and terminates it.
+   * If nothing was streamed yet the buffer is sent as a regular response.
+   * @param buf The remaining content to send, may be empty.
+   * @since 2.4
+   */
+  public void sendLastChunk(final ChannelBuffer buf) {
+    if (!streaming) {
+      sendReply(buf);
+      return;
+    }
+    if (!channel().isConnected()) {
+      if (stats != null) {
+        stats.markSendFailed();
+      }
+      done();
+      return;
+    }
+    if (buf.readable()) {
+      channel().write(new DefaultHttpChunk(buf));
+    }
+    final ChannelFuture future = channel().write(HttpChunk.LAST_CHUNK);
+    if (stats != null) {
+      future.addListener(new SendSuccess());
+    }
+    if (!HttpHeaders.isKeepAlive(request())) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+
+  /** @return Whether or not part of a chunked response was already sent.
+   * @since 2.4 */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
   /**
    * Send a file (with zero-copy) to the client with a 200 OK status.
    * This method doesn't provide any security guarantee.  The caller is
@@ -785,6 +785,20 @@ public abstract class HttpSerializer {
         " has not implemented formatSearchResultsV1");
   }
   
+  /**
+   * Format the response from a cardinality estimate
+   * @param response A map of the metric, estimates and tag value counts
+   * @return A ChannelBuffer object to pass on to the caller
+   * @throws BadRequestException if the plugin has not implemented this method
+   * @since 2.4
+   */
+  public ChannelBuffer formatCardinalityV1(final Map<String, Object> response) {
+    throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
+        "The requested API endpoint has not been implemented", 
+        this.getClass().getCanonicalName() + 
+        " has not implemented formatCardinalityV1");
+  }
+  
   /**
    * Format the running configuration
    * @param config The running config to serialize
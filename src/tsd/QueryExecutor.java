@@ -17,7 +17,6 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -27,6 +26,8 @@ import org.hbase.async.RpcTimedOutException;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jgrapht.experimental.dag.DirectedAcyclicGraph;
 import org.jgrapht.experimental.dag.DirectedAcyclicGraph.CycleFoundException;
@@ -60,6 +61,7 @@ import net.opentsdb.query.pojo.Output;
 import net.opentsdb.query.pojo.Query;
 import net.opentsdb.query.pojo.Timespan;
 import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.DateTime;
@@ -75,12 +77,24 @@ import net.opentsdb.utils.JSON;
  * expressions are dumped to the output. If one or more outputs are given then
  * only those outputs will be emitted.
  * 
+ * Note that this is NOT a streaming pipeline. The sub queries feeding 
+ * expressions are fetched in full and held until the query is done, while 
+ * sub queries that are only output directly are fetched one at a time and 
+ * released after their last output. So memory grows with the series times 
+ * the points of the held sub queries. The expressions are evaluated one 
+ * timestamp at a time over those results and, if 
+ * "tsd.http.query.chunk_size" is set, the serialized response is sent in
+ * HTTP chunks so it isn't buffered in full as well. 
+ * "tsd.http.query.exp.max_series" rejects queries that would hold too many
+ * series but doesn't limit the points per series.
+ * 
  * TODO 
  * - handle/add output flags to determine whats emitted
  * - allow for queries only, no expressions
  * - possibly other set operations
  * - time over time queries
- * - skip querying for data that isn't going to be emitted
+ * - fetch sub query data incrementally so expressions don't have to hold
+ *   every point of their inputs
  */
 public class QueryExecutor {
   private static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
@@ -100,6 +114,9 @@ public class QueryExecutor {
   /** A map of the sub query results to their Metric ids */
   private final Map<String, DataPoints[]> sub_query_results;
   
+  /** A map of the compiled storage queries to their Metric ids */
+  private final Map<String, net.opentsdb.core.Query> tsdb_queries;
+  
   /** A map of expression iterators to their IDs */
   private final Map<String, ExpressionIterator> expressions;
 
@@ -109,6 +126,23 @@ public class QueryExecutor {
   /** The HTTP query from the user */
   private HttpQuery http_query;
   
+  /** Size in bytes at which the serialized response is sent to the user as an
+   * HTTP chunk, 0 to buffer the whole response */
+  private final int chunk_size;
+  
+  /** Max number of series whose results are held at once, 0 for unlimited.
+   * Only rejects queries, every point of the held series is still fetched */
+  private final int max_series;
+  
+  /** How many series are currently held in {@link #sub_query_results} */
+  private int held_series;
+  
+  /** The buffer the JSON generator writes to */
+  private ChannelBuffer response;
+  
+  /** The JSON generator used by the serializers */
+  private JsonGenerator json;
+  
   /**
    * Default Ctor that constructs a TSQuery and TSSubQueries from the new 
    * Query POJO class.
@@ -120,11 +154,15 @@ public class QueryExecutor {
   public QueryExecutor(final TSDB tsdb, final Query query) {
     this.tsdb = tsdb;
     this.query = query;
+    chunk_size = tsdb.getConfig().getInt("tsd.http.query.chunk_size");
+    max_series = tsdb.getConfig().getInt("tsd.http.query.exp.max_series");
     
     // if metrics is null, this is a bad query
     sub_queries = new HashMap<String, TSSubQuery>(query.getMetrics().size());
     sub_query_results = new HashMap<String, DataPoints[]>(
         query.getMetrics().size());
+    tsdb_queries = new HashMap<String, net.opentsdb.core.Query>(
+        query.getMetrics().size());
     
     if (query.getExpressions() != null) {
       expressions = new HashMap<String, ExpressionIterator>(
@@ -224,6 +262,7 @@ public class QueryExecutor {
     final QueryStats query_stats = 
         new QueryStats(query.getRemoteAddress(), ts_query, query.getHeaders());
     ts_query.setQueryStats(query_stats);
+    QueryRpc.armCancellation(tsdb, query, query_stats);
     
     /**
      * Sends the serialized results to the caller. This should be the very
@@ -232,14 +271,14 @@ public class QueryExecutor {
     class CompleteCB implements Callback<Object, ChannelBuffer> {
       @Override
       public Object call(final ChannelBuffer cb) throws Exception {
-        query.sendReply(cb);
+        query.sendLastChunk(cb);
         return null;
       }
     }
     
     /**
-     * After all of the queries have run and we have data (or not) then we
-     * need to compile the iterators.
+     * After all of the queries feeding expressions have run and we have data
+     * (or not) then we need to compile the iterators.
      * This class could probably be improved:
      * First we iterate over the results AND for each result, iterate over
      * the expressions, giving a time synced iterator to each expression that 
@@ -252,32 +291,32 @@ public class QueryExecutor {
      * over the results.
      */
     class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
+      /** The metric IDs of the results, in order */
+      final List<String> ids;
+      
+      public QueriesCB(final List<String> ids) {
+        this.ids = ids;
+      }
+      
       public Object call(final ArrayList<DataPoints[]> query_results) 
         throws Exception {
         
         for (int i = 0; i < query_results.size(); i++) {
-          final TSSubQuery sub = ts_query.getQueries().get(i);
+          final String id = ids.get(i);
+          final TSSubQuery sub = sub_queries.get(id);
+          holdResults(id, query_results.get(i));
           
-          Iterator<Entry<String, TSSubQuery>> it = sub_queries.entrySet().iterator();
-          while (it.hasNext()) {
-            final Entry<String, TSSubQuery> entry = it.next();
-            if (entry.getValue().equals(sub)) {
-              sub_query_results.put(entry.getKey(), query_results.get(i));
-              for (final ExpressionIterator ei : expressions.values()) {
-                if (ei.getVariableNames().contains(entry.getKey())) {
-                  final TimeSyncedIterator tsi = new TimeSyncedIterator(
-                      entry.getKey(), sub.getFilterTagKs(), 
-                      query_results.get(i));
-                  final NumericFillPolicy fill = fills.get(entry.getKey());
-                  if (fill != null) {
-                    tsi.setFillPolicy(fill);
-                  }
-                  ei.addResults(entry.getKey(), tsi);
-                  if (LOG.isDebugEnabled()) {
-                    LOG.debug("Added results for " + entry.getKey() + 
-                        " to " + ei.getId());
-                  }
-                }
+          for (final ExpressionIterator ei : expressions.values()) {
+            if (ei.getVariableNames().contains(id)) {
+              final TimeSyncedIterator tsi = new TimeSyncedIterator(
+                  id, sub.getFilterTagKs(), query_results.get(i));
+              final NumericFillPolicy fill = fills.get(id);
+              if (fill != null) {
+                tsi.setFillPolicy(fill);
+              }
+              ei.addResults(id, tsi);
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("Added results for " + id + " to " + ei.getId());
               }
             }
           }
@@ -431,6 +470,17 @@ public class QueryExecutor {
           }
         }
 
+        long join_build_time = 0;
+        long join_probe_time = 0;
+        for (final ExpressionIterator ei : compile_stack) {
+          join_build_time += ei.getJoinBuildTime();
+          join_probe_time += ei.getJoinProbeTime();
+        }
+        ts_query.getQueryStats().addStat(QueryStat.JOIN_BUILD_TIME, 
+            join_build_time);
+        ts_query.getQueryStats().addStat(QueryStat.JOIN_PROBE_TIME, 
+            join_probe_time);
+        
         if (LOG.isDebugEnabled()) {
           LOG.debug("Finished compilations in " +
               (DateTime.currentTimeMillis() - intersect_start) + " ms");
@@ -444,25 +494,34 @@ public class QueryExecutor {
     
     /**
      * Callback executed after we have resolved the metric, tag names and tag
-     * values to their respective UIDs. This callback then runs the actual 
-     * queries and fetches their results.
+     * values to their respective UIDs. This callback only runs the queries
+     * that feed expressions since those have to be joined in memory. Queries
+     * that are output directly are run one at a time as they're serialized
+     * and queries that nothing refers to are never run.
      */
     class BuildCB implements Callback<Deferred<Object>, net.opentsdb.core.Query[]> {
       @Override
       public Deferred<Object> call(final net.opentsdb.core.Query[] queries) {
-        final ArrayList<Deferred<DataPoints[]>> deferreds = 
-            new ArrayList<Deferred<DataPoints[]>>(queries.length);
+        for (final Entry<String, TSSubQuery> entry : sub_queries.entrySet()) {
+          tsdb_queries.put(entry.getKey(), 
+              queries[ts_query.getQueries().indexOf(entry.getValue())]);
+        }
         
-        for (final net.opentsdb.core.Query query : queries) {
-          deferreds.add(query.runAsync());
+        final List<String> ids = new ArrayList<String>(sub_queries.size());
+        final ArrayList<Deferred<DataPoints[]>> deferreds = 
+            new ArrayList<Deferred<DataPoints[]>>(sub_queries.size());
+        for (final String id : sub_queries.keySet()) {
+          if (isExpressionInput(id)) {
+            ids.add(id);
+            deferreds.add(tsdb_queries.get(id).runAsync());
+          }
         }
-        return Deferred.groupInOrder(deferreds).addCallback(new QueriesCB())
+        return Deferred.groupInOrder(deferreds)
+            .addCallback(new QueriesCB(ids))
             .addErrback(new ErrorCB());
       }
     }
     
-    // TODO - only run the ones that will be involved in an output. Folks WILL
-    // ask for stuff they don't need.... *sigh*
     ts_query.buildQueriesAsync(tsdb)
       .addCallback(new BuildCB())
       .addErrback(new ErrorCB());
@@ -476,10 +535,10 @@ public class QueryExecutor {
   private Deferred<ChannelBuffer> serialize() throws Exception {
     final long start = System.currentTimeMillis();
     // buffers and an array list to stored the deferreds
-    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
+    response = ChannelBuffers.dynamicBuffer();
     final OutputStream output_stream = new ChannelBufferOutputStream(response);
 
-    final JsonGenerator json = JSON.getFactory().createGenerator(output_stream);
+    json = JSON.getFactory().createGenerator(output_stream);
     json.writeStartObject();
     json.writeFieldName("outputs");
     json.writeStartArray();
@@ -523,9 +582,12 @@ public class QueryExecutor {
       if (query.getMetrics() != null && !query.getMetrics().isEmpty()) {
         final TSSubQuery sub = sub_queries.get(output.getId());
         if (sub != null) {
-          final TimeSyncedIterator it = new TimeSyncedIterator(output.getId(), 
-              sub.getFilterTagKs(), sub_query_results.get(output.getId()));
-          cb_chain.addCallback(new SerializeSubIterator(tsdb, json, output, it));
+          cb_chain.addCallback(new FetchCB(output.getId()));
+          cb_chain.addCallback(new SerializeSubIterator(tsdb, json, output, sub));
+          if (!isExpressionInput(output.getId()) && 
+              lastUse(outputs, output) == output) {
+            cb_chain.addCallback(new ReleaseCB(output.getId()));
+          }
           continue;
         }
       } else {
@@ -579,11 +641,140 @@ public class QueryExecutor {
     return cb_chain.addCallback(new FinalCB());
   }
   
+  /**
+   * Whether or not the given metric ID is referenced by an expression and
+   * has to be fetched before the expressions are compiled.
+   * @param id The metric ID to look for
+   * @return True if an expression refers to the metric.
+   */
+  private boolean isExpressionInput(final String id) {
+    if (expressions == null) {
+      return false;
+    }
+    for (final ExpressionIterator ei : expressions.values()) {
+      if (ei.getVariableNames().contains(id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Finds the last output that refers to the same ID as the given output so
+   * we know when the results can be released.
+   * @param outputs The outputs to search through
+   * @param output The output to match on
+   * @return The last output with the same ID
+   */
+  private static Output lastUse(final List<Output> outputs, 
+      final Output output) {
+    Output last = output;
+    for (final Output o : outputs) {
+      if (o.getId().equals(output.getId())) {
+        last = o;
+      }
+    }
+    return last;
+  }
+  
+  /**
+   * Stores the results of a sub query and enforces the series limit since
+   * everything in {@link #sub_query_results} is held in memory at once.
+   * @param id The metric ID of the sub query
+   * @param results The results of the sub query
+   * @throws QueryException if the series limit was exceeded
+   */
+  private void holdResults(final String id, final DataPoints[] results) {
+    held_series += results.length;
+    sub_query_results.put(id, results);
+    if (max_series > 0 && held_series > max_series) {
+      throw new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, 
+          "Sorry, the query would hold " + held_series + " series in memory "
+          + "but the limit is " + max_series + ". Please narrow the filters "
+          + "or split up the expressions.");
+    }
+  }
+  
+  /**
+   * Runs the sub query for an output if an expression hasn't already fetched
+   * it so only the series of one output are held at a time.
+   */
+  private class FetchCB implements Callback<Deferred<Object>, Object> {
+    final String id;
+    
+    public FetchCB(final String id) {
+      this.id = id;
+    }
+    
+    /** Stashes the results for the serializer */
+    class HoldCB implements Callback<Object, DataPoints[]> {
+      @Override
+      public Object call(final DataPoints[] results) throws Exception {
+        holdResults(id, results);
+        return null;
+      }
+    }
+    
+    @Override
+    public Deferred<Object> call(final Object ignored) throws Exception {
+      if (sub_query_results.containsKey(id)) {
+        return Deferred.fromResult(null);
+      }
+      return tsdb_queries.get(id).runAsync().addCallback(new HoldCB());
+    }
+  }
+  
+  /** Drops the results of a sub query once the last output using it is done */
+  private class ReleaseCB implements Callback<Object, Object> {
+    final String id;
+    
+    public ReleaseCB(final String id) {
+      this.id = id;
+    }
+    
+    @Override
+    public Object call(final Object ignored) throws Exception {
+      final DataPoints[] results = sub_query_results.remove(id);
+      if (results != null) {
+        held_series -= results.length;
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Sends what has been serialized so far to the user once it exceeds the
+   * chunk size so that only a chunk of the response is held in memory. The
+   * caller should wait on the returned future before evaluating more data
+   * so a slow client holds back the iterators instead of filling the buffer.
+   * @return The future for the write or null if nothing was sent.
+   * @throws IOException if the generator couldn't be flushed.
+   */
+  private ChannelFuture flushChunk() throws IOException {
+    if (chunk_size < 1) {
+      return null;
+    }
+    json.flush();
+    if (response.readableBytes() < chunk_size) {
+      return null;
+    }
+    final ChannelFuture future = http_query.sendChunk(response.copy());
+    response.clear();
+    return future;
+  }
+  
   /** This has to be attached to callbacks or we may never respond to clients */
   class ErrorCB implements Callback<Object, Exception> {
     public Object call(final Exception e) throws Exception {
       QueryRpc.query_exceptions.incrementAndGet();
       Throwable ex = e;
+      if (QueryExecutor.this.http_query.isStreaming()) {
+        // the status is already on the wire so all we can do is cut it short
+        LOG.error("Query exception after streaming started: ", e);
+        QueryExecutor.this.http_query.channel().close();
+        QueryExecutor.this.http_query.done();
+        return null;
+      }
       try {
         LOG.error("Query exception: ", e);
         if (e instanceof DeferredGroupException) {
@@ -625,13 +816,19 @@ public class QueryExecutor {
    * Handles serializing the output of an expression iterator
    */
   private class SerializeExpressionIterator 
-    implements Callback<Deferred<Object>, Object> {
+    implements Callback<Deferred<Object>, Object>, ChannelFutureListener {
     final TSDB tsdb;
     final JsonGenerator json;
     final Output output;
     final ExpressionIterator iterator;
     final ExpressionDataPoint[] dps;
     final TSQuery query;
+    
+    // iteration state, kept here so we can resume after streaming a chunk
+    long first_ts = Long.MIN_VALUE;
+    long last_ts = 0;
+    long count = 0;
+    long ts;
 
     // WARNING: Make sure to write an endObject() before triggering this guy
     final Deferred<Object> completed;
@@ -676,12 +873,34 @@ public class QueryExecutor {
       json.writeFieldName("dps");
       json.writeStartArray();
       
-      long first_ts = Long.MIN_VALUE;
-      long last_ts = 0;
-      long count = 0;
-      long ts = iterator.nextTimestamp();
-      long qs = query.startTime();
-      long qe = query.endTime();
+      ts = iterator.nextTimestamp();
+      writeDps();
+      return completed;
+    }
+    
+    /** Resumes serialization once the last chunk was written to the user */
+    @Override
+    public void operationComplete(final ChannelFuture future) {
+      if (!future.isSuccess()) {
+        completed.callback(new IOException("Failed to stream results for " 
+            + output.getId(), future.getCause()));
+        return;
+      }
+      try {
+        writeDps();
+      } catch (Exception e) {
+        completed.callback(e);
+      }
+    }
+    
+    /**
+     * Evaluates and writes data points until the iterators are exhausted or
+     * a chunk has been sent and we need to wait on the user to read it.
+     * @throws Exception if serialization failed
+     */
+    private void writeDps() throws Exception {
+      final long qs = query.startTime();
+      final long qe = query.endTime();
       while (iterator.hasNext()) {
         iterator.next(ts);
         
@@ -704,6 +923,12 @@ public class QueryExecutor {
           json.writeEndArray();
         }
         ts = iterator.nextTimestamp();
+        
+        final ChannelFuture future = flushChunk();
+        if (future != null && !(future.isDone() && future.isSuccess())) {
+          future.addListener(this);
+          return;
+        }
       }
       json.writeEndArray();
       
@@ -728,8 +953,6 @@ public class QueryExecutor {
         //json.writeEndArray();
         completed.callback(null);
       }
-      
-      return completed;
     }
     
   }
@@ -738,21 +961,29 @@ public class QueryExecutor {
    * Serializes a raw, non expression result set.
    */
   private class SerializeSubIterator implements 
-    Callback<Deferred<Object>, Object> {
+    Callback<Deferred<Object>, Object>, ChannelFutureListener {
     final TSDB tsdb;
     final JsonGenerator json;
     final Output output;
-    final TimeSyncedIterator iterator;
+    final TSSubQuery sub;
+    TimeSyncedIterator iterator;
+    
+    // iteration state, kept here so we can resume after streaming a chunk
+    long first_ts;
+    long last_ts = 0;
+    long count = 0;
+    long ts;
+    DataPoint[] dps;
     
     // WARNING: Make sure to write an endObject() before triggering this guy
     final Deferred<Object> completed;
     
     public SerializeSubIterator(final TSDB tsdb, final JsonGenerator json, 
-        final Output output, final TimeSyncedIterator iterator) {
+        final Output output, final TSSubQuery sub) {
       this.tsdb = tsdb;
       this.json = json;
       this.output = output;
-      this.iterator = iterator;
+      this.sub = sub;
       completed = new Deferred<Object>();
     }
     
@@ -766,6 +997,10 @@ public class QueryExecutor {
     
     @Override
     public Deferred<Object> call(final Object ignored) throws Exception {
+      // the results are fetched by the FetchCB right before we're called
+      iterator = new TimeSyncedIterator(output.getId(), sub.getFilterTagKs(), 
+          sub_query_results.get(output.getId()));
+      
       //result set opening
       json.writeStartObject();
       
@@ -776,11 +1011,34 @@ public class QueryExecutor {
       json.writeFieldName("dps");
       json.writeStartArray();
       
-      final long first_ts = iterator.nextTimestamp();
-      long ts = first_ts;
-      long last_ts = 0;
-      long count = 0;
-      final DataPoint[] dps = iterator.values();
+      first_ts = iterator.nextTimestamp();
+      ts = first_ts;
+      dps = iterator.values();
+      writeDps();
+      return completed;
+    }
+    
+    /** Resumes serialization once the last chunk was written to the user */
+    @Override
+    public void operationComplete(final ChannelFuture future) {
+      if (!future.isSuccess()) {
+        completed.callback(new IOException("Failed to stream results for " 
+            + output.getId(), future.getCause()));
+        return;
+      }
+      try {
+        writeDps();
+      } catch (Exception e) {
+        completed.callback(e);
+      }
+    }
+    
+    /**
+     * Writes data points until the iterator is exhausted or a chunk has been
+     * sent and we need to wait on the user to read it.
+     * @throws Exception if serialization failed
+     */
+    private void writeDps() throws Exception {
       while (iterator.hasNext()) {
         iterator.next(ts);
         json.writeStartArray();
@@ -796,6 +1054,12 @@ public class QueryExecutor {
         
         json.writeEndArray();
         ts = iterator.nextTimestamp();
+        
+        final ChannelFuture future = flushChunk();
+        if (future != null && !(future.isDone() && future.isSuccess())) {
+          future.addListener(this);
+          return;
+        }
       }
       json.writeEndArray();
       
@@ -823,8 +1087,6 @@ public class QueryExecutor {
         json.writeEndObject();
         completed.callback(null);
       }
-      
-      return completed;
     }
     
   }
@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.hbase.async.HBaseException;
@@ -28,8 +29,12 @@ import org.hbase.async.RpcTimedOutException;
 import org.hbase.async.Bytes.ByteMap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +43,7 @@ import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
 import net.opentsdb.auth.AuthState;
+import net.opentsdb.core.CancellationToken;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Query;
@@ -171,6 +177,7 @@ final class QueryRpc implements HttpRpc {
             query.getPrintableHeaders());
     data_query.setQueryStats(query_stats);
     query.setStats(query_stats);
+    armCancellation(tsdb, query, query_stats);
     
     final int nqueries = data_query.getQueries().size();
     final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>(nqueries);
@@ -510,6 +517,61 @@ final class QueryRpc implements HttpRpc {
     }
   }
   
+  /**
+   * Hooks up the events that cancel a running query: the configured
+   * {@code tsd.query.timeout} and the client closing the connection. Kill
+   * requests are handled by {@link StatsRpc} through the running query list.
+   * @param tsdb The TSDB to which we belong
+   * @param query The HTTP query the results will be written to
+   * @param query_stats The stats object owning the cancellation token
+   * @since 2.4
+   */
+  static void armCancellation(final TSDB tsdb, final HttpQuery query, 
+      final QueryStats query_stats) {
+    final CancellationToken cancellation = query_stats.getCancellationToken();
+    final long timeout = tsdb.getConfig().getLong("tsd.query.timeout");
+    if (timeout > 0) {
+      /** Cancels the query once the timeout has elapsed */
+      final class TimeoutTask implements TimerTask {
+        @Override
+        public void run(final Timeout ignored) throws Exception {
+          query_stats.cancel(CancellationToken.Reason.TIMEOUT);
+        }
+      }
+      final Timeout task = tsdb.getTimer().newTimeout(new TimeoutTask(), 
+          timeout, TimeUnit.MILLISECONDS);
+      /** Releases the timer task once the query is done */
+      final class CancelTimeout implements Runnable {
+        @Override
+        public void run() {
+          task.cancel();
+        }
+      }
+      cancellation.onComplete(new CancelTimeout());
+    }
+    
+    final Channel chan = query.channel();
+    if (chan != null && chan.getCloseFuture() != null) {
+      /** Cancels the query if the client goes away before we respond */
+      final class CloseListener implements ChannelFutureListener, Runnable {
+        @Override
+        public void operationComplete(final ChannelFuture future) 
+            throws Exception {
+          query_stats.cancel(CancellationToken.Reason.CLIENT_DISCONNECT);
+        }
+        
+        /** Detach from keep-alive connections once the query is done. */
+        @Override
+        public void run() {
+          chan.getCloseFuture().removeListener(this);
+        }
+      }
+      final CloseListener listener = new CloseListener();
+      chan.getCloseFuture().addListener(listener);
+      cancellation.onComplete(listener);
+    }
+  }
+  
   /**
    * Parses a query string legacy style query from the URI
    * @param tsdb The TSDB we belong to
@@ -320,6 +320,7 @@ public final class RpcManager {
       if (enableApi) {
         http.put("api/query", new QueryRpc());
         http.put("api/search", new SearchRpc());
+        http.put("api/cardinality", new CardinalityRpc());
         http.put("api/suggest", suggest_rpc);
       }
       
@@ -340,6 +341,7 @@ public final class RpcManager {
       if (enableApi) {
         http.put("api/query", new QueryRpc());
         http.put("api/search", new SearchRpc());
+        http.put("api/cardinality", new CardinalityRpc());
         http.put("api/annotation", annotation_rpc);
         http.put("api/annotations", annotation_rpc);
         http.put("api/suggest", suggest_rpc);
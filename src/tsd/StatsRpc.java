@@ -72,7 +72,11 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
    * @param query The query to parse and respond to
    */
   public void execute(final TSDB tsdb, final HttpQuery query) {
-    // only accept GET/POST
+    // only accept GET/POST, plus DELETE to kill a running query
+    if (query.method() == HttpMethod.DELETE) {
+      killQuery(query);
+      return;
+    }
     if (query.method() != HttpMethod.GET && query.method() != HttpMethod.POST) {
       throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED, 
           "Method not allowed", "The HTTP method [" + query.method().getName() +
@@ -340,6 +344,42 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
     }
   }
   
+  /**
+   * Cancels a running query given the {@code id} from the running list of
+   * {@code /api/stats/query}. The query stops at the next storage batch and
+   * the client receives an error.
+   * @param query The query to answer to
+   * @throws BadRequestException if the endpoint or ID was invalid or the
+   * query wasn't running.
+   * @since 2.4
+   */
+  private void killQuery(final HttpQuery query) {
+    String endpoint = "";
+    try {
+      final String[] uri = query.explodeAPIPath();
+      endpoint = uri.length > 1 ? uri[1].toLowerCase() : "";
+    } catch (IllegalArgumentException e) {
+      // not an API call so fall through to the error
+    }
+    if (!"query".equals(endpoint)) {
+      throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED, 
+          "Method not allowed", "The HTTP method [" + query.method().getName() +
+          "] is not permitted for this endpoint");
+    }
+    final String id = query.getRequiredQueryStringParam("id");
+    final int hash;
+    try {
+      hash = Integer.parseInt(id);
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Unable to parse the query ID: " + id);
+    }
+    if (!QueryStats.cancelRunningQuery(hash)) {
+      throw new BadRequestException(HttpResponseStatus.NOT_FOUND, 
+          "No running query found with ID: " + id);
+    }
+    query.sendStatusOnly(HttpResponseStatus.NO_CONTENT);
+  }
+  
   /**
    * Implements the StatsCollector with ASCII style output. Builds a string
    * buffer response to send to the caller
@@ -557,6 +557,7 @@ public class Config {
     default_map.put("tsd.core.uid.random_metrics", "false");
     default_map.put("tsd.core.bulk.allow_out_of_order_timestamps", "false");
     default_map.put("tsd.query.filter.expansion_limit", "4096");
+    default_map.put("tsd.query.filter.expand_patterns", "false");
     default_map.put("tsd.query.skip_unresolved_tagvs", "false");
     default_map.put("tsd.query.allow_simultaneous_duplicates", "true");
     default_map.put("tsd.query.enable_fuzzy_filter", "true");
@@ -564,12 +565,33 @@ public class Config {
     default_map.put("tsd.query.limits.bytes.allow_override", "false");
     default_map.put("tsd.query.limits.data_points.default", "0");
     default_map.put("tsd.query.limits.data_points.allow_override", "false");
+    default_map.put("tsd.query.limits.series.default", "0");
+    default_map.put("tsd.query.limits.estimate.enable", "false");
+    default_map.put("tsd.query.limits.estimate.margin", "2");
     default_map.put("tsd.query.limits.overrides.interval", "60000");
     default_map.put("tsd.query.multi_get.enable", "false");
     default_map.put("tsd.query.multi_get.limit", "131072");
     default_map.put("tsd.query.multi_get.batch_size", "1024");
     default_map.put("tsd.query.multi_get.concurrent", "20");
     default_map.put("tsd.query.multi_get.get_all_salts", "false");
+    default_map.put("tsd.query.planner.enable", "false");
+    default_map.put("tsd.query.planner.get_cost", "4");
+    default_map.put("tsd.query.planner.default_rows_per_span", "10000");
+    default_map.put("tsd.query.downsample_pushdown.enable", "false");
+    default_map.put("tsd.query.downsample_pushdown.plugin", "");
+    default_map.put("tsd.query.histograms.lazy_decode", "false");
+    default_map.put("tsd.query.histogram_cache.enable", "false");
+    default_map.put("tsd.query.histogram_cache.max_bytes", "134217728");
+    default_map.put("tsd.query.histogram_cache.ttl", "300");
+    default_map.put("tsd.query.tag_index.enable", "false");
+    default_map.put("tsd.core.tag_index.enable", "false");
+    default_map.put("tsd.core.tag_index.bucket_seconds", "86400");
+    default_map.put("tsd.core.tag_index.cache_size", "1000000");
+    default_map.put("tsd.query.cardinality.enable", "false");
+    default_map.put("tsd.core.cardinality.enable", "false");
+    default_map.put("tsd.core.cardinality.precision", "12");
+    default_map.put("tsd.core.cardinality.flush_interval", "60");
+    default_map.put("tsd.core.cardinality.cache_size", "10000");
     default_map.put("tsd.rpc.telnet.return_errors", "true");
     // Rollup related settings
     default_map.put("tsd.rollups.enable", "false");
@@ -577,6 +599,21 @@ public class Config {
     default_map.put("tsd.rollups.agg_tag_key", "_aggregate");
     default_map.put("tsd.rollups.raw_agg_tag_value", "RAW");
     default_map.put("tsd.rollups.block_derived", "true");
+    default_map.put("tsd.rollups.writer.enable", "false");
+    default_map.put("tsd.rollups.writer.aggregations", "sum,count,min,max");
+    default_map.put("tsd.rollups.writer.grace_period", "300");
+    default_map.put("tsd.rollups.writer.flush_interval", "60");
+    default_map.put("tsd.rollups.writer.max_windows", "1000000");
+    default_map.put("tsd.rollups.writer.checkpoint_file", "");
+    default_map.put("tsd.rollups.packed.enable", "false");
+    default_map.put("tsd.rollups.stitch.enable", "false");
+    default_map.put("tsd.rollups.stitch.lag", "600");
+    default_map.put("tsd.rollups.groupby.enable", "false");
+    default_map.put("tsd.rollups.groupby.rules", "");
+    default_map.put("tsd.rollups.groupby.grace_period", "120");
+    default_map.put("tsd.rollups.groupby.flush_interval", "60");
+    default_map.put("tsd.rollups.groupby.max_windows", "1000000");
+    default_map.put("tsd.rollups.groupby.query.enable", "false");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
@@ -591,6 +628,7 @@ public class Config {
     default_map.put("tsd.storage.hbase.uid_table", "tsdb-uid");
     default_map.put("tsd.storage.hbase.tree_table", "tsdb-tree");
     default_map.put("tsd.storage.hbase.meta_table", "tsdb-meta");
+    default_map.put("tsd.storage.hbase.tag_index_table", "tsdb-tagidx");
     default_map.put("tsd.storage.hbase.zk_quorum", "localhost");
     default_map.put("tsd.storage.hbase.zk_basedir", "/hbase");
     default_map.put("tsd.storage.hbase.prefetch_meta", "false");
@@ -610,6 +648,8 @@ public class Config {
     default_map.put("tsd.core.stats_with_port", "false");
     default_map.put("tsd.http.show_stack_trace", "true");
     default_map.put("tsd.http.query.allow_delete", "false");
+    default_map.put("tsd.http.query.chunk_size", "0");
+    default_map.put("tsd.http.query.exp.max_series", "0");
     default_map.put("tsd.http.header_tag", "");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
@@ -618,6 +658,11 @@ public class Config {
       + "Content-Type, Accept, Origin, User-Agent, DNT, Cache-Control, "
       + "X-Mx-ReqToken, Keep-Alive, X-Requested-With, If-Modified-Since");
     default_map.put("tsd.query.timeout", "0");
+    default_map.put("tsd.query.scheduler.enable", "false");
+    default_map.put("tsd.query.scheduler.slots", "16");
+    default_map.put("tsd.query.scheduler.max_queued", "1024");
+    default_map.put("tsd.query.scheduler.priority_cost", "24");
+    default_map.put("tsd.query.scheduler.priority_ratio", "4");
     default_map.put("tsd.storage.use_otsdb_timestamp", "false");
     default_map.put("tsd.storage.use_max_value", "true");
     default_map.put("tsd.storage.get_date_tiered_compaction_start", "0");
@@ -0,0 +1,225 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A HyperLogLog sketch for estimating the number of distinct byte arrays
+ * offered to it in a fixed amount of memory. The sketch uses 2^precision
+ * single byte registers and a 64 bit hash so no large range correction is
+ * needed. The standard error is roughly 1.04 / sqrt(2^precision), e.g. 1.6%
+ * for the default precision of 12 in 4KB.
+ * <p>
+ * Sketches with the same precision can be merged so that the result
+ * estimates the cardinality of the union of their inputs. Merging is
+ * idempotent so a sketch can safely be merged more than once.
+ * <p>
+ * This class is thread safe and lock free. Registers are packed four to an
+ * int and only ever raised with a compare-and-set, so concurrent offers on
+ * the write path don't contend on a lock and an offer that doesn't raise a
+ * register, the common case once a sketch has warmed up, is a single read.
+ * @since 2.4
+ */
+public class HyperLogLog {
+  /** The smallest supported precision. */
+  public static final int MIN_PRECISION = 4;
+
+  /** The largest supported precision. */
+  public static final int MAX_PRECISION = 16;
+
+  /** The hash used to spread values across the registers. */
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  /** The number of bits of the hash used to pick a register. */
+  private final int precision;
+
+  /** The number of registers. */
+  private final int count;
+
+  /** The registers, each holding the highest rank seen, packed four to an
+   * int with the first register in the lowest byte. */
+  private final AtomicIntegerArray registers;
+
+  /**
+   * Default ctor.
+   * @param precision The number of index bits, between {@link #MIN_PRECISION}
+   * and {@link #MAX_PRECISION} inclusive.
+   * @throws IllegalArgumentException if the precision is out of range.
+   */
+  public HyperLogLog(final int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("Precision must be from "
+          + MIN_PRECISION + " to " + MAX_PRECISION + ": " + precision);
+    }
+    this.precision = precision;
+    count = 1 << precision;
+    registers = new AtomicIntegerArray(count >>> 2);
+  }
+
+  /**
+   * Adds a value to the sketch.
+   * @param value The non-null value to add.
+   * @return True if a register changed, false if the value was (probably)
+   * already accounted for.
+   */
+  public boolean offer(final byte[] value) {
+    return offerHash(HASH_FUNCTION.hashBytes(value).asLong());
+  }
+
+  /**
+   * Adds a slice of an array to the sketch without copying it.
+   * @param value The non-null array holding the value.
+   * @param offset The offset of the value in the array.
+   * @param length The length of the value.
+   * @return True if a register changed, false if the value was (probably)
+   * already accounted for.
+   */
+  public boolean offer(final byte[] value, final int offset, final int length) {
+    return offerHash(HASH_FUNCTION.hashBytes(value, offset, length).asLong());
+  }
+
+  /**
+   * Adds a value to the sketch given its 64 bit hash.
+   * @param hash The hash of the value.
+   * @return True if a register changed.
+   */
+  public boolean offerHash(final long hash) {
+    final int index = (int) (hash >>> (64 - precision));
+    // the guard bit caps the rank if the remaining bits are all zero
+    final long remaining = (hash << precision) | (1L << (precision - 1));
+    return raise(index, Long.numberOfLeadingZeros(remaining) + 1);
+  }
+
+  /**
+   * Merges the other sketch into this one.
+   * @param other The non-null sketch to merge.
+   * @throws IllegalArgumentException if the precisions differ.
+   */
+  public void merge(final HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Cannot merge a sketch with precision "
+          + other.precision + " into one with precision " + precision);
+    }
+    for (int i = 0; i < count; i++) {
+      raise(i, other.get(i));
+    }
+  }
+
+  /** @return The estimated number of distinct values offered. */
+  public long cardinality() {
+    final int m = count;
+    double sum = 0;
+    int zeros = 0;
+    for (int i = 0; i < count; i++) {
+      final int register = get(i);
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    final double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more accurate for small cardinalities
+      return Math.round(m * Math.log((double) m / zeros));
+    }
+    return Math.round(estimate);
+  }
+
+  /** @return The precision of the sketch. */
+  public int precision() {
+    return precision;
+  }
+
+  /** @return The serialized sketch, the precision followed by the registers. */
+  public byte[] getBytes() {
+    final byte[] bytes = new byte[count + 1];
+    bytes[0] = (byte) precision;
+    for (int i = 0; i < count; i++) {
+      bytes[i + 1] = (byte) get(i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Deserializes a sketch written by {@link #getBytes()}.
+   * @param bytes The non-null serialized sketch.
+   * @return A sketch.
+   * @throws IllegalArgumentException if the bytes are not a valid sketch.
+   */
+  public static HyperLogLog fromBytes(final byte[] bytes) {
+    if (bytes.length < 1) {
+      throw new IllegalArgumentException("Empty sketch");
+    }
+    final HyperLogLog sketch = new HyperLogLog(bytes[0]);
+    if (bytes.length != sketch.count + 1) {
+      throw new IllegalArgumentException("Sketch with precision " + bytes[0]
+          + " must be " + (sketch.count + 1) + " bytes, not "
+          + bytes.length);
+    }
+    for (int i = 0; i < sketch.count; i++) {
+      sketch.raise(i, bytes[i + 1] & 0xFF);
+    }
+    return sketch;
+  }
+
+  @Override
+  public String toString() {
+    return "HyperLogLog(precision=" + precision + ", cardinality="
+        + cardinality() + ")";
+  }
+
+  /** @return The rank held by the register at the index. */
+  private int get(final int index) {
+    return (registers.get(index >>> 2) >>> ((index & 3) << 3)) & 0xFF;
+  }
+
+  /**
+   * Raises the register at the index to the rank if it's lower, retrying if
+   * another thread updated one of the registers sharing its int first.
+   * @param index The register index.
+   * @param rank The rank to store.
+   * @return True if the register was raised.
+   */
+  private boolean raise(final int index, final int rank) {
+    final int word = index >>> 2;
+    final int shift = (index & 3) << 3;
+    while (true) {
+      final int current = registers.get(word);
+      if (((current >>> shift) & 0xFF) >= rank) {
+        return false;
+      }
+      final int updated = (current & ~(0xFF << shift)) | (rank << shift);
+      if (registers.compareAndSet(word, current, updated)) {
+        return true;
+      }
+    }
+  }
+
+  /** @return The bias correction constant for the register count. */
+  private static double alpha(final int m) {
+    switch (m) {
+    case 16:
+      return 0.673;
+    case 32:
+      return 0.697;
+    case 64:
+      return 0.709;
+    default:
+      return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A small open addressing hash map of primitive longs to non-zero bytes. It
+ * avoids boxing keys and allocating entries so it can sit on hot paths such
+ * as caching a result per UID while scanning millions of rows. A value of
+ * zero marks an empty slot so it cannot be stored.
+ * <p>
+ * This class is thread safe. Reads are lock free while writes are serialized.
+ * A slot's key is written before its value is published with a volatile
+ * write, so a reader that sees a value also sees its key. Resizing copies the
+ * entries into a new table that is swapped in once complete, readers still
+ * probing the old one may miss the newest keys but never see a wrong value.
+ * @since 2.4
+ */
+public class LongByteMap {
+  /** The value returned by {@link #get(long)} for missing keys. */
+  public static final byte NO_VALUE = 0;
+
+  /** The current table, replaced when resizing. */
+  private volatile Table table;
+
+  /** Number of keys in the map. */
+  private volatile int size;
+
+  /** Instantiates a map with room for 16 keys before resizing. */
+  public LongByteMap() {
+    this(16);
+  }
+
+  /**
+   * Instantiates a map with room for the given number of keys before resizing.
+   * @param expected The number of keys to expect.
+   * @throws IllegalArgumentException if the expected size is negative.
+   */
+  public LongByteMap(final int expected) {
+    if (expected < 0) {
+      throw new IllegalArgumentException("Expected size cannot be negative: "
+          + expected);
+    }
+    int capacity = 2;
+    while (capacity * 3 / 4 <= expected) {
+      capacity <<= 1;
+    }
+    table = new Table(capacity);
+  }
+
+  /**
+   * @param key The key to look up.
+   * @return The value for the key or {@link #NO_VALUE} if it isn't present.
+   */
+  public byte get(final long key) {
+    final Table table = this.table;
+    final int mask = table.keys.length - 1;
+    int idx = slot(key, mask);
+    byte value;
+    while ((value = (byte) table.values.get(idx)) != NO_VALUE) {
+      if (table.keys[idx] == key) {
+        return value;
+      }
+      idx = (idx + 1) & mask;
+    }
+    return NO_VALUE;
+  }
+
+  /**
+   * Stores or replaces the value for a key.
+   * @param key The key to store.
+   * @param value A non-zero value.
+   * @throws IllegalArgumentException if the value was {@link #NO_VALUE}.
+   */
+  public synchronized void put(final long key, final byte value) {
+    if (value == NO_VALUE) {
+      throw new IllegalArgumentException("Cannot store the empty value");
+    }
+    if (table.put(key, value) && ++size >= table.threshold) {
+      resize();
+    }
+  }
+
+  /** @return The number of keys in the map. */
+  public int size() {
+    return size;
+  }
+
+  /** Removes all of the keys. */
+  public synchronized void clear() {
+    table = new Table(table.keys.length);
+    size = 0;
+  }
+
+  /** Doubles the table and re-hashes the keys. */
+  private void resize() {
+    final Table old = table;
+    final Table resized = new Table(old.keys.length << 1);
+    for (int i = 0; i < old.keys.length; i++) {
+      final int value = old.values.get(i);
+      if (value != NO_VALUE) {
+        resized.put(old.keys[i], (byte) value);
+      }
+    }
+    table = resized;
+  }
+
+  /** Mixes the key bits so that sequential UIDs spread over the table. */
+  private static int slot(final long key, final int mask) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    h ^= (h >>> 32);
+    return (int) h & mask;
+  }
+
+  /** The slots of the map. Only modified while holding the map's lock. */
+  private static final class Table {
+    /** The keys, valid only where the value is non-zero. */
+    final long[] keys;
+
+    /** The values, zero for empty slots. Stored in an atomic array as there
+     * isn't an atomic byte array, the volatile writes publish the keys. */
+    final AtomicIntegerArray values;
+
+    /** Resize when the size reaches this. */
+    final int threshold;
+
+    /** @param capacity The power of 2 table size to allocate. */
+    Table(final int capacity) {
+      keys = new long[capacity];
+      values = new AtomicIntegerArray(capacity);
+      threshold = capacity * 3 / 4;
+    }
+
+    /** @return True if the key was added, false if its value was replaced. */
+    boolean put(final long key, final byte value) {
+      final int mask = keys.length - 1;
+      int idx = slot(key, mask);
+      while (values.get(idx) != NO_VALUE) {
+        if (keys[idx] == key) {
+          values.set(idx, value);
+          return false;
+        }
+        idx = (idx + 1) & mask;
+      }
+      keys[idx] = key;
+      values.set(idx, value);
+      return true;
+    }
+  }
+}
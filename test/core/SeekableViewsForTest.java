@@ -16,8 +16,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /** Helper class to mock SeekableView. */
 public class SeekableViewsForTest {
@@ -92,6 +96,28 @@ public class SeekableViewsForTest {
      is_integer, starting_value, increment, wholes_as_integer);
   }
 
+  /**
+   * Drains the view so a mocked series can be iterated more than once like
+   * a real one, e.g. to score it and again to serialize it.
+   * @param view The view to copy.
+   * @return An answer returning a fresh view over the copied points.
+   */
+  public static Answer<SeekableView> reiterable(final SeekableView view) {
+    final List<DataPoint> points = new ArrayList<DataPoint>();
+    while (view.hasNext()) {
+      final DataPoint dp = view.next();
+      points.add(dp.isInteger() ? 
+          MutableDataPoint.ofLongValue(dp.timestamp(), dp.longValue()) : 
+          MutableDataPoint.ofDoubleValue(dp.timestamp(), dp.doubleValue()));
+    }
+    return new Answer<SeekableView>() {
+      @Override
+      public SeekableView answer(final InvocationOnMock invocation) {
+        return fromArray(points.toArray(new DataPoint[points.size()]));
+      }
+    };
+  }
+
   /** Iterates an array of data points. */
   public static class MockSeekableView implements SeekableView {
 
@@ -286,6 +286,55 @@ public class TestAggregationIterator {
     testMeasureAggregationLatency(250000, 10.0);
   }
 
+  @Test
+  public void wavgDoesNotInterpolate() {
+    iterators = new SeekableView[] {
+        SeekableViewsForTest.fromArray(DATA_POINTS_1),
+        SeekableViewsForTest.fromArray(DATA_POINTS_2),
+    };
+    AggregationIterator sgai = AggregationIterator.createForTesting(iterators,
+        start_time_ms, end_time_ms, Aggregators.WAVG, Interpolation.ZIM, rate);
+    // Raw points weigh 1 each and a missing point is skipped, not lerped.
+    final double[] expected_values = new double[] { 40, 43.5, 48, 70 };
+    final long[] expected_timestamps = new long[] { BASE_TIME, 
+        BASE_TIME + 10000, BASE_TIME + 20000, BASE_TIME + 30000 };
+    for (int i = 0; i < expected_values.length; i++) {
+      assertTrue(sgai.hasNext());
+      DataPoint dp = sgai.next();
+      assertFalse(dp.isInteger());
+      assertEquals(expected_timestamps[i], dp.timestamp());
+      assertEquals(expected_values[i], dp.doubleValue(), 0.0000001);
+    }
+    assertFalse(sgai.hasNext());
+  }
+
+  @Test
+  public void wavgWeighsByCount() {
+    final DataPoint[] data_10sec = new DataPoint[6];
+    for (int i = 0; i < data_10sec.length; i++) {
+      data_10sec[i] = MutableDataPoint.ofDoubleValue(BASE_TIME + (i * 10000L), 4);
+    }
+    iterators = new SeekableView[] {
+        new Downsampler(SeekableViewsForTest.fromArray(DATA_5SEC), 10000, 
+            Aggregators.WAVG),
+        new Downsampler(SeekableViewsForTest.fromArray(data_10sec), 10000, 
+            Aggregators.WAVG),
+    };
+    AggregationIterator sgai = AggregationIterator.createForTesting(iterators,
+        start_time_ms, end_time_ms, Aggregators.WAVG, Interpolation.ZIM, rate);
+    // Two 1s against one 4 per interval until the last one where 1 and 4 
+    // have a single value each.
+    long ts = BASE_TIME;
+    while (sgai.hasNext()) {
+      DataPoint dp = sgai.next();
+      assertEquals(ts, dp.timestamp());
+      assertEquals(ts < BASE_TIME + 50000 ? 2.0 : 2.5, dp.doubleValue(), 
+          0.0000001);
+      ts += 10000;
+    }
+    assertEquals(BASE_TIME + 60000, ts);
+  }
+
   @Test
   public void pfsum() {
     // TODO - More UTs around this one.
@@ -0,0 +1,375 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.esotericsoftware.kryo.io.Output;
+
+import net.opentsdb.core.HistogramDataPoint.HistogramBucket;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class })
+public class TestArrayHistogram {
+
+  private TSDB tsdb;
+  private Config config;
+  private HistogramCodecManager manager;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = PowerMockito.mock(TSDB.class);
+    config = new Config(false);
+
+    config.overrideConfig("tsd.core.histograms.config",
+        "{\"net.opentsdb.core.SimpleHistogramDecoder\": 0,"
+        + "\"net.opentsdb.core.ArrayHistogramDecoder\": 1}");
+    when(tsdb.getConfig()).thenReturn(config);
+
+    manager = new HistogramCodecManager(tsdb);
+    when(tsdb.histogramManager()).thenReturn(manager);
+  }
+
+  @Test
+  public void registered() throws Exception {
+    assertEquals(0, manager.getCodec(SimpleHistogramDecoder.class));
+    assertEquals(1, manager.getCodec(ArrayHistogramDecoder.class));
+    assertTrue(manager.getCodec(1) instanceof ArrayHistogramDecoder);
+  }
+
+  @Test
+  public void ctorBounds() throws Exception {
+    final ArrayHistogram histo = new ArrayHistogram(1,
+        new float[] { 1, 2, 3 }, new float[] { 2, 3, 4 });
+    assertEquals(3, histo.getBucketCount());
+    assertEquals(0, histo.getBucketCount(2, 3));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBoundsUnsorted() throws Exception {
+    new ArrayHistogram(1, new float[] { 2, 1 }, new float[] { 3, 2 });
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBoundsDifferentLengths() throws Exception {
+    new ArrayHistogram(1, new float[] { 1, 2 }, new float[] { 2 });
+  }
+
+  @Test
+  public void encodeDecode() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 2, 3, 4 }, new long[] { 5, 0, 2, 7 });
+    histo.setUnderflow(1);
+    histo.setOverflow(3);
+
+    final byte[] raw = manager.encode(1, histo, true);
+    assertEquals(1, raw[0]);
+    final ArrayHistogram decoded = (ArrayHistogram) manager.decode(1, raw, true);
+    assertEquals(4, decoded.getBucketCount());
+    assertEquals(5, decoded.getBucketCount(1, 2));
+    assertEquals(0, decoded.getBucketCount(2, 3));
+    assertEquals(2, decoded.getBucketCount(3, 4));
+    assertEquals(7, decoded.getBucketCount(4, 5));
+    assertEquals(1, decoded.getUnderflow());
+    assertEquals(3, decoded.getOverflow());
+    assertArrayEquals(raw, decoded.histogram(true));
+    assertSame(Whitebox.getInternalState(histo, "layout"),
+        Whitebox.getInternalState(decoded, "layout"));
+  }
+
+  @Test
+  public void decodeSimpleHistogram() throws Exception {
+    final SimpleHistogram simple = new SimpleHistogram(0);
+    simple.addBucket(1.0f, 2.0f, 5L);
+    simple.addBucket(2.0f, 3.0f, 4L);
+    simple.setOverflow(2L);
+
+    final ArrayHistogram histo = new ArrayHistogram(1);
+    histo.fromHistogram(simple.histogram(false), false);
+    assertEquals(5, histo.getBucketCount(1, 2));
+    assertEquals(4, histo.getBucketCount(2, 3));
+    assertEquals(2, histo.getOverflow());
+    assertArrayEquals(simple.histogram(false), histo.histogram(false));
+    assertEquals(simple.getHistogram(), histo.getHistogram());
+  }
+
+  @Test
+  public void decodeUnsorted() throws Exception {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    final Output output = new Output(buffer);
+    output.writeShort(3);
+    output.writeFloat(2.0f);
+    output.writeFloat(3.0f);
+    output.writeLong(4, true);
+    output.writeFloat(1.0f);
+    output.writeFloat(2.0f);
+    output.writeLong(5, true);
+    output.writeFloat(2.0f);
+    output.writeFloat(3.0f);
+    output.writeLong(1, true);
+    output.writeLong(0, true);
+    output.writeLong(0, true);
+    output.close();
+
+    final ArrayHistogram histo = new ArrayHistogram(1);
+    histo.fromHistogram(buffer.toByteArray(), false);
+    assertEquals(2, histo.getBucketCount());
+    assertEquals(5, histo.getBucketCount(1, 2));
+    assertEquals(5, histo.getBucketCount(2, 3));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeTooShort() throws Exception {
+    new ArrayHistogram(1).fromHistogram(new byte[] { 0, 1 }, false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeWrongId() throws Exception {
+    final byte[] raw = buildHistogram(new float[] { 1 }, new long[] { 1 })
+        .histogram(true);
+    raw[0] = 0;
+    manager.getCodec(1).decode(raw, true);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void encodeWrongType() throws Exception {
+    manager.encode(1, new SimpleHistogram(1), true);
+  }
+
+  @Test
+  public void aggregateSameLayout() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 2, 3 }, new long[] { 1, 2, 3 });
+    histo.setUnderflow(1);
+    final ArrayHistogram other = buildHistogram(
+        new float[] { 1, 2, 3 }, new long[] { 4, 5, 6 });
+    other.setOverflow(2);
+    assertSame(Whitebox.getInternalState(histo, "layout"),
+        Whitebox.getInternalState(other, "layout"));
+
+    histo.aggregate(other, HistogramAggregation.SUM);
+    assertEquals(5, histo.getBucketCount(1, 2));
+    assertEquals(7, histo.getBucketCount(2, 3));
+    assertEquals(9, histo.getBucketCount(3, 4));
+    assertEquals(1, histo.getUnderflow());
+    assertEquals(2, histo.getOverflow());
+    // the other histogram is untouched
+    assertEquals(4, other.getBucketCount(1, 2));
+  }
+
+  @Test
+  public void aggregateDifferentLayouts() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 3 }, new long[] { 1, 3 });
+    final ArrayHistogram other = buildHistogram(
+        new float[] { 2, 3, 5 }, new long[] { 2, 4, 6 });
+
+    histo.aggregate(other, HistogramAggregation.SUM);
+    assertEquals(4, histo.getBucketCount());
+    assertEquals(1, histo.getBucketCount(1, 2));
+    assertEquals(2, histo.getBucketCount(2, 3));
+    assertEquals(7, histo.getBucketCount(3, 4));
+    assertEquals(6, histo.getBucketCount(5, 6));
+
+    // a subset merges into the existing layout
+    final Object layout = Whitebox.getInternalState(histo, "layout");
+    histo.aggregate(buildHistogram(new float[] { 5 }, new long[] { 1 }),
+        HistogramAggregation.SUM);
+    assertSame(layout, Whitebox.getInternalState(histo, "layout"));
+    assertEquals(7, histo.getBucketCount(5, 6));
+  }
+
+  @Test
+  public void aggregateList() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 2 }, new long[] { 1, 1 });
+    histo.aggregate(Arrays.<Histogram>asList(
+        buildHistogram(new float[] { 1, 2 }, new long[] { 1, 2 }),
+        buildHistogram(new float[] { 1, 2 }, new long[] { 3, 4 })),
+        HistogramAggregation.SUM);
+    assertEquals(5, histo.getBucketCount(1, 2));
+    assertEquals(7, histo.getBucketCount(2, 3));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void aggregateWrongType() throws Exception {
+    new ArrayHistogram(1).aggregate(new SimpleHistogram(0),
+        HistogramAggregation.SUM);
+  }
+
+  @Test
+  public void mergeEncoded() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 2, 3 }, new long[] { 1, 2, 3 });
+    final ArrayHistogram other = buildHistogram(
+        new float[] { 1, 2, 3 }, new long[] { 4, 5, 6 });
+    other.setUnderflow(1);
+    other.setOverflow(2);
+    final Object layout = Whitebox.getInternalState(histo, "layout");
+    final ArrayHistogram expected = histo.clone();
+    expected.aggregate(other, HistogramAggregation.SUM);
+
+    histo.mergeEncoded(other.histogram(true), true);
+    assertSame(layout, Whitebox.getInternalState(histo, "layout"));
+    assertArrayEquals(expected.histogram(true), histo.histogram(true));
+    assertEquals(1, histo.getUnderflow());
+    assertEquals(2, histo.getOverflow());
+
+    // through the codec
+    manager.getCodec(1).mergeEncoded(histo, other.histogram(true), true);
+    assertEquals(13, histo.getBucketCount(1, 2));
+  }
+
+  @Test
+  public void mergeEncodedDifferentLayouts() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 3 }, new long[] { 1, 3 });
+    final ArrayHistogram other = buildHistogram(
+        new float[] { 2, 3, 5 }, new long[] { 2, 4, 6 });
+    final ArrayHistogram expected = histo.clone();
+    expected.aggregate(other, HistogramAggregation.SUM);
+
+    histo.mergeEncoded(other.histogram(false), false);
+    assertEquals(4, histo.getBucketCount());
+    assertArrayEquals(expected.histogram(true), histo.histogram(true));
+    assertEquals(expected.percentile(50), histo.percentile(50), 0.0001);
+  }
+
+  @Test
+  public void mergeEncodedUnsorted() throws Exception {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    final Output output = new Output(buffer);
+    output.writeShort(2);
+    output.writeFloat(2.0f);
+    output.writeFloat(3.0f);
+    output.writeLong(4, true);
+    output.writeFloat(1.0f);
+    output.writeFloat(2.0f);
+    output.writeLong(5, true);
+    output.writeLong(0, true);
+    output.writeLong(0, true);
+    output.close();
+
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 2 }, new long[] { 1, 1 });
+    histo.mergeEncoded(buffer.toByteArray(), false);
+    assertEquals(2, histo.getBucketCount());
+    assertEquals(6, histo.getBucketCount(1, 2));
+    assertEquals(5, histo.getBucketCount(2, 3));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergeEncodedTruncated() throws Exception {
+    final byte[] raw = buildHistogram(new float[] { 1, 2 }, 
+        new long[] { 1, 2 }).histogram(false);
+    new ArrayHistogram(1).mergeEncoded(Arrays.copyOf(raw, raw.length - 3), 
+        false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergeEncodedWrongAccumulator() throws Exception {
+    manager.getCodec(1).mergeEncoded(new SimpleHistogram(1), 
+        buildHistogram(new float[] { 1 }, new long[] { 1 }).histogram(true), 
+        true);
+  }
+
+  @Test
+  public void percentilesMatchSimpleHistogram() throws Exception {
+    final SimpleHistogram simple = new SimpleHistogram(0);
+    final ArrayHistogram histo = new ArrayHistogram(1);
+    final long[] counts = { 3, 0, 12, 7, 1, 0, 25, 2 };
+    for (int i = 0; i < counts.length; i++) {
+      simple.addBucket((float) i, (float) i + 1, counts[i]);
+      histo.addBucket((float) i, (float) i + 1, counts[i]);
+    }
+    final List<Double> percs = Arrays.asList(0.5, 1.0, 5.0, 25.0, 50.0,
+        75.0, 90.0, 99.0, 99.9, 100.0, 100.1);
+    assertEquals(simple.percentiles(percs), histo.percentiles(percs));
+    for (final Double perc : percs) {
+      assertEquals(simple.percentile(perc), histo.percentile(perc), 0.0001);
+    }
+  }
+
+  @Test
+  public void percentileAfterAggregate() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 0, 10 }, new long[] { 10, 0 });
+    assertEquals(0.5, histo.percentile(99), 0.0001);
+    histo.aggregate(buildHistogram(new float[] { 0, 10 },
+        new long[] { 0, 100 }), HistogramAggregation.SUM);
+    assertEquals(10.5, histo.percentile(99), 0.0001);
+  }
+
+  @Test
+  public void percentileEmpty() throws Exception {
+    assertEquals(0.0, new ArrayHistogram(1).percentile(50), 0.0001);
+  }
+
+  @Test
+  public void cloneCopiesCounts() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 2 }, new long[] { 1, 2 });
+    final ArrayHistogram clone = histo.clone();
+    assertNotSame(histo, clone);
+    clone.aggregate(histo, HistogramAggregation.SUM);
+    assertEquals(2, clone.getBucketCount(1, 2));
+    assertEquals(1, histo.getBucketCount(1, 2));
+  }
+
+  @Test
+  public void adapterBuckets() throws Exception {
+    final ArrayHistogram histo = buildHistogram(
+        new float[] { 1, 2 }, new long[] { 1, 2 });
+    histo.setOverflow(4);
+    final Map<HistogramBucket, Long> buckets =
+        new SimpleHistogramDataPointAdapter(histo, 1000)
+          .getHistogramBucketsIfHas();
+    assertEquals(4, buckets.size());
+    assertEquals(4, (long) buckets.get(new HistogramBucket(
+        HistogramBucket.BucketType.OVERFLOW, 0, 0)));
+  }
+
+  /** Builds a histogram with buckets one wide at the given lower bounds */
+  private static ArrayHistogram buildHistogram(final float[] lower_bounds,
+      final long[] counts) {
+    final float[] upper_bounds = new float[lower_bounds.length];
+    for (int i = 0; i < lower_bounds.length; i++) {
+      upper_bounds[i] = lower_bounds[i] + 1;
+    }
+    final ArrayHistogram histo = new ArrayHistogram(1, lower_bounds,
+        upper_bounds);
+    for (int i = 0; i < lower_bounds.length; i++) {
+      histo.addBucket(lower_bounds[i], upper_bounds[i], counts[i]);
+    }
+    return histo;
+  }
+}
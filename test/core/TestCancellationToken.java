@@ -0,0 +1,123 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.opentsdb.core.CancellationToken.Reason;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Test;
+
+public class TestCancellationToken {
+
+  @Test
+  public void cancel() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    assertFalse(token.isCancelled());
+    assertNull(token.getReason());
+    
+    assertTrue(token.cancel(Reason.TIMEOUT));
+    assertTrue(token.isCancelled());
+    assertEquals(Reason.TIMEOUT, token.getReason());
+    
+    // first reason wins
+    assertFalse(token.cancel(Reason.KILLED));
+    assertEquals(Reason.TIMEOUT, token.getReason());
+    
+    final QueryException ex = token.newException();
+    assertEquals(HttpResponseStatus.REQUEST_TIMEOUT, ex.getStatus());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void cancelNullReason() throws Exception {
+    new CancellationToken().cancel(null);
+  }
+  
+  @Test (expected = IllegalStateException.class)
+  public void newExceptionNotCancelled() throws Exception {
+    new CancellationToken().newException();
+  }
+  
+  @Test
+  public void complete() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final AtomicInteger hooks = new AtomicInteger();
+    final Runnable hook = new Runnable() {
+      @Override
+      public void run() {
+        hooks.incrementAndGet();
+      }
+    };
+    token.onComplete(hook);
+    assertEquals(0, hooks.get());
+    
+    token.complete();
+    assertEquals(1, hooks.get());
+    token.complete();
+    assertEquals(1, hooks.get());
+    
+    // late hooks run right away
+    token.onComplete(hook);
+    assertEquals(2, hooks.get());
+    
+    // late cancellations are ignored
+    assertFalse(token.cancel(Reason.CLIENT_DISCONNECT));
+    assertFalse(token.isCancelled());
+  }
+  
+  @Test
+  public void onCancel() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final AtomicInteger hooks = new AtomicInteger();
+    final Runnable hook = new Runnable() {
+      @Override
+      public void run() {
+        hooks.incrementAndGet();
+      }
+    };
+    token.onCancel(hook);
+    assertEquals(0, hooks.get());
+    
+    assertTrue(token.cancel(Reason.KILLED));
+    assertEquals(1, hooks.get());
+    assertFalse(token.cancel(Reason.TIMEOUT));
+    assertEquals(1, hooks.get());
+    
+    // late hooks run right away
+    token.onCancel(hook);
+    assertEquals(2, hooks.get());
+  }
+  
+  @Test
+  public void onCancelAfterComplete() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final AtomicInteger hooks = new AtomicInteger();
+    final Runnable hook = new Runnable() {
+      @Override
+      public void run() {
+        hooks.incrementAndGet();
+      }
+    };
+    token.onCancel(hook);
+    token.complete();
+    token.onCancel(hook);
+    assertFalse(token.cancel(Reason.KILLED));
+    assertEquals(0, hooks.get());
+  }
+}
@@ -1261,6 +1261,41 @@ public class TestDownsampler {
     assertEquals(BASE_TIME + 10000L, timestamps_in_millis.get(1).longValue());
   }
   
+  @Test
+  public void testDownsampler_wavg() {
+    source = spy(SeekableViewsForTest.fromArray(new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(BASE_TIME + 5000L * 0, 1),
+        MutableDataPoint.ofDoubleValue(BASE_TIME + 5000L * 1, 2),
+        MutableDataPoint.ofDoubleValue(BASE_TIME + 5000L * 2, 4),
+        MutableDataPoint.ofDoubleValue(BASE_TIME + 5000L * 3, 8),
+        MutableDataPoint.ofDoubleValue(BASE_TIME + 5000L * 4, 16)
+    }));
+    specification = new DownsamplingSpecification("10s-wavg");
+    downsampler = new Downsampler(source, specification, 0, 0);
+    verify(source, never()).next();
+    List<Double> values = Lists.newArrayList();
+    List<Long> counts = Lists.newArrayList();
+    List<Long> timestamps_in_millis = Lists.newArrayList();
+    while (downsampler.hasNext()) {
+      DataPoint dp = downsampler.next();
+      assertFalse(dp.isInteger());
+      values.add(dp.doubleValue());
+      counts.add(dp.valueCount());
+      timestamps_in_millis.add(dp.timestamp());
+    }
+
+    assertEquals(3, values.size());
+    assertEquals(1.5, values.get(0), 0.0000001);
+    assertEquals(2, counts.get(0).longValue());
+    assertEquals(BASE_TIME + 00000L, timestamps_in_millis.get(0).longValue());
+    assertEquals(6, values.get(1), 0.0000001);
+    assertEquals(2, counts.get(1).longValue());
+    assertEquals(BASE_TIME + 10000L, timestamps_in_millis.get(1).longValue());
+    assertEquals(16, values.get(2), 0.0000001);
+    assertEquals(1, counts.get(2).longValue());
+    assertEquals(BASE_TIME + 20000L, timestamps_in_millis.get(2).longValue());
+  }
+  
   @Test
   public void testDownsampler_rollupCount() {
     final RollupInterval interval = RollupInterval.builder()
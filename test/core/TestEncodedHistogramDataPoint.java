@@ -0,0 +1,281 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, QueryStats.class })
+public class TestEncodedHistogramDataPoint {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+
+  private TSDB tsdb;
+  private Config config;
+  private HistogramCodecManager manager;
+  private HistogramDataPointCodec codec;
+  private HistogramDecodeStats stats;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = PowerMockito.mock(TSDB.class);
+    config = new Config(false);
+    config.overrideConfig("tsd.core.histograms.config",
+        "{\"net.opentsdb.core.SimpleHistogramDecoder\": 0,"
+        + "\"net.opentsdb.core.ArrayHistogramDecoder\": 1}");
+    when(tsdb.getConfig()).thenReturn(config);
+
+    manager = new HistogramCodecManager(tsdb);
+    when(tsdb.histogramManager()).thenReturn(manager);
+    codec = manager.getCodec(1);
+    stats = new HistogramDecodeStats(null, 0);
+  }
+
+  @Test
+  public void aggregateMergesEncoded() throws Exception {
+    final byte[] a = buildHistogram(new long[] { 1, 2, 3 }).histogram(true);
+    final byte[] b = buildHistogram(new long[] { 4, 5, 6 }).histogram(true);
+    final byte[] c = buildHistogram(new long[] { 7, 8, 9 }).histogram(true);
+    final EncodedHistogramDataPoint dp_b = encoded(b, 1000);
+    final EncodedHistogramDataPoint dp_c = encoded(c, 1000);
+
+    final HistogramDataPoint accumulator = encoded(a, 1000).clone();
+    accumulator.aggregate(dp_b, HistogramAggregation.SUM);
+    accumulator.aggregate(dp_c, HistogramAggregation.SUM);
+
+    assertArrayEquals(buildHistogram(new long[] { 12, 15, 18 })
+        .histogram(true), accumulator.getRawData(true));
+    assertFalse(dp_b.isDecoded());
+    assertFalse(dp_c.isDecoded());
+    assertEquals(1, stats.getDecodes());
+    assertEquals(2, stats.getEncodedMerges());
+    assertEquals(b.length + c.length, stats.getBytesMerged());
+  }
+
+  @Test
+  public void aggregateLeavesOriginal() throws Exception {
+    final byte[] a = buildHistogram(new long[] { 1, 2, 3 }).histogram(true);
+    final EncodedHistogramDataPoint dp = encoded(a, 1000);
+    final HistogramDataPoint clone = dp.clone();
+    clone.aggregate(encoded(a, 1000), HistogramAggregation.SUM);
+
+    assertFalse(dp.isDecoded());
+    assertArrayEquals(a, dp.getRawData(true));
+    assertEquals(1000, clone.timestamp());
+    assertEquals(2.5, clone.percentile(100), 0.0001);
+  }
+
+  @Test
+  public void aggregateDecodedOther() throws Exception {
+    final EncodedHistogramDataPoint other = encoded(
+        buildHistogram(new long[] { 4, 5, 6 }).histogram(true), 1000);
+    assertEquals(2.5, other.percentile(99), 0.0001);
+
+    final HistogramDataPoint accumulator = encoded(
+        buildHistogram(new long[] { 1, 2, 3 }).histogram(true), 1000);
+    accumulator.aggregate(other, HistogramAggregation.SUM);
+    assertArrayEquals(buildHistogram(new long[] { 5, 7, 9 }).histogram(true),
+        accumulator.getRawData(true));
+    assertEquals(2, stats.getDecodes());
+    assertEquals(0, stats.getEncodedMerges());
+  }
+
+  @Test
+  public void aggregateAdapters() throws Exception {
+    final HistogramDataPoint accumulator = encoded(
+        buildHistogram(new long[] { 1, 2, 3 }).histogram(true), 1000);
+    accumulator.aggregate(new SimpleHistogramDataPointAdapter(
+        buildHistogram(new long[] { 1, 1, 1 }), 1000),
+        HistogramAggregation.SUM);
+    assertArrayEquals(buildHistogram(new long[] { 2, 3, 4 }).histogram(true),
+        accumulator.getRawData(true));
+
+    // and the other way around
+    final HistogramDataPoint adapter = new SimpleHistogramDataPointAdapter(
+        buildHistogram(new long[] { 1, 1, 1 }), 1000);
+    adapter.aggregate(encoded(buildHistogram(new long[] { 1, 2, 3 })
+        .histogram(true), 1000), HistogramAggregation.SUM);
+    assertArrayEquals(buildHistogram(new long[] { 2, 3, 4 }).histogram(true),
+        adapter.getRawData(true));
+  }
+
+  @Test
+  public void aggregateMixedCodecs() throws Exception {
+    // same histogram type but written by another codec so the bytes must not
+    // be merged as our own
+    final ArrayHistogram other = new ArrayHistogram(2, 
+        new float[] { 0, 1, 2 }, new float[] { 1, 2, 3 });
+    other.addBucket(0f, 1f, 1L);
+    other.addBucket(1f, 2f, 1L);
+    other.addBucket(2f, 3f, 1L);
+    final HistogramDataPoint accumulator = encoded(
+        buildHistogram(new long[] { 1, 2, 3 }).histogram(true), 1000);
+    accumulator.aggregate(new SimpleHistogramDataPointAdapter(other, 1000), 
+        HistogramAggregation.SUM);
+    assertArrayEquals(buildHistogram(new long[] { 2, 3, 4 }).histogram(true),
+        accumulator.getRawData(true));
+    assertEquals(0, stats.getEncodedMerges());
+  }
+  
+  @Test
+  public void aggregateMixedCodecsIncompatible() throws Exception {
+    final SimpleHistogram other = new SimpleHistogram(0);
+    other.addBucket(0f, 1f, 1L);
+    final HistogramDataPoint accumulator = encoded(
+        buildHistogram(new long[] { 1, 2, 3 }).histogram(true), 1000);
+    try {
+      accumulator.aggregate(new SimpleHistogramDataPointAdapter(other, 1000), 
+          HistogramAggregation.SUM);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    assertEquals(0, stats.getEncodedMerges());
+  }
+
+  @Test
+  public void aggregateWithoutEncodedMerge() throws Exception {
+    final HistogramDataPointCodec simple_codec = manager.getCodec(0);
+    assertFalse(simple_codec.supportsEncodedMerge());
+    assertTrue(codec.supportsEncodedMerge());
+
+    final SimpleHistogram histo = new SimpleHistogram(0);
+    histo.addBucket(1.0f, 2.0f, 3L);
+    final byte[] raw = histo.histogram(true);
+    final HistogramDataPoint accumulator = new EncodedHistogramDataPoint(
+        simple_codec, raw, 1000, stats);
+    accumulator.aggregate(new EncodedHistogramDataPoint(simple_codec, raw,
+        1000, stats), HistogramAggregation.SUM);
+    assertEquals(6, (long) accumulator.getHistogramBucketsIfHas().get(
+        new HistogramDataPoint.HistogramBucket(
+            HistogramDataPoint.HistogramBucket.BucketType.REGULAR, 1, 2)));
+    assertEquals(2, stats.getDecodes());
+    assertEquals(0, stats.getEncodedMerges());
+  }
+
+  @Test
+  public void getRawDataWithoutId() throws Exception {
+    final ArrayHistogram histo = buildHistogram(new long[] { 1, 2, 3 });
+    final EncodedHistogramDataPoint dp = encoded(histo.histogram(true), 1000);
+    assertArrayEquals(histo.histogram(false), dp.getRawData(false));
+    assertEquals(1, dp.getId());
+    assertFalse(dp.isDecoded());
+  }
+
+  @Test
+  public void cloneAndSetTimestamp() throws Exception {
+    final EncodedHistogramDataPoint dp = encoded(
+        buildHistogram(new long[] { 1, 2, 3 }).histogram(true), 1000);
+    dp.percentile(50);
+    final HistogramDataPoint clone = dp.cloneAndSetTimestamp(2000);
+    assertEquals(2000, clone.timestamp());
+    clone.aggregate(dp, HistogramAggregation.SUM);
+    // the decoded histogram is copied, not shared
+    assertArrayEquals(buildHistogram(new long[] { 1, 2, 3 }).histogram(true),
+        dp.getRawData(true));
+  }
+
+  @Test
+  public void fromKeyValue() throws Exception {
+    final byte[] raw = buildHistogram(new long[] { 1, 2, 3 }).histogram(true);
+    final byte[] qualifier = { HistogramDataPoint.PREFIX, 0, 60 };
+    final EncodedHistogramDataPoint dp = EncodedHistogramDataPoint
+        .fromKeyValue(tsdb, new KeyValue(KEY, FAMILY, qualifier, 0, raw),
+            stats);
+    assertEquals(Internal.decodeHistogramDataPoint(tsdb, 1356998400L,
+        qualifier, raw).timestamp(), dp.timestamp());
+    assertEquals((1356998400L + 60) * 1000, dp.timestamp());
+    assertFalse(dp.isDecoded());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void fromKeyValueUnknownCodec() throws Exception {
+    final byte[] raw = buildHistogram(new long[] { 1 }).histogram(true);
+    raw[0] = 42;
+    EncodedHistogramDataPoint.fromKeyValue(tsdb, new KeyValue(KEY, FAMILY,
+        new byte[] { HistogramDataPoint.PREFIX, 0, 0 }, 0, raw), stats);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorEmpty() throws Exception {
+    new EncodedHistogramDataPoint(codec, new byte[0], 1000, stats);
+  }
+
+  @Test
+  public void flushStats() throws Exception {
+    final QueryStats query_stats = mock(QueryStats.class);
+    stats = new HistogramDecodeStats(query_stats, 3);
+    final byte[] raw = buildHistogram(new long[] { 1, 2, 3 }).histogram(true);
+    final HistogramDataPoint accumulator = encoded(raw, 1000);
+    accumulator.aggregate(encoded(raw, 1000), HistogramAggregation.SUM);
+
+    stats.flush();
+    verify(query_stats).updateStat(3, QueryStat.HISTOGRAM_DECODES, 1);
+    verify(query_stats).updateStat(3, QueryStat.HISTOGRAM_ENCODED_MERGES, 1);
+    verify(query_stats).updateStat(3, QueryStat.HISTOGRAM_BYTES_MERGED,
+        raw.length);
+    assertEquals(0, stats.getDecodes());
+
+    // nothing new to report
+    final QueryStats empty_stats = mock(QueryStats.class);
+    new HistogramDecodeStats(empty_stats, 3).flush();
+    verify(empty_stats, never()).updateStat(anyInt(), any(QueryStat.class),
+        anyLong());
+  }
+
+  /** Builds an array histogram with buckets from 0 to the number of counts */
+  private static ArrayHistogram buildHistogram(final long[] counts) {
+    final float[] lower_bounds = new float[counts.length];
+    final float[] upper_bounds = new float[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      lower_bounds[i] = i;
+      upper_bounds[i] = i + 1;
+    }
+    final ArrayHistogram histo = new ArrayHistogram(1, lower_bounds,
+        upper_bounds);
+    for (int i = 0; i < counts.length; i++) {
+      histo.addBucket(lower_bounds[i], upper_bounds[i], counts[i]);
+    }
+    return histo;
+  }
+
+  private EncodedHistogramDataPoint encoded(final byte[] raw,
+      final long timestamp) {
+    return new EncodedHistogramDataPoint(codec,
+        Arrays.copyOf(raw, raw.length), timestamp, stats);
+  }
+}
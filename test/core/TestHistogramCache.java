@@ -0,0 +1,219 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.opentsdb.stats.StatsCollector;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class })
+public class TestHistogramCache extends BaseTsdbTest {
+  private static final long BASE_TIME = 1356998400000L;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    config.overrideConfig("tsd.query.histogram_cache.max_bytes", "4096");
+    config.overrideConfig("tsd.query.histogram_cache.ttl", "300");
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final HistogramCache cache = new HistogramCache(tsdb);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.estimatedBytes());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoBytes() throws Exception {
+    config.overrideConfig("tsd.query.histogram_cache.max_bytes", "0");
+    new HistogramCache(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoTTL() throws Exception {
+    config.overrideConfig("tsd.query.histogram_cache.ttl", "0");
+    new HistogramCache(tsdb);
+  }
+
+  @Test
+  public void putAndGet() throws Exception {
+    final HistogramCache cache = new HistogramCache(tsdb);
+    final HistogramDataPoints group = group(3, 8, 1);
+    final List<HistogramDataPoints> groups = new ArrayList<HistogramDataPoints>();
+    groups.add(group);
+
+    assertNull(cache.get("key"));
+    final List<CachedHistogramDataPoints> stored = cache.put("key", groups);
+    assertEquals(1, stored.size());
+    assertSame(stored, cache.get("key"));
+    assertEquals(1, cache.size());
+
+    final CachedHistogramDataPoints cached = stored.get(0);
+    assertEquals(3, cached.size());
+    assertEquals(6, cached.aggregatedSize());
+    assertEquals(1, cached.getQueryIndex());
+    assertEquals(BASE_TIME + 60000, cached.timestamp(1));
+    assertEquals(cache.estimatedBytes(), cached.estimatedBytes() + 6);
+
+    // reading the copy many times never goes back to the group
+    for (int i = 0; i < 3; i++) {
+      final HistogramSeekableView it = cached.iterator();
+      int count = 0;
+      while (it.hasNext()) {
+        assertEquals(BASE_TIME + (count++ * 60000), it.next().timestamp());
+      }
+      assertEquals(3, count);
+    }
+    verify(group, times(1)).iterator();
+  }
+
+  @Test
+  public void forQuery() throws Exception {
+    final HistogramCache cache = new HistogramCache(tsdb);
+    final List<HistogramDataPoints> groups = new ArrayList<HistogramDataPoints>();
+    groups.add(group(2, 8, 0));
+    final CachedHistogramDataPoints cached = cache.put("key", groups).get(0);
+
+    assertSame(cached, cached.forQuery(0));
+    final CachedHistogramDataPoints view = cached.forQuery(2);
+    assertEquals(2, view.getQueryIndex());
+    assertEquals(2, view.size());
+    assertEquals(cached.estimatedBytes(), view.estimatedBytes());
+  }
+
+  @Test
+  public void seek() throws Exception {
+    final HistogramCache cache = new HistogramCache(tsdb);
+    final List<HistogramDataPoints> groups = new ArrayList<HistogramDataPoints>();
+    groups.add(group(4, 8, 0));
+    final CachedHistogramDataPoints cached = cache.put("key", groups).get(0);
+
+    final HistogramSeekableView it = cached.iterator();
+    it.seek((BASE_TIME + 120000) / 1000);
+    assertTrue(it.hasNext());
+    assertEquals(BASE_TIME + 120000, it.next().timestamp());
+    assertEquals(BASE_TIME + 180000, it.next().timestamp());
+  }
+
+  @Test
+  public void evictsOverMaxBytes() throws Exception {
+    final HistogramCache cache = new HistogramCache(tsdb);
+    final List<HistogramDataPoints> groups = new ArrayList<HistogramDataPoints>();
+    groups.add(group(16, 256, 0));
+    cache.put("big", groups);
+    assertNull(cache.get("big"));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.estimatedBytes());
+  }
+
+  @Test
+  public void replaceKeepsBytes() throws Exception {
+    final HistogramCache cache = new HistogramCache(tsdb);
+    final List<HistogramDataPoints> groups = new ArrayList<HistogramDataPoints>();
+    groups.add(group(2, 8, 0));
+    cache.put("key", groups);
+    final long bytes = cache.estimatedBytes();
+    cache.put("key", groups);
+    assertEquals(bytes, cache.estimatedBytes());
+    cache.invalidateAll();
+    assertEquals(0, cache.estimatedBytes());
+  }
+
+  @Test
+  public void collectStats() throws Exception {
+    final HistogramCache cache = new HistogramCache(tsdb);
+    final List<HistogramDataPoints> groups = new ArrayList<HistogramDataPoints>();
+    groups.add(group(2, 8, 0));
+    cache.get("key");
+    cache.put("key", groups);
+    cache.get("key");
+    cache.get("key");
+
+    final StatsCollector collector = mock(StatsCollector.class);
+    cache.collectStats(collector);
+    verify(collector).record("query.histogram_cache.hits", 2L, null);
+    verify(collector).record("query.histogram_cache.misses", 1L, null);
+    verify(collector).record("query.histogram_cache.entries", 1L, null);
+    verify(collector).record("query.histogram_cache.bytes",
+        cache.estimatedBytes(), null);
+  }
+
+  /**
+   * Mocks a group of merged points one minute apart.
+   * @param points How many points to return.
+   * @param raw_length The length of each point's encoding.
+   * @param query_index The query index of the group.
+   * @return The mocked group.
+   */
+  private HistogramDataPoints group(final int points, final int raw_length,
+                                    final int query_index) {
+    final List<HistogramDataPoint> dps = new ArrayList<HistogramDataPoint>();
+    for (int i = 0; i < points; i++) {
+      final HistogramDataPoint dp = mock(HistogramDataPoint.class);
+      when(dp.timestamp()).thenReturn(BASE_TIME + (i * 60000));
+      when(dp.getRawData(false)).thenReturn(new byte[raw_length]);
+      when(dp.clone()).thenReturn(dp);
+      dps.add(dp);
+    }
+
+    final HistogramDataPoints group = mock(HistogramDataPoints.class);
+    when(group.metricUID()).thenReturn(HISTOGRAM_METRIC_BYTES);
+    when(group.getTagUids()).thenReturn(new ByteMap<byte[]>());
+    when(group.getAggregatedTagUids()).thenReturn(new ArrayList<byte[]>());
+    when(group.aggregatedSize()).thenReturn(points * 2);
+    when(group.getQueryIndex()).thenReturn(query_index);
+    when(group.iterator()).thenAnswer(new Answer<HistogramSeekableView>() {
+      @Override
+      public HistogramSeekableView answer(final InvocationOnMock invocation)
+          throws Throwable {
+        final Iterator<HistogramDataPoint> it = dps.iterator();
+        final HistogramSeekableView view = mock(HistogramSeekableView.class);
+        when(view.hasNext()).thenAnswer(new Answer<Boolean>() {
+          @Override
+          public Boolean answer(final InvocationOnMock invocation) {
+            return it.hasNext();
+          }
+        });
+        when(view.next()).thenAnswer(new Answer<HistogramDataPoint>() {
+          @Override
+          public HistogramDataPoint answer(final InvocationOnMock invocation) {
+            return it.next();
+          }
+        });
+        return view;
+      }
+    });
+    return group;
+  }
+}
@@ -0,0 +1,196 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestInProcessDownsamplePushdown {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte)0xE2, 0x27, 0, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+  private static final long BASE_TIME = 1356998400L;
+
+  private final InProcessDownsamplePushdown pushdown =
+      new InProcessDownsamplePushdown();
+
+  @Test
+  public void downsampleRowSum() throws Exception {
+    final KeyValue column = makeRow(KEY, new long[] { 0, 30, 60, 90, 200 },
+        new long[] { 1, 2, 3, 4, 5 });
+    final KeyValue reduced = pushdown.reduceRow(column,
+        new DownsamplingSpecification("1m-sum"));
+    assertArrayEquals(KEY, reduced.key());
+
+    final ArrayList<Cell> cells = Internal.extractDataPoints(reduced);
+    assertEquals(3, cells.size());
+    assertCell(cells.get(0), BASE_TIME * 1000, 3);
+    assertCell(cells.get(1), (BASE_TIME + 60) * 1000, 7);
+    assertCell(cells.get(2), (BASE_TIME + 180) * 1000, 5);
+    assertEquals(0, reduced.value()[reduced.value().length - 1]);
+  }
+
+  @Test
+  public void downsampleRowCount() throws Exception {
+    final KeyValue column = makeRow(KEY, new long[] { 0, 30, 60, 90, 200 },
+        new long[] { 1, 2, 3, 4, 5 });
+    final ArrayList<Cell> cells = Internal.extractDataPoints(
+        InProcessDownsamplePushdown.downsampleRow(column,
+            new DownsamplingSpecification("2m-count")));
+    assertEquals(2, cells.size());
+    assertCell(cells.get(0), BASE_TIME * 1000, 4);
+    assertCell(cells.get(1), (BASE_TIME + 120) * 1000, 1);
+  }
+
+  @Test
+  public void downsampleRowMinMax() throws Exception {
+    final KeyValue column = makeRow(KEY, new long[] { 0, 30, 60, 90 },
+        new long[] { 4, -2, 8, 6 });
+    ArrayList<Cell> cells = Internal.extractDataPoints(
+        InProcessDownsamplePushdown.downsampleRow(column,
+            new DownsamplingSpecification("1m-min")));
+    assertEquals(2, cells.size());
+    assertCell(cells.get(0), BASE_TIME * 1000, -2);
+    assertCell(cells.get(1), (BASE_TIME + 60) * 1000, 6);
+
+    cells = Internal.extractDataPoints(
+        InProcessDownsamplePushdown.downsampleRow(column,
+            new DownsamplingSpecification("1m-max")));
+    assertEquals(2, cells.size());
+    assertCell(cells.get(0), BASE_TIME * 1000, 4);
+    assertCell(cells.get(1), (BASE_TIME + 60) * 1000, 8);
+  }
+
+  @Test
+  public void downsampleRowSingleBucket() throws Exception {
+    final KeyValue column = makeRow(KEY, new long[] { 0, 30, 60 },
+        new long[] { 1, 2, 3 });
+    final KeyValue reduced = InProcessDownsamplePushdown.downsampleRow(column,
+        new DownsamplingSpecification("1h-sum"));
+    // single values are not followed by a meta byte
+    assertEquals(2, reduced.qualifier().length);
+    assertEquals(8, reduced.value().length);
+    final ArrayList<Cell> cells = Internal.extractDataPoints(reduced);
+    assertEquals(1, cells.size());
+    assertCell(cells.get(0), BASE_TIME * 1000, 6);
+  }
+
+  @Test
+  public void downsampleRowClampsToBaseTime() throws Exception {
+    final byte[] key = KEY.clone();
+    Bytes.setInt(key, (int) (BASE_TIME + 3600), 3);
+    final KeyValue column = makeRow(key, new long[] { 0, 1800 },
+        new long[] { 1, 2 });
+    final ArrayList<Cell> cells = Internal.extractDataPoints(
+        InProcessDownsamplePushdown.downsampleRow(column,
+            new DownsamplingSpecification("1d-count")));
+    // the day started before the row so the partial bucket is at the row base
+    assertEquals(1, cells.size());
+    assertCell(cells.get(0), BASE_TIME + 3600, (BASE_TIME + 3600) * 1000, 2);
+  }
+
+  @Test
+  public void downsampleRowMilliseconds() throws Exception {
+    final KeyValue column = makeRow(KEY, new long[] { 0, 2 },
+        new long[] { 1, 2 });
+    final KeyValue reduced = InProcessDownsamplePushdown.downsampleRow(column,
+        new DownsamplingSpecification("1500ms-sum"));
+    final ArrayList<Cell> cells = Internal.extractDataPoints(reduced);
+    assertEquals(2, cells.size());
+    assertCell(cells.get(0), BASE_TIME * 1000, 1);
+    assertFalse(Internal.inMilliseconds(cells.get(0).qualifier()));
+    assertCell(cells.get(1), (BASE_TIME * 1000) + 1500, 2);
+    assertTrue(Internal.inMilliseconds(cells.get(1).qualifier()));
+    assertEquals(Const.MS_MIXED_COMPACT,
+        reduced.value()[reduced.value().length - 1]);
+  }
+
+  @Test
+  public void downsampleRowEmpty() throws Exception {
+    assertNull(InProcessDownsamplePushdown.downsampleRow(
+        new KeyValue(KEY, FAMILY, new byte[0], 0, new byte[0]),
+        new DownsamplingSpecification("1m-sum")));
+  }
+
+  @Test
+  public void canPushDown() throws Exception {
+    assertTrue(pushdown.canPushDown(new DownsamplingSpecification("1m-sum")));
+    assertTrue(pushdown.canPushDown(new DownsamplingSpecification("1d-count")));
+    assertTrue(pushdown.canPushDown(new DownsamplingSpecification("2h-max")));
+    assertTrue(pushdown.canPushDown(new DownsamplingSpecification("15m-avg")));
+    // averages can't be combined across rows
+    assertFalse(pushdown.canPushDown(new DownsamplingSpecification("7m-avg")));
+    assertFalse(pushdown.canPushDown(new DownsamplingSpecification("2h-avg")));
+    assertFalse(pushdown.canPushDown(new DownsamplingSpecification("1m-dev")));
+    assertFalse(pushdown.canPushDown(new DownsamplingSpecification("1m-p99")));
+    assertFalse(pushdown.canPushDown(new DownsamplingSpecification("1dc-sum")));
+    assertFalse(pushdown.canPushDown(new DownsamplingSpecification("0all-sum")));
+    assertFalse(pushdown.canPushDown(
+        DownsamplingSpecification.NO_DOWNSAMPLER));
+    assertFalse(pushdown.canPushDown(null));
+  }
+
+  @Test
+  public void mergeFunction() throws Exception {
+    assertSame(Aggregators.SUM,
+        DownsamplePushdown.mergeFunction(Aggregators.SUM));
+    assertSame(Aggregators.SUM,
+        DownsamplePushdown.mergeFunction(Aggregators.COUNT));
+    assertSame(Aggregators.MIMMAX,
+        DownsamplePushdown.mergeFunction(Aggregators.MIMMAX));
+    assertSame(Aggregators.AVG,
+        DownsamplePushdown.mergeFunction(Aggregators.AVG));
+    assertNull(DownsamplePushdown.mergeFunction(Aggregators.DEV));
+    assertNull(DownsamplePushdown.mergeFunction(Aggregators.FIRST));
+  }
+
+  /** Writes the long values at the second offsets in a compacted column */
+  private static KeyValue makeRow(final byte[] key, final long[] offsets,
+      final long[] values) {
+    final byte[][] qualifiers = new byte[offsets.length][];
+    final byte[][] vals = new byte[offsets.length + 1][];
+    for (int i = 0; i < offsets.length; i++) {
+      qualifiers[i] = Internal.buildQualifier(
+          Bytes.getUnsignedInt(key, 3) + offsets[i], (short) 7);
+      vals[i] = Bytes.fromLong(values[i]);
+    }
+    vals[offsets.length] = new byte[] { 0 };
+    return new KeyValue(key, FAMILY, MockBase.concatByteArrays(qualifiers),
+        0, MockBase.concatByteArrays(vals));
+  }
+
+  private static void assertCell(final Cell cell, final long timestamp,
+      final double value) {
+    assertCell(cell, BASE_TIME, timestamp, value);
+  }
+
+  private static void assertCell(final Cell cell, final long base_time,
+      final long timestamp, final double value) {
+    assertEquals(timestamp, cell.timestamp(base_time));
+    assertFalse(cell.isInteger());
+    assertEquals(value, cell.parseValue().doubleValue(), 0.0001);
+  }
+}
@@ -0,0 +1,179 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class TestMovingWindow {
+
+  @Test
+  public void addAndRemove() throws Exception {
+    final MovingWindow window = new MovingWindow(4, true);
+    window.add(1000, 1);
+    window.add(2000, 5);
+    window.add(3000, 3);
+    assertEquals(3, window.size());
+    assertEquals(3, window.count());
+    assertEquals(1000, window.timestamp(0));
+    assertEquals(3000, window.timestamp(2));
+    assertEquals(9, window.sum(), 0.0001);
+    assertEquals(3, window.mean(), 0.0001);
+    assertEquals(Math.sqrt(8.0 / 3), window.stdDev(), 0.0001);
+    assertEquals(1, window.min(), 0.0001);
+    assertEquals(5, window.max(), 0.0001);
+
+    window.removeFirst();
+    assertEquals(2, window.size());
+    assertEquals(2000, window.timestamp(0));
+    assertEquals(8, window.sum(), 0.0001);
+    assertEquals(4, window.mean(), 0.0001);
+    assertEquals(1, window.stdDev(), 0.0001);
+    assertEquals(3, window.min(), 0.0001);
+    assertEquals(5, window.max(), 0.0001);
+
+    window.removeFirst();
+    window.removeFirst();
+    assertEquals(0, window.size());
+    assertEquals(0, window.sum(), 0.0001);
+    assertTrue(Double.isNaN(window.mean()));
+    assertTrue(Double.isNaN(window.stdDev()));
+    assertTrue(Double.isNaN(window.min()));
+    assertTrue(Double.isNaN(window.max()));
+  }
+
+  @Test
+  public void nans() throws Exception {
+    final MovingWindow window = new MovingWindow(4, true);
+    window.add(1000, Double.NaN);
+    window.add(2000, 4);
+    window.add(3000, Double.NaN);
+    assertEquals(3, window.size());
+    assertEquals(1, window.count());
+    assertEquals(4, window.mean(), 0.0001);
+    assertEquals(0, window.stdDev(), 0.0001);
+    assertEquals(4, window.min(), 0.0001);
+    assertEquals(4, window.max(), 0.0001);
+
+    window.removeFirst();
+    window.removeFirst();
+    assertEquals(1, window.size());
+    assertEquals(0, window.count());
+    assertTrue(Double.isNaN(window.max()));
+  }
+
+  @Test
+  public void grow() throws Exception {
+    final MovingWindow window = new MovingWindow(1, true);
+    for (int i = 0; i < 100; i++) {
+      window.add(i, i % 7);
+      if (i % 3 == 0) {
+        window.removeFirst();
+      }
+    }
+    assertEquals(66, window.size());
+    assertEquals(34, window.timestamp(0));
+    assertEquals(99, window.timestamp(65));
+    assertEquals(0, window.min(), 0.0001);
+    assertEquals(6, window.max(), 0.0001);
+  }
+
+  @Test
+  public void clear() throws Exception {
+    final MovingWindow window = new MovingWindow(2, true);
+    window.add(1000, 42);
+    window.add(2000, 24);
+    window.clear();
+    assertEquals(0, window.size());
+    assertEquals(0, window.count());
+    assertEquals(0, window.sum(), 0.0001);
+    assertTrue(Double.isNaN(window.min()));
+
+    window.add(3000, 1);
+    assertEquals(3000, window.timestamp(0));
+    assertEquals(1, window.max(), 0.0001);
+  }
+
+  @Test
+  public void slidingMatchesNaive() throws Exception {
+    final Random random = new Random(42);
+    final int size = 25;
+    final double[] values = new double[1000];
+    final MovingWindow window = new MovingWindow(size, true);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt(10) == 0 ? Double.NaN :
+        random.nextGaussian() * 1000;
+      window.add(i, values[i]);
+      if (window.size() > size) {
+        window.removeFirst();
+      }
+
+      double sum = 0;
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      int count = 0;
+      for (int j = Math.max(0, i - size + 1); j <= i; j++) {
+        if (!Double.isNaN(values[j])) {
+          sum += values[j];
+          min = Math.min(min, values[j]);
+          max = Math.max(max, values[j]);
+          count++;
+        }
+      }
+      double m2 = 0;
+      for (int j = Math.max(0, i - size + 1); j <= i; j++) {
+        if (!Double.isNaN(values[j])) {
+          m2 += (values[j] - sum / count) * (values[j] - sum / count);
+        }
+      }
+      assertEquals(count, window.count());
+      if (count == 0) {
+        continue;
+      }
+      assertEquals(sum, window.sum(), 0.0001);
+      assertEquals(sum / count, window.mean(), 0.0001);
+      assertEquals(Math.sqrt(m2 / count), window.stdDev(), 0.0001);
+      assertEquals(min, window.min(), 0);
+      assertEquals(max, window.max(), 0);
+    }
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void minNotTracked() throws Exception {
+    final MovingWindow window = new MovingWindow(2, false);
+    window.add(1000, 42);
+    window.min();
+  }
+
+  @Test (expected = NoSuchElementException.class)
+  public void removeFirstEmpty() throws Exception {
+    new MovingWindow(2, false).removeFirst();
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void timestampOutOfBounds() throws Exception {
+    final MovingWindow window = new MovingWindow(2, false);
+    window.add(1000, 42);
+    window.timestamp(1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void capacityZero() throws Exception {
+    new MovingWindow(0, false);
+  }
+}
@@ -0,0 +1,326 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import net.opentsdb.core.HistogramDataPoint.HistogramBucket;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class })
+public class TestQuantileSketchHistogram {
+  private static final List<Double> PERCENTILES =
+      Arrays.asList(0.0, 1.0, 10.0, 25.0, 50.0, 75.0, 90.0, 99.0, 99.9, 100.0);
+
+  private TSDB tsdb;
+  private Config config;
+  private HistogramCodecManager manager;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = PowerMockito.mock(TSDB.class);
+    config = new Config(false);
+
+    config.overrideConfig("tsd.core.histograms.config",
+        "{\"net.opentsdb.core.SimpleHistogramDecoder\": 0,"
+        + "\"net.opentsdb.core.QuantileSketchDecoder\": 2}");
+    when(tsdb.getConfig()).thenReturn(config);
+
+    manager = new HistogramCodecManager(tsdb);
+    when(tsdb.histogramManager()).thenReturn(manager);
+  }
+
+  @Test
+  public void registered() throws Exception {
+    assertEquals(2, manager.getCodec(QuantileSketchDecoder.class));
+    assertTrue(manager.getCodec(2) instanceof QuantileSketchDecoder);
+  }
+
+  @Test
+  public void percentilesWithinAccuracy() throws Exception {
+    final double[] values = latencies(new Random(42), 10000);
+    final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+    for (final double value : values) {
+      sketch.add(value);
+    }
+    assertEquals(values.length, sketch.getCount());
+    assertPercentiles(values, sketch, 0.01);
+  }
+
+  @Test
+  public void percentilesNegativesAndZeros() throws Exception {
+    final double[] values = new double[2001];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (i - 1000) * 1.5;
+    }
+    final QuantileSketchHistogram sketch =
+        new QuantileSketchHistogram(2, 0.02, 2048);
+    for (final double value : values) {
+      sketch.add(value);
+    }
+    assertPercentiles(values, sketch, 0.02);
+    assertEquals(0, sketch.percentile(50), 0.0001);
+  }
+
+  @Test
+  public void percentileOutOfRange() throws Exception {
+    final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+    sketch.add(42);
+    assertEquals(-1, sketch.percentile(-0.1), 0.0001);
+    assertEquals(-1, sketch.percentile(100.1), 0.0001);
+  }
+
+  @Test
+  public void percentileEmpty() throws Exception {
+    assertEquals(0, new QuantileSketchHistogram(2).percentile(99), 0.0001);
+  }
+
+  @Test
+  public void aggregateMatchesSingleSketch() throws Exception {
+    final Random random = new Random(7);
+    final QuantileSketchHistogram all = new QuantileSketchHistogram(2);
+    final QuantileSketchHistogram merged = new QuantileSketchHistogram(2);
+    double[] values = new double[0];
+    for (int i = 0; i < 100; i++) {
+      final double[] batch = latencies(random, 100);
+      final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+      for (final double value : batch) {
+        sketch.add(value);
+        all.add(value);
+      }
+      merged.aggregate(manager.decode(2, manager.encode(2, sketch, true), true),
+          HistogramAggregation.SUM);
+      final double[] grown = Arrays.copyOf(values, values.length + batch.length);
+      System.arraycopy(batch, 0, grown, values.length, batch.length);
+      values = grown;
+    }
+    assertEquals(all.percentiles(PERCENTILES), merged.percentiles(PERCENTILES));
+    assertArrayEquals(all.histogram(true), merged.histogram(true));
+    assertPercentiles(values, merged, 0.01);
+  }
+
+  @Test
+  public void mergeEncodedMatchesAggregate() throws Exception {
+    final Random random = new Random(11);
+    final QuantileSketchHistogram merged =
+        new QuantileSketchHistogram(2, 0.01, 64);
+    final QuantileSketchHistogram aggregated =
+        new QuantileSketchHistogram(2, 0.01, 64);
+    for (int i = 0; i < 20; i++) {
+      final QuantileSketchHistogram sketch =
+          new QuantileSketchHistogram(2, 0.01, 64);
+      for (final double value : latencies(random, 100)) {
+        sketch.add(i % 2 == 0 ? value : -value);
+      }
+      sketch.add(0);
+      final byte[] raw = manager.encode(2, sketch, true);
+      manager.getCodec(2).mergeEncoded(merged, raw, true);
+      aggregated.aggregate(manager.decode(2, raw, true),
+          HistogramAggregation.SUM);
+    }
+    assertEquals(2020, merged.getCount());
+    assertArrayEquals(aggregated.histogram(true), merged.histogram(true));
+    assertEquals(aggregated.percentiles(PERCENTILES),
+        merged.percentiles(PERCENTILES));
+  }
+
+  @Test
+  public void mergeEncodedIntoEmpty() throws Exception {
+    final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+    sketch.add(42);
+    sketch.add(-1);
+    final QuantileSketchHistogram merged = new QuantileSketchHistogram(2);
+    merged.mergeEncoded(sketch.histogram(false), false);
+    assertArrayEquals(sketch.histogram(false), merged.histogram(false));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergeEncodedDifferentAccuracy() throws Exception {
+    new QuantileSketchHistogram(2, 0.01, 100).mergeEncoded(
+        new QuantileSketchHistogram(2, 0.02, 100).histogram(true), true);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergeEncodedTruncated() throws Exception {
+    final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+    sketch.add(1);
+    sketch.add(1000);
+    final byte[] raw = sketch.histogram(false);
+    new QuantileSketchHistogram(2).mergeEncoded(
+        Arrays.copyOf(raw, raw.length - 1), false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void aggregateDifferentAccuracy() throws Exception {
+    new QuantileSketchHistogram(2, 0.01, 100).aggregate(
+        new QuantileSketchHistogram(2, 0.02, 100), HistogramAggregation.SUM);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void aggregateWrongType() throws Exception {
+    new QuantileSketchHistogram(2).aggregate(new SimpleHistogram(0),
+        HistogramAggregation.SUM);
+  }
+
+  @Test
+  public void aggregateThroughAdapter() throws Exception {
+    final QuantileSketchHistogram a = new QuantileSketchHistogram(2);
+    a.add(1);
+    final QuantileSketchHistogram b = new QuantileSketchHistogram(2);
+    b.add(1000);
+    final HistogramDataPoint dp = new SimpleHistogramDataPointAdapter(a, 1000);
+    dp.aggregate(new SimpleHistogramDataPointAdapter(b, 1000),
+        HistogramAggregation.SUM);
+    assertEquals(1000, dp.percentile(100), 10);
+    assertEquals(1, dp.percentile(0), 0.02);
+    final Map<HistogramBucket, Long> buckets = dp.getHistogramBucketsIfHas();
+    assertEquals(2, buckets.size());
+  }
+
+  @Test
+  public void boundedBins() throws Exception {
+    final QuantileSketchHistogram sketch =
+        new QuantileSketchHistogram(2, 0.01, 64);
+    double max = 0;
+    for (double value = 1e-9; value < 1e9; value *= 1.01) {
+      sketch.add(value);
+      max = value;
+    }
+    assertEquals(64, sketch.getHistogram().size());
+    // the largest values keep their accuracy
+    assertEquals(max, sketch.percentile(100), max * 0.01);
+  }
+
+  @Test
+  public void encodeDecode() throws Exception {
+    final double[] values = latencies(new Random(1), 10000);
+    final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+    for (final double value : values) {
+      sketch.add(value);
+    }
+    sketch.add(0, 3);
+    sketch.add(-5);
+
+    final byte[] raw = manager.encode(2, sketch, true);
+    assertEquals(2, raw[0]);
+    // six orders of magnitude at 1% still fit in a couple of KB
+    assertTrue(raw.length < 2048);
+    final QuantileSketchHistogram decoded =
+        (QuantileSketchHistogram) manager.decode(2, raw, true);
+    assertEquals(sketch.getCount(), decoded.getCount());
+    assertEquals(0.01, decoded.getAccuracy(), 0.0);
+    assertEquals(QuantileSketchHistogram.DEFAULT_MAX_BINS,
+        decoded.getMaxBins());
+    assertEquals(sketch.percentiles(PERCENTILES),
+        decoded.percentiles(PERCENTILES));
+    assertArrayEquals(raw, decoded.histogram(true));
+  }
+
+  @Test
+  public void encodeEmpty() throws Exception {
+    final byte[] raw = new QuantileSketchHistogram(2).histogram(false);
+    final QuantileSketchHistogram decoded = new QuantileSketchHistogram(2);
+    decoded.fromHistogram(raw, false);
+    assertEquals(0, decoded.getCount());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeTooShort() throws Exception {
+    new QuantileSketchHistogram(2).fromHistogram(new byte[] { 0, 1 }, false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeTruncated() throws Exception {
+    final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+    sketch.add(1);
+    sketch.add(1000);
+    final byte[] raw = sketch.histogram(false);
+    new QuantileSketchHistogram(2).fromHistogram(
+        Arrays.copyOf(raw, raw.length - 1), false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeWrongId() throws Exception {
+    final byte[] raw = new QuantileSketchHistogram(2).histogram(true);
+    raw[0] = 0;
+    manager.getCodec(2).decode(raw, true);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void encodeWrongType() throws Exception {
+    manager.encode(2, new SimpleHistogram(2), true);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadAccuracy() throws Exception {
+    new QuantileSketchHistogram(2, 1, 100);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadBins() throws Exception {
+    new QuantileSketchHistogram(2, 0.01, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void addNaN() throws Exception {
+    new QuantileSketchHistogram(2).add(Double.NaN);
+  }
+
+  @Test
+  public void cloneIsDeep() throws Exception {
+    final QuantileSketchHistogram sketch = new QuantileSketchHistogram(2);
+    sketch.add(10);
+    final QuantileSketchHistogram clone = sketch.clone();
+    clone.add(10);
+    assertEquals(1, sketch.getCount());
+    assertEquals(2, clone.getCount());
+  }
+
+  /** @return Latencies spread over six orders of magnitude */
+  private static double[] latencies(final Random random, final int count) {
+    final double[] values = new double[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = Math.pow(10, random.nextDouble() * 6) / 1000;
+    }
+    return values;
+  }
+
+  /** Compares each percentile to the exact value at the same rank */
+  private static void assertPercentiles(final double[] values,
+      final QuantileSketchHistogram sketch, final double accuracy) {
+    final double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    for (final double p : PERCENTILES) {
+      final double expected =
+          sorted[(int) Math.floor(p / 100 * (sorted.length - 1))];
+      assertEquals("Percentile " + p, expected, sketch.percentile(p),
+          Math.abs(expected) * accuracy + 1e-9);
+    }
+  }
+}
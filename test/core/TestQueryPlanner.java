@@ -0,0 +1,148 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import net.opentsdb.core.QueryPlanner.Plan;
+import net.opentsdb.core.QueryPlanner.Strategy;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+public class TestQueryPlanner extends BaseTsdbTest {
+  private ByteMap<byte[][]> literals;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    QueryPlanner.clearDensities();
+    literals = new ByteMap<byte[][]>();
+    literals.put(TAGK_BYTES, new byte[][] { TAGV_BYTES, TAGV_B_BYTES });
+  }
+
+  @Test
+  public void planMultiGet() throws Exception {
+    final Plan plan = new QueryPlanner(config).plan(METRIC_BYTES, literals, 2);
+    assertEquals(Strategy.MULTI_GET, plan.getStrategy());
+    assertEquals(1, plan.getMultiGetBucketCount());
+    assertTrue(plan.isMultiGetBucket(0));
+    assertEquals(2, plan.getRowKeys().size());
+    assertEquals(0, plan.getEstimatedScanRows());
+    assertEquals(4, plan.getEstimatedGetRows());
+  }
+
+  @Test
+  public void planMultiGetPermutations() throws Exception {
+    literals.put(TAGK_B_BYTES, new byte[][] { TAGV_BYTES, TAGV_B_BYTES });
+    final Plan plan = new QueryPlanner(config).plan(METRIC_BYTES, literals, 1);
+    assertEquals(Strategy.MULTI_GET, plan.getStrategy());
+    assertEquals(4, plan.getRowKeys().size());
+    for (final ByteMap<byte[][]> row_key : plan.getRowKeys()) {
+      assertEquals(2, row_key.size());
+      assertEquals(1, row_key.get(TAGK_BYTES).length);
+      assertEquals(1, row_key.get(TAGK_B_BYTES).length);
+    }
+  }
+
+  @Test
+  public void planScanLearnedDensity() throws Exception {
+    QueryPlanner.recordRowsPerSpan(METRIC_BYTES, 4, 4);
+    final Plan plan = new QueryPlanner(config).plan(METRIC_BYTES, literals, 4);
+    assertEquals(Strategy.SCAN, plan.getStrategy());
+    assertEquals(0, plan.getMultiGetBucketCount());
+    assertFalse(plan.isMultiGetBucket(0));
+    assertNull(plan.getRowKeys());
+    assertEquals(4, plan.getEstimatedScanRows());
+    assertEquals(0, plan.getEstimatedGetRows());
+  }
+
+  @Test
+  public void planScanOverLimit() throws Exception {
+    config.overrideConfig("tsd.query.multi_get.limit", "1");
+    final Plan plan = new QueryPlanner(config).plan(METRIC_BYTES, literals, 1);
+    assertEquals(Strategy.SCAN, plan.getStrategy());
+    assertNull(plan.getRowKeys());
+  }
+
+  @Test
+  public void planScanOverflowingPermutations() throws Exception {
+    // 2^16 ^ 4 permutations would wrap to 0 with plain multiplication
+    final byte[][] tagvs = new byte[65536][];
+    Arrays.fill(tagvs, TAGV_BYTES);
+    for (int i = 0; i < 4; i++) {
+      literals.put(new byte[] { 0, 1, (byte) i }, tagvs);
+    }
+    final Plan plan = new QueryPlanner(config).plan(METRIC_BYTES, literals, 
+        Long.MAX_VALUE / 2);
+    assertEquals(Strategy.SCAN, plan.getStrategy());
+    assertNull(plan.getRowKeys());
+  }
+  
+  @Test
+  public void saturatedMultiply() throws Exception {
+    assertEquals(0, QueryPlanner.saturatedMultiply(0, Long.MAX_VALUE));
+    assertEquals(42, QueryPlanner.saturatedMultiply(6, 7));
+    assertEquals(Long.MAX_VALUE, 
+        QueryPlanner.saturatedMultiply(1L << 32, 1L << 32));
+    assertEquals(Long.MAX_VALUE, 
+        QueryPlanner.saturatedMultiply(Long.MAX_VALUE, 2));
+  }
+
+  @Test
+  public void planHybridSalted() throws Exception {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+
+    // 3 series in 2 buckets so one bucket has at least 2 (cost 8, scan) and
+    // the other at most 1 (cost 4, get).
+    config.overrideConfig("tsd.query.planner.default_rows_per_span", "8");
+    literals.put(TAGK_BYTES, new byte[][] { TAGV_BYTES, TAGV_B_BYTES,
+        new byte[] { 0, 0, 3 } });
+    final Plan plan = new QueryPlanner(config).plan(METRIC_BYTES, literals, 1);
+    assertEquals(Strategy.HYBRID, plan.getStrategy());
+    assertEquals(1, plan.getMultiGetBucketCount());
+    assertTrue(plan.getRowKeys().size() <= 1);
+    assertEquals(4, plan.getEstimatedScanRows());
+    assertEquals(plan.getRowKeys().size(), plan.getEstimatedGetRows());
+  }
+
+  @Test
+  public void recordRowsPerSpan() throws Exception {
+    final QueryPlanner planner = new QueryPlanner(config);
+    assertEquals(10000, planner.getRowsPerSpan(METRIC_BYTES), 0.0001);
+    QueryPlanner.recordRowsPerSpan(METRIC_BYTES, 100, 1);
+    assertEquals(100, planner.getRowsPerSpan(METRIC_BYTES), 0.0001);
+    QueryPlanner.recordRowsPerSpan(METRIC_BYTES, 500, 1);
+    assertEquals(200, planner.getRowsPerSpan(METRIC_BYTES), 0.0001);
+    QueryPlanner.recordRowsPerSpan(METRIC_BYTES, 500, 0);
+    assertEquals(200, planner.getRowsPerSpan(METRIC_BYTES), 0.0001);
+    assertEquals(10000, planner.getRowsPerSpan(METRIC_B_BYTES), 0.0001);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void planMissingLiterals() throws Exception {
+    literals.put(TAGK_B_BYTES, null);
+    new QueryPlanner(config).plan(METRIC_BYTES, literals, 1);
+  }
+}
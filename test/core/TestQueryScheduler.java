@@ -0,0 +1,333 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.query.QueryLimitOverride;
+import net.opentsdb.stats.QueryStats;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TsdbQuery.class })
+public class TestQueryScheduler extends BaseTsdbTest {
+  private static final long START = 1356998400L;
+  /** Hours a small query spans */
+  private static final long SMALL = START + 3600;
+  /** Hours a large query spans */
+  private static final long LARGE = START + (86400 * 30);
+
+  /** The order queries were started in */
+  private List<String> started;
+  /** The storage deferreds of started queries, by name */
+  private Map<String, Deferred<DataPoints[]>> pending;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.slots", "1");
+    started = new ArrayList<String>();
+    pending = new HashMap<String, Deferred<DataPoints[]>>();
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    assertEquals(0, scheduler.running());
+    assertEquals(0, scheduler.queued());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoSlots() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.slots", "0");
+    new QueryScheduler(tsdb);
+  }
+
+  @Test
+  public void scheduleImmediately() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.slots", "2");
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("a", null, SMALL));
+    scheduler.schedule(query("b", null, SMALL));
+    assertEquals(2, scheduler.running());
+    assertEquals(0, scheduler.queued());
+    assertEquals(2, started.size());
+
+    finish("a");
+    finish("b");
+    assertEquals(0, scheduler.running());
+  }
+
+  @Test
+  public void scheduleQueued() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("a", null, SMALL));
+    final TsdbQuery b = query("b", null, SMALL);
+    final Deferred<DataPoints[]> deferred = scheduler.schedule(b);
+    assertEquals(1, scheduler.running());
+    assertEquals(1, scheduler.queued());
+    verify(b, never()).executeAsync();
+
+    finish("a");
+    assertEquals(1, scheduler.running());
+    assertEquals(0, scheduler.queued());
+    verify(b).executeAsync();
+
+    final DataPoints[] results = new DataPoints[0];
+    pending.get("b").callback(results);
+    assertSame(results, deferred.join());
+    assertEquals(0, scheduler.running());
+  }
+
+  @Test
+  public void scheduleQueuedException() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("a", null, SMALL));
+    final Deferred<DataPoints[]> deferred =
+        scheduler.schedule(query("b", null, SMALL));
+    pending.get("a").callback(new IllegalStateException("Boo!"));
+
+    pending.get("b").callback(new IllegalArgumentException("Boo!"));
+    try {
+      deferred.join();
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    assertEquals(0, scheduler.running());
+  }
+
+  @Test
+  public void schedulePriorityFirst() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("first", null, SMALL));
+    scheduler.schedule(query("large", null, LARGE));
+    scheduler.schedule(query("small", null, SMALL));
+
+    finish("first");
+    finish("small");
+    finish("large");
+    assertEquals("[first, small, large]", started.toString());
+  }
+
+  @Test
+  public void schedulePriorityRatio() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.priority_ratio", "1");
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("first", null, SMALL));
+    scheduler.schedule(query("large", null, LARGE));
+    scheduler.schedule(query("small1", null, SMALL));
+    scheduler.schedule(query("small2", null, SMALL));
+
+    finish("first");
+    finish("small1");
+    finish("large");
+    finish("small2");
+    assertEquals("[first, small1, large, small2]", started.toString());
+  }
+
+  @Test
+  public void scheduleRoundRobinUsers() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("first", null, SMALL));
+    scheduler.schedule(query("a1", "alice", SMALL));
+    scheduler.schedule(query("a2", "alice", SMALL));
+    scheduler.schedule(query("a3", "alice", SMALL));
+    scheduler.schedule(query("b1", "bob", SMALL));
+
+    finish("first");
+    finish("a1");
+    finish("b1");
+    finish("a2");
+    finish("a3");
+    assertEquals("[first, a1, b1, a2, a3]", started.toString());
+  }
+
+  @Test
+  public void scheduleRejected() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.max_queued", "1");
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("a", null, SMALL));
+    scheduler.schedule(query("b", null, SMALL));
+    try {
+      scheduler.schedule(query("c", null, SMALL)).join();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    }
+    assertEquals(1, scheduler.queued());
+  }
+
+  @Test
+  public void scheduleCancelledWhileQueued() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("a", null, SMALL));
+    final TsdbQuery b = query("b", null, SMALL);
+    final Deferred<DataPoints[]> deferred = scheduler.schedule(b);
+    b.getQueryStats().getCancellationToken().cancel(
+        CancellationToken.Reason.KILLED);
+    // dropped from the queue right away
+    assertEquals(0, scheduler.queued());
+    try {
+      deferred.join();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    }
+
+    finish("a");
+    verify(b, never()).executeAsync();
+    assertEquals(0, scheduler.running());
+  }
+
+  @Test
+  public void scheduleDrainsSynchronousQueries() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.max_queued", "10000");
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    scheduler.schedule(query("a", null, SMALL));
+    
+    // queries answered from a cache complete while they're started
+    final TsdbQuery sync = query("sync", null, SMALL);
+    when(sync.executeAsync()).thenAnswer(
+        new Answer<Deferred<DataPoints[]>>() {
+      @Override
+      public Deferred<DataPoints[]> answer(final InvocationOnMock invocation)
+          throws Throwable {
+        return Deferred.fromResult(new DataPoints[0]);
+      }
+    });
+    final List<Deferred<DataPoints[]>> deferreds = 
+        new ArrayList<Deferred<DataPoints[]>>(10000);
+    for (int i = 0; i < 10000; i++) {
+      deferreds.add(scheduler.schedule(sync));
+    }
+    assertEquals(10000, scheduler.queued());
+
+    // would overflow the stack if each release started the next query
+    finish("a");
+    assertEquals(0, scheduler.running());
+    assertEquals(0, scheduler.queued());
+    for (final Deferred<DataPoints[]> deferred : deferreds) {
+      assertEquals(0, deferred.join().length);
+    }
+  }
+
+  @Test
+  public void cost() throws Exception {
+    config.overrideConfig("tsd.query.limits.bytes.default", "1024");
+    config.overrideConfig("tsd.query.limits.data_points.default", "1000");
+    Whitebox.setInternalState(tsdb, "query_limits",
+        new QueryLimitOverride(tsdb));
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    final long bytes = 1024;
+    final long dps = 1000;
+
+    // sub hour ranges cost at least one
+    TsdbQuery query = query("a", null, START + 60);
+    assertEquals(1, scheduler.cost(query));
+
+    query = query("a", null, START + 86400);
+    assertEquals(24, scheduler.cost(query));
+
+    // ms timestamps
+    when(query.getStartTime()).thenReturn(START * 1000);
+    when(query.getEndTime()).thenReturn((START + 7200) * 1000);
+    assertEquals(2, scheduler.cost(query));
+
+    // a raised limit weighs more
+    when(query.getMaxBytes()).thenReturn(bytes * 4);
+    assertEquals(8, scheduler.cost(query));
+    when(query.getMaxDataPoints()).thenReturn(dps * 8);
+    assertEquals(16, scheduler.cost(query));
+
+    // bypassing a limit goes to the normal lane
+    when(query.getMaxBytes()).thenReturn(0L);
+    assertEquals(Long.MAX_VALUE, scheduler.cost(query));
+  }
+
+  @Test
+  public void queueKey() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler(tsdb);
+    assertEquals(QueryScheduler.DEFAULT_KEY, scheduler.queueKey(null));
+    final QueryStats stats = mock(QueryStats.class);
+    assertEquals(QueryScheduler.DEFAULT_KEY, scheduler.queueKey(stats));
+    when(stats.getUser()).thenReturn("alice");
+    assertEquals("alice", scheduler.queueKey(stats));
+
+    final Map<String, String> headers = new HashMap<String, String>();
+    headers.put("X-Team", "ops");
+    when(stats.getRequestHeaders()).thenReturn(headers);
+    assertEquals("alice", scheduler.queueKey(stats));
+
+    config.overrideConfig("tsd.http.header_tag", "x-team");
+    scheduler = new QueryScheduler(tsdb);
+    assertEquals("ops", scheduler.queueKey(stats));
+    headers.clear();
+    assertEquals("alice", scheduler.queueKey(stats));
+  }
+
+  /**
+   * Mocks a sub query that records when it was started and waits for
+   * {@link #finish} to complete.
+   */
+  private TsdbQuery query(final String name, final String user,
+      final long end) {
+    final long bytes = tsdb.getQueryByteLimits().getDefaultByteLimit();
+    final long dps = tsdb.getQueryByteLimits().getDefaultDataPointsLimit();
+    final TsdbQuery query = mock(TsdbQuery.class);
+    final QueryStats stats = mock(QueryStats.class);
+    final CancellationToken token = new CancellationToken();
+    when(stats.getUser()).thenReturn(user);
+    when(stats.getCancellationToken()).thenReturn(token);
+    when(query.getQueryStats()).thenReturn(stats);
+    when(query.getStartTime()).thenReturn(START);
+    when(query.getEndTime()).thenReturn(end);
+    when(query.getMaxBytes()).thenReturn(bytes);
+    when(query.getMaxDataPoints()).thenReturn(dps);
+    when(query.executeAsync()).thenAnswer(new Answer<Deferred<DataPoints[]>>() {
+      @Override
+      public Deferred<DataPoints[]> answer(final InvocationOnMock invocation)
+          throws Throwable {
+        started.add(name);
+        final Deferred<DataPoints[]> deferred = new Deferred<DataPoints[]>();
+        pending.put(name, deferred);
+        return deferred;
+      }
+    });
+    return query;
+  }
+
+  /** Completes the named query which must have been started. */
+  private void finish(final String name) {
+    pending.get(name).callback(new DataPoints[0]);
+  }
+}
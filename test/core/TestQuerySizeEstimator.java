@@ -0,0 +1,105 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import net.opentsdb.core.QuerySizeEstimator.Estimate;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+public class TestQuerySizeEstimator extends BaseTsdbTest {
+
+  @Before
+  public void beforeLocal() throws Exception {
+    QuerySizeEstimator.clearRowSizes();
+  }
+
+  @Test
+  public void estimateNotLearned() throws Exception {
+    assertNull(QuerySizeEstimator.estimate(METRIC_BYTES, 2, 4));
+  }
+
+  @Test
+  public void estimate() throws Exception {
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 6, 6000, 600);
+    final Estimate estimate = QuerySizeEstimator.estimate(METRIC_BYTES, 2, 4);
+    assertEquals(2, estimate.getSeries());
+    assertEquals(8, estimate.getRows());
+    assertEquals(8000, estimate.getBytes());
+    assertEquals(800, estimate.getDataPoints());
+    
+    // other metrics are unaffected
+    assertNull(QuerySizeEstimator.estimate(METRIC_B_BYTES, 2, 4));
+  }
+
+  @Test
+  public void estimateRowsPerSpan() throws Exception {
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 6, 6000, 600);
+    // 1000 series but only half a row per span on average
+    final Estimate estimate = QuerySizeEstimator.estimate(METRIC_BYTES, 1000, 
+        0.5, 4);
+    assertEquals(1000, estimate.getSeries());
+    assertEquals(2, estimate.getRows());
+    assertEquals(2000, estimate.getBytes());
+    assertEquals(200, estimate.getDataPoints());
+    assertNull(QuerySizeEstimator.estimate(METRIC_BYTES, 1000, -1, 4));
+  }
+
+  @Test
+  public void estimateZeroSeries() throws Exception {
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 6, 6000, 600);
+    final Estimate estimate = QuerySizeEstimator.estimate(METRIC_BYTES, 0, 4);
+    assertEquals(0, estimate.getRows());
+    assertEquals(0, estimate.getBytes());
+    assertEquals(0, estimate.getDataPoints());
+  }
+
+  @Test
+  public void estimateUnknownSeries() throws Exception {
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 6, 6000, 600);
+    assertNull(QuerySizeEstimator.estimate(METRIC_BYTES, -1, 4));
+    assertNull(QuerySizeEstimator.estimate(METRIC_BYTES, 2, 0));
+  }
+
+  @Test
+  public void estimateSaturates() throws Exception {
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 1, Long.MAX_VALUE, 1);
+    final Estimate estimate = QuerySizeEstimator.estimate(METRIC_BYTES, 
+        Long.MAX_VALUE, 2);
+    assertEquals(Long.MAX_VALUE, estimate.getRows());
+    assertEquals(Long.MAX_VALUE, estimate.getBytes());
+    assertEquals(Long.MAX_VALUE, estimate.getDataPoints());
+  }
+
+  @Test
+  public void recordRowSizeMovingAverage() throws Exception {
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 10, 1000, 100);
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 10, 5000, 500);
+    // 0.25 * 500 + 0.75 * 100
+    final Estimate estimate = QuerySizeEstimator.estimate(METRIC_BYTES, 1, 1);
+    assertEquals(200, estimate.getBytes());
+    assertEquals(20, estimate.getDataPoints());
+  }
+
+  @Test
+  public void recordRowSizeNoRows() throws Exception {
+    QuerySizeEstimator.recordRowSize(METRIC_BYTES, 0, 1000, 100);
+    assertNull(QuerySizeEstimator.estimate(METRIC_BYTES, 1, 1));
+  }
+}
@@ -14,6 +14,7 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
@@ -21,6 +22,7 @@ import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -29,9 +31,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.uid.UniqueId;
 
 import org.hbase.async.KeyValue;
@@ -40,6 +44,8 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -279,6 +285,26 @@ public class TestSaltScanner extends BaseTsdbTest {
     verify(tag_values, atLeast(1)).getNameAsync(TAGV_B_BYTES);
   }
   
+  @Test
+  public void scanWithResolvedFilter() throws Exception {
+    setupMockScanners(false);
+    filters.add(TagVFilter.Builder().setType("regexp").setFilter("web01")
+        .setTagk(TAGK_STRING).build());
+    filters.get(0).resolveTagkName(tsdb).join();
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters);
+    assertTrue(spans == scanner.scan().joinUninterruptibly());
+    assertEquals(2, spans.size());
+    assertEquals(2, spans.get(KEY_A).size());
+    assertEquals(2, spans.get(KEY_C).size());
+    assertNull(spans.get(KEY_B));
+    
+    // each tag value is resolved once regardless of how many rows share it
+    verify(tag_values, times(1)).getNameAsync(TAGV_BYTES);
+    verify(tag_values, times(1)).getNameAsync(TAGV_B_BYTES);
+    verify(tag_names, never()).getNameAsync(TAGK_BYTES);
+  }
+  
   @Test
   public void scanHBaseScannerFromDeferredA() throws Exception {
     setupMockScanners(false);
@@ -446,6 +472,93 @@ public class TestSaltScanner extends BaseTsdbTest {
     config.overrideConfig("tsd.core.scanner.max_bytes", "0");
   }
   
+  @Test
+  public void scanSharedLimits() throws Exception {
+    setupMockScanners(false);
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong dps = new AtomicLong();
+    
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, null, false, null, null, 0, null, 0, 0);
+    scanner.shareLimits(bytes, dps);
+    scanner.scan().joinUninterruptibly();
+    assertTrue(bytes.get() > 0);
+    assertTrue(dps.get() > 0);
+  }
+  
+  @Test
+  public void scanSharedLimitsExhausted() throws Exception {
+    setupMockScanners(false);
+    // another fetch for the query already used up the data point budget
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, null, false, null, null, 0, null, 0, 10);
+    scanner.shareLimits(new AtomicLong(), new AtomicLong(10));
+    try {
+      scanner.scan().joinUninterruptibly();
+      fail("Excpected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void shareLimitsNull() throws Exception {
+    setupMockScanners(false);
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, null, false, null, null, 0, null, 0, 0);
+    scanner.shareLimits(null, new AtomicLong());
+  }
+  
+  @Test
+  public void scanCancelled() throws Exception {
+    setupMockScanners(false);
+    final CancellationToken token = new CancellationToken();
+    final QueryStats stats = mock(QueryStats.class);
+    when(stats.getCancellationToken()).thenReturn(token);
+    token.cancel(CancellationToken.Reason.KILLED);
+    
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, null, false, null, stats, 0, null, 0, 0);
+    try {
+      scanner.scan().joinUninterruptibly();
+      fail("Excpected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    }
+    verify(scanner_a, never()).nextRows();
+    verify(scanner_a).close();
+    assertTrue(spans.isEmpty());
+  }
+  
+  @Test
+  public void scanCancelledBetweenBatches() throws Exception {
+    setupMockScanners(false);
+    final CancellationToken token = new CancellationToken();
+    final QueryStats stats = mock(QueryStats.class);
+    when(stats.getCancellationToken()).thenReturn(token);
+    when(scanner_a.nextRows()).thenAnswer(
+        new Answer<Deferred<ArrayList<ArrayList<KeyValue>>>>() {
+      @Override
+      public Deferred<ArrayList<ArrayList<KeyValue>>> answer(
+          final InvocationOnMock invocation) throws Throwable {
+        token.cancel(CancellationToken.Reason.TIMEOUT);
+        return Deferred.fromResult(kvs_a.get(0));
+      }
+    });
+    
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, null, false, null, stats, 0, null, 0, 0);
+    try {
+      scanner.scan().joinUninterruptibly();
+      fail("Excpected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_TIMEOUT, e.getStatus());
+    }
+    verify(scanner_a, times(1)).nextRows();
+    verify(scanner_a).close();
+    assertTrue(spans.isEmpty());
+  }
+  
   
   /**
    * Sets up a pair of scanners with either a list of values or no data
@@ -48,6 +48,7 @@ import java.util.List;
 import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
@@ -218,6 +219,34 @@ public class TestSaltScannerHistogram extends BaseTsdbTest {
     assertEquals(0, span.getAnnotations().size());
   }
 
+  @Test
+  public void scanLazyDecode() throws Exception {
+    setupMockScanners(false);
+
+    final HistogramDecodeStats decode_stats = 
+        new HistogramDecodeStats(query_stats, 0);
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        null, null, false, null, query_stats, 0, spans, 0, 0);
+    scanner.setLazyHistogramDecode(decode_stats);
+    assertTrue(spans == scanner.scanHistogram().joinUninterruptibly());
+    assertEquals(3, spans.size());
+
+    final HistogramSpan span = spans.get(key_a);
+    assertEquals(2, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1357002496000L, span.timestamp(1));
+    final HistogramDataPoint dp = span.iterator().next().clone();
+    assertTrue(dp instanceof EncodedHistogramDataPoint);
+    assertFalse(((EncodedHistogramDataPoint) dp).isDecoded());
+    assertEquals(0, decode_stats.getDecodes());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void setLazyHistogramDecodeNull() throws Exception {
+    new SaltScanner(tsdb, METRIC_BYTES, scanners, null, null, false, null, 
+        query_stats, 0, spans, 0, 0).setLazyHistogramDecode(null);
+  }
+
   @Test
   public void scanWithFilter() throws Exception {
     setupMockScanners(false); 
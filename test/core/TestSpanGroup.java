@@ -100,6 +100,26 @@ public final class TestSpanGroup {
     assertEquals(0, uids_read.size());
   }
   
+  @Test
+  public void getTagUidsExcluded() throws Exception {
+    final ByteMap<byte[]> uids = new ByteMap<byte[]>();
+    uids.put(new byte[] { 0, 0, 1 }, new byte[] { 0, 0, 2 });
+    uids.put(new byte[] { 0, 0, 42 }, new byte[] { 0, 0, 4 });
+    final Span span = mock(Span.class);
+    when(span.getTagUids()).thenReturn(uids);
+    
+    final SpanGroup group = PowerMockito.spy(new SpanGroup(tsdb, start_ts, 
+        end_ts, null, false, Aggregators.SUM, 0, null));
+    final ArrayList<Span> spans = Whitebox.getInternalState(group, "spans");
+    spans.add(span);
+    group.excludeTagk(new byte[] { 0, 0, 42 });
+    
+    final ByteMap<byte[]> uids_read = group.getTagUids();
+    assertEquals(1, uids_read.size());
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uids_read.firstKey());
+    assertEquals(0, group.getAggregatedTagUids().size());
+  }
+  
   @Test
   public void getTagUidsNoSpans() throws Exception {
     final SpanGroup group = new SpanGroup(tsdb, start_ts, end_ts, null, 
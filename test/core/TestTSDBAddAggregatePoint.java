@@ -19,6 +19,7 @@ import net.opentsdb.rollup.NoSuchRollupForIntervalException;
 import net.opentsdb.rollup.RollupConfig;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.rollup.RollupWriter;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueName;
 
@@ -929,4 +930,31 @@ public class TestTSDBAddAggregatePoint extends BaseTsdbTest {
         row, FAMILY, qualifier);
     assertNull(value);
   }
+  
+  @Test
+  public void rollupWriterRecordsAfterPut() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    Whitebox.setInternalState(tsdb, "rollup_writer", writer);
+    // the writer drops points for windows that closed long ago
+    final long now = System.currentTimeMillis() / 1000;
+    
+    tsdb.addPoint(METRIC_STRING, now, 42, tags).joinUninterruptibly();
+    // one window for each of the 10m, 1h and 1d intervals
+    assertEquals(3, writer.openWindows());
+  }
+  
+  @Test
+  public void rollupWriterSkipsFailedPut() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    Whitebox.setInternalState(tsdb, "rollup_writer", writer);
+    final long now = System.currentTimeMillis() / 1000;
+    storage.throwException(getRowKey(METRIC_STRING, (int) (now - (now % 3600)), 
+        TAGK_STRING, TAGV_STRING), new UnitTestException("Boo!"));
+    
+    try {
+      tsdb.addPoint(METRIC_STRING, now, 42, tags).joinUninterruptibly();
+      fail("Expected an UnitTestException");
+    } catch (UnitTestException e) { }
+    assertEquals(0, writer.openWindows());
+  }
 }
@@ -0,0 +1,197 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+public class TestTagIndex extends BaseTsdbTest {
+  private static final byte[] INDEX_TABLE =
+      "tsdb-tagidx".getBytes(MockBase.ASCII());
+  private static final byte[] TAGV_C_BYTES = new byte[] { 0, 0, 3 };
+  private static final long BASE_TIME = 1356998400L;
+
+  private TagIndex index;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    final List<byte[]> families = new ArrayList<byte[]>(1);
+    families.add(TagIndex.FAMILY);
+    storage.addTable(INDEX_TABLE, families);
+    index = new TagIndex(tsdb);
+  }
+
+  @Test
+  public void ctorBadBucket() throws Exception {
+    config.overrideConfig("tsd.core.tag_index.bucket_seconds", "1800");
+    try {
+      new TagIndex(tsdb);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    config.overrideConfig("tsd.core.tag_index.bucket_seconds", "5400");
+    try {
+      new TagIndex(tsdb);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void index() throws Exception {
+    assertNull(index.index(rowKey(BASE_TIME + 3600, TAGK_BYTES, TAGV_BYTES,
+        TAGK_B_BYTES, TAGV_B_BYTES)).join());
+
+    final byte[] tags = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 3, 0, 0, 2 };
+    assertNotNull(storage.getColumn(INDEX_TABLE,
+        TagIndex.rowKey(METRIC_BYTES, BASE_TIME, TAGK_BYTES, TAGV_BYTES),
+        TagIndex.FAMILY, tags));
+    assertNotNull(storage.getColumn(INDEX_TABLE,
+        TagIndex.rowKey(METRIC_BYTES, BASE_TIME, TAGK_B_BYTES, TAGV_B_BYTES),
+        TagIndex.FAMILY, tags));
+    verify(client, times(2)).put(any(PutRequest.class));
+
+    // same series, same bucket
+    index.index(rowKey(BASE_TIME + 7200, TAGK_BYTES, TAGV_BYTES,
+        TAGK_B_BYTES, TAGV_B_BYTES)).join();
+    verify(client, times(2)).put(any(PutRequest.class));
+
+    // next bucket
+    index.index(rowKey(BASE_TIME + 86400, TAGK_BYTES, TAGV_BYTES,
+        TAGK_B_BYTES, TAGV_B_BYTES)).join();
+    verify(client, times(4)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void addPointIndexed() throws Exception {
+    config.overrideConfig("tsd.core.tag_index.enable", "true");
+    Whitebox.setInternalState(tsdb, "tag_index", new TagIndex(tsdb));
+    tsdb.addPoint(METRIC_STRING, BASE_TIME, 42, tags).join();
+
+    assertNotNull(storage.getColumn(INDEX_TABLE,
+        TagIndex.rowKey(METRIC_BYTES, BASE_TIME, TAGK_BYTES, TAGV_BYTES),
+        TagIndex.FAMILY, new byte[] { 0, 0, 1, 0, 0, 1 }));
+  }
+
+  @Test
+  public void addPointIndexFailure() throws Exception {
+    config.overrideConfig("tsd.core.tag_index.enable", "true");
+    Whitebox.setInternalState(tsdb, "tag_index", new TagIndex(tsdb));
+    storage.throwException(
+        TagIndex.rowKey(METRIC_BYTES, BASE_TIME, TAGK_BYTES, TAGV_BYTES), 
+        new UnitTestException("Boo!"));
+    try {
+      tsdb.addPoint(METRIC_STRING, BASE_TIME, 42, tags).join();
+      fail("Expected an UnitTestException");
+    } catch (UnitTestException e) { }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void indexBadRowKey() throws Exception {
+    index.index(new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1 });
+  }
+
+  @Test
+  public void lookup() throws Exception {
+    index.index(rowKey(BASE_TIME, TAGK_BYTES, TAGV_BYTES,
+        TAGK_B_BYTES, TAGV_BYTES)).join();
+    index.index(rowKey(BASE_TIME, TAGK_BYTES, TAGV_B_BYTES,
+        TAGK_B_BYTES, TAGV_BYTES)).join();
+    index.index(rowKey(BASE_TIME + 86400, TAGK_BYTES, TAGV_C_BYTES,
+        TAGK_B_BYTES, TAGV_B_BYTES)).join();
+    index.index(rowKey(BASE_TIME, TAGK_BYTES, TAGV_C_BYTES)).join();
+
+    // union on one tag key
+    final ByteMap<byte[][]> literals = new ByteMap<byte[][]>();
+    literals.put(TAGK_BYTES, new byte[][] { TAGV_BYTES, TAGV_C_BYTES });
+    List<byte[]> series = index.lookup(METRIC_BYTES, literals, BASE_TIME,
+        BASE_TIME + 86400 + 3600).join();
+    assertEquals(3, series.size());
+
+    // intersect across tag keys
+    literals.put(TAGK_B_BYTES, new byte[][] { TAGV_BYTES });
+    series = index.lookup(METRIC_BYTES, literals, BASE_TIME,
+        BASE_TIME + 86400 + 3600).join();
+    assertEquals(1, series.size());
+    assertArrayEquals(new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 3, 0, 0, 1 },
+        series.get(0));
+
+    // time range excludes the second bucket
+    literals.remove(TAGK_B_BYTES);
+    series = index.lookup(METRIC_BYTES, literals, BASE_TIME,
+        BASE_TIME + 3600).join();
+    assertEquals(2, series.size());
+
+    // other metric
+    series = index.lookup(METRIC_B_BYTES, literals, BASE_TIME,
+        BASE_TIME + 3600).join();
+    assertTrue(series.isEmpty());
+  }
+
+  @Test
+  public void lookupOverLimit() throws Exception {
+    config.overrideConfig("tsd.query.multi_get.limit", "1");
+    index = new TagIndex(tsdb);
+    index.index(rowKey(BASE_TIME, TAGK_BYTES, TAGV_BYTES)).join();
+    index.index(rowKey(BASE_TIME, TAGK_BYTES, TAGV_B_BYTES)).join();
+
+    final ByteMap<byte[][]> literals = new ByteMap<byte[][]>();
+    literals.put(TAGK_BYTES, new byte[][] { TAGV_BYTES });
+    assertEquals(1, index.lookup(METRIC_BYTES, literals, BASE_TIME,
+        BASE_TIME + 3600).join().size());
+    literals.put(TAGK_BYTES, new byte[][] { TAGV_BYTES, TAGV_B_BYTES });
+    assertNull(index.lookup(METRIC_BYTES, literals, BASE_TIME,
+        BASE_TIME + 3600).join());
+  }
+
+  @Test
+  public void tagsToMap() throws Exception {
+    final ByteMap<byte[][]> map = TagIndex.tagsToMap(
+        new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 3, 0, 0, 2 });
+    assertEquals(2, map.size());
+    assertArrayEquals(TAGV_BYTES, map.get(TAGK_BYTES)[0]);
+    assertArrayEquals(TAGV_B_BYTES, map.get(TAGK_B_BYTES)[0]);
+  }
+
+  /** @return A data table row key for the metric with the given tag pairs. */
+  private static byte[] rowKey(final long base_time, final byte[]... tags) {
+    final byte[] key = new byte[3 + 4 + (tags.length * 3)];
+    System.arraycopy(METRIC_BYTES, 0, key, 0, 3);
+    Bytes.setInt(key, (int) base_time, 3);
+    for (int i = 0; i < tags.length; i++) {
+      System.arraycopy(tags[i], 0, key, 7 + (i * 3), 3);
+    }
+    return key;
+  }
+}
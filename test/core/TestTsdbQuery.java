@@ -14,20 +14,29 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import net.opentsdb.core.TsdbQuery.ForTesting;
 import net.opentsdb.query.QueryLimitOverride;
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVLiteralOrFilter;
+import net.opentsdb.query.filter.TagVNotLiteralOrFilter;
 import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.rollup.GroupByWriter;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.utils.DateTime;
@@ -40,6 +49,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
+import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
 /**
@@ -49,7 +59,7 @@ import com.stumbleupon.async.DeferredGroupException;
  * {@link TestTsdbQueryQueries}
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ DateTime.class })
+@PrepareForTest({ DateTime.class, GroupByWriter.class })
 public final class TestTsdbQuery extends BaseTsdbTest {
   private TsdbQuery query = null;
 
@@ -334,6 +344,115 @@ public final class TestTsdbQuery extends BaseTsdbTest {
     assertNotNull(ForTesting.getRateOptions(query));
   }
 
+  @Test
+  public void configureFromQueryGroupByPreAggregate() throws Exception {
+    setDataPointStorage();
+    setupGroupByTagValues();
+    Whitebox.setInternalState(tsdb, "agg_tag_key", "_aggregate");
+    final GroupByWriter writer = PowerMockito.mock(GroupByWriter.class);
+    when(writer.windowWidth()).thenReturn(60);
+    when(writer.preAggregateFor(anyString(), anyString(), anyList(), 
+        anyLong(), anyLong())).thenReturn("SUM");
+    when(writer.tagKeysFor(METRIC_STRING, "sum"))
+      .thenReturn(Arrays.asList(TAGK_STRING, TAGK_B_STRING));
+    Whitebox.setInternalState(tsdb, "groupby_writer", writer);
+    final TSQuery ts_query = getTSQuery();
+    ts_query.getQueries().get(0).setDownsample("1m-avg");
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+
+    // the rule's other tag key and the aggregate tag are added and only 
+    // series with exactly those tags are matched
+    assertEquals(3, ForTesting.getFilters(query).size());
+    assertEquals(3, ForTesting.getRowKeyLiterals(query).size());
+    assertNull(ForTesting.getRowKeyLiterals(query).get(TAGK_B_BYTES));
+    assertArrayEquals(new byte[] { 0, 0, 43 }, 
+        ForTesting.getRowKeyLiterals(query).get(new byte[] { 0, 0, 42 })[0]);
+    assertEquals(1, ForTesting.getGroupBys(query).size());
+    assertTrue((Boolean) Whitebox.getInternalState(query, "explicit_tags"));
+    assertTrue((Boolean) Whitebox.getInternalState(query, "pre_aggregate"));
+  }
+
+  @Test
+  public void configureFromQueryGroupByPreAggregateNoRule() throws Exception {
+    setDataPointStorage();
+    setupGroupByTagValues();
+    Whitebox.setInternalState(tsdb, "agg_tag_key", "_aggregate");
+    final GroupByWriter writer = PowerMockito.mock(GroupByWriter.class);
+    when(writer.windowWidth()).thenReturn(60);
+    Whitebox.setInternalState(tsdb, "groupby_writer", writer);
+    final TSQuery ts_query = getTSQuery();
+    ts_query.getQueries().get(0).setDownsample("1m-avg");
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+
+    assertEquals(1, ForTesting.getFilters(query).size());
+    assertFalse((Boolean) Whitebox.getInternalState(query, "explicit_tags"));
+    assertFalse((Boolean) Whitebox.getInternalState(query, "pre_aggregate"));
+  }
+
+  @Test
+  public void configureFromQueryWithExpandedFilter() throws Exception {
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    when(tag_values.suggestAsync("web", 4097)).thenReturn(
+        Deferred.fromResult(Arrays.asList(TAGV_STRING, TAGV_B_STRING)));
+    setDataPointStorage();
+    final TSQuery ts_query = getTSQuery();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(1);
+    filters.add(new TagVWildcardFilter("host", "web*"));
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+
+    assertEquals(1, ForTesting.getRowKeyLiterals(query).size());
+    assertEquals(2, ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES).length);
+    assertFalse(ForTesting.getFilters(query).get(0).postScan());
+  }
+  
+  @Test
+  public void configureFromQueryWithExpandedAndLiteralFilter() throws Exception {
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    when(tag_values.suggestAsync("web", 4097)).thenReturn(
+        Deferred.fromResult(Arrays.asList(TAGV_STRING, TAGV_B_STRING)));
+    setDataPointStorage();
+    final TSQuery ts_query = getTSQuery();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(2);
+    filters.add(new TagVWildcardFilter("host", "web*"));
+    filters.add(new TagVLiteralOrFilter("host", TAGV_STRING));
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+
+    // the row key matches either so both must run after the scan
+    assertEquals(2, ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES).length);
+    assertTrue(ForTesting.getFilters(query).get(0).postScan());
+    assertTrue(ForTesting.getFilters(query).get(1).postScan());
+  }
+
+  @Test
+  public void configureFromQueryWithNotLiteralFilter() throws Exception {
+    setDataPointStorage();
+    final TSQuery ts_query = getTSQuery();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(2);
+    filters.add(new TagVNotLiteralOrFilter("host", "web01|web03"));
+    filters.add(new TagVLiteralOrFilter("owner", TAGV_B_STRING));
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+
+    assertNull(ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES));
+    assertEquals(1, ForTesting.getRowKeyExclusions(query).size());
+    assertArrayEquals(TAGV_BYTES, 
+        ForTesting.getRowKeyExclusions(query).get(TAGK_BYTES)[0]);
+    // the values are skipped on the scan but still checked on UIDs after
+    assertTrue(ForTesting.getFilters(query).get(0).postScan());
+  }
+  
   @Test
   public void configureFromQueryWithGroupByAndRegularFilters() throws Exception {
     setDataPointStorage();
@@ -17,11 +17,17 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 import java.util.HashMap;
 
 import net.opentsdb.utils.DateTime;
 
+import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
 import org.junit.Before;
 import org.junit.Test;
@@ -854,6 +860,69 @@ public class TestTsdbQueryDownsample extends BaseTsdbTest {
       });
   }
 
+  @Test
+  public void runLongSingleTSDownsamplePushdown() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final InProcessDownsamplePushdown pushdown =
+        spy(new InProcessDownsamplePushdown());
+    Whitebox.setInternalState(tsdb, "downsample_pushdown", pushdown);
+
+    // a day spans three rows so the partial counts are summed
+    DataPoints[] dps = runDownsample(86400000, Aggregators.COUNT);
+    assertEquals(1, dps[0].size());
+    assertEquals(1356998400000L, dps[0].timestamp(0));
+    assertEquals(300, dps[0].doubleValue(0), 0.00001);
+
+    dps = runDownsample(7200000, Aggregators.MAX);
+    assertEquals(2, dps[0].size());
+    assertEquals(239, dps[0].doubleValue(0), 0.00001);
+    assertEquals(300, dps[0].doubleValue(1), 0.00001);
+    verify(pushdown, atLeastOnce()).reduceRow(any(KeyValue.class),
+        any(DownsamplingSpecification.class));
+  }
+
+  @Test
+  public void runLongSingleTSDownsamplePushdownMatches() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final long[] intervals = { 60000, 900000, 7200000, 86400000 };
+    final Aggregator[] functions = { Aggregators.SUM, Aggregators.COUNT,
+        Aggregators.MIN, Aggregators.MAX, Aggregators.AVG };
+    for (final long interval : intervals) {
+      for (final Aggregator function : functions) {
+        Whitebox.setInternalState(tsdb, "downsample_pushdown",
+            (DownsamplePushdown) null);
+        final DataPoints[] expected = runDownsample(interval, function);
+        Whitebox.setInternalState(tsdb, "downsample_pushdown",
+            new InProcessDownsamplePushdown());
+        final DataPoints[] dps = runDownsample(interval, function);
+        assertEquals(expected[0].size(), dps[0].size());
+        for (int i = 0; i < dps[0].size(); i++) {
+          assertEquals(expected[0].timestamp(i), dps[0].timestamp(i));
+          assertEquals(expected[0].doubleValue(i), dps[0].doubleValue(i),
+              0.00001);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void runLongSingleTSDownsamplePushdownNotSupported()
+      throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final InProcessDownsamplePushdown pushdown =
+        spy(new InProcessDownsamplePushdown());
+    Whitebox.setInternalState(tsdb, "downsample_pushdown", pushdown);
+
+    // averages over multiple rows and deviations stay in the TSD
+    DataPoints[] dps = runDownsample(7200000, Aggregators.AVG);
+    assertEquals(2, dps[0].size());
+    assertEquals(120, dps[0].doubleValue(0), 0.00001);
+    dps = runDownsample(60000, Aggregators.DEV);
+    assertEquals(151, dps[0].size());
+    verify(pushdown, never()).reduceRow(any(KeyValue.class),
+        any(DownsamplingSpecification.class));
+  }
+
   /**
    * Precondition: the time series have been stored.
    */
@@ -930,4 +999,17 @@ public class TestTsdbQueryDownsample extends BaseTsdbTest {
     assertEquals(expected_end_time,
       TsdbQuery.ForTesting.getScanEndTimeSeconds(query));
   }
+
+  /** Runs a fresh sum query over the test series with the downsampler */
+  private DataPoints[] runDownsample(final long interval,
+      final Aggregator function) throws Exception {
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(interval, function);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    return dps;
+  }
 }
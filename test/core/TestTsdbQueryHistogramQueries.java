@@ -16,12 +16,15 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -36,6 +39,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
 import com.google.common.collect.Maps;
+import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
@@ -43,7 +47,7 @@ import net.opentsdb.utils.Config;
 import net.opentsdb.utils.Threads;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({TSDB.class, TsdbQuery.class })
+@PrepareForTest({TSDB.class, TsdbQuery.class, QueryScheduler.class })
 public class TestTsdbQueryHistogramQueries extends BaseTsdbTest {
   protected TsdbQuery query = null;
 
@@ -140,6 +144,25 @@ public class TestTsdbQueryHistogramQueries extends BaseTsdbTest {
     assertEquals(300, dps[0].aggregatedSize());
   } // end runSingleTsMsSinglePercentile()
 
+  @Test
+  public void runHistogramScheduled() throws Exception {
+    this.storeTestHistogramTimeSeriesMs();
+    final QueryScheduler scheduler = PowerMockito.mock(QueryScheduler.class);
+    final DataPoints[] results = new DataPoints[0];
+    when(scheduler.schedule(query)).thenReturn(
+        Deferred.<DataPoints[]>fromResult(results));
+    Whitebox.setInternalState(tsdb, "query_scheduler", scheduler);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("msg.end2end.latency", tags, Aggregators.SUM, false);
+    query.setPercentiles(Arrays.asList(0.98F));
+    
+    assertSame(results, query.runHistogram());
+    verify(scheduler).schedule(query);
+  }
+  
   @Test
   public void runSingleTsMsDoulePercentile() throws Exception {
     this.storeTestHistogramTimeSeriesMs();
@@ -13,6 +13,7 @@
 package net.opentsdb.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -43,6 +44,8 @@ import org.powermock.reflect.Whitebox;
 
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.meta.CardinalityEstimator;
+import net.opentsdb.meta.TSMeta;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.storage.MockBase.MockScanner;
 import net.opentsdb.uid.NoSuchUniqueId;
@@ -1693,4 +1696,345 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     }
   }
 
+  @Test
+  public void filterExplicitTagsPlannedMultiGet() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.query.planner.enable", "true");
+    QueryPlanner.clearDensities();
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    // set by sub queries
+    Whitebox.setInternalState(query, "override_multi_get", true);
+
+    final DataPoints[] dps = query.run();
+
+    assertEquals(QueryPlanner.Strategy.MULTI_GET, 
+        TsdbQuery.ForTesting.getQueryPlan(query).getStrategy());
+    assertNotNull(dps);
+    assertEquals(1, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+    assertTrue(storage.getScanners().isEmpty());
+  }
+
+  @Test
+  public void filterExplicitTagsPlannedScan() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.query.planner.enable", "true");
+    QueryPlanner.clearDensities();
+    // a sparse metric is cheaper to scan than to get
+    QueryPlanner.recordRowsPerSpan(METRIC_BYTES, 1, 1);
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    // set by sub queries
+    Whitebox.setInternalState(query, "override_multi_get", true);
+
+    final DataPoints[] dps = query.run();
+
+    // when salted, the buckets without candidates are skipped so only the
+    // candidate's bucket is scanned
+    assertEquals(Const.SALT_WIDTH() > 0 ? QueryPlanner.Strategy.HYBRID : 
+        QueryPlanner.Strategy.SCAN, 
+        TsdbQuery.ForTesting.getQueryPlan(query).getStrategy());
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].aggregatedSize());
+    assertEquals(1, storage.getScanners().size());
+  }
+
+  @Test
+  public void filterTagIndex() throws Exception {
+    storeIndexedTimeSeries();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+
+    assertTrue(TsdbQuery.ForTesting.usedTagIndex(query));
+    assertEquals(1, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals(300, dps[0].aggregatedSize());
+    assertTrue(storage.getScanners().isEmpty());
+  }
+
+  @Test
+  public void filterTagIndexNoMatch() throws Exception {
+    storeIndexedTimeSeries();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query = new TsdbQuery(tsdb);
+    // before the data was written
+    query.setStartTime(1356825600);
+    query.setEndTime(1356908400);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+
+    assertTrue(TsdbQuery.ForTesting.usedTagIndex(query));
+    assertEquals(0, dps.length);
+    assertTrue(storage.getScanners().isEmpty());
+  }
+
+  @Test
+  public void filterTagIndexSkipsPreAggregate() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.query.tag_index.enable", "true");
+    Whitebox.setInternalState(tsdb, "tag_index", new TagIndex(tsdb));
+    storeLongTimeSeriesSeconds(false, false);
+    storage.addTable("tsdb-agg".getBytes(), 
+        Arrays.asList("t".getBytes(MockBase.ASCII())));
+    setupGroupByTagValues();
+    Whitebox.setInternalState(tsdb, "agg_tag_key", 
+        config.getString("tsd.rollups.agg_tag_key"));
+    Whitebox.setInternalState(tsdb, "raw_agg_tag_value", 
+        config.getString("tsd.rollups.raw_agg_tag_value"));
+    Whitebox.setInternalState(tsdb, "default_interval",
+        RollupInterval.builder()
+        .setTable("tsdb")
+        .setPreAggregationTable("tsdb-agg")
+        .setInterval("1m")
+        .setRowSpan("1h")
+        .build());
+    tsdb.addAggregatePoint(METRIC_STRING, 1356998400L, 42L, tags, true, null, 
+        null, "SUM");
+    
+    tags.put(config.getString("tsd.rollups.agg_tag_key"), "SUM");
+    TSQuery ts_query = new TSQuery();
+    ts_query.setStart("1356998400");
+    ts_query.setEnd("1357041600");
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setTags(new HashMap<String, String>(tags));
+    sub.setAggregator("sum");
+    ts_query.setQueries(Arrays.asList(sub));
+    ts_query.validateAndSetQuery();
+    query.configureFromQuery(ts_query, 0);
+
+    final DataPoints[] dps = query.run();
+    // the pre-aggregate isn't in the index so we have to scan for it
+    assertFalse(TsdbQuery.ForTesting.usedTagIndex(query));
+    assertEquals(1, dps.length);
+    assertEquals(TAGV_STRING, dps[0].getTags().get(TAGK_STRING));
+    assertEquals(1, storage.getScanners().size());
+  }
+
+  /** Writes two series of the same metric with the tag index enabled. */
+  private void storeIndexedTimeSeries() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.core.tag_index.enable", "true");
+    tsdb.getConfig().overrideConfig("tsd.query.tag_index.enable", "true");
+    Whitebox.setInternalState(tsdb, "tag_index", new TagIndex(tsdb));
+    setDataPointStorage();
+    storage.addTable("tsdb-tagidx".getBytes(MockBase.ASCII()), 
+        Arrays.asList(TagIndex.FAMILY));
+    
+    final HashMap<String, String> tags_local = new HashMap<String, String>(1);
+    long timestamp = 1356998400;
+    for (int i = 1; i <= 300; i++) {
+      tags_local.put(TAGK_STRING, TAGV_STRING);
+      tsdb.addPoint(METRIC_STRING, timestamp += 30, i, tags_local)
+        .joinUninterruptibly();
+      tags_local.put(TAGK_STRING, TAGV_B_STRING);
+      tsdb.addPoint(METRIC_STRING, timestamp, i, tags_local)
+        .joinUninterruptibly();
+    }
+  }
+
+  @Test
+  public void seriesLimitEstimated() throws Exception {
+    storeEstimatedTimeSeries();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void seriesLimitExceededAdvisory() throws Exception {
+    storeEstimatedTimeSeries();
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", new HashMap<String, String>(0), 
+        Aggregators.SUM, false);
+
+    // the sketches aren't time ranged so the estimate is only logged
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].aggregatedSize());
+    assertFalse(storage.getScanners().isEmpty());
+  }
+
+  @Test
+  public void seriesLimitTSUIDs() throws Exception {
+    storeEstimatedTimeSeries();
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    final List<String> tsuids = new ArrayList<String>(1);
+    tsuids.add("000001000001000001");
+    query.setTimeSeries(tsuids, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].aggregatedSize());
+    
+    tsuids.add("000001000001000002");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(tsuids, Aggregators.SUM, false);
+    try {
+      query.run();
+      fail("Expected a QueryException");
+    } catch (QueryException e) { }
+  }
+
+  /** Writes two series of the same metric with a series limit of one. */
+  private void storeEstimatedTimeSeries() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.core.cardinality.enable", "true");
+    tsdb.getConfig().overrideConfig("tsd.query.cardinality.enable", "true");
+    Whitebox.setInternalState(tsdb, "cardinality", 
+        new CardinalityEstimator(tsdb));
+    Whitebox.setInternalState(tsdb.getQueryByteLimits(), 
+        "default_series_limit", 1L);
+    setDataPointStorage();
+    storage.addTable("tsdb-meta".getBytes(MockBase.ASCII()), 
+        Arrays.asList(TSMeta.FAMILY));
+    
+    final HashMap<String, String> tags_local = new HashMap<String, String>(1);
+    long timestamp = 1356998400;
+    for (int i = 1; i <= 300; i++) {
+      tags_local.put(TAGK_STRING, TAGV_STRING);
+      tsdb.addPoint(METRIC_STRING, timestamp += 30, i, tags_local)
+        .joinUninterruptibly();
+      tags_local.put(TAGK_STRING, TAGV_B_STRING);
+      tsdb.addPoint(METRIC_STRING, timestamp, i, tags_local)
+        .joinUninterruptibly();
+    }
+  }
+
+  @Test
+  public void sizeEstimateExceeded() throws Exception {
+    storeSizeEstimateTimeSeries();
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    Whitebox.setInternalState(query, "max_data_points", 10L);
+    final int scanners = storage.getScanners().size();
+
+    try {
+      query.run();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertTrue(e.getMessage().contains("estimated to fetch"));
+    }
+    assertEquals(scanners, storage.getScanners().size());
+  }
+
+  @Test
+  public void sizeEstimateAllowed() throws Exception {
+    storeSizeEstimateTimeSeries();
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    Whitebox.setInternalState(query, "max_data_points", 100000L);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void sizeEstimateTSUIDs() throws Exception {
+    storeSizeEstimateTimeSeries();
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    final List<String> tsuids = new ArrayList<String>(1);
+    tsuids.add("000001000001000001");
+    query.setTimeSeries(tsuids, Aggregators.SUM, false);
+    Whitebox.setInternalState(query, "max_data_points", 10L);
+    final int scanners = storage.getScanners().size();
+
+    try {
+      query.run();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertTrue(e.getMessage().contains("estimated to fetch"));
+    }
+    assertEquals(scanners, storage.getScanners().size());
+  }
+
+  @Test
+  public void sizeEstimateShortRangeHighChurn() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.query.planner.enable", "true");
+    QueryPlanner.clearDensities();
+    storeSizeEstimateTimeSeries();
+    
+    // lots of series that have come and gone over time
+    tsdb.getConfig().overrideConfig("tsd.query.cardinality.enable", "true");
+    storage.addTable("tsdb-meta".getBytes(MockBase.ASCII()), 
+        Arrays.asList(TSMeta.FAMILY));
+    final CardinalityEstimator cardinality = new CardinalityEstimator(tsdb);
+    Whitebox.setInternalState(tsdb, "cardinality", cardinality);
+    for (int i = 0; i < 1000; i++) {
+      cardinality.record(getRowKey(METRIC_BYTES, 1356998400, TAGK_BYTES, 
+          new byte[] { 1, (byte) (i >> 8), (byte) i }));
+    }
+    
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357002000);
+    query.setTimeSeries(METRIC_STRING, new HashMap<String, String>(0), 
+        Aggregators.SUM, false);
+    Whitebox.setInternalState(query, "max_data_points", 1000L);
+    
+    // only the series with rows in the range count towards the estimate
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    QueryPlanner.clearDensities();
+  }
+
+  /** Writes two series and runs an unfiltered query to learn the row size. */
+  private void storeSizeEstimateTimeSeries() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    QuerySizeEstimator.clearRowSizes();
+    tsdb.getConfig().overrideConfig("tsd.query.limits.estimate.enable", 
+        "true");
+    
+    final TsdbQuery learn = new TsdbQuery(tsdb);
+    learn.setStartTime(1356998400);
+    learn.setEndTime(1357041600);
+    learn.setTimeSeries(METRIC_STRING, new HashMap<String, String>(0), 
+        Aggregators.SUM, false);
+    assertEquals(1, learn.run().length);
+  }
+
 }
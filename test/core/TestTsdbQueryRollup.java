@@ -28,9 +28,11 @@ import java.util.List;
 import net.opentsdb.rollup.RollupConfig;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.storage.MockBase;
+import net.opentsdb.storage.MockBase.MockScanner;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
 
+import org.hbase.async.FilterList;
 import org.hbase.async.KeyValue;
 import org.junit.Before;
 import org.junit.Test;
@@ -249,6 +251,19 @@ public class TestTsdbQueryRollup extends BaseTsdbTest {
     assertEquals(73, dps[0].size());
   }
   
+  @Test
+  public void run10mMaxLongSingleTSPacked() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.rollups.packed.enable", "true");
+    runPackedMax();
+  }
+  
+  @Test
+  public void run10mMaxLongSingleTSPackedReadOnly() throws Exception {
+    // a reader that doesn't write packed columns itself must still see them
+    tsdb.getConfig().overrideConfig("tsd.rollups.packed.enable", "false");
+    runPackedMax();
+  }
+  
   @Test (expected = IllegalArgumentException.class)
   public void run10mSumLongSingleTSInMS() throws Exception {
     RollupInterval ten_min_interval = rollup_config.getRollupInterval("10m");
@@ -851,10 +866,162 @@ public class TestTsdbQueryRollup extends BaseTsdbTest {
     assertEquals(1, dps[0].size());
   }
   
+  @Test
+  public void runStitchedRawTail() throws Exception {
+    tsdb.addAggregatePoint(METRIC_STRING, 1356998400L, 1000, tags, false,
+        "1h", "sum", null).joinUninterruptibly();
+    // written early, e.g. by a backfill, and must not overlap the raw tail
+    tsdb.addAggregatePoint(METRIC_STRING, 1357002000L, 99999, tags, false,
+        "1h", "sum", null).joinUninterruptibly();
+    setStitchSplit(1357002000L);
+    query = new TsdbQuery(tsdb);
+
+    setQuery("1h", Aggregators.SUM, tags, Aggregators.SUM);
+    query.configureFromQuery(ts_query, 0);
+    final DataPoints[] dps = query.run();
+    assertEquals("1h", query.getRollupTable());
+    assertEquals(1, dps.length);
+    assertEquals(TAGV_STRING, dps[0].getTags().get(TAGK_STRING));
+
+    // the first hour from the rollup, the rest summed from raw data
+    final double[] values = { 1000, 21540, 16470 };
+    long ts = 1356998400000L;
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(ts, dp.timestamp());
+      assertEquals(values[i++], dp.doubleValue(), 0.0001);
+      ts += 3600000;
+    }
+    assertEquals(3, dps[0].size());
+  }
+
+  @Test
+  public void runStitchedRawTailAvg() throws Exception {
+    tsdb.addAggregatePoint(METRIC_STRING, 1356998400L, 1000, tags, false,
+        "1h", "sum", null).joinUninterruptibly();
+    tsdb.addAggregatePoint(METRIC_STRING, 1356998400L, 10, tags, false,
+        "1h", "count", null).joinUninterruptibly();
+    // written early, e.g. by a backfill, and must not overlap the raw tail
+    tsdb.addAggregatePoint(METRIC_STRING, 1357002000L, 99999, tags, false,
+        "1h", "sum", null).joinUninterruptibly();
+    tsdb.addAggregatePoint(METRIC_STRING, 1357002000L, 1, tags, false,
+        "1h", "count", null).joinUninterruptibly();
+    setStitchSplit(1357002000L);
+    query = new TsdbQuery(tsdb);
+
+    setQuery("1h", Aggregators.AVG, tags, Aggregators.AVG);
+    query.configureFromQuery(ts_query, 0);
+    final DataPoints[] dps = query.run();
+    assertEquals("1h", query.getRollupTable());
+    assertEquals(1, dps.length);
+    assertEquals(TAGV_STRING, dps[0].getTags().get(TAGK_STRING));
+
+    // the first hour is the rollup's sum over its count, the raw hours count
+    // each value once, i.e. 21540 / 120 and 16470 / 61
+    final double[] values = { 100, 179.5, 270 };
+    long ts = 1356998400000L;
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(ts, dp.timestamp());
+      assertEquals(values[i++], dp.doubleValue(), 0.0001);
+      ts += 3600000;
+    }
+    assertEquals(3, dps[0].size());
+  }
+
+  @Test
+  public void runStitchedAllRaw() throws Exception {
+    tsdb.addAggregatePoint(METRIC_STRING, 1356998400L, 1000, tags, false,
+        "1h", "sum", null).joinUninterruptibly();
+    setStitchSplit(1356987600L);
+    query = new TsdbQuery(tsdb);
+
+    setQuery("1h", Aggregators.SUM, tags, Aggregators.SUM);
+    query.configureFromQuery(ts_query, 0);
+    final DataPoints[] dps = query.run();
+    assertEquals("raw", query.getRollupTable());
+    assertEquals(1, dps.length);
+
+    final double[] values = { 7140, 21540, 16470 };
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(values[i++], dp.doubleValue(), 0.0001);
+    }
+    assertEquals(3, dps[0].size());
+  }
+
+  @Test
+  public void runStitchedAllRolledUp() throws Exception {
+    tsdb.addAggregatePoint(METRIC_STRING, 1356998400L, 1000, tags, false,
+        "1h", "sum", null).joinUninterruptibly();
+    setStitchSplit(1357045200L);
+    query = new TsdbQuery(tsdb);
+
+    setQuery("1h", Aggregators.SUM, tags, Aggregators.SUM);
+    query.configureFromQuery(ts_query, 0);
+    final DataPoints[] dps = query.run();
+    assertEquals("1h", query.getRollupTable());
+    assertEquals(1, dps.length);
+    assertEquals(1000, dps[0].iterator().next().doubleValue(), 0.0001);
+    assertEquals(1, dps[0].size());
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
 
+  /**
+   * Writes packed 10m rollups for a single series, queries the max back and
+   * validates it.
+   */
+  private void runPackedMax() throws Exception {
+    final RollupInterval interval = rollup_config.getRollupInterval("10m");
+    final long start_timestamp = 1356998400L;
+    final long end_timestamp = 1357041600L;
+    final int time_interval = interval.getIntervalSeconds();
+    int i = 0;
+    for (long ts = start_timestamp; ts <= end_timestamp; ts += time_interval) {
+      i += time_interval;
+      final byte[] value = Internal.vleEncodeLong(i);
+      final byte[] count = Internal.vleEncodeLong(1);
+      tsdb.addPackedRollupPoint(METRIC_STRING, ts, 
+          new HashMap<String, String>(tags), interval.getInterval(), 
+          new String[] { "sum", "count", "max" }, 
+          new byte[][] { value, count, value }, 
+          new short[] { (short) (value.length - 1), 
+            (short) (count.length - 1), (short) (value.length - 1) })
+        .joinUninterruptibly();
+    }
+
+    setQuery(interval.getInterval(), Aggregators.MAX, tags, Aggregators.MAX);
+    query.configureFromQuery(ts_query, 0);
+
+    // the bare offset qualifiers have to make it through the scan filter
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(TAGV_STRING, dps[0].getTags().get(TAGK_STRING));
+
+    i = 600;
+    long ts = start_timestamp * 1000;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(i, dp.doubleValue(), 0.0001);
+      assertEquals(ts, dp.timestamp());
+      ts += time_interval * 1000;
+      i += time_interval;
+    }
+    assertEquals(73, dps[0].size());
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertTrue(scanner.getFilter() instanceof FilterList);
+    }
+  }
+
+  /** Enables stitching with a lag that puts the split at the given time. */
+  private void setStitchSplit(final long split) {
+    config.overrideConfig("tsd.rollups.stitch.enable", "true");
+    config.overrideConfig("tsd.rollups.stitch.lag",
+        Long.toString(System.currentTimeMillis() / 1000 - split));
+  }
+
   private void storeLongRollup(final long start_timestamp,
         final long end_timestamp,
         final boolean two_metrics, 
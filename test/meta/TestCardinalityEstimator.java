@@ -0,0 +1,227 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.meta.CardinalityEstimator.MetricSketches;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.HyperLogLog;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+public class TestCardinalityEstimator extends BaseTsdbTest {
+  private static final byte[] META_TABLE =
+      "tsdb-meta".getBytes(MockBase.ASCII());
+  private static final byte[] TAGV_C_BYTES = new byte[] { 0, 0, 3 };
+  private static final long BASE_TIME = 1356998400L;
+
+  private CardinalityEstimator estimator;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    final List<byte[]> families = new ArrayList<byte[]>(1);
+    families.add(TSMeta.FAMILY);
+    storage.addTable(META_TABLE, families);
+    config.overrideConfig("tsd.core.cardinality.enable", "true");
+    estimator = new CardinalityEstimator(tsdb);
+  }
+
+  @Test
+  public void ctorBadConfig() throws Exception {
+    config.overrideConfig("tsd.core.cardinality.precision", "2");
+    try {
+      new CardinalityEstimator(tsdb);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    config.overrideConfig("tsd.core.cardinality.precision", "12");
+    config.overrideConfig("tsd.core.cardinality.flush_interval", "0");
+    try {
+      new CardinalityEstimator(tsdb);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void recordAndGetPending() throws Exception {
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_BYTES));
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_B_BYTES));
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_B_BYTES));
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_BYTES,
+        TAGK_B_BYTES, TAGV_C_BYTES));
+    estimator.record(rowKey(METRIC_B_BYTES, TAGK_BYTES, TAGV_BYTES));
+
+    final MetricSketches sketches =
+        estimator.getSketches(METRIC_BYTES).join();
+    assertEquals(3, sketches.series());
+    assertEquals(2, sketches.tagValues().size());
+    assertEquals(2, (long) sketches.tagValues().get(TAGK_BYTES));
+    assertEquals(1, (long) sketches.tagValues().get(TAGK_B_BYTES));
+    // nothing written yet
+    verify(client, never()).compareAndSet(any(PutRequest.class),
+        any(byte[].class));
+    assertEquals(1, estimator.getSketches(METRIC_B_BYTES).join().series());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void recordBadRowKey() throws Exception {
+    estimator.record(new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1 });
+  }
+
+  @Test
+  public void flush() throws Exception {
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_BYTES));
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_B_BYTES));
+    assertNull(estimator.flush().join());
+    verify(client, times(2)).compareAndSet(any(PutRequest.class),
+        any(byte[].class));
+
+    final byte[] series = storage.getColumn(META_TABLE, METRIC_BYTES,
+        TSMeta.FAMILY, CardinalityEstimator.QUALIFIER_PREFIX);
+    assertNotNull(series);
+    assertEquals(2, HyperLogLog.fromBytes(series).cardinality());
+    assertNotNull(storage.getColumn(META_TABLE, METRIC_BYTES, TSMeta.FAMILY,
+        qualifier(TAGK_BYTES)));
+
+    // nothing pending
+    estimator.flush().join();
+    verify(client, times(2)).compareAndSet(any(PutRequest.class),
+        any(byte[].class));
+
+    // merged with what's stored
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_C_BYTES));
+    estimator.flush().join();
+    assertEquals(3, HyperLogLog.fromBytes(storage.getColumn(META_TABLE,
+        METRIC_BYTES, TSMeta.FAMILY, CardinalityEstimator.QUALIFIER_PREFIX))
+        .cardinality());
+  }
+
+  @Test
+  public void flushEvictsIdleSketches() throws Exception {
+    final Map<String, MetricSketches> pending = 
+        Whitebox.getInternalState(estimator, "pending");
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_BYTES));
+    estimator.flush().join();
+    // kept so offers racing the flush aren't lost
+    assertEquals(1, pending.size());
+    verify(client, times(2)).compareAndSet(any(PutRequest.class),
+        any(byte[].class));
+
+    // a repeated series doesn't raise a register so nothing is written
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_BYTES));
+    estimator.flush().join();
+    assertTrue(pending.isEmpty());
+    verify(client, times(2)).compareAndSet(any(PutRequest.class),
+        any(byte[].class));
+
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_B_BYTES));
+    estimator.flush().join();
+    assertEquals(2, HyperLogLog.fromBytes(storage.getColumn(META_TABLE,
+        METRIC_BYTES, TSMeta.FAMILY, CardinalityEstimator.QUALIFIER_PREFIX))
+        .cardinality());
+  }
+
+  @Test
+  public void flushOnTimer() throws Exception {
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_BYTES));
+    timer.continuePausedTask();
+    assertNotNull(storage.getColumn(META_TABLE, METRIC_BYTES, TSMeta.FAMILY,
+        CardinalityEstimator.QUALIFIER_PREFIX));
+  }
+
+  @Test
+  public void getSketchesFromStorage() throws Exception {
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_BYTES));
+    estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, TAGV_B_BYTES));
+    estimator.flush().join();
+
+    // another TSD that only reads
+    config.overrideConfig("tsd.core.cardinality.enable", "false");
+    final CardinalityEstimator reader = new CardinalityEstimator(tsdb);
+    final MetricSketches sketches = reader.getSketches(METRIC_BYTES).join();
+    assertEquals(2, sketches.series());
+    assertEquals(2, (long) sketches.tagValues().get(TAGK_BYTES));
+    assertEquals(0, reader.getSketches(METRIC_B_BYTES).join().series());
+  }
+
+  @Test
+  public void estimateSeries() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      estimator.record(rowKey(METRIC_BYTES, TAGK_BYTES, new byte[] { 0, 0,
+          (byte) i }, TAGK_B_BYTES, new byte[] { 0, 0, (byte) (i % 2) }));
+    }
+
+    assertEquals(10, (long) estimator.estimateSeries(METRIC_BYTES, null)
+        .join());
+    final ByteMap<byte[][]> literals = new ByteMap<byte[][]>();
+    literals.put(TAGK_BYTES, new byte[][] { TAGV_BYTES, TAGV_B_BYTES });
+    assertEquals(2, (long) estimator.estimateSeries(METRIC_BYTES, literals)
+        .join());
+    literals.put(TAGK_B_BYTES, new byte[][] { TAGV_BYTES });
+    assertEquals(1, (long) estimator.estimateSeries(METRIC_BYTES, literals)
+        .join());
+
+    // key only filters don't narrow it down
+    literals.clear();
+    literals.put(TAGK_B_BYTES, null);
+    assertEquals(10, (long) estimator.estimateSeries(METRIC_BYTES, literals)
+        .join());
+
+    // no series with the tag key
+    literals.put(NSUI_TAGK, new byte[][] { TAGV_BYTES });
+    assertEquals(0, (long) estimator.estimateSeries(METRIC_BYTES, literals)
+        .join());
+  }
+
+  private static byte[] qualifier(final byte[] tagk) {
+    final byte[] qualifier = new byte[
+        CardinalityEstimator.QUALIFIER_PREFIX.length + tagk.length];
+    System.arraycopy(CardinalityEstimator.QUALIFIER_PREFIX, 0, qualifier, 0,
+        CardinalityEstimator.QUALIFIER_PREFIX.length);
+    System.arraycopy(tagk, 0, qualifier,
+        CardinalityEstimator.QUALIFIER_PREFIX.length, tagk.length);
+    return qualifier;
+  }
+
+  private static byte[] rowKey(final byte[] metric, final byte[]... tags) {
+    final byte[] key = new byte[3 + 4 + (tags.length * 3)];
+    System.arraycopy(metric, 0, key, 0, 3);
+    Bytes.setInt(key, (int) BASE_TIME, 3);
+    for (int i = 0; i < tags.length; i++) {
+      System.arraycopy(tags[i], 0, key, 7 + (i * 3), 3);
+    }
+    return key;
+  }
+}
@@ -82,6 +82,7 @@ public class TestQueryLimitOverride {
     final QueryLimitOverride limits = new QueryLimitOverride(tsdb);
     assertEquals(42, limits.getDefaultByteLimit());
     assertEquals(24, limits.getDefaultDataPointsLimit());
+    assertEquals(0, limits.getDefaultSeriesLimit());
     assertEquals(0, limits.getLimits().size());
     verify(file, never()).exists();
     verify(timer, never())
@@ -127,6 +128,13 @@ public class TestQueryLimitOverride {
       new QueryLimitOverride(tsdb);
       fail("Expected IllegalArgumentException");
     } catch (IllegalArgumentException e) { }
+    
+    config.overrideConfig("tsd.query.limits.data_points.default", "24");
+    config.overrideConfig("tsd.query.limits.series.default", "-1");
+    try {
+      new QueryLimitOverride(tsdb);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
   }
   
   @Test
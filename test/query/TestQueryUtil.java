@@ -12,6 +12,8 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.query;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -19,6 +21,10 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.regex.Pattern;
+
+import net.opentsdb.core.Const;
+
 import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.FilterList;
 import org.hbase.async.KeyRegexpFilter;
@@ -145,4 +151,58 @@ public class TestQueryUtil {
     verify(scanner, times(1)).setStartKey(any(byte[].class));
     verify(scanner, times(1)).setStopKey(any(byte[].class));
   }
+  
+  @Test
+  public void setDataTableScanFilterExclusions() throws Exception {
+    final ByteMap<byte[][]> exclusions = new ByteMap<byte[][]>();
+    exclusions.put(new byte[] { 0, 0, 1 }, new byte[][] { new byte[] {0, 0, 1} });
+    QueryUtil.setDataTableScanFilter(
+        scanner,
+        Lists.<byte[]>newArrayList(), 
+        new ByteMap<byte[][]>(),
+        exclusions,
+        false,
+        false,
+        0);
+    verify(scanner, never()).getCurrentKey();
+    verify(scanner, times(1)).setFilter(any(KeyRegexpFilter.class));
+  }
+  
+  @Test
+  public void getRowKeyUIDRegexExclusions() throws Exception {
+    final ByteMap<byte[][]> tags = new ByteMap<byte[][]>();
+    tags.put(new byte[] { 0, 0, 2 }, null);
+    final ByteMap<byte[][]> exclusions = new ByteMap<byte[][]>();
+    // a UID with a backslash followed by an E to make sure it's escaped
+    exclusions.put(new byte[] { 0, 0, 1 }, 
+        new byte[][] { new byte[] { 0, 0, 1 }, new byte[] { 0, '\\', 'E' } });
+    final Pattern pattern = Pattern.compile(QueryUtil.getRowKeyUIDRegex(
+        null, tags, exclusions, false, null, null));
+    
+    // no exclusions
+    assertTrue(matches(pattern, new byte[] { 0, 0, 2, 0, 0, 9 }));
+    assertTrue(matches(pattern, new byte[] { 0, 0, 1, 0, 0, 2, 
+        0, 0, 2, 0, 0, 9 }));
+    assertFalse(matches(pattern, new byte[] { 0, 0, 1, 0, 0, 2 }));
+    // excluded values
+    assertFalse(matches(pattern, new byte[] { 0, 0, 1, 0, 0, 1, 
+        0, 0, 2, 0, 0, 9 }));
+    assertFalse(matches(pattern, new byte[] { 0, 0, 1, 0, '\\', 'E', 
+        0, 0, 2, 0, 0, 9 }));
+    // the value of a different key
+    assertTrue(matches(pattern, new byte[] { 0, 0, 2, 0, 0, 1 }));
+    
+    // explicit tags still excludes
+    final Pattern explicit = Pattern.compile(QueryUtil.getRowKeyUIDRegex(
+        null, tags, exclusions, true, null, null));
+    assertTrue(matches(explicit, new byte[] { 0, 0, 2, 0, 0, 9 }));
+    assertFalse(matches(explicit, new byte[] { 0, 0, 1, 0, 0, 1 }));
+  }
+  
+  /** Runs the pattern against a row key with the given tag section */
+  private static boolean matches(final Pattern pattern, final byte[] tags) {
+    final byte[] key = new byte[7 + tags.length];
+    System.arraycopy(tags, 0, key, 7, tags.length);
+    return pattern.matcher(new String(key, Const.ASCII_CHARSET)).matches();
+  }
 }
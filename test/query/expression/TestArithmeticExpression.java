@@ -0,0 +1,104 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.apache.commons.jexl2.MapContext;
+import org.junit.Test;
+
+public class TestArithmeticExpression {
+
+  @Test
+  public void compile() throws Exception {
+    final ArithmeticExpression exp = ArithmeticExpression.compile("a + b * a");
+    assertNotNull(exp);
+    assertEquals(Arrays.asList("a", "b"), exp.variables());
+    assertEquals(14, exp.evaluate(new double[] { 2, 6 }), 0.0001);
+  }
+
+  @Test
+  public void precedence() throws Exception {
+    assertEquals(122, ArithmeticExpression.compile("a + (b * b)")
+        .evaluate(new double[] { 22, 10 }), 0.0001);
+    assertEquals(320, ArithmeticExpression.compile("(a + b) * b")
+        .evaluate(new double[] { 22, 10 }), 0.0001);
+    assertEquals(-12, ArithmeticExpression.compile("-a - b / 5")
+        .evaluate(new double[] { 10, 10 }), 0.0001);
+    assertEquals(1, ArithmeticExpression.compile("a % b % 3")
+        .evaluate(new double[] { 10, 6 }), 0.0001);
+  }
+
+  @Test
+  public void divideByZero() throws Exception {
+    assertEquals(0, ArithmeticExpression.compile("a / 0")
+        .evaluate(new double[] { 10 }), 0.0001);
+    assertEquals(0, ArithmeticExpression.compile("a % b")
+        .evaluate(new double[] { 10, 0 }), 0.0001);
+  }
+
+  @Test
+  public void nan() throws Exception {
+    assertEquals(Double.NaN, ArithmeticExpression.compile("a + 1")
+        .evaluate(new double[] { Double.NaN }), 0.0001);
+  }
+
+  @Test
+  public void unsupported() throws Exception {
+    assertNull(ArithmeticExpression.compile(null));
+    assertNull(ArithmeticExpression.compile(""));
+    assertNull(ArithmeticExpression.compile("1 + 2"));
+    assertNull(ArithmeticExpression.compile("a > b"));
+    assertNull(ArithmeticExpression.compile("a ? b : 1"));
+    assertNull(ArithmeticExpression.compile("a * (1 / 2)"));
+    assertNull(ArithmeticExpression.compile("a + 010"));
+    assertNull(ArithmeticExpression.compile("a + 0x10"));
+    assertNull(ArithmeticExpression.compile("a + 1L"));
+    assertNull(ArithmeticExpression.compile("a div b"));
+    assertNull(ArithmeticExpression.compile("abs(a)"));
+    assertNull(ArithmeticExpression.compile("math:abs(a)"));
+    assertNull(ArithmeticExpression.compile("a.b + 1"));
+    assertNull(ArithmeticExpression.compile("a + b;"));
+    assertNull(ArithmeticExpression.compile("(a + b"));
+    assertNull(ArithmeticExpression.compile("a +"));
+  }
+
+  @Test
+  public void matchesJexl() throws Exception {
+    final String[] expressions = new String[] { "a + b", "a - b * 2",
+        "(a + b) / 3", "a * 0.1", "-a % b", "a / (b - b)", "a * 2 / 4 + 1.5",
+        "a - -b", "a * (0.5 + 1)" };
+    final double[][] values = new double[][] { { 1, 2 }, { 42.5, -3 },
+        { 0, 7 }, { 1e9, 0.001 } };
+    final MapContext context = new MapContext();
+    for (final String expression : expressions) {
+      final ArithmeticExpression exp = ArithmeticExpression.compile(expression);
+      assertNotNull(expression, exp);
+      for (final double[] vals : values) {
+        context.set("a", vals[0]);
+        context.set("b", vals[1]);
+        final double expected = (Double) ExpressionIterator.JEXL_ENGINE
+            .createScript(expression).execute(context);
+        final double[] ordered = new double[exp.variables().size()];
+        for (int i = 0; i < ordered.length; i++) {
+          ordered[i] = exp.variables().get(i).equals("a") ? vals[0] : vals[1];
+        }
+        assertEquals(expression, expected, exp.evaluate(ordered), 0);
+      }
+    }
+  }
+}
@@ -318,6 +318,30 @@ public class TestExpressionIterator extends BaseTimeSyncedIteratorTest {
     assertArrayEquals(UIDS.get("F"), dps[1].tags().get(UIDS.get("D")));
   }
   
+  @Test
+  public void comparisonEvaluatedWithJexl() throws Exception {
+    oneExtraSameE();
+    queryAB_Dstar();
+    remapResults();
+    
+    ExpressionIterator exp = new ExpressionIterator("ei", "b > a", 
+        SetOperator.INTERSECTION, false, false);
+    exp.addResults("a", iterators.get("a"));
+    exp.addResults("b", iterators.get("b"));
+    
+    exp.compile();
+    final ExpressionDataPoint[] dps = exp.values();
+    assertEquals(2, dps.length);
+    
+    long its = exp.nextTimestamp();
+    while (exp.hasNext()) {
+      exp.next(its);
+      assertEquals(1, dps[0].toDouble(), 0.0001);
+      assertEquals(1, dps[1].toDouble(), 0.0001);
+      its = exp.nextTimestamp();
+    }
+  }
+  
   @Test
   public void doubleVariableAndPrecedence() throws Exception {
     oneExtraSameE();
@@ -67,8 +67,9 @@ public class TestHighestMax {
     when(data_query.endTime()).thenReturn(START_TIME + (INTERVAL * NUM_POINTS));
     
     dps = PowerMockito.mock(DataPoints.class);
-    when(dps.iterator()).thenReturn(view);
+    when(dps.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view));
     when(dps.metricNameAsync()).thenReturn(Deferred.fromResult(METRIC));
+    when(dps.metricName()).thenReturn(METRIC);
     
     group_bys = new DataPoints[] { dps };
     
@@ -85,8 +86,9 @@ public class TestHighestMax {
     SeekableView view2 = SeekableViewsForTest.generator(START_TIME, INTERVAL, 
         NUM_POINTS, true, 10, 1);
     DataPoints dps2 = PowerMockito.mock(DataPoints.class);
-    when(dps2.iterator()).thenReturn(view2);
+    when(dps2.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view2));
     when(dps2.metricNameAsync()).thenReturn(Deferred.fromResult("sys.mem"));
+    when(dps2.metricName()).thenReturn("sys.mem");
     group_bys = new DataPoints[] { dps, dps2 };
     query_results.clear();
     query_results.add(group_bys);
@@ -113,8 +115,9 @@ public class TestHighestMax {
     SeekableView view2 = SeekableViewsForTest.generator(START_TIME, INTERVAL, 
         NUM_POINTS, true, 10, 1);
     DataPoints dps2 = PowerMockito.mock(DataPoints.class);
-    when(dps2.iterator()).thenReturn(view2);
+    when(dps2.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view2));
     when(dps2.metricNameAsync()).thenReturn(Deferred.fromResult("sys.mem"));
+    when(dps2.metricName()).thenReturn("sys.mem");
     group_bys = new DataPoints[] { dps, dps2 };
     query_results.clear();
     query_results.add(group_bys);
@@ -152,8 +155,9 @@ public class TestHighestMax {
     SeekableView view2 = SeekableViewsForTest.generator(START_TIME, INTERVAL, 
         NUM_POINTS, true, 10, 1);
     DataPoints dps2 = PowerMockito.mock(DataPoints.class);
-    when(dps2.iterator()).thenReturn(view2);
+    when(dps2.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view2));
     when(dps2.metricNameAsync()).thenReturn(Deferred.fromResult("sys.mem"));
+    when(dps2.metricName()).thenReturn("sys.mem");
     DataPoints[] group_bys2 = new DataPoints[] { dps2 };
     query_results.add(group_bys2);
     
@@ -190,8 +194,9 @@ public class TestHighestMax {
     SeekableView view2 = SeekableViewsForTest.generator(START_TIME, INTERVAL, 
         NUM_POINTS, true, 10, 1);
     DataPoints dps2 = PowerMockito.mock(DataPoints.class);
-    when(dps2.iterator()).thenReturn(view2);
+    when(dps2.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view2));
     when(dps2.metricNameAsync()).thenReturn(Deferred.fromResult("sys.mem"));
+    when(dps2.metricName()).thenReturn("sys.mem");
     group_bys = new DataPoints[] { dps, dps2 };
     query_results.clear();
     query_results.add(group_bys);
@@ -229,8 +234,9 @@ public class TestHighestMax {
     SeekableView view2 = SeekableViewsForTest.generator(START_TIME, INTERVAL, 
         NUM_POINTS, false, 10, 1.5);
     DataPoints dps2 = PowerMockito.mock(DataPoints.class);
-    when(dps2.iterator()).thenReturn(view2);
+    when(dps2.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view2));
     when(dps2.metricNameAsync()).thenReturn(Deferred.fromResult("sys.mem"));
+    when(dps2.metricName()).thenReturn("sys.mem");
     group_bys = new DataPoints[] { dps, dps2 };
     query_results.clear();
     query_results.add(group_bys);
@@ -268,8 +274,9 @@ public class TestHighestMax {
     SeekableView view2 = SeekableViewsForTest.generator(START_TIME, INTERVAL, 
         NUM_POINTS, false, 10, 1.5, true);
     DataPoints dps2 = PowerMockito.mock(DataPoints.class);
-    when(dps2.iterator()).thenReturn(view2);
+    when(dps2.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view2));
     when(dps2.metricNameAsync()).thenReturn(Deferred.fromResult("sys.mem"));
+    when(dps2.metricName()).thenReturn("sys.mem");
     group_bys = new DataPoints[] { dps, dps2 };
     query_results.clear();
     query_results.add(group_bys);
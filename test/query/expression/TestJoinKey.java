@@ -0,0 +1,154 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import net.opentsdb.utils.ByteSet;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+public class TestJoinKey {
+  private static final byte[] UID1 = new byte[] { 0, 0, 1 };
+  private static final byte[] UID2 = new byte[] { 0, 0, 2 };
+  private static final byte[] UID3 = new byte[] { 0, 0, 3 };
+  private ByteMap<byte[]> tags;
+  private ByteSet agg_tags;
+  private ITimeSyncedIterator sub;
+
+  @Before
+  public void before() throws Exception {
+    tags = new ByteMap<byte[]>();
+    tags.put(UID1, UID1);
+    tags.put(UID2, UID2);
+    agg_tags = new ByteSet();
+    agg_tags.add(UID3);
+
+    final ByteSet query_tags = new ByteSet();
+    query_tags.add(UID1);
+    sub = mock(ITimeSyncedIterator.class);
+    when(sub.getQueryTagKs()).thenReturn(query_tags);
+  }
+
+  @Test
+  public void equalsSameTags() throws Exception {
+    final ByteMap<byte[]> copy = new ByteMap<byte[]>();
+    copy.put(new byte[] { 0, 0, 2 }, new byte[] { 0, 0, 2 });
+    copy.put(new byte[] { 0, 0, 1 }, new byte[] { 0, 0, 1 });
+
+    final JoinKey a = new JoinKey(false, true, getMockDP(tags, agg_tags), sub);
+    final JoinKey b = new JoinKey(false, true, getMockDP(copy, agg_tags), sub);
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(a.fingerprint(), b.fingerprint());
+    assertEquals(0, a.compareTo(b));
+  }
+
+  @Test
+  public void notEqualDifferentValue() throws Exception {
+    final ByteMap<byte[]> other = new ByteMap<byte[]>();
+    other.put(UID1, UID1);
+    other.put(UID2, UID3);
+
+    final JoinKey a = new JoinKey(false, false, getMockDP(tags, agg_tags), sub);
+    final JoinKey b = new JoinKey(false, false, getMockDP(other, agg_tags), sub);
+    assertFalse(a.equals(b));
+    assertTrue(a.compareTo(b) < 0);
+    assertTrue(b.compareTo(a) > 0);
+  }
+
+  @Test
+  public void queryTags() throws Exception {
+    final ByteMap<byte[]> other = new ByteMap<byte[]>();
+    other.put(UID1, UID1);
+    other.put(UID2, UID3);
+
+    // only UID1 is in the query tags
+    assertEquals(new JoinKey(true, false, getMockDP(tags, agg_tags), sub),
+        new JoinKey(true, false, getMockDP(other, agg_tags), sub));
+    assertFalse(new JoinKey(false, false, getMockDP(tags, agg_tags), sub)
+        .equals(new JoinKey(true, false, getMockDP(tags, agg_tags), sub)));
+  }
+
+  @Test
+  public void aggTags() throws Exception {
+    final ByteSet other = new ByteSet();
+    other.add(UID2);
+    assertEquals(new JoinKey(false, false, getMockDP(tags, agg_tags), sub),
+        new JoinKey(false, false, getMockDP(tags, other), sub));
+    assertFalse(new JoinKey(false, true, getMockDP(tags, agg_tags), sub)
+        .equals(new JoinKey(false, true, getMockDP(tags, other), sub)));
+  }
+
+  @Test
+  public void emptyTags() throws Exception {
+    // like flattenTags, agg tags are ignored without tags
+    final JoinKey a = new JoinKey(false, true,
+        getMockDP(new ByteMap<byte[]>(), agg_tags), sub);
+    final JoinKey b = new JoinKey(false, true, getMockDP(null, null), sub);
+    assertEquals(a, b);
+    assertTrue(a.compareTo(new JoinKey(false, true,
+        getMockDP(tags, agg_tags), sub)) < 0);
+  }
+
+  @Test
+  public void collision() throws Exception {
+    final ByteMap<byte[]> other = new ByteMap<byte[]>();
+    other.put(UID1, UID3);
+    final JoinKey a = new JoinKey(false, false, getMockDP(tags, agg_tags), sub);
+    final JoinKey b = new JoinKey(false, false, getMockDP(other, agg_tags), sub);
+    Whitebox.setInternalState(b, "fingerprint", a.fingerprint());
+    assertEquals(a.hashCode(), b.hashCode());
+    assertFalse(a.equals(b));
+  }
+
+  @Test
+  public void sortsLikeFlattenedTags() throws Exception {
+    final ByteMap<byte[]> other = new ByteMap<byte[]>();
+    other.put(UID1, UID1);
+    final ByteSet agg = new ByteSet();
+    agg.add(new byte[] { 0, 0, 1 });
+
+    final ExpressionDataPoint[] dps = new ExpressionDataPoint[] {
+        getMockDP(tags, agg_tags), getMockDP(other, agg_tags),
+        getMockDP(other, agg), getMockDP(tags, agg) };
+    for (final ExpressionDataPoint a : dps) {
+      for (final ExpressionDataPoint b : dps) {
+        final int expected = Bytes.memcmp(
+            IntersectionIterator.flattenTags(false, true, a.tags(),
+                a.aggregatedTags(), sub),
+            IntersectionIterator.flattenTags(false, true, b.tags(),
+                b.aggregatedTags(), sub));
+        final int actual = new JoinKey(false, true, a, sub)
+            .compareTo(new JoinKey(false, true, b, sub));
+        assertEquals(Integer.signum(expected), Integer.signum(actual));
+      }
+    }
+  }
+
+  private ExpressionDataPoint getMockDP(final ByteMap<byte[]> tags,
+      final ByteSet agg_tags) {
+    final ExpressionDataPoint dp = mock(ExpressionDataPoint.class);
+    when(dp.tags()).thenReturn(tags);
+    when(dp.aggregatedTags()).thenReturn(agg_tags);
+    return dp;
+  }
+}
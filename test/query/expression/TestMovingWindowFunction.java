@@ -0,0 +1,200 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.SeekableViewsForTest;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.query.expression.MovingWindowFunction.Evaluator;
+import net.opentsdb.query.expression.MovingWindowFunction.Function;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSQuery.class })
+public class TestMovingWindowFunction {
+  private static long START_TIME = 1356998400000L;
+  private static int INTERVAL = 60000;
+
+  @Test
+  public void sumCountWindow() throws Exception {
+    assertWindow(Function.SUM, 3, false, new double[] { 1, 2, 3, 4, 5, 6 },
+        new double[] { 0, 0, 6, 9, 12, 15 });
+  }
+
+  @Test
+  public void minCountWindow() throws Exception {
+    assertWindow(Function.MIN, 3, false, new double[] { 5, 1, 4, 3, 2, 6 },
+        new double[] { 0, 0, 1, 1, 2, 2 });
+  }
+
+  @Test
+  public void maxCountWindow() throws Exception {
+    assertWindow(Function.MAX, 3, false, new double[] { 5, 1, 4, 3, 2, 6 },
+        new double[] { 0, 0, 5, 4, 4, 6 });
+  }
+
+  @Test
+  public void stdDevCountWindow() throws Exception {
+    assertWindow(Function.STDDEV, 4, false,
+        new double[] { 2, 4, 4, 4, 5, 5, 7, 9 },
+        new double[] { 0, 0, 0, 0.866, 0.433, 0.5, 1.0897, 1.6583 });
+  }
+
+  @Test
+  public void averageCountWindowSkipsNaNs() throws Exception {
+    assertWindow(Function.AVERAGE, 2, false,
+        new double[] { 1, Double.NaN, 2, Double.NaN, 4 },
+        new double[] { 0, 0, 1.5, 1.5, 3 });
+  }
+
+  @Test
+  public void sumTimeWindow() throws Exception {
+    assertWindow(Function.SUM, 2 * INTERVAL, true,
+        new double[] { 1, 2, 3, 4, 5 },
+        new double[] { 0, 0, 5, 7, 9 });
+  }
+
+  @Test
+  public void maxTimeWindowNaNs() throws Exception {
+    assertWindow(Function.MAX, 2 * INTERVAL, true,
+        new double[] { 1, 2, Double.NaN, 4, Double.NaN, Double.NaN },
+        new double[] { 0, 0, 2, 4, 4, 0 });
+  }
+
+  @Test
+  public void ewmaCountWindow() throws Exception {
+    // alpha = 2 / (3 + 1)
+    assertWindow(Function.EWMA, 3, false,
+        new double[] { 2, 4, Double.NaN, 8 },
+        new double[] { 2, 3, 3, 5.5 });
+  }
+
+  @Test
+  public void ewmaTimeWindow() throws Exception {
+    assertWindow(Function.EWMA, INTERVAL, true,
+        new double[] { Double.NaN, 0, 10 },
+        new double[] { 0, 0, 10 * (1 - Math.exp(-1)) });
+  }
+
+  @Test
+  public void reset() throws Exception {
+    final Evaluator evaluator = new MovingWindowFunction("movingSum",
+        Function.SUM).new Evaluator(2, false);
+    evaluator.next(START_TIME, 1);
+    assertEquals(3, evaluator.next(START_TIME + INTERVAL, 2), 0.0001);
+    evaluator.reset();
+    assertEquals(0, evaluator.next(START_TIME + 2 * INTERVAL, 5), 0.0001);
+    assertEquals(11, evaluator.next(START_TIME + 3 * INTERVAL, 6), 0.0001);
+  }
+
+  @Test
+  public void evaluate() throws Exception {
+    final SeekableView view = SeekableViewsForTest.generator(START_TIME,
+        INTERVAL, 5, true, 1, 1);
+    final TSQuery data_query = mock(TSQuery.class);
+    when(data_query.startTime()).thenReturn(START_TIME);
+    when(data_query.endTime()).thenReturn(START_TIME + (INTERVAL * 5));
+    final DataPoints dps = PowerMockito.mock(DataPoints.class);
+    when(dps.iterator()).thenReturn(view);
+    when(dps.metricNameAsync()).thenReturn(Deferred.fromResult("sys.cpu"));
+    final List<DataPoints[]> query_results = new ArrayList<DataPoints[]>(1);
+    query_results.add(new DataPoints[] { dps });
+    final List<String> params = new ArrayList<String>(1);
+    params.add("2");
+
+    final MovingWindowFunction func = new MovingWindowFunction("movingMax",
+        Function.MAX);
+    final DataPoints[] results = func.evaluate(data_query, query_results,
+        params);
+    assertEquals(1, results.length);
+    assertEquals("sys.cpu", results[0].metricName());
+
+    long ts = START_TIME;
+    double v = 0;
+    for (final DataPoint dp : results[0]) {
+      assertEquals(ts, dp.timestamp());
+      assertFalse(dp.isInteger());
+      assertEquals(v, dp.doubleValue(), 0.001);
+      v = v < 1 ? 2 : v + 1;
+      ts += INTERVAL;
+    }
+    assertEquals(START_TIME + (INTERVAL * 5), ts);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void evaluateWindowIsZero() throws Exception {
+    final List<DataPoints[]> query_results = new ArrayList<DataPoints[]>(1);
+    query_results.add(new DataPoints[] { });
+    final List<String> params = new ArrayList<String>(1);
+    params.add("0");
+    new MovingWindowFunction("movingSum", Function.SUM)
+      .evaluate(mock(TSQuery.class), query_results, params);
+  }
+
+  @Test
+  public void writeStringField() throws Exception {
+    assertEquals("movingStdDev(inner_expression)",
+        new MovingWindowFunction("movingStdDev", Function.STDDEV)
+          .writeStringField(null, "inner_expression"));
+  }
+
+  @Test
+  public void registered() throws Exception {
+    for (final String name : new String[] { "movingSum", "movingMin",
+        "movingMax", "movingStdDev", "ewma", "exponentialMovingAverage" }) {
+      assertTrue(ExpressionFactory.getByName(name)
+          instanceof MovingWindowFunction);
+    }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNullFunction() throws Exception {
+    new MovingWindowFunction("movingSum", null);
+  }
+
+  /**
+   * Runs the values through an evaluator with points one interval apart.
+   */
+  private void assertWindow(final Function function, final long condition,
+      final boolean is_time_unit, final double[] values,
+      final double[] expected) {
+    final Evaluator evaluator = new MovingWindowFunction("test", function)
+        .new Evaluator(condition, is_time_unit);
+    for (int i = 0; i < values.length; i++) {
+      assertEquals("Index " + i, expected[i],
+          evaluator.next(START_TIME + (i * INTERVAL), values[i]), 0.001);
+    }
+  }
+}
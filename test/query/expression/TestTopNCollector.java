@@ -0,0 +1,267 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.MutableDataPoint;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.SeekableViewsForTest;
+import net.opentsdb.query.expression.TopNCollector.Mode;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+public class TestTopNCollector {
+  private static long START_TIME = 1356998400000L;
+  private static int INTERVAL = 60000;
+  private static int NUM_POINTS = 5;
+  private static long END_TIME = START_TIME + (INTERVAL * NUM_POINTS);
+
+  @Test
+  public void maxKeepsHighest() throws Exception {
+    final TopNCollector collector = new TopNCollector(2, Mode.MAX,
+        START_TIME, END_TIME);
+    for (int i = 0; i < 10; i++) {
+      // start values 0, 3, 6, 9, 2, 5, 8, 1, 4, 7
+      collector.offer(series("m" + i, SeekableViewsForTest.generator(
+          START_TIME, INTERVAL, NUM_POINTS, true, (i * 3) % 10, 1)));
+    }
+    final DataPoints[] results = collector.results();
+    assertEquals(2, results.length);
+    assertEquals("m3", results[0].metricName());
+    assertEquals("m6", results[1].metricName());
+    assertEquals(NUM_POINTS, results[0].size());
+  }
+
+  @Test
+  public void keepsSeriesWithoutCopying() throws Exception {
+    final TopNCollector collector = new TopNCollector(1, Mode.MAX,
+        START_TIME, END_TIME);
+    final DataPoints low = series("low", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, 1, 1));
+    final DataPoints high = series("high", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, 10, 1));
+    collector.offer(low);
+    collector.offer(high);
+    final DataPoints[] results = collector.results();
+    assertEquals(1, results.length);
+    assertSame(high, results[0]);
+    verify(low, times(1)).iterator();
+    verify(high, times(1)).iterator();
+  }
+
+  @Test
+  public void maxTiesKeepFirst() throws Exception {
+    final TopNCollector collector = new TopNCollector(1, Mode.MAX,
+        START_TIME, END_TIME);
+    collector.offer(series("a", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, 1, 1)));
+    collector.offer(series("b", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, 1, 1)));
+    final DataPoints[] results = collector.results();
+    assertEquals(1, results.length);
+    assertEquals("a", results[0].metricName());
+  }
+
+  @Test
+  public void maxIgnoresOutOfRangeAndNaN() throws Exception {
+    final TopNCollector collector = new TopNCollector(1, Mode.MAX,
+        START_TIME, END_TIME);
+    collector.offer(series("a", SeekableViewsForTest.fromArray(new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(START_TIME - 1, 1000),
+        MutableDataPoint.ofDoubleValue(START_TIME, 1),
+        MutableDataPoint.ofDoubleValue(START_TIME + INTERVAL, Double.NaN),
+    })));
+    collector.offer(series("b", SeekableViewsForTest.fromArray(new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(START_TIME, 2),
+    })));
+    final DataPoints[] results = collector.results();
+    assertEquals(1, results.length);
+    assertEquals("b", results[0].metricName());
+  }
+
+  @Test
+  public void maxEmptySeries() throws Exception {
+    final TopNCollector collector = new TopNCollector(5, Mode.MAX,
+        START_TIME, END_TIME);
+    collector.offer(series("a", SeekableViewsForTest.fromArray(
+        new DataPoint[0])));
+    collector.offer(series("b", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, -10, 1)));
+    final DataPoints[] results = collector.results();
+    assertEquals(2, results.length);
+    assertEquals("b", results[0].metricName());
+    assertEquals("a", results[1].metricName());
+  }
+
+  @Test
+  public void currentPrefersLatest() throws Exception {
+    final TopNCollector collector = new TopNCollector(2, Mode.CURRENT,
+        START_TIME, END_TIME);
+    // stopped reporting early with a large value
+    collector.offer(series("stale", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, 3, true, 100, 1)));
+    collector.offer(series("low", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, 1, 1)));
+    collector.offer(series("high", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, false, 10, 1)));
+    collector.offer(series("empty", SeekableViewsForTest.fromArray(
+        new DataPoint[0])));
+    final DataPoints[] results = collector.results();
+    assertEquals(2, results.length);
+    assertEquals("high", results[0].metricName());
+    assertEquals("low", results[1].metricName());
+  }
+
+  @Test
+  public void currentEmpty() throws Exception {
+    final TopNCollector collector = new TopNCollector(2, Mode.CURRENT,
+        START_TIME, END_TIME);
+    collector.offer(series("empty", SeekableViewsForTest.fromArray(
+        new DataPoint[0])));
+    assertEquals(0, collector.results().length);
+  }
+
+  @Test
+  public void currentSeeksToEnd() throws Exception {
+    final int points = 10000;
+    final long end = START_TIME + ((long) INTERVAL * (points - 1));
+    final TopNCollector collector = new TopNCollector(1, Mode.CURRENT,
+        START_TIME, end);
+    final CountingView view = new CountingView(SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, points, true, 1, 1));
+    final DataPoints dps = PowerMockito.mock(DataPoints.class);
+    when(dps.iterator()).thenReturn(view);
+    collector.offer(dps);
+    assertSame(dps, collector.results()[0]);
+    // only the points in the first window were read
+    assertEquals(2, view.reads);
+  }
+
+  @Test
+  public void currentWidensPastNaNs() throws Exception {
+    final TopNCollector collector = new TopNCollector(1, Mode.CURRENT,
+        START_TIME, END_TIME);
+    collector.offer(series("a", SeekableViewsForTest.fromArray(new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(START_TIME, 1),
+        MutableDataPoint.ofDoubleValue(START_TIME + INTERVAL, 5),
+        MutableDataPoint.ofDoubleValue(START_TIME + (INTERVAL * 2), Double.NaN),
+        MutableDataPoint.ofDoubleValue(START_TIME + (INTERVAL * 3), Double.NaN),
+        MutableDataPoint.ofDoubleValue(START_TIME + (INTERVAL * 4), Double.NaN),
+        MutableDataPoint.ofDoubleValue(END_TIME, Double.NaN),
+    })));
+    // newer than "a"'s last real value but smaller
+    collector.offer(series("b", SeekableViewsForTest.fromArray(new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(START_TIME + (INTERVAL * 2), 2),
+    })));
+    final DataPoints[] results = collector.results();
+    assertEquals(1, results.length);
+    assertEquals("b", results[0].metricName());
+  }
+
+  @Test
+  public void currentOnlyOutOfRange() throws Exception {
+    final TopNCollector collector = new TopNCollector(2, Mode.CURRENT,
+        START_TIME, END_TIME);
+    collector.offer(series("a", SeekableViewsForTest.fromArray(new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(START_TIME - 1, 1000),
+    })));
+    collector.offer(series("b", SeekableViewsForTest.fromArray(new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(START_TIME, 1),
+    })));
+    final DataPoints[] results = collector.results();
+    assertEquals(2, results.length);
+    assertEquals("b", results[0].metricName());
+    assertEquals("a", results[1].metricName());
+  }
+
+  @Test
+  public void currentNotSeekable() throws Exception {
+    final TopNCollector collector = new TopNCollector(2, Mode.CURRENT,
+        START_TIME, END_TIME);
+    final SeekableView view = new CountingView(SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, 100, -1)) {
+      @Override
+      public void seek(final long timestamp) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    final DataPoints dps = PowerMockito.mock(DataPoints.class);
+    when(dps.iterator()).thenReturn(view);
+    collector.offer(dps);
+    collector.offer(series("b", SeekableViewsForTest.generator(
+        START_TIME, INTERVAL, NUM_POINTS, true, 1, 1)));
+    final DataPoints[] results = collector.results();
+    assertEquals(2, results.length);
+    assertSame(dps, results[0]);
+    assertEquals("b", results[1].metricName());
+  }
+
+  /** Counts the points read from the wrapped view. */
+  private static class CountingView implements SeekableView {
+    private final SeekableView view;
+    int reads;
+
+    CountingView(final SeekableView view) {
+      this.view = view;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return view.hasNext();
+    }
+
+    @Override
+    public DataPoint next() {
+      reads++;
+      return view.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      view.seek(timestamp);
+    }
+  }
+
+  /** @return A mock series that returns the view. */
+  private static DataPoints series(final String metric,
+      final SeekableView view) {
+    final DataPoints dps = PowerMockito.mock(DataPoints.class);
+    when(dps.iterator()).thenAnswer(SeekableViewsForTest.reiterable(view));
+    when(dps.metricName()).thenReturn(metric);
+    when(dps.metricNameAsync()).thenReturn(Deferred.fromResult(metric));
+    when(dps.size()).thenReturn(NUM_POINTS);
+    return dps;
+  }
+}
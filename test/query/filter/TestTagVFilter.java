@@ -19,8 +19,14 @@ import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +43,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
+import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
 @RunWith(PowerMockRunner.class)
@@ -241,6 +248,118 @@ public class TestTagVFilter extends BaseTsdbTest {
     assertTrue(filter.getTagVUids().isEmpty());    
   }
   
+  @Test
+  public void resolveNameNotLiterals() throws Exception {
+    final TagVNotLiteralOrFilter filter = 
+        new TagVNotLiteralOrFilter(TAGK_STRING, "web02|web01");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+    assertEquals(2, filter.getExcludedTagVUids().size());
+    assertArrayEquals(TAGV_BYTES, filter.getExcludedTagVUids().get(0));
+    assertArrayEquals(TAGV_B_BYTES, filter.getExcludedTagVUids().get(1));
+  }
+  
+  @Test
+  public void resolveNameNotLiteralsNSUNTagvIgnored() throws Exception {
+    final TagVNotLiteralOrFilter filter = 
+        new TagVNotLiteralOrFilter(TAGK_STRING, "web01|web03");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertEquals(1, filter.getExcludedTagVUids().size());
+    assertArrayEquals(TAGV_BYTES, filter.getExcludedTagVUids().get(0));
+  }
+  
+  @Test
+  public void resolveNameNotLiteralsNotResolved() throws Exception {
+    TagVNotLiteralOrFilter filter = 
+        new TagVNotLiteralOrFilter(TAGK_STRING, "web01|web02", true);
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertNull(filter.getExcludedTagVUids());
+    
+    config.overrideConfig("tsd.query.filter.expansion_limit", "1");
+    filter = new TagVNotLiteralOrFilter(TAGK_STRING, "web01|web02");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertNull(filter.getExcludedTagVUids());
+  }
+  
+  @Test
+  public void resolveNameWildcardExpanded() throws Exception {
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    when(tag_values.suggestAsync("web", 4097)).thenReturn(
+        Deferred.fromResult(Arrays.asList(TAGV_STRING, TAGV_B_STRING)));
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "web*1*");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertEquals(1, filter.getTagVUids().size());
+    assertArrayEquals(TAGV_BYTES, filter.getTagVUids().get(0));
+  }
+  
+  @Test
+  public void resolveNameWildcardNotExpanded() throws Exception {
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "web*");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+    
+    // no literal prefix
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    new TagVWildcardFilter(TAGK_STRING, "*01").resolveTagkName(tsdb).join();
+    new TagVWildcardFilter(TAGK_STRING, "web*", true)
+      .resolveTagkName(tsdb).join();
+    verify(tag_values, never()).suggestAsync(anyString(), anyInt());
+  }
+  
+  @Test
+  public void resolveNameWildcardInfixNotExpanded() throws Exception {
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "we*b");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+    assertTrue(filter.postScan());
+    // "we" isn't a prefix so expanding on it would drop this one
+    assertTrue(filter.matchTagv("xweb"));
+    verify(tag_values, never()).suggestAsync(anyString(), anyInt());
+  }
+  
+  @Test
+  public void resolveNameWildcardTooMany() throws Exception {
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    config.overrideConfig("tsd.query.filter.expansion_limit", "1");
+    when(tag_values.suggestAsync("web", 2)).thenReturn(
+        Deferred.fromResult(Arrays.asList(TAGV_STRING, TAGV_B_STRING)));
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "web*");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+  }
+  
+  @Test
+  public void resolveNameRegexExpanded() throws Exception {
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    when(tag_values.suggestAsync("web0", 4097)).thenReturn(
+        Deferred.fromResult(Arrays.asList(TAGV_STRING, TAGV_B_STRING)));
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^web0[2-9]");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertEquals(1, filter.getTagVUids().size());
+    assertArrayEquals(TAGV_B_BYTES, filter.getTagVUids().get(0));
+  }
+  
+  @Test
+  public void resolveNameRegexNoMatches() throws Exception {
+    config.overrideConfig("tsd.query.filter.expand_patterns", "true");
+    when(tag_values.suggestAsync("web0", 4097)).thenReturn(
+        Deferred.fromResult(Arrays.asList(TAGV_STRING, TAGV_B_STRING)));
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^web0[3-9]");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+  }
+  
   @Test (expected = NoSuchUniqueName.class)
   public void resolveNameNSUN() throws Exception {
     final TagVFilter filter = new TagVWildcardFilter(NSUN_TAGK, "*omnia");
@@ -178,4 +178,13 @@ public class TestTagVLiteralOrFilter {
     assertFalse(filter_a.equals(filter_c));
     assertFalse(filter_a.equals(filter_d));
   }
+  
+  @Test
+  public void matchTagv() throws Exception {
+    final TagVFilter filter = new TagVLiteralOrFilter(TAGK, "Ogg|Weatherwax");
+    assertTrue(filter.matchesOnTagv());
+    assertTrue(filter.matchTagv("Ogg"));
+    assertFalse(filter.matchTagv("ogg"));
+    assertFalse(filter.matchTagv(null));
+  }
 }
@@ -44,4 +44,11 @@ public class TestTagVNotKeyFilter {
   public void ctorFilterHasValue() throws Exception {
     assertNotNull(new TagVNotKeyFilter(TAGK, "Evadne"));
   }
+  
+  @Test (expected = UnsupportedOperationException.class)
+  public void matchTagv() throws Exception {
+    final TagVFilter filter = new TagVNotKeyFilter(TAGK, null);
+    assertFalse(filter.matchesOnTagv());
+    filter.matchTagv("Ogg");
+  }
 }
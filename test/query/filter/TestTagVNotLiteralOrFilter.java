@@ -176,4 +176,13 @@ public class TestTagVNotLiteralOrFilter {
     assertFalse(filter_a.equals(filter_c));
     assertFalse(filter_a.equals(filter_d));
   }
+  
+  @Test
+  public void matchTagv() throws Exception {
+    final TagVFilter filter = new TagVNotLiteralOrFilter(TAGK, "Ogg|Weatherwax");
+    assertTrue(filter.matchesOnTagv());
+    assertFalse(filter.matchTagv("Ogg"));
+    assertTrue(filter.matchTagv("Garlick"));
+    assertTrue(filter.matchTagv(null));
+  }
 }
@@ -2,6 +2,7 @@ package net.opentsdb.query.filter;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
@@ -123,4 +124,28 @@ public class TestTagVRegexFilter {
     assertFalse(filter_a.equals(filter_c));
     assertFalse(filter_a.equals(filter_d));
   }
+  
+  @Test
+  public void literalPrefix() throws Exception {
+    assertEquals("web", TagVRegexFilter.literalPrefix("^web.*"));
+    assertEquals("web", TagVRegexFilter.literalPrefix("^web[0-9]+"));
+    assertEquals("web0", TagVRegexFilter.literalPrefix("^web01?"));
+    assertEquals("web01", TagVRegexFilter.literalPrefix("^web01$"));
+    assertEquals("we", TagVRegexFilter.literalPrefix("^web*"));
+    assertNull(TagVRegexFilter.literalPrefix("web.*"));
+    assertNull(TagVRegexFilter.literalPrefix("^.*web"));
+    assertNull(TagVRegexFilter.literalPrefix("^web|^db"));
+    assertNull(TagVRegexFilter.literalPrefix("^(?i)web"));
+    assertNull(TagVRegexFilter.literalPrefix("^w?eb"));
+    assertNull(TagVRegexFilter.literalPrefix("^"));
+  }
+  
+  @Test
+  public void matchTagv() throws Exception {
+    final TagVFilter filter = new TagVRegexFilter(TAGK, "ner$");
+    assertTrue(filter.matchesOnTagv());
+    assertTrue(filter.matchTagv("Ogg-Owner"));
+    assertFalse(filter.matchTagv("Ogg"));
+    assertFalse(filter.matchTagv(null));
+  }
 }
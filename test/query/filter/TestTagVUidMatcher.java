@@ -0,0 +1,208 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.uid.NoSuchUniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+@RunWith(PowerMockRunner.class)
+public class TestTagVUidMatcher extends BaseTsdbTest {
+  private static final int BASE_TIME = 1356998400;
+  private static final byte[] KEY_A = getRowKey(METRIC_BYTES, BASE_TIME,
+      TAGK_BYTES, TAGV_BYTES);
+  private static final byte[] KEY_B = getRowKey(METRIC_BYTES, BASE_TIME,
+      TAGK_BYTES, TAGV_B_BYTES);
+  private static final byte[] KEY_OWNER = getRowKey(METRIC_BYTES, BASE_TIME,
+      TAGK_B_BYTES, TAGV_BYTES);
+
+  private List<TagVFilter> filters;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    filters = new ArrayList<TagVFilter>();
+  }
+
+  @Test
+  public void canMatch() throws Exception {
+    assertFalse(TagVUidMatcher.canMatch(null));
+    assertFalse(TagVUidMatcher.canMatch(filters));
+
+    // unresolved tag key
+    filters.add(new TagVRegexFilter(TAGK_STRING, "web01"));
+    assertFalse(TagVUidMatcher.canMatch(filters));
+    filters.get(0).resolveTagkName(tsdb).join();
+    assertTrue(TagVUidMatcher.canMatch(filters));
+
+    // needs the full map
+    final TagVFilter not_key = new TagVNotKeyFilter(TAGK_STRING, "");
+    not_key.resolveTagkName(tsdb).join();
+    filters.add(not_key);
+    assertFalse(TagVUidMatcher.canMatch(filters));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorCantMatch() throws Exception {
+    filters.add(new TagVRegexFilter(TAGK_STRING, "web01"));
+    new TagVUidMatcher(tsdb, filters);
+  }
+
+  @Test
+  public void matchCachesPerTagv() throws Exception {
+    filters.add(resolve(new TagVRegexFilter(TAGK_STRING, "01$")));
+    final TagVUidMatcher matcher = new TagVUidMatcher(tsdb, filters);
+
+    assertNull(matcher.match(KEY_A));
+    assertTrue(resolveAndMatch(matcher, KEY_A).join());
+    assertNull(matcher.match(KEY_B));
+    assertFalse(resolveAndMatch(matcher, KEY_B).join());
+    assertEquals(2, matcher.cachedTagvs());
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(matcher.match(KEY_A));
+      assertFalse(matcher.match(KEY_B));
+    }
+    verify(tag_values, times(1)).getNameAsync(TAGV_BYTES);
+    verify(tag_values, times(1)).getNameAsync(TAGV_B_BYTES);
+  }
+
+  @Test
+  public void resolveCountsTagvs() throws Exception {
+    filters.add(resolve(new TagVRegexFilter(TAGK_STRING, "01$")));
+    final TagVUidMatcher matcher = new TagVUidMatcher(tsdb, filters);
+
+    final List<Deferred<Object>> lookups = matcher.resolve(KEY_A);
+    assertEquals(1, lookups.size());
+    Deferred.group(lookups).join();
+    assertTrue(matcher.match(KEY_A));
+    // cached so nothing left to resolve
+    assertTrue(matcher.resolve(KEY_A).isEmpty());
+    assertEquals(1, matcher.resolve(KEY_B).size());
+  }
+
+  @Test
+  public void matchMultipleFilters() throws Exception {
+    filters.add(resolve(new TagVWildcardFilter(TAGK_STRING, "web*")));
+    filters.add(resolve(new TagVLiteralOrFilter(TAGK_STRING, "WEB02", true)));
+    final TagVUidMatcher matcher = new TagVUidMatcher(tsdb, filters);
+
+    assertFalse(resolveAndMatch(matcher, KEY_A).join());
+    assertTrue(resolveAndMatch(matcher, KEY_B).join());
+    assertFalse(matcher.match(KEY_A));
+    assertTrue(matcher.match(KEY_B));
+  }
+
+  @Test
+  public void matchMissingTagk() throws Exception {
+    filters.add(resolve(new TagVWildcardFilter(TAGK_STRING, "*")));
+    TagVUidMatcher matcher = new TagVUidMatcher(tsdb, filters);
+    assertFalse(matcher.match(KEY_OWNER));
+
+    filters.clear();
+    filters.add(resolve(new TagVNotLiteralOrFilter(TAGK_STRING, "web01")));
+    matcher = new TagVUidMatcher(tsdb, filters);
+    assertTrue(matcher.match(KEY_OWNER));
+    assertFalse(resolveAndMatch(matcher, KEY_A).join());
+    assertTrue(resolveAndMatch(matcher, KEY_B).join());
+  }
+
+  @Test
+  public void matchResolvedUids() throws Exception {
+    filters.add(resolve(new TagVLiteralOrFilter(TAGK_STRING, "web02")));
+    filters.add(resolve(new TagVNotLiteralOrFilter(TAGK_B_STRING, "web01")));
+    final TagVUidMatcher matcher = new TagVUidMatcher(tsdb, filters);
+
+    assertFalse(matcher.match(KEY_A));
+    assertTrue(matcher.match(KEY_B));
+    assertFalse(matcher.match(KEY_OWNER));
+    assertTrue(resolveAndMatch(matcher, KEY_B).join());
+    assertTrue(matcher.match(getRowKey(METRIC_BYTES, BASE_TIME, 
+        TAGK_BYTES, TAGV_B_BYTES, TAGK_B_BYTES, TAGV_B_BYTES)));
+    assertFalse(matcher.match(getRowKey(METRIC_BYTES, BASE_TIME, 
+        TAGK_BYTES, TAGV_B_BYTES, TAGK_B_BYTES, TAGV_BYTES)));
+    assertEquals(0, matcher.cachedTagvs());
+    verify(tag_values, never()).getNameAsync(any(byte[].class));
+  }
+
+  @Test
+  public void matchSinglePassOverTags() throws Exception {
+    // filters out of order and sharing a tag key
+    filters.add(resolve(new TagVRegexFilter(TAGK_B_STRING, "^web")));
+    filters.add(resolve(new TagVWildcardFilter(TAGK_STRING, "*02")));
+    filters.add(resolve(new TagVNotLiteralOrFilter(TAGK_B_STRING, "web02")));
+    final TagVUidMatcher matcher = new TagVUidMatcher(tsdb, filters);
+    final byte[] key = getRowKey(METRIC_BYTES, BASE_TIME, 
+        TAGK_BYTES, TAGV_B_BYTES, TAGK_B_BYTES, TAGV_BYTES);
+
+    assertNull(matcher.match(key));
+    assertTrue(resolveAndMatch(matcher, key).join());
+    assertTrue(matcher.match(key));
+    assertFalse(resolveAndMatch(matcher, getRowKey(METRIC_BYTES, BASE_TIME, 
+        TAGK_BYTES, TAGV_B_BYTES, TAGK_B_BYTES, TAGV_B_BYTES)).join());
+    assertFalse(matcher.match(KEY_B));
+  }
+
+  @Test
+  public void resolveNoSuchUniqueId() throws Exception {
+    filters.add(resolve(new TagVRegexFilter(TAGK_STRING, ".*")));
+    final TagVUidMatcher matcher = new TagVUidMatcher(tsdb, filters);
+    try {
+      resolveAndMatch(matcher, getRowKey(METRIC_BYTES, BASE_TIME, TAGK_BYTES,
+          NSUI_TAGV)).join();
+      fail("Expected a DeferredGroupException");
+    } catch (DeferredGroupException e) {
+      assertTrue(e.getCause() instanceof NoSuchUniqueId);
+    }
+    assertEquals(0, matcher.cachedTagvs());
+  }
+
+  /** Resolves the new tag values in the key and evaluates it like the
+   * salt scanner does */
+  private static Deferred<Boolean> resolveAndMatch(
+      final TagVUidMatcher matcher, final byte[] key) {
+    class GroupCB implements Callback<Boolean, ArrayList<Object>> {
+      @Override
+      public Boolean call(final ArrayList<Object> ignored) throws Exception {
+        return matcher.match(key) == Boolean.TRUE;
+      }
+    }
+    return Deferred.group(matcher.resolve(key)).addCallback(new GroupCB());
+  }
+
+  /** Resolves the tag key of the filter */
+  private TagVFilter resolve(final TagVFilter filter) throws Exception {
+    filter.resolveTagkName(tsdb).join();
+    return filter;
+  }
+}
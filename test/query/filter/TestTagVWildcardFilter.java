@@ -324,5 +324,17 @@ public class TestTagVWildcardFilter {
     assertFalse(filter_a.equals(filter_c));
     assertFalse(filter_a.equals(filter_d));
   }
-
+  
+  @Test
+  public void matchTagv() throws Exception {
+    TagVFilter filter = new TagVWildcardFilter(TAGK, "ogg*", true);
+    assertTrue(filter.matchesOnTagv());
+    assertTrue(filter.matchTagv("OGG-Owner"));
+    assertFalse(filter.matchTagv("Nanny"));
+    assertFalse(filter.matchTagv(null));
+    
+    filter = new TagVWildcardFilter(TAGK, "*");
+    assertTrue(filter.matchTagv("Nanny"));
+    assertFalse(filter.matchTagv(null));
+  }
 }
@@ -0,0 +1,381 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVLiteralOrFilter;
+import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.Bytes;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, DateTime.class })
+public class TestGroupByWriter {
+  private static final long BASE_TIME = 1356998400L;
+  private static final String METRIC = "sys.cpu.user";
+  private static final byte[] ROW = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 1, 0, 0, 2, 0, 0, 1 };
+  private static final byte[] ROW_B = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 2, 0, 0, 2, 0, 0, 1 };
+
+  private TSDB tsdb;
+  private Config config;
+  private Timer timer;
+  private Map<String, String> tags;
+  private Map<String, String> tags_b;
+  private Map<String, String> group;
+
+  @SuppressWarnings("unchecked")
+  @Before
+  public void before() throws Exception {
+    final RollupConfig rollup_config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addAggregationId("count", 1)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb-agg")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .build();
+
+    tsdb = PowerMockito.mock(TSDB.class);
+    config = new Config(false);
+    config.overrideConfig("tsd.rollups.groupby.rules",
+        "sum:" + METRIC + "{dc}; max:sys.cpu.nice");
+    timer = mock(Timer.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.getRollupConfig()).thenReturn(rollup_config);
+    when(tsdb.getDefaultInterval()).thenReturn(
+        rollup_config.getRollupInterval("1m"));
+    when(tsdb.getTimer()).thenReturn(timer);
+    when(tsdb.getAggTagKey()).thenReturn("_aggregate");
+    when(tsdb.getRawTagValue()).thenReturn("RAW");
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyLong(), anyMap(),
+        anyBoolean(), anyString(), anyString(), anyString()))
+      .thenReturn(Deferred.fromResult(null));
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyDouble(), anyMap(),
+        anyBoolean(), anyString(), anyString(), anyString()))
+      .thenReturn(Deferred.fromResult(null));
+
+    PowerMockito.mockStatic(DateTime.class);
+    setNow(BASE_TIME - 60);
+
+    tags = new HashMap<String, String>(2);
+    tags.put("host", "web01");
+    tags.put("dc", "lga");
+    tags_b = new HashMap<String, String>(2);
+    tags_b.put("host", "web02");
+    tags_b.put("dc", "lga");
+    group = new HashMap<String, String>(1);
+    group.put("dc", "lga");
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    assertEquals(0, writer.openWindows());
+    assertEquals(60, writer.windowWidth());
+    verify(timer).newTimeout(writer, 60, TimeUnit.SECONDS);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoDefaultInterval() throws Exception {
+    when(tsdb.getDefaultInterval()).thenReturn(null);
+    new GroupByWriter(tsdb);
+  }
+
+  @Test
+  public void parseRules() throws Exception {
+    final List<GroupByWriter.Rule> rules = GroupByWriter.parseRules(
+        "sum:sys.cpu.user{host,dc};MAX:sys.cpu.nice{};min:sys.if.in");
+    assertEquals(3, rules.size());
+    assertEquals("sum", rules.get(0).aggregator);
+    assertEquals("sys.cpu.user", rules.get(0).metric);
+    assertEquals("dc", rules.get(0).tag_keys.get(0));
+    assertEquals("host", rules.get(0).tag_keys.get(1));
+    assertEquals("max", rules.get(1).aggregator);
+    assertEquals(0, rules.get(1).tag_keys.size());
+    assertEquals("sys.if.in", rules.get(2).metric);
+    assertEquals(0, GroupByWriter.parseRules("").size());
+  }
+
+  @Test
+  public void parseRulesInvalid() throws Exception {
+    final String[] invalid = new String[] { "sys.cpu.user{dc}",
+        "avg:sys.cpu.user{dc}", "sum:{dc}", "sum:sys.cpu.user{dc" };
+    for (final String rule : invalid) {
+      try {
+        GroupByWriter.parseRules(rule);
+        fail("Expected an IllegalArgumentException for " + rule);
+      } catch (IllegalArgumentException e) { }
+    }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseRulesOverlapping() throws Exception {
+    GroupByWriter.parseRules("sum:sys.cpu.user{dc};SUM:sys.cpu.user{dc,host}");
+  }
+
+  @Test
+  public void parseRulesSameMetric() throws Exception {
+    assertEquals(2, GroupByWriter.parseRules(
+        "sum:sys.cpu.user{dc};max:sys.cpu.user{dc,host}").size());
+  }
+
+  @Test
+  public void recordAndFlush() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 2 }, (short) 0,
+        tags);
+    writer.record(ROW, METRIC, (BASE_TIME + 20) * 1000, new byte[] { 4 },
+        (short) 0, tags);
+    writer.record(ROW_B, METRIC, BASE_TIME + 15, new byte[] { 5 }, (short) 0,
+        tags_b);
+    // not a rule metric
+    writer.record(ROW, "sys.cpu.idle", BASE_TIME + 15, new byte[] { 5 },
+        (short) 0, tags);
+    assertEquals(1, writer.openWindows());
+
+    setNow(BASE_TIME + 60 + 120);
+    writer.flush().joinUninterruptibly();
+    assertEquals(0, writer.openWindows());
+    // avg of 3 for web01 plus 5 for web02
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 8L, group, true, null,
+        null, "sum");
+  }
+
+  @Test
+  public void recordAndFlushFloats() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW_B, METRIC, BASE_TIME + 20,
+        Bytes.fromLong(Double.doubleToRawLongBits(2.5)),
+        (short) (Const.FLAG_FLOAT | 0x7), tags_b);
+
+    setNow(BASE_TIME + 60 + 120);
+    writer.flush().joinUninterruptibly();
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 3.5, group, true, null,
+        null, "sum");
+  }
+
+  @Test
+  public void recordNoTagKeys() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    writer.record(ROW, "sys.cpu.nice", BASE_TIME + 10, new byte[] { 1 },
+        (short) 0, tags);
+    writer.record(ROW_B, "sys.cpu.nice", BASE_TIME + 10, new byte[] { 7 },
+        (short) 0, tags_b);
+
+    setNow(BASE_TIME + 60 + 120);
+    writer.flush().joinUninterruptibly();
+    verify(tsdb).addAggregatePoint("sys.cpu.nice", BASE_TIME, 7L,
+        new HashMap<String, String>(), true, null, null, "max");
+  }
+
+  @Test
+  public void recordMissingTagKeys() throws Exception {
+    config.overrideConfig("tsd.rollups.groupby.query.enable", "true");
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    tags_b.remove("dc");
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW_B, METRIC, BASE_TIME + 10, new byte[] { 7 },
+        (short) 0, tags_b);
+    assertEquals(1, writer.openWindows());
+    assertEquals(1, writer.missingTagsDataPoints());
+
+    setNow(BASE_TIME + 7200 + 120);
+    writer.flush().joinUninterruptibly();
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 1L, group, true, null,
+        null, "sum");
+    // the group no longer covers every series
+    assertNull(writer.preAggregateFor(METRIC, "sum", null, BASE_TIME,
+        BASE_TIME + 3600));
+    assertEquals("MAX", writer.preAggregateFor("sys.cpu.nice", "max", null,
+        BASE_TIME, BASE_TIME + 3600));
+  }
+
+  @Test
+  public void flushKeepsOpenWindows() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW, METRIC, BASE_TIME + 70, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(2, writer.openWindows());
+
+    setNow(BASE_TIME + 60 + 119);
+    writer.flush().joinUninterruptibly();
+    assertEquals(2, writer.openWindows());
+    verify(tsdb, never()).addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMap(), anyBoolean(), anyString(), anyString(), anyString());
+
+    setNow(BASE_TIME + 60 + 120);
+    writer.flush().joinUninterruptibly();
+    assertEquals(1, writer.openWindows());
+  }
+
+  @Test
+  public void recordLate() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    setNow(BASE_TIME + 60 + 120);
+    writer.flush().joinUninterruptibly();
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(0, writer.openWindows());
+    assertEquals(1, writer.lateDataPoints());
+  }
+
+  @Test
+  public void recordFull() throws Exception {
+    config.overrideConfig("tsd.rollups.groupby.max_windows", "1");
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    tags_b.put("dc", "phx");
+    writer.record(ROW_B, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags_b);
+    assertEquals(1, writer.openWindows());
+    assertEquals(1, writer.droppedDataPoints());
+  }
+
+  @Test
+  public void recordSkipsPreAggregates() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    tags.put("_aggregate", "SUM");
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(0, writer.openWindows());
+    tags.put("_aggregate", "RAW");
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(1, writer.openWindows());
+  }
+
+  @Test
+  public void preAggregateFor() throws Exception {
+    config.overrideConfig("tsd.rollups.groupby.query.enable", "true");
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    setNow(BASE_TIME + 7200 + 120);
+    writer.flush().joinUninterruptibly();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>();
+    filters.add(new TagVWildcardFilter("dc", "*"));
+    assertEquals("SUM", writer.preAggregateFor(METRIC, "sum", filters,
+        BASE_TIME, BASE_TIME + 3600));
+    assertEquals("SUM", writer.preAggregateFor(METRIC, "sum", null,
+        BASE_TIME + 3600, BASE_TIME + 7199));
+    assertEquals("MAX", writer.preAggregateFor("sys.cpu.nice", "max", null,
+        BASE_TIME, BASE_TIME + 3600));
+
+    // before the writer's first complete window
+    assertNull(writer.preAggregateFor(METRIC, "sum", filters, BASE_TIME - 1,
+        BASE_TIME + 3600));
+    // different aggregator
+    assertNull(writer.preAggregateFor(METRIC, "max", filters, BASE_TIME,
+        BASE_TIME + 3600));
+    // tag key not kept by the rule
+    filters.add(new TagVLiteralOrFilter("host", "web01"));
+    assertNull(writer.preAggregateFor(METRIC, "sum", filters, BASE_TIME,
+        BASE_TIME + 3600));
+    // no rule
+    assertNull(writer.preAggregateFor("sys.cpu.idle", "sum", null, BASE_TIME,
+        BASE_TIME + 3600));
+  }
+
+  @Test
+  public void tagKeysFor() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    assertEquals(Arrays.asList("dc"), writer.tagKeysFor(METRIC, "SUM"));
+    assertEquals(0, writer.tagKeysFor("sys.cpu.nice", "max").size());
+    assertNull(writer.tagKeysFor(METRIC, "max"));
+    assertNull(writer.tagKeysFor("sys.cpu.idle", "sum"));
+  }
+
+  @Test
+  public void preAggregateForUnflushedEnd() throws Exception {
+    config.overrideConfig("tsd.rollups.groupby.query.enable", "true");
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    // nothing flushed yet
+    assertNull(writer.preAggregateFor(METRIC, "sum", null, BASE_TIME,
+        BASE_TIME + 60));
+
+    setNow(BASE_TIME + 600);
+    writer.flush().joinUninterruptibly();
+    // windows through BASE_TIME + 480 are flushed after the grace period
+    assertEquals("SUM", writer.preAggregateFor(METRIC, "sum", null, BASE_TIME,
+        BASE_TIME + 479));
+    assertNull(writer.preAggregateFor(METRIC, "sum", null, BASE_TIME,
+        BASE_TIME + 480));
+    assertNull(writer.preAggregateFor(METRIC, "sum", null, BASE_TIME,
+        BASE_TIME + 3600));
+  }
+
+  @Test
+  public void preAggregateForDisabled() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    setNow(BASE_TIME + 7200 + 120);
+    writer.flush().joinUninterruptibly();
+    assertNull(writer.preAggregateFor(METRIC, "sum", null, BASE_TIME,
+        BASE_TIME + 3600));
+  }
+
+  @Test
+  public void run() throws Exception {
+    final GroupByWriter writer = new GroupByWriter(tsdb);
+    writer.run(null);
+    verify(timer, times(2)).newTimeout(any(TimerTask.class), anyLong(),
+        any(TimeUnit.class));
+  }
+
+  private void setNow(final long seconds) {
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(seconds * 1000);
+  }
+}
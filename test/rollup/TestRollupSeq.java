@@ -15,6 +15,7 @@ package net.opentsdb.rollup;
 import net.opentsdb.core.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
@@ -846,6 +847,45 @@ public class TestRollupSeq {
     }
   }
 
+  @Test
+  public void rollupWeightedAvg10mWithCount() throws Exception {
+    final RollupQuery rollup_query = new RollupQuery(RollupInterval.builder()
+          .setTable("tsdb")
+          .setPreAggregationTable("tsdb-agg")
+          .setInterval("10m")
+          .setRowSpan("6h")
+          .build(), 
+        Aggregators.WAVG, 
+        600000,
+        Aggregators.SUM);
+    assertTrue(rollup_query.isWeighted());
+    assertSame(Aggregators.AVG, rollup_query.getRollupAgg());
+    
+    Internal.setBaseTime(key, 1420070400);
+    final RollupSeq rs = new RollupSeq(tsdb, rollup_query);
+    rs.setRow(getRollupKeyValue(key, 1420070400, 20, 
+        rollup_config.getIdForAggregator("SUM"), rollup_query_10m_sum));
+    rs.addRow(getRollupKeyValue(key, 1420070400, 4, 
+        rollup_config.getIdForAggregator("count"), rollup_query_10m_count));
+    rs.addRow(getRollupKeyValue(key, 1420071000, 21, 
+        rollup_config.getIdForAggregator("SUM"), rollup_query_10m_sum));
+    rs.addRow(getRollupKeyValue(key, 1420071000, 4, 
+        rollup_config.getIdForAggregator("count"), rollup_query_10m_count));
+
+    assertEquals(2, rs.size());
+    final SeekableView it = rs.iterator();
+    long value = 20;
+    long ts = 1420070400000L;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      assertEquals(ts, dp.timestamp());
+      assertEquals(value, dp.longValue());
+      assertEquals(4, dp.valueCount());
+      ++value;
+      ts += 600000;
+    }
+  }
+
   @Test
   public void rollupAvg10mMissingCount() throws Exception {
     
@@ -1827,6 +1867,88 @@ public class TestRollupSeq {
     } catch (IndexOutOfBoundsException e) { }
   }
   
+  @Test
+  public void rollup10mPacked() throws Exception {
+    Internal.setBaseTime(key, 1420070400);
+    final int[] ids = new int[] { rollup_config.getIdForAggregator("sum"),
+        rollup_config.getIdForAggregator("count"), 
+        rollup_config.getIdForAggregator("max") };
+    final RollupSeq rs = new RollupSeq(tsdb, rollup_query_10m_sum);
+    rs.setRow(getPackedKeyValue(key, 1420070400, ids, 
+        new long[] { 20, 2, 15 }, rollup_query_10m_sum));
+    rs.addRow(getPackedKeyValue(key, 1420071000, ids, 
+        new long[] { 300, 2, 299 }, rollup_query_10m_sum));
+    
+    assertEquals(2, rs.size());
+    final SeekableView it = rs.iterator();
+    DataPoint dp = it.next();
+    assertEquals(1420070400000L, dp.timestamp());
+    assertTrue(dp.isInteger());
+    assertEquals(20, dp.longValue());
+    assertEquals(1, dp.valueCount());
+    dp = it.next();
+    assertEquals(1420071000000L, dp.timestamp());
+    assertEquals(300, dp.longValue());
+    assertFalse(it.hasNext());
+  }
+  
+  @Test
+  public void rollupAvg10mPacked() throws Exception {
+    Internal.setBaseTime(key, 1420070400);
+    final byte[] sum = Bytes.fromLong(Double.doubleToRawLongBits(20.5));
+    final byte[] count = Internal.vleEncodeLong(2);
+    final byte[] value = RollupUtils.buildPackedRollupValue(
+        new int[] { rollup_config.getIdForAggregator("count"), 
+            rollup_config.getIdForAggregator("sum") }, 
+        new short[] { (short) (count.length - 1), Const.FLAG_FLOAT | 0x7 }, 
+        new byte[][] { count, sum });
+    final RollupSeq rs = new RollupSeq(tsdb, rollup_query_10m_avg);
+    rs.setRow(new KeyValue(key, TestRowSeq.FAMILY, getPackedQualifier(
+        1420071000, rollup_query_10m_avg), value));
+    
+    assertEquals(1, rs.size());
+    final SeekableView it = rs.iterator();
+    final DataPoint dp = it.next();
+    assertEquals(1420071000000L, dp.timestamp());
+    assertFalse(dp.isInteger());
+    assertEquals(20.5, dp.doubleValue(), 0.0001);
+    assertEquals(2, dp.valueCount());
+    assertFalse(it.hasNext());
+  }
+  
+  @Test
+  public void rollup10mPackedMissingAggregate() throws Exception {
+    Internal.setBaseTime(key, 1420070400);
+    final RollupSeq rs = new RollupSeq(tsdb, rollup_query_10m_sum);
+    rs.setRow(getPackedKeyValue(key, 1420070400, 
+        new int[] { rollup_config.getIdForAggregator("max") }, 
+        new long[] { 42 }, rollup_query_10m_sum));
+    assertEquals(0, rs.size());
+  }
+  
+  @Test
+  public void rollup10mPackedAfterLegacy() throws Exception {
+    Internal.setBaseTime(key, 1420070400);
+    final RollupSeq rs = new RollupSeq(tsdb, rollup_query_10m_sum);
+    rs.setRow(getRollupKeyValue(key, 1420070400, 1L, 
+        rollup_config.getIdForAggregator("sum"), rollup_query_10m_sum));
+    rs.addRow(getPackedKeyValue(key, 1420071000, 
+        new int[] { rollup_config.getIdForAggregator("sum") }, 
+        new long[] { 2 }, rollup_query_10m_sum));
+    
+    assertEquals(2, rs.size());
+    assertEquals(1420070400000L, rs.timestamp(0));
+    assertEquals(1420071000000L, rs.timestamp(1));
+  }
+  
+  @Test (expected = IllegalDataException.class)
+  public void rollup10mPackedBadVersion() throws Exception {
+    Internal.setBaseTime(key, 1420070400);
+    final RollupSeq rs = new RollupSeq(tsdb, rollup_query_10m_sum);
+    rs.setRow(new KeyValue(key, TestRowSeq.FAMILY, getPackedQualifier(
+        1420070400, rollup_query_10m_sum), new byte[] { 42, 1, 0, 0, 1 }));
+  }
+  
   private static KeyValue getRollupKeyValue(final byte[] key,
                                             final long timestamp, 
                                             final long value, 
@@ -1873,4 +1995,28 @@ public class TestRollupSeq {
     return RollupUtils.buildRollupQualifier(timestamp, base_time, flags, 
             agg_id, rollup_query.getRollupInterval());
   }
+
+  private static KeyValue getPackedKeyValue(final byte[] key,
+                                            final long timestamp, 
+                                            final int[] agg_ids,
+                                            final long[] values,
+                                            final RollupQuery rollup_query) {
+    final byte[][] vals = new byte[values.length][];
+    final short[] flags = new short[values.length];
+    for (int i = 0; i < values.length; i++) {
+      vals[i] = Internal.vleEncodeLong(values[i]);
+      flags[i] = (short) (vals[i].length - 1);
+    }
+    return new KeyValue(key, TestRowSeq.FAMILY, 
+        getPackedQualifier(timestamp, rollup_query), 
+        RollupUtils.buildPackedRollupValue(agg_ids, flags, vals));
+  }
+  
+  private static byte[] getPackedQualifier(final long timestamp, 
+                                           final RollupQuery rollup_query) {
+    final int base_time = RollupUtils.getRollupBasetime(timestamp, 
+        rollup_query.getRollupInterval());
+    return RollupUtils.buildPackedRollupQualifier(timestamp, base_time, 
+        rollup_query.getRollupInterval());
+  }
 }
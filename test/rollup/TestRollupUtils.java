@@ -21,6 +21,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import net.opentsdb.core.Const;
+import net.opentsdb.core.IllegalDataException;
 
 public class TestRollupUtils {
   private static final String temporal_table = "tsdb-rollup-10m";
@@ -1137,4 +1138,47 @@ public class TestRollupUtils {
     assertEquals(1, header[0] & RollupUtils.AGGREGATOR_MASK);
     assertFalse(RollupUtils.isCompacted(header));
   }
+  
+  @Test
+  public void buildPackedRollupQualifier() {
+    //Thu, 06 Jun 2013 15:35:25 GMT
+    final byte[] q = RollupUtils.buildPackedRollupQualifier(1370532925L, 
+        1370530800, hour_interval);
+    assertArrayEquals(new byte[] { (byte) 0x84, (byte) 0xD0 }, q);
+    assertTrue(RollupUtils.isPackedRollupQualifier(q));
+    assertFalse(RollupUtils.isPackedRollupQualifier(
+        RollupUtils.buildRollupQualifier(1370532925L, 1370530800, (short) 0, 
+            42, hour_interval)));
+  }
+  
+  @Test
+  public void buildPackedRollupValue() {
+    final byte[] value = RollupUtils.buildPackedRollupValue(
+        new int[] { 0, 1, 2 }, 
+        new short[] { 0, 1, Const.FLAG_FLOAT | 0x3 }, 
+        new byte[][] { { 42 }, { 1, 0 }, { 0x40, 0x48, (byte) 0xF5, (byte) 0xC3 } });
+    assertArrayEquals(new byte[] { RollupUtils.PACKED_VERSION, 3, 
+        0, 0, 1, 1, 2, Const.FLAG_FLOAT | 0x3, 
+        42, 1, 0, 0x40, 0x48, (byte) 0xF5, (byte) 0xC3 }, value);
+    
+    assertEquals(0, RollupUtils.getPackedRollupIndex(value, 0));
+    assertEquals(2, RollupUtils.getPackedRollupIndex(value, 2));
+    assertEquals(-1, RollupUtils.getPackedRollupIndex(value, 3));
+    assertEquals(8, RollupUtils.getPackedRollupValueOffset(value, 0));
+    assertEquals(9, RollupUtils.getPackedRollupValueOffset(value, 1));
+    assertEquals(11, RollupUtils.getPackedRollupValueOffset(value, 2));
+    assertEquals(1, RollupUtils.getPackedRollupFlags(value, 1));
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void buildPackedRollupValueLengthMismatch() {
+    RollupUtils.buildPackedRollupValue(new int[] { 0 }, new short[] { 1 }, 
+        new byte[][] { { 42 } });
+  }
+  
+  @Test (expected = IllegalDataException.class)
+  public void getPackedRollupValueOffsetTruncated() {
+    RollupUtils.getPackedRollupValueOffset(
+        new byte[] { RollupUtils.PACKED_VERSION, 1, 0, 1, 42 }, 0);
+  }
 }
@@ -0,0 +1,142 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.opentsdb.core.TSDB;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class })
+public class TestRollupWindow {
+  private static final long BASE_TIME = 1356998400L;
+  private static final String METRIC = "sys.cpu.user";
+
+  private RollupConfig rollup_config;
+  private RollupInterval interval;
+  private Map<String, String> tags;
+
+  @Before
+  public void before() throws Exception {
+    rollup_config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addAggregationId("count", 1)
+        .addAggregationId("avg", 2)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1h")
+            .setPreAggregationTable("tsdb-rollup-agg-1h")
+            .setInterval("1h")
+            .setRowSpan("1d"))
+        .build();
+    interval = rollup_config.getRollupInterval("1h");
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+  }
+
+  @Test
+  public void windowStart() throws Exception {
+    assertEquals(BASE_TIME, RollupWindow.windowStart(BASE_TIME, interval));
+    assertEquals(BASE_TIME, RollupWindow.windowStart(BASE_TIME + 3599,
+        interval));
+    assertEquals(BASE_TIME + 3600, RollupWindow.windowStart(BASE_TIME + 3600,
+        interval));
+    assertEquals(BASE_TIME + 82800, RollupWindow.windowStart(
+        BASE_TIME + 86399, interval));
+  }
+
+  @Test
+  public void parseAggregations() throws Exception {
+    assertArrayEquals(new String[] { "sum", "count" },
+        RollupWindow.parseAggregations(" SUM,count ", rollup_config));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseAggregationsUnsupported() throws Exception {
+    RollupWindow.parseAggregations("sum,avg", rollup_config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseAggregationsNotMapped() throws Exception {
+    RollupWindow.parseAggregations("sum,max", rollup_config);
+  }
+
+  @Test
+  public void addAndClose() throws Exception {
+    final RollupWindow window = new RollupWindow(METRIC, tags, interval,
+        BASE_TIME);
+    assertEquals(BASE_TIME + 3600, window.end());
+    assertTrue(window.add(true, 42, 42, Long.MIN_VALUE));
+    assertEquals(1, window.count());
+    assertFalse(window.add(true, 42, 42, BASE_TIME + 3600));
+    assertTrue(window.close());
+    assertFalse(window.add(true, 42, 42, Long.MIN_VALUE));
+    assertEquals(1, window.count());
+
+    assertFalse(new RollupWindow(METRIC, tags, interval, BASE_TIME).close());
+  }
+
+  @Test
+  public void writeIntegers() throws Exception {
+    final TSDB tsdb = PowerMockito.mock(TSDB.class);
+    final RollupWindow window = new RollupWindow(METRIC, tags, interval,
+        BASE_TIME);
+    window.add(true, 4, 4, Long.MIN_VALUE);
+    window.add(true, -1, -1, Long.MIN_VALUE);
+    window.write(tsdb, "sum");
+    window.write(tsdb, "count");
+    window.write(tsdb, "min");
+    window.write(tsdb, "max");
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 3L, tags, false, "1h",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 2L, tags, false, "1h",
+        "count", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, -1L, tags, false, "1h",
+        "min", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 4L, tags, false, "1h",
+        "max", null);
+  }
+
+  @Test
+  public void writeOverflow() throws Exception {
+    final TSDB tsdb = PowerMockito.mock(TSDB.class);
+    final RollupWindow window = new RollupWindow(METRIC, tags, interval,
+        BASE_TIME);
+    window.add(true, Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE);
+    window.add(true, Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE);
+    window.write(tsdb, "sum");
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME,
+        (double) Long.MAX_VALUE * 2, tags, false, "1h", "sum", null);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void writeUnsupported() throws Exception {
+    final RollupWindow window = new RollupWindow(METRIC, tags, interval,
+        BASE_TIME);
+    window.add(true, 4, 4, Long.MIN_VALUE);
+    window.write(PowerMockito.mock(TSDB.class), "avg");
+  }
+}
@@ -0,0 +1,321 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.Bytes;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, DateTime.class })
+public class TestRollupWriter {
+  private static final long BASE_TIME = 1356998400L;
+  private static final String METRIC = "sys.cpu.user";
+  private static final byte[] ROW = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW_B = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 2 };
+
+  private TSDB tsdb;
+  private Config config;
+  private Timer timer;
+  private Map<String, String> tags;
+  private File checkpoint;
+
+  @SuppressWarnings("unchecked")
+  @Before
+  public void before() throws Exception {
+    final RollupConfig rollup_config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addAggregationId("count", 1)
+        .addAggregationId("min", 2)
+        .addAggregationId("max", 3)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1h")
+            .setPreAggregationTable("tsdb-rollup-agg-1h")
+            .setInterval("1h")
+            .setRowSpan("1d"))
+        .build();
+
+    tsdb = PowerMockito.mock(TSDB.class);
+    config = new Config(false);
+    timer = mock(Timer.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.getRollupConfig()).thenReturn(rollup_config);
+    when(tsdb.getTimer()).thenReturn(timer);
+    when(tsdb.getAggTagKey()).thenReturn("_aggregate");
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyLong(), anyMap(),
+        anyBoolean(), anyString(), anyString(), anyString()))
+      .thenReturn(Deferred.fromResult(null));
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyDouble(), anyMap(),
+        anyBoolean(), anyString(), anyString(), anyString()))
+      .thenReturn(Deferred.fromResult(null));
+
+    PowerMockito.mockStatic(DateTime.class);
+    setNow(BASE_TIME);
+
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+  }
+
+  @After
+  public void after() throws Exception {
+    if (checkpoint != null) {
+      checkpoint.delete();
+    }
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    assertEquals(0, writer.openWindows());
+    verify(timer).newTimeout(writer, 60, TimeUnit.SECONDS);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoRollupConfig() throws Exception {
+    when(tsdb.getRollupConfig()).thenReturn(null);
+    new RollupWriter(tsdb);
+  }
+
+  @Test
+  public void ctorBadConfig() throws Exception {
+    config.overrideConfig("tsd.rollups.writer.aggregations", "sum,avg");
+    try {
+      new RollupWriter(tsdb);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    config.overrideConfig("tsd.rollups.writer.aggregations", "sum");
+    config.overrideConfig("tsd.rollups.writer.flush_interval", "0");
+    try {
+      new RollupWriter(tsdb);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    config.overrideConfig("tsd.rollups.writer.flush_interval", "60");
+    config.overrideConfig("tsd.rollups.writer.max_windows", "0");
+    try {
+      new RollupWriter(tsdb);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void recordAndFlushIntegers() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW, METRIC, (BASE_TIME + 20) * 1000, new byte[] { 5 },
+        (short) 0, tags);
+    writer.record(ROW, METRIC, BASE_TIME + 30, new byte[] { -2 }, (short) 0,
+        tags);
+    assertEquals(1, writer.openWindows());
+
+    setNow(BASE_TIME + 3600 + 300);
+    writer.flush().joinUninterruptibly();
+    assertEquals(0, writer.openWindows());
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 4L, tags, false, "1h",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 3L, tags, false, "1h",
+        "count", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, -2L, tags, false, "1h",
+        "min", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 5L, tags, false, "1h",
+        "max", null);
+  }
+
+  @Test
+  public void recordAndFlushFloats() throws Exception {
+    config.overrideConfig("tsd.rollups.writer.aggregations", "sum,max");
+    final RollupWriter writer = new RollupWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW, METRIC, BASE_TIME + 20,
+        Bytes.fromLong(Double.doubleToRawLongBits(2.5)),
+        (short) (Const.FLAG_FLOAT | 0x7), tags);
+
+    setNow(BASE_TIME + 3600 + 300);
+    writer.flush().joinUninterruptibly();
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 3.5, tags, false, "1h",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 2.5, tags, false, "1h",
+        "max", null);
+  }
+
+  @Test
+  public void recordAndFlushPacked() throws Exception {
+    config.overrideConfig("tsd.rollups.packed.enable", "true");
+    when(tsdb.addPackedRollupPoint(anyString(), anyLong(), anyMap(),
+        anyString(), any(String[].class), any(byte[][].class),
+        any(short[].class))).thenReturn(Deferred.fromResult(null));
+    final RollupWriter writer = new RollupWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW, METRIC, BASE_TIME + 20, new byte[] { 5 }, (short) 0,
+        tags);
+
+    setNow(BASE_TIME + 3600 + 300);
+    writer.flush().joinUninterruptibly();
+    final ArgumentCaptor<byte[][]> values =
+        ArgumentCaptor.forClass(byte[][].class);
+    verify(tsdb).addPackedRollupPoint(eq(METRIC), eq(BASE_TIME), eq(tags),
+        eq("1h"), aryEq(new String[] { "sum", "count", "min", "max" }),
+        values.capture(), aryEq(new short[] { 0, 0, 0, 0 }));
+    assertArrayEquals(new byte[][] { { 6 }, { 2 }, { 1 }, { 5 } },
+        values.getValue());
+    verify(tsdb, never()).addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMap(), anyBoolean(), anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void flushKeepsOpenWindows() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW, METRIC, BASE_TIME + 3610, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(2, writer.openWindows());
+
+    // still within the grace period
+    setNow(BASE_TIME + 3600 + 299);
+    writer.flush().joinUninterruptibly();
+    assertEquals(2, writer.openWindows());
+    verify(tsdb, never()).addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMap(), anyBoolean(), anyString(), anyString(), anyString());
+
+    setNow(BASE_TIME + 3600 + 300);
+    writer.flush().joinUninterruptibly();
+    assertEquals(1, writer.openWindows());
+    verify(tsdb, times(4)).addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMap(), anyBoolean(), anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void recordLate() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    setNow(BASE_TIME + 3600 + 300);
+    writer.flush().joinUninterruptibly();
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(0, writer.openWindows());
+    assertEquals(1, writer.lateDataPoints());
+  }
+
+  @Test
+  public void recordFull() throws Exception {
+    config.overrideConfig("tsd.rollups.writer.max_windows", "1");
+    final RollupWriter writer = new RollupWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW_B, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    // the existing window still accepts data
+    writer.record(ROW, METRIC, BASE_TIME + 20, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(1, writer.openWindows());
+    assertEquals(1, writer.droppedDataPoints());
+  }
+
+  @Test
+  public void recordSkipsPreAggregates() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    tags.put("_aggregate", "SUM");
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    assertEquals(0, writer.openWindows());
+  }
+
+  @Test
+  public void checkpoint() throws Exception {
+    checkpoint = File.createTempFile("rollup", ".ckpt");
+    checkpoint.delete();
+    config.overrideConfig("tsd.rollups.writer.checkpoint_file",
+        checkpoint.getPath());
+    final RollupWriter writer = new RollupWriter(tsdb);
+    writer.record(ROW, METRIC, BASE_TIME + 10, new byte[] { 1 }, (short) 0,
+        tags);
+    writer.record(ROW, METRIC, BASE_TIME + 20, new byte[] { 2 }, (short) 0,
+        tags);
+    writer.flush().joinUninterruptibly();
+    assertTrue(checkpoint.exists());
+
+    // restart and pick up where we left off
+    final RollupWriter restored = new RollupWriter(tsdb);
+    assertEquals(1, restored.openWindows());
+    restored.record(ROW, METRIC, BASE_TIME + 30, new byte[] { 3 }, (short) 0,
+        tags);
+    assertEquals(1, restored.openWindows());
+
+    setNow(BASE_TIME + 3600 + 300);
+    restored.flush().joinUninterruptibly();
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 6L, tags, false, "1h",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE_TIME, 3L, tags, false, "1h",
+        "count", null);
+  }
+
+  @Test
+  public void run() throws Exception {
+    final RollupWriter writer = new RollupWriter(tsdb);
+    writer.run(null);
+    verify(timer, times(2)).newTimeout(any(TimerTask.class), anyLong(),
+        any(TimeUnit.class));
+  }
+
+  private void setNow(final long seconds) {
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(seconds * 1000);
+  }
+}
@@ -29,6 +29,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.cache.CacheBuilder;
 
+import net.opentsdb.core.CancellationToken;
 import net.opentsdb.core.QueryException;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.stats.QueryStats.QueryStat;
@@ -292,6 +293,36 @@ public final class TestQueryStats {
     assertEquals(-1, stats.getStat(QueryStat.BYTES_FROM_STORAGE));
   }
   
+  @Test
+  public void estimateErrors() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    stats.addStat(0, QueryStat.ESTIMATED_BYTES, 150);
+    stats.addStat(0, QueryStat.ESTIMATED_DATA_POINTS, 10);
+    stats.updateStat(0, QueryStat.FETCHED_BYTES, 100);
+    stats.updateStat(0, QueryStat.FETCHED_DATA_POINTS, 20);
+    stats.addStat(1, QueryStat.ESTIMATED_BYTES, 100);
+    stats.addStat(1, QueryStat.ESTIMATED_DATA_POINTS, 20);
+    stats.updateStat(1, QueryStat.FETCHED_BYTES, 100);
+    stats.updateStat(1, QueryStat.FETCHED_DATA_POINTS, 20);
+    // no estimate so it's skipped
+    stats.updateStat(2, QueryStat.FETCHED_BYTES, 1000);
+    stats.updateStat(2, QueryStat.FETCHED_DATA_POINTS, 200);
+    stats.markSerializationSuccessful();
+    
+    assertEquals(25, stats.getStat(QueryStat.BYTES_ESTIMATE_ERROR));
+    assertEquals(-25, stats.getStat(QueryStat.DATA_POINTS_ESTIMATE_ERROR));
+    Map<String, Object> sub_query = stats.getQueryStats(0, false);
+    assertEquals(50L, sub_query.get("bytesEstimateErrorPct"));
+    assertEquals(-50L, sub_query.get("dataPointsEstimateErrorPct"));
+    sub_query = stats.getQueryStats(1, false);
+    assertEquals(0L, sub_query.get("bytesEstimateErrorPct"));
+    assertEquals(0L, sub_query.get("dataPointsEstimateErrorPct"));
+    sub_query = stats.getQueryStats(2, false);
+    assertFalse(sub_query.containsKey("bytesEstimateErrorPct"));
+  }
+  
   @Test
   public void getStatTime() throws Exception {
     final TSQuery query = new TSQuery();
@@ -301,4 +332,36 @@ public final class TestQueryStats {
     assertEquals(1000.0, stats.getTimeStat(QueryStat.PROCESSING_PRE_WRITE_TIME), 0.001);
     assertEquals(Double.NaN, stats.getTimeStat(QueryStat.AVG_AGGREGATION_TIME), 0.001);
   }
+  
+  @Test
+  public void cancelRunningQuery() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    final Map<String, Object> map = QueryStats.getRunningAndCompleteStats();
+    final Map<String, Object> running = 
+        (Map<String, Object>) ((List<Object>)map.get("running")).get(0);
+    assertEquals(stats.hashCode(), running.get("id"));
+    
+    assertTrue(QueryStats.cancelRunningQuery(stats.hashCode()));
+    assertTrue(stats.getCancellationToken().isCancelled());
+    assertEquals(CancellationToken.Reason.KILLED, 
+        stats.getCancellationToken().getReason());
+    assertEquals(CancellationToken.Reason.KILLED.ordinal() + 1, 
+        stats.getStat(QueryStat.QUERY_CANCELLED));
+    // only once
+    assertFalse(QueryStats.cancelRunningQuery(stats.hashCode()));
+    assertFalse(QueryStats.cancelRunningQuery(42));
+  }
+  
+  @Test
+  public void cancelAfterComplete() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    stats.markSerializationSuccessful();
+    assertFalse(stats.cancel(CancellationToken.Reason.CLIENT_DISCONNECT));
+    assertFalse(stats.getCancellationToken().isCancelled());
+    assertEquals(-1, stats.getStat(QueryStat.QUERY_CANCELLED));
+  }
 }
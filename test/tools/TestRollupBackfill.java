@@ -0,0 +1,217 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.storage.MockBase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+public class TestRollupBackfill extends BaseTsdbTest {
+  private final static byte[] FAMILY = "t".getBytes(MockBase.ASCII());
+  private final static String[] AGGREGATIONS =
+      new String[] { "sum", "count", "min", "max" };
+
+  private RollupConfig rollup_config;
+  private List<RollupInterval> intervals;
+  private File checkpoint;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    final List<byte[]> families = new ArrayList<byte[]>();
+    families.add(FAMILY);
+    storage.addTable("tsdb-rollup-10m".getBytes(), families);
+    storage.addTable("tsdb-rollup-agg-10m".getBytes(), families);
+    storage.addTable("tsdb-rollup-1h".getBytes(), families);
+    storage.addTable("tsdb-rollup-agg-1h".getBytes(), families);
+
+    rollup_config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addAggregationId("count", 1)
+        .addAggregationId("max", 2)
+        .addAggregationId("min", 3)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb-agg")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m")
+            .setInterval("10m")
+            .setRowSpan("1d"))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1h")
+            .setPreAggregationTable("tsdb-rollup-agg-1h")
+            .setInterval("1h")
+            .setRowSpan("1n"))
+        .build();
+    Whitebox.setInternalState(tsdb, "rollup_config", rollup_config);
+    Whitebox.setInternalState(tsdb, "default_interval",
+        rollup_config.getRollupInterval("1m"));
+    Whitebox.setInternalState(tsdb, "agg_tag_key",
+        config.getString("tsd.rollups.agg_tag_key"));
+    Whitebox.setInternalState(tsdb, "raw_agg_tag_value",
+        config.getString("tsd.rollups.raw_agg_tag_value"));
+    when(client.flush()).thenReturn(Deferred.fromResult(null));
+
+    intervals = new ArrayList<RollupInterval>();
+    intervals.add(rollup_config.getRollupInterval("1h"));
+
+    tsdb.addPoint(METRIC_STRING, 1356998410L, 1, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1356998420L, 5, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1357002010L, 2, tags).joinUninterruptibly();
+  }
+
+  @After
+  public void afterLocal() throws Exception {
+    if (checkpoint != null) {
+      checkpoint.delete();
+    }
+  }
+
+  @Test
+  public void ctorValidation() throws Exception {
+    try {
+      new RollupBackfill(tsdb, new ArrayList<RollupInterval>(), AGGREGATIONS,
+          1356998400L, 1357005600L, 1, 1024, 0, null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupBackfill(tsdb, Arrays.asList(
+          rollup_config.getRollupInterval("1m")), AGGREGATIONS,
+          1356998400L, 1357005600L, 1, 1024, 0, null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupBackfill(tsdb, intervals, AGGREGATIONS,
+          1357005600L, 1356998400L, 1, 1024, 0, null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupBackfill(tsdb, intervals, AGGREGATIONS,
+          1356998400L, 1357005600L, 0, 1024, 0, null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupBackfill(tsdb, intervals, AGGREGATIONS,
+          1356998400L, 1357005600L, 1, 0, 0, null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RollupBackfill(tsdb, intervals, AGGREGATIONS,
+          1356998400L, 1357005600L, 1, 1024, -1, null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void run() throws Exception {
+    final RollupBackfill backfill = new RollupBackfill(tsdb, intervals,
+        AGGREGATIONS, 1356998400L, 1357005600L, 2, 3, 0, null);
+    assertEquals(0, backfill.run(Arrays.asList(METRIC_STRING)));
+    assertEquals(2, backfill.rows_processed.get());
+    assertEquals(3, backfill.datapoints_processed.get());
+    assertEquals(8, backfill.rollups_written.get());
+    assertEquals(1, backfill.tasks_completed.get());
+
+    assertArrayEquals(new byte[] { 6 }, getRollup(1356998400L, "sum"));
+    assertArrayEquals(new byte[] { 2 }, getRollup(1356998400L, "count"));
+    assertArrayEquals(new byte[] { 1 }, getRollup(1356998400L, "min"));
+    assertArrayEquals(new byte[] { 5 }, getRollup(1356998400L, "max"));
+    assertArrayEquals(new byte[] { 2 }, getRollup(1357002000L, "sum"));
+    assertArrayEquals(new byte[] { 1 }, getRollup(1357002000L, "count"));
+  }
+
+  @Test
+  public void runWidensToWholeWindows() throws Exception {
+    final RollupBackfill backfill = new RollupBackfill(tsdb, intervals,
+        AGGREGATIONS, 1356998400L + 1800, 1356998400L + 1900, 1, 1024, 0,
+        null);
+    assertEquals(0, backfill.run(Arrays.asList(METRIC_STRING)));
+    assertArrayEquals(new byte[] { 6 }, getRollup(1356998400L, "sum"));
+    assertNull(getRollup(1357002000L, "sum"));
+  }
+
+  @Test
+  public void runCheckpoint() throws Exception {
+    checkpoint = File.createTempFile("backfill", ".ckpt");
+    checkpoint.delete();
+    RollupBackfill backfill = new RollupBackfill(tsdb, intervals,
+        AGGREGATIONS, 1356998400L, 1357005600L, 1, 1024, 0, checkpoint);
+    backfill.run(Arrays.asList(METRIC_STRING));
+    assertEquals(8, backfill.rollups_written.get());
+
+    backfill = new RollupBackfill(tsdb, intervals, AGGREGATIONS, 1356998400L,
+        1357005600L, 1, 1024, 0, checkpoint);
+    backfill.run(Arrays.asList(METRIC_STRING));
+    assertEquals(0, backfill.rollups_written.get());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void runCheckpointDifferentRun() throws Exception {
+    checkpoint = File.createTempFile("backfill", ".ckpt");
+    checkpoint.delete();
+    new RollupBackfill(tsdb, intervals, AGGREGATIONS, 1356998400L,
+        1357005600L, 1, 1024, 0, checkpoint)
+      .run(Arrays.asList(METRIC_STRING));
+    new RollupBackfill(tsdb, intervals, AGGREGATIONS, 1356998400L,
+        1357009200L, 1, 1024, 0, checkpoint);
+  }
+
+  @Test
+  public void runSkipsOtherMetrics() throws Exception {
+    tsdb.addPoint(METRIC_B_STRING, 1356998410L, 42, tags)
+      .joinUninterruptibly();
+    final RollupBackfill backfill = new RollupBackfill(tsdb, intervals,
+        AGGREGATIONS, 1356998400L, 1357005600L, 1, 1024, 0, null);
+    backfill.run(Arrays.asList(METRIC_STRING));
+    assertEquals(3, backfill.datapoints_processed.get());
+    assertNull(storage.getColumn(
+        rollup_config.getRollupInterval("1h").getTemporalTable(),
+        getRowKey(METRIC_B_STRING, 1356998400, TAGK_STRING, TAGV_STRING),
+        FAMILY, RollupUtils.buildRollupQualifier(1356998400L, (short) 0,
+            rollup_config.getIdForAggregator("sum"),
+            rollup_config.getRollupInterval("1h"))));
+  }
+
+  /** @return The stored rollup value for the test series or null. */
+  private byte[] getRollup(final long timestamp, final String agg) {
+    final RollupInterval interval = rollup_config.getRollupInterval("1h");
+    return storage.getColumn(interval.getTemporalTable(),
+        getRowKey(METRIC_STRING, 1356998400, TAGK_STRING, TAGV_STRING),
+        FAMILY, RollupUtils.buildRollupQualifier(timestamp, (short) 0,
+            rollup_config.getIdForAggregator(agg), interval));
+  }
+}
@@ -0,0 +1,112 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.meta.CardinalityEstimator;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+public final class TestCardinalityRpc extends BaseTsdbTest {
+  private static final Charset UTF = Charset.forName("UTF-8");
+  private CardinalityRpc rpc = new CardinalityRpc();
+  private CardinalityEstimator estimator;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    HttpQuery.initializeSerializerMaps(tsdb);
+    setDataPointStorage();
+    final List<byte[]> families = new ArrayList<byte[]>(1);
+    families.add(TSMeta.FAMILY);
+    storage.addTable("tsdb-meta".getBytes(MockBase.ASCII()), families);
+    config.overrideConfig("tsd.core.cardinality.enable", "true");
+    estimator = new CardinalityEstimator(tsdb);
+    Whitebox.setInternalState(tsdb, "cardinality", estimator);
+
+    for (int i = 0; i < 4; i++) {
+      final byte[] key = new byte[13];
+      System.arraycopy(METRIC_BYTES, 0, key, 0, 3);
+      Bytes.setInt(key, 1356998400, 3);
+      System.arraycopy(TAGK_BYTES, 0, key, 7, 3);
+      key[12] = (byte) (i + 1);
+      estimator.record(key);
+    }
+  }
+
+  @Test
+  public void estimate() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/cardinality?m=" + METRIC_STRING);
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    final String result = query.response().getContent().toString(UTF);
+    assertTrue(result.contains("\"metric\":\"sys.cpu.user\""));
+    assertTrue(result.contains("\"series\":4"));
+    assertTrue(result.contains("\"estimate\":4"));
+    assertTrue(result.contains("\"host\":4"));
+  }
+
+  @Test
+  public void estimateWithFilters() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/cardinality?m=" + METRIC_STRING + "{host=web01}");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    final String result = query.response().getContent().toString(UTF);
+    assertTrue(result.contains("\"series\":4"));
+    assertTrue(result.contains("\"estimate\":1"));
+  }
+
+  @Test
+  public void estimateNoSuchMetric() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/cardinality?m=" + NSUN_METRIC);
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NOT_FOUND, query.response().getStatus());
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void estimateMissingMetric() throws Exception {
+    rpc.execute(tsdb, NettyMocks.getQuery(tsdb, "/api/cardinality"));
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void estimateDisabled() throws Exception {
+    Whitebox.setInternalState(tsdb, "cardinality",
+        (CardinalityEstimator) null);
+    rpc.execute(tsdb, NettyMocks.getQuery(tsdb,
+        "/api/cardinality?m=" + METRIC_STRING));
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void estimateBadMethod() throws Exception {
+    rpc.execute(tsdb, NettyMocks.postQuery(tsdb, "/api/cardinality?m="
+        + METRIC_STRING, ""));
+  }
+}
@@ -12,7 +12,10 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.verify;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -39,9 +42,11 @@ import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
 
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -713,6 +718,106 @@ System.out.println(response);
     rpc.execute(tsdb, query);
   }
 
+  @Test
+  public void oneExpressionStreamed() throws Exception {
+    oneExtraSameE();
+    config.overrideConfig("tsd.http.query.chunk_size", "1");
+    final String json = JSON.serializeToString(getDefaultQueryBuilder().build());
+    final QueryRpc rpc = new QueryRpc();
+    final HttpQuery query = NettyMocks.postQuery(tsdb, 
+        "/api/query/exp", json);
+    NettyMocks.mockChannelFuture(query);
+    rpc.execute(tsdb, query);
+    
+    assertTrue(query.isStreaming());
+    assertTrue(query.response().isChunked());
+    final ArgumentCaptor<Object> writes = ArgumentCaptor.forClass(Object.class);
+    verify(query.channel(), atLeast(3)).write(writes.capture());
+    final List<Object> messages = writes.getAllValues();
+    assertSame(query.response(), messages.get(0));
+    assertSame(HttpChunk.LAST_CHUNK, messages.get(messages.size() - 1));
+    
+    final StringBuilder buf = new StringBuilder();
+    int chunks = 0;
+    for (final Object message : messages.subList(1, messages.size() - 1)) {
+      buf.append(((HttpChunk) message).getContent()
+          .toString(Charset.forName("UTF-8")));
+      ++chunks;
+    }
+    // at least one chunk per timestamp
+    assertTrue(chunks > 3);
+    final String response = buf.toString();
+    assertTrue(response.contains("\"alias\":\"A plus B\""));
+    assertTrue(response.contains("\"dps\":[[1431561600000,12.0,18.0]"));
+    assertTrue(response.contains("[1431561660000,14.0,20.0]"));
+    assertTrue(response.contains("[1431561720000,16.0,22.0]"));
+    assertTrue(response.contains("\"metrics\":[\"A\",\"B\"]"));
+    assertTrue(response.endsWith("}"));
+  }
+  
+  @Test
+  public void outputsFetchedOneAtATime() throws Exception {
+    oneExtraSameE();
+    // A has 2 series and B has 3 so both can't be held at once
+    config.overrideConfig("tsd.http.query.exp.max_series", "3");
+    expressions = new ArrayList<Expression>();
+    outputs = new ArrayList<Output>(2);
+    outputs.add(Output.Builder().setId("a").build());
+    outputs.add(Output.Builder().setId("b").build());
+    
+    final String json = JSON.serializeToString(getDefaultQueryBuilder().build());
+    final QueryRpc rpc = new QueryRpc();
+    final HttpQuery query = NettyMocks.postQuery(tsdb, 
+        "/api/query/exp", json);
+    NettyMocks.mockChannelFuture(query);
+    rpc.execute(tsdb, query);
+    
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"id\":\"a\""));
+    assertTrue(response.contains("\"dps\":[[1431561600000,1.0,4.0]"));
+    assertTrue(response.contains("\"id\":\"b\""));
+    assertTrue(response.contains("\"dps\":[[1431561600000,11.0,14.0,17.0]"));
+  }
+  
+  @Test
+  public void outputOverSeriesLimit() throws Exception {
+    oneExtraSameE();
+    config.overrideConfig("tsd.http.query.exp.max_series", "2");
+    expressions = new ArrayList<Expression>();
+    outputs = Arrays.asList(Output.Builder().setId("b").build());
+    
+    final String json = JSON.serializeToString(getDefaultQueryBuilder().build());
+    final QueryRpc rpc = new QueryRpc();
+    final HttpQuery query = NettyMocks.postQuery(tsdb, 
+        "/api/query/exp", json);
+    NettyMocks.mockChannelFuture(query);
+    rpc.execute(tsdb, query);
+    
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"code\":413"));
+    assertTrue(response.contains("but the limit is 2"));
+  }
+  
+  @Test
+  public void expressionInputsOverSeriesLimit() throws Exception {
+    oneExtraSameE();
+    // the expression needs all 5 series of A and B at once
+    config.overrideConfig("tsd.http.query.exp.max_series", "4");
+    final String json = JSON.serializeToString(getDefaultQueryBuilder().build());
+    final QueryRpc rpc = new QueryRpc();
+    final HttpQuery query = NettyMocks.postQuery(tsdb, 
+        "/api/query/exp", json);
+    NettyMocks.mockChannelFuture(query);
+    rpc.execute(tsdb, query);
+    
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"code\":413"));
+    assertTrue(response.contains("would hold 5 series"));
+  }
+  
   protected Query.Builder getDefaultQueryBuilder() {
     return Query.Builder().setExpressions(expressions).setFilters(filters)
         .setMetrics(metrics).setName("q1").setTime(time).setOutputs(outputs);
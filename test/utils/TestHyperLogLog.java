@@ -0,0 +1,151 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.hbase.async.Bytes;
+import org.junit.Test;
+
+public class TestHyperLogLog {
+
+  @Test
+  public void ctor() {
+    final HyperLogLog hll = new HyperLogLog(12);
+    assertEquals(12, hll.precision());
+    assertEquals(0, hll.cardinality());
+    assertEquals(4097, hll.getBytes().length);
+  }
+
+  @Test
+  public void ctorBadPrecision() {
+    try {
+      new HyperLogLog(3);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new HyperLogLog(17);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void offerDuplicates() {
+    final HyperLogLog hll = new HyperLogLog(12);
+    assertTrue(hll.offer(new byte[] { 0, 0, 1 }));
+    assertFalse(hll.offer(new byte[] { 0, 0, 1 }));
+    assertFalse(hll.offer(new byte[] { 42, 0, 0, 1 }, 1, 3));
+    assertEquals(1, hll.cardinality());
+  }
+
+  @Test
+  public void cardinalitySmall() {
+    final HyperLogLog hll = new HyperLogLog(12);
+    for (int i = 0; i < 100; i++) {
+      hll.offer(Bytes.fromInt(i));
+      hll.offer(Bytes.fromInt(i));
+    }
+    assertEquals(100, hll.cardinality(), 3);
+  }
+
+  @Test
+  public void cardinalityLarge() {
+    final HyperLogLog hll = new HyperLogLog(12);
+    for (int i = 0; i < 100000; i++) {
+      hll.offer(Bytes.fromInt(i));
+    }
+    // 3x the standard error of ~1.6%
+    assertEquals(100000, hll.cardinality(), 5000);
+  }
+
+  @Test
+  public void merge() {
+    final HyperLogLog a = new HyperLogLog(10);
+    final HyperLogLog b = new HyperLogLog(10);
+    for (int i = 0; i < 600; i++) {
+      a.offer(Bytes.fromInt(i));
+    }
+    for (int i = 400; i < 1000; i++) {
+      b.offer(Bytes.fromInt(i));
+    }
+    a.merge(b);
+    assertEquals(1000, a.cardinality(), 100);
+    // idempotent
+    final long estimate = a.cardinality();
+    a.merge(b);
+    assertEquals(estimate, a.cardinality());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergePrecisionMismatch() {
+    new HyperLogLog(10).merge(new HyperLogLog(12));
+  }
+
+  @Test
+  public void serdes() {
+    final HyperLogLog hll = new HyperLogLog(8);
+    for (int i = 0; i < 1000; i++) {
+      hll.offer(Bytes.fromInt(i));
+    }
+    final HyperLogLog copy = HyperLogLog.fromBytes(hll.getBytes());
+    assertEquals(8, copy.precision());
+    assertEquals(hll.cardinality(), copy.cardinality());
+  }
+
+  @Test
+  public void fromBytesInvalid() {
+    try {
+      HyperLogLog.fromBytes(new byte[0]);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      HyperLogLog.fromBytes(new byte[] { 4, 0, 0 });
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      HyperLogLog.fromBytes(new byte[] { 42 });
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void offerConcurrent() throws Exception {
+    final HyperLogLog hll = new HyperLogLog(8);
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int start = t * 10000;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = start; i < start + 10000; i++) {
+            hll.offer(Bytes.fromInt(i));
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    final HyperLogLog expected = new HyperLogLog(8);
+    for (int i = 0; i < 40000; i++) {
+      expected.offer(Bytes.fromInt(i));
+    }
+    assertArrayEquals(expected.getBytes(), hll.getBytes());
+  }
+}
@@ -0,0 +1,108 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestLongByteMap {
+
+  @Test
+  public void ctor() {
+    final LongByteMap map = new LongByteMap();
+    assertEquals(0, map.size());
+    assertEquals(LongByteMap.NO_VALUE, map.get(42));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegative() {
+    new LongByteMap(-1);
+  }
+
+  @Test
+  public void putGet() {
+    final LongByteMap map = new LongByteMap();
+    map.put(1, (byte) 1);
+    map.put(0, (byte) 2);
+    map.put(-1, (byte) 3);
+    map.put(Long.MAX_VALUE, (byte) 4);
+    assertEquals(4, map.size());
+    assertEquals(1, map.get(1));
+    assertEquals(2, map.get(0));
+    assertEquals(3, map.get(-1));
+    assertEquals(4, map.get(Long.MAX_VALUE));
+    assertEquals(LongByteMap.NO_VALUE, map.get(2));
+
+    // replace
+    map.put(1, (byte) 5);
+    assertEquals(4, map.size());
+    assertEquals(5, map.get(1));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void putNoValue() {
+    new LongByteMap().put(1, LongByteMap.NO_VALUE);
+  }
+
+  @Test
+  public void resize() {
+    final LongByteMap map = new LongByteMap(2);
+    for (long i = 0; i < 10000; i++) {
+      map.put(i << 8, (byte) (i % 2 == 0 ? 1 : 2));
+    }
+    assertEquals(10000, map.size());
+    for (long i = 0; i < 10000; i++) {
+      assertEquals(i % 2 == 0 ? 1 : 2, map.get(i << 8));
+    }
+    assertEquals(LongByteMap.NO_VALUE, map.get(1));
+  }
+
+  @Test
+  public void clear() {
+    final LongByteMap map = new LongByteMap();
+    map.put(1, (byte) 1);
+    map.clear();
+    assertEquals(0, map.size());
+    assertEquals(LongByteMap.NO_VALUE, map.get(1));
+    map.put(1, (byte) 2);
+    assertEquals(2, map.get(1));
+  }
+
+  @Test
+  public void concurrentReads() throws Exception {
+    final LongByteMap map = new LongByteMap(2);
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (long i = 0; i < 100000; i++) {
+          map.put(i, (byte) (i % 2 == 0 ? 1 : 2));
+        }
+      }
+    };
+    writer.start();
+    while (writer.isAlive()) {
+      for (long i = 0; i < 100000; i += 97) {
+        final byte value = map.get(i);
+        assertTrue(value == LongByteMap.NO_VALUE || 
+            value == (i % 2 == 0 ? 1 : 2));
+      }
+    }
+    writer.join();
+    assertEquals(100000, map.size());
+    for (long i = 0; i < 100000; i++) {
+      assertEquals(i % 2 == 0 ? 1 : 2, map.get(i));
+    }
+  }
+}